@@ -0,0 +1,228 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.cmdline;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.io7m.jfunctional.Unit;
+import com.io7m.jguard.jailbuild.api.JailBuildType;
+import com.io7m.jguard.jailbuild.api.JailDownloadOctetsPerSecond;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadPolicy;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadSessionType;
+import com.io7m.jguard.jailbuild.api.JailDownloadWriteStatistics;
+import com.io7m.jguard.jailbuild.implementation.JailBuild;
+import jnr.posix.POSIXFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Optional;
+
+import static com.io7m.jfunctional.Unit.unit;
+
+/**
+ * The {@code download-base-archive} command.
+ */
+
+@Parameters(commandDescription = "Download a binary archive for creating a jail")
+final class JGCommandDownloadBinaryArchive extends JGCommandRoot
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JGCommandDownloadBinaryArchive.class);
+  }
+
+  @Parameter(
+    names = "-archive",
+    required = true,
+    description = "The output file")
+  private String file;
+
+  @Parameter(
+    names = "-arch",
+    description = "Override the system architecture")
+  private String arch;
+
+  @Parameter(
+    names = "-release",
+    description = "Override the system release")
+  private String release;
+
+  @Parameter(
+    names = "-fetch-archive",
+    description = "Select a specific archive file")
+  private String archive_file = "base.txz";
+
+  @Parameter(
+    names = "-base-uri",
+    description = "Override the base URI")
+  private URI base_uri = URI.create(
+    "http://ftp.freebsd.org/pub/FreeBSD/releases/");
+
+  @Parameter(
+    names = "-mirror",
+    description = "An alternative mirror base URI (may be repeated)")
+  private java.util.List<String> mirrors = new ArrayList<>(4);
+
+  @Parameter(
+    names = "-mirror-minimum-rate",
+    description = "Switch to the next fastest mirror if the download rate falls below the given octets per second")
+  private long mirror_minimum_rate;
+
+  @Parameter(
+    names = "-rate-limit",
+    description = "Limit the download rate to the given octets per second (0 is unlimited)")
+  private long rate_limit;
+
+  @Parameter(
+    names = "-sync-interval",
+    description = "Flush downloaded data to storage after every given number of octets (0 is never)")
+  private long sync_interval;
+
+  @Parameter(
+    names = "-attempt-timeout",
+    description = "Abandon and retry download attempts that take longer than the given number of seconds (0 is unlimited)")
+  private long attempt_timeout;
+
+  @Parameter(
+    names = "-retry",
+    description = "Set the number of retries for failed downloads (0 is unlimited)")
+  private int retry_max = 10;
+
+  @Parameter(
+    names = "-segments",
+    description = "Download the archive in the given number of concurrent segments")
+  private int segments = 1;
+
+  @Parameter(
+    names = "-verify",
+    description = "Verify the archive against the SHA-256 digest in the release MANIFEST")
+  private boolean verify;
+
+  @Parameter(
+    names = "-cache-directory",
+    description = "Serve and store archives using the given download cache")
+  private String cache_directory;
+
+  @Parameter(
+    names = "-cache-size-limit",
+    description = "The maximum number of octets held by the download cache")
+  private long cache_size_limit = Long.MAX_VALUE;
+
+  JGCommandDownloadBinaryArchive()
+  {
+
+  }
+
+  @Override
+  public Unit call()
+    throws Exception
+  {
+    super.call();
+
+    final String archive_arch = JGDownloadSupport.detectArch(this.arch);
+    LOG.debug("arch: {}", archive_arch);
+    final String archive_release = JGDownloadSupport.detectRelease(this.release);
+    LOG.debug("release: {}", archive_release);
+
+    final Path out_file = Paths.get(this.file);
+
+    final JailBuildType jb = JailBuild.get(
+      JailBuild.clients(), POSIXFactory.getNativePOSIX());
+
+    final JailDownloadPolicy.Builder policy_builder =
+      JailDownloadPolicy.builder()
+        .setAttempts(this.retry_max <= 0 ? Integer.MAX_VALUE : this.retry_max)
+        .setTemporaryFile(true);
+    if (this.attempt_timeout > 0L) {
+      policy_builder.setAttemptTimeout(
+        Duration.ofSeconds(this.attempt_timeout));
+    }
+
+    final JailDownloadOptions.Builder options_builder =
+      JailDownloadOptions.builder()
+        .setSegments(this.segments)
+        .setVerifyDigest(this.verify)
+        .setCacheSizeLimit(this.cache_size_limit)
+        .setMirrors(JGDownloadSupport.mirrorURIs(this.mirrors))
+        .setMirrorMinimumOctetsPerSecond(this.mirror_minimum_rate)
+        .setRateLimiter(JGDownloadSupport.rateLimiter(this.rate_limit))
+        .setSyncIntervalOctets(this.sync_interval)
+        .setPolicy(policy_builder.build());
+    if (this.cache_directory != null) {
+      options_builder.setCacheDirectory(
+        Paths.get(this.cache_directory).toAbsolutePath());
+    }
+    final JailDownloadOptions options = options_builder.build();
+
+    final JailDownloadProgressType progress =
+      JailDownloadOctetsPerSecond.get(
+        (total_expected, total_received, octets_per_second) ->
+          LOG.info(
+            "download ({}) {} / {} bytes ({} MiB/s)",
+            JGCommandDownloadBinaryArchive.this.archive_file,
+            Long.valueOf(total_received),
+            Long.valueOf(total_expected),
+            Double.valueOf((double) octets_per_second / 1000_000.0)),
+        Clock.systemUTC());
+
+    /*
+     * Retries are performed by the session according to the download
+     * policy, and so reuse any connections to the mirror that are still
+     * alive.
+     */
+
+    try (final JailDownloadSessionType session = jb.jailDownloadSession()) {
+      LOG.info("downloading {}", this.archive_file);
+      session.download(
+        out_file,
+        this.base_uri,
+        archive_arch,
+        archive_release,
+        this.archive_file,
+        options,
+        Optional.of(progress));
+
+      LOG.info("download completed");
+      if (LOG.isDebugEnabled()) {
+        final JailDownloadWriteStatistics stats =
+          session.writeStatistics();
+        LOG.debug(
+          "writes: {} ({} octets, mean {} octets, largest {} octets), syncs: {}",
+          Long.valueOf(stats.writes()),
+          Long.valueOf(stats.octetsWritten()),
+          Long.valueOf(stats.writeMean()),
+          Long.valueOf(stats.writeLargest()),
+          Long.valueOf(stats.syncs()));
+      }
+      return unit();
+    } catch (final IOException e) {
+      LOG.error("download failed: ", e);
+      this.fail();
+      return unit();
+    }
+  }
+}
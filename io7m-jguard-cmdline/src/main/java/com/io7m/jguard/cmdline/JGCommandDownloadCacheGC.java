@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.cmdline;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.io7m.jfunctional.Unit;
+import com.io7m.jguard.jailbuild.api.JailBuildType;
+import com.io7m.jguard.jailbuild.api.JailDownloadCacheStatistics;
+import com.io7m.jguard.jailbuild.implementation.JailBuild;
+import jnr.posix.POSIXFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static com.io7m.jfunctional.Unit.unit;
+
+/**
+ * The {@code download-cache-gc} command.
+ */
+
+@Parameters(commandDescription = "Remove the least recently used archives from a download cache")
+final class JGCommandDownloadCacheGC extends JGCommandRoot
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JGCommandDownloadCacheGC.class);
+  }
+
+  @Parameter(
+    names = "-cache-directory",
+    required = true,
+    description = "The download cache directory")
+  private String cache_directory;
+
+  @Parameter(
+    names = "-cache-size-limit",
+    required = true,
+    description = "The maximum number of octets that will be retained")
+  private long cache_size_limit;
+
+  JGCommandDownloadCacheGC()
+  {
+
+  }
+
+  @Override
+  public Unit call()
+    throws Exception
+  {
+    super.call();
+
+    final Path directory = Paths.get(this.cache_directory).toAbsolutePath();
+    LOG.debug("cache-directory: {}", directory);
+
+    try {
+      final JailBuildType jb = JailBuild.get(
+        JailBuild.clients(), POSIXFactory.getNativePOSIX());
+
+      final JailDownloadCacheStatistics statistics =
+        jb.jailDownloadCacheCollectGarbage(directory, this.cache_size_limit);
+
+      LOG.info(
+        "removed {} archives ({} octets), retained {} archives ({} octets)",
+        Long.valueOf(statistics.archivesRemoved()),
+        Long.valueOf(statistics.octetsRemoved()),
+        Long.valueOf(statistics.archivesRetained()),
+        Long.valueOf(statistics.octetsRetained()));
+      return unit();
+    } catch (final IllegalArgumentException e) {
+      LOG.error("parameter error: {}", e.getMessage());
+      this.fail();
+      return unit();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.cmdline;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.io7m.jfunctional.Unit;
+import com.io7m.jguard.jailbuild.api.JailBuildType;
+import com.io7m.jguard.jailbuild.api.JailDownloadMirrorProbe;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.implementation.JailBuild;
+import jnr.posix.POSIXFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+
+import static com.io7m.jfunctional.Unit.unit;
+
+/**
+ * The {@code probe-mirrors} command.
+ */
+
+@Parameters(commandDescription = "Measure the latency and download rate of a set of mirrors")
+final class JGCommandProbeMirrors extends JGCommandRoot
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JGCommandProbeMirrors.class);
+  }
+
+  @Parameter(
+    names = "-mirror",
+    required = true,
+    description = "A mirror base URI (may be repeated)")
+  private java.util.List<String> mirrors = new ArrayList<>(4);
+
+  @Parameter(
+    names = "-arch",
+    description = "Override the system architecture")
+  private String arch;
+
+  @Parameter(
+    names = "-release",
+    description = "Override the system release")
+  private String release;
+
+  @Parameter(
+    names = "-fetch-archive",
+    description = "Select a specific archive file")
+  private String archive_file = "base.txz";
+
+  @Parameter(
+    names = "-probe-size",
+    description = "The number of octets requested from each mirror")
+  private int probe_size = 65536;
+
+  JGCommandProbeMirrors()
+  {
+
+  }
+
+  @Override
+  public Unit call()
+    throws Exception
+  {
+    super.call();
+
+    final String archive_arch = JGDownloadSupport.detectArch(this.arch);
+    LOG.debug("arch: {}", archive_arch);
+    final String archive_release = JGDownloadSupport.detectRelease(this.release);
+    LOG.debug("release: {}", archive_release);
+
+    final JailBuildType jb = JailBuild.get(
+      JailBuild.clients(), POSIXFactory.getNativePOSIX());
+
+    try {
+      final JailDownloadOptions options =
+        JailDownloadOptions.builder()
+          .setMirrorProbeOctets(this.probe_size)
+          .build();
+
+      final java.util.List<JailDownloadMirrorProbe> probes =
+        jb.jailDownloadProbeMirrors(
+          JGDownloadSupport.mirrorURIs(this.mirrors).toJavaList(),
+          archive_arch,
+          archive_release,
+          this.archive_file,
+          options);
+
+      for (final JailDownloadMirrorProbe probe : probes) {
+        if (probe.succeeded()) {
+          LOG.info(
+            "{}: latency {} ms, {} MiB/s",
+            probe.base(),
+            Long.valueOf(probe.latency().toMillis()),
+            Double.valueOf((double) probe.octetsPerSecond() / 1000_000.0));
+        } else {
+          LOG.error("{}: {}", probe.base(), probe.error().get().getMessage());
+        }
+      }
+
+      return unit();
+    } catch (final IllegalArgumentException e) {
+      LOG.error("parameter error: {}", e.getMessage());
+      this.fail();
+      return unit();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.io7m.jguard.cmdline;
+
+import com.beust.jcommander.Parameter;
+import com.io7m.jfunctional.Unit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+
+import static com.io7m.jfunctional.Unit.unit;
+
+/**
+ * The root command, holding the options that are common to all commands.
+ */
+
+class JGCommandRoot implements Callable<Unit>
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JGCommandRoot.class);
+  }
+
+  @Parameter(
+    names = "-verbose",
+    converter = JGLogLevelConverter.class,
+    description = "Set the minimum logging verbosity level")
+  private JGLogLevel verbose = JGLogLevel.LOG_INFO;
+
+  private int exit_code;
+
+  JGCommandRoot()
+  {
+
+  }
+
+  /**
+   * @return The exit code of the command
+   */
+
+  final int exitCode()
+  {
+    return this.exit_code;
+  }
+
+  /**
+   * Indicate that the command has failed.
+   */
+
+  final void fail()
+  {
+    this.exit_code = 1;
+  }
+
+  @Override
+  public Unit call()
+    throws Exception
+  {
+    final ch.qos.logback.classic.Logger root =
+      (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
+        Logger.ROOT_LOGGER_NAME);
+    root.setLevel(this.verbose.toLevel());
+    LOG.trace("start");
+    return unit();
+  }
+}
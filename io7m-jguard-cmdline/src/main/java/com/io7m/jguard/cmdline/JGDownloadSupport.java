@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.io7m.jguard.cmdline;
+
+import com.beust.jcommander.ParameterException;
+import com.io7m.jguard.jailbuild.api.JailDownloadRateLimiter;
+import com.io7m.junreachable.UnreachableCodeException;
+import javaslang.collection.List;
+
+import java.net.URI;
+import java.time.Clock;
+import java.util.Optional;
+
+/**
+ * Functions shared by the download commands.
+ */
+
+final class JGDownloadSupport
+{
+  private JGDownloadSupport()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * @param arch An architecture override, if any
+   *
+   * @return {@code arch}, or the architecture of the running system
+   */
+
+  static String detectArch(final String arch)
+  {
+    String archive_arch = System.getProperty("os.arch");
+    if (arch != null) {
+      archive_arch = arch;
+    }
+    if (archive_arch == null) {
+      throw new ParameterException(
+        "Could not detect the system architecture and no override was provided");
+    }
+    return archive_arch;
+  }
+
+  /**
+   * @param release A release override, if any
+   *
+   * @return {@code release}, or the release of the running system
+   */
+
+  static String detectRelease(final String release)
+  {
+    String archive_release = System.getProperty("os.version");
+    if (release != null) {
+      archive_release = release;
+    }
+    if (archive_release == null) {
+      throw new ParameterException(
+        "Could not detect the system version and no override was provided");
+    }
+    return archive_release;
+  }
+
+  /**
+   * @param mirrors A list of mirror base URIs
+   *
+   * @return The parsed URIs
+   */
+
+  static List<URI> mirrorURIs(final java.util.List<String> mirrors)
+  {
+    return List.ofAll(mirrors).map(URI::create);
+  }
+
+  /**
+   * @param rate_limit A rate limit in octets per second, or {@code 0}
+   *
+   * @return A rate limiter, if {@code rate_limit} is positive
+   */
+
+  static Optional<JailDownloadRateLimiter> rateLimiter(
+    final long rate_limit)
+  {
+    if (rate_limit > 0L) {
+      return Optional.of(
+        JailDownloadRateLimiter.create(rate_limit, Clock.systemUTC()));
+    }
+    return Optional.empty();
+  }
+}
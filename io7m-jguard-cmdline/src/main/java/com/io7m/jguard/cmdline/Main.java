@@ -27,8 +27,11 @@ import com.io7m.jguard.core.JailConfigurations;
 import com.io7m.jguard.core.JailName;
 import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
 import com.io7m.jguard.jailbuild.api.JailBuildType;
-import com.io7m.jguard.jailbuild.api.JailDownloadOctetsPerSecond;
-import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailCopyMode;
+import com.io7m.jguard.jailbuild.api.JailCreateOptions;
+import com.io7m.jguard.jailbuild.api.JailCreateResult;
+import com.io7m.jguard.jailbuild.api.JailUnpackOptions;
+import com.io7m.jguard.jailbuild.api.JailUnpackStatistics;
 import com.io7m.jguard.jailbuild.implementation.JailBuild;
 import com.io7m.jguard.jailcontrol.api.JailControlException;
 import com.io7m.jguard.jailcontrol.api.JailControlType;
@@ -40,23 +43,23 @@ import jnr.posix.POSIXFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.URI;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.time.Clock;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import static com.io7m.jfunctional.Unit.unit;
 
@@ -72,7 +75,7 @@ public final class Main implements Runnable
     LOG = LoggerFactory.getLogger(Main.class);
   }
 
-  private final Map<String, CommandType> commands;
+  private final Map<String, JGCommandRoot> commands;
   private final JCommander commander;
   private final String[] args;
   private int exit_code;
@@ -81,32 +84,52 @@ public final class Main implements Runnable
   {
     this.args = NullCheck.notNull(in_args);
 
-    final CommandRoot r =
-      new CommandRoot();
+    final JGCommandRoot r =
+      new JGCommandRoot();
     final CommandStart start =
       new CommandStart();
-    final CommandDownloadBinaryArchive download =
-      new CommandDownloadBinaryArchive();
+    final JGCommandDownloadBinaryArchive download =
+      new JGCommandDownloadBinaryArchive();
+    final JGCommandDownloadBinaryArchives download_archives =
+      new JGCommandDownloadBinaryArchives();
+    final JGCommandDownloadCacheGC download_cache_gc =
+      new JGCommandDownloadCacheGC();
+    final JGCommandProbeMirrors probe_mirrors =
+      new JGCommandProbeMirrors();
     final CommandCreateJailBase create_jail_base =
       new CommandCreateJailBase();
     final CommandCreateJail create_jail =
       new CommandCreateJail();
+    final CommandCreateJails create_jails =
+      new CommandCreateJails();
+    final CommandBreakJailLinks break_jail_links =
+      new CommandBreakJailLinks();
     final CommandVersion version =
       new CommandVersion();
 
-    this.commands = new HashMap<>(8);
+    this.commands = new HashMap<>(16);
     this.commands.put("start", start);
     this.commands.put("download-base-archive", download);
+    this.commands.put("download-archives", download_archives);
+    this.commands.put("download-cache-gc", download_cache_gc);
+    this.commands.put("probe-mirrors", probe_mirrors);
     this.commands.put("create-jail-base", create_jail_base);
     this.commands.put("create-jail", create_jail);
+    this.commands.put("create-jails", create_jails);
+    this.commands.put("break-jail-links", break_jail_links);
     this.commands.put("version", version);
 
     this.commander = new JCommander(r);
     this.commander.setProgramName("jguard");
     this.commander.addCommand("start", start);
     this.commander.addCommand("download-base-archive", download);
+    this.commander.addCommand("download-archives", download_archives);
+    this.commander.addCommand("download-cache-gc", download_cache_gc);
+    this.commander.addCommand("probe-mirrors", probe_mirrors);
     this.commander.addCommand("create-jail-base", create_jail_base);
     this.commander.addCommand("create-jail", create_jail);
+    this.commander.addCommand("create-jails", create_jails);
+    this.commander.addCommand("break-jail-links", break_jail_links);
     this.commander.addCommand("version", version);
   }
 
@@ -146,8 +169,9 @@ public final class Main implements Runnable
         return;
       }
 
-      final CommandType command = this.commands.get(cmd);
+      final JGCommandRoot command = this.commands.get(cmd);
       command.call();
+      this.exit_code = command.exitCode();
 
     } catch (final ParameterException e) {
       final StringBuilder sb = new StringBuilder(128);
@@ -160,39 +184,8 @@ public final class Main implements Runnable
     }
   }
 
-  private interface CommandType extends Callable<Unit>
-  {
-
-  }
-
-  private class CommandRoot implements CommandType
-  {
-    @Parameter(
-      names = "-verbose",
-      converter = JGLogLevelConverter.class,
-      description = "Set the minimum logging verbosity level")
-    private JGLogLevel verbose = JGLogLevel.LOG_INFO;
-
-    CommandRoot()
-    {
-
-    }
-
-    @Override
-    public Unit call()
-      throws Exception
-    {
-      final ch.qos.logback.classic.Logger root =
-        (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(
-          Logger.ROOT_LOGGER_NAME);
-      root.setLevel(this.verbose.toLevel());
-      LOG.trace("start");
-      return unit();
-    }
-  }
-
   @Parameters(commandDescription = "Retrieve the program version")
-  private final class CommandVersion extends CommandRoot
+  private final class CommandVersion extends JGCommandRoot
   {
     CommandVersion()
     {
@@ -217,7 +210,7 @@ public final class Main implements Runnable
   }
 
   @Parameters(commandDescription = "Create a jail")
-  private final class CommandCreateJail extends CommandRoot
+  private final class CommandCreateJail extends JGCommandRoot
   {
     @Parameter(
       names = "-base",
@@ -265,6 +258,16 @@ public final class Main implements Runnable
       description = "The command that will be executed inside the jail on startup")
     private String start_command;
 
+    @Parameter(
+      names = "-copy-threads",
+      description = "The number of threads used to copy the base template")
+    private int copy_threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+      names = "-copy-mode",
+      description = "The mechanism used to copy files from the base template")
+    private JailCopyMode copy_mode = JailCopyMode.JAIL_COPY_MODE_KERNEL;
+
     CommandCreateJail()
     {
 
@@ -295,7 +298,7 @@ public final class Main implements Runnable
             ipv4_list = List.of((Inet4Address) address);
           } else {
             LOG.error("not an ipv4 address: {}", address);
-            Main.this.exit_code = 1;
+            this.fail();
             return unit();
           }
         }
@@ -307,7 +310,7 @@ public final class Main implements Runnable
             ipv6_list = List.of((Inet6Address) address);
           } else {
             LOG.error("not an ipv6 address: {}", address);
-            Main.this.exit_code = 1;
+            this.fail();
             return unit();
           }
         }
@@ -320,48 +323,68 @@ public final class Main implements Runnable
         b.setIpv4Addresses(ipv4_list);
         b.setIpv6Addresses(ipv6_list);
 
-        jb.jailCreate(jail_base, jail_base_template, b.build());
+        final JailCreateOptions options =
+          JailCreateOptions.builder()
+            .setCopyThreads(this.copy_threads)
+            .setCopyMode(this.copy_mode)
+            .build();
+
+        jb.jailCreate(jail_base, jail_base_template, b.build(), options);
 
         return unit();
       } catch (final FileAlreadyExistsException e) {
         LOG.error("file already exists: {}", e.getMessage());
-        Main.this.exit_code = 1;
+        this.fail();
         return unit();
       } catch (final IllegalArgumentException e) {
         LOG.error("parameter error: {}", e.getMessage());
-        Main.this.exit_code = 1;
+        this.fail();
         return unit();
       }
     }
   }
 
-  @Parameters(commandDescription = "Create a base jail and template from an archive")
-  private final class CommandCreateJailBase extends CommandRoot
+  @Parameters(commandDescription = "Create a set of jails")
+  private final class CommandCreateJails extends JGCommandRoot
   {
     @Parameter(
       names = "-base",
       required = true,
-      description = "The created base directory")
+      description = "The base directory")
     private String base;
 
     @Parameter(
       names = "-base-template",
       required = true,
-      description = "The created base template directory")
+      description = "The base template directory")
     private String base_template;
 
     @Parameter(
-      names = "-archive",
-      required = true,
-      description = "Select a specific archive file")
-    private String archive_file;
+      names = "-config",
+      description = "A jail configuration file (may be repeated)")
+    private java.util.List<String> config_files = new ArrayList<>(8);
 
     @Parameter(
-      names = "-archive-format",
-      description = "Explicitly specify the archive format")
-    private JailArchiveFormat archive_format;
+      names = "-config-directory",
+      description = "A directory containing jail configuration files with names ending in .conf")
+    private String config_directory;
 
-    CommandCreateJailBase()
+    @Parameter(
+      names = "-jail-threads",
+      description = "The number of jails created concurrently")
+    private int jail_threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+      names = "-copy-threads",
+      description = "The number of threads used to copy the base template for each jail")
+    private int copy_threads = 1;
+
+    @Parameter(
+      names = "-copy-mode",
+      description = "The mechanism used to copy files from the base template")
+    private JailCopyMode copy_mode = JailCopyMode.JAIL_COPY_MODE_KERNEL;
+
+    CommandCreateJails()
     {
 
     }
@@ -372,76 +395,196 @@ public final class Main implements Runnable
     {
       super.call();
 
-      final Path jail_base_archive =
-        Paths.get(this.archive_file).toAbsolutePath();
       final Path jail_base =
         Paths.get(this.base).toAbsolutePath();
       final Path jail_base_template =
         Paths.get(this.base_template).toAbsolutePath();
 
-      LOG.debug("archive:        {}", jail_base_archive);
-      LOG.debug("base:           {}", jail_base);
-      LOG.debug("base-template:  {}", jail_base_template);
+      LOG.debug("base:          {}", jail_base);
+      LOG.debug("base-template: {}", jail_base_template);
 
-      final JailBuildType jb = JailBuild.get(
-        JailBuild.clients(), POSIXFactory.getNativePOSIX());
+      final java.util.List<JailConfiguration> configs =
+        this.configurations(this.configurationPaths());
+      if (this.exitCode() != 0) {
+        return unit();
+      }
 
-      if (this.archive_format == null) {
-        final Optional<JailArchiveFormat> format_opt =
-          JailArchiveFormat.inferFrom(jail_base_archive);
-        if (format_opt.isPresent()) {
-          this.archive_format = format_opt.get();
+      try {
+        final JailBuildType jb = JailBuild.get(
+          JailBuild.clients(), POSIXFactory.getNativePOSIX());
+
+        final JailCreateOptions options =
+          JailCreateOptions.builder()
+            .setJailThreads(this.jail_threads)
+            .setCopyThreads(this.copy_threads)
+            .setCopyMode(this.copy_mode)
+            .build();
+
+        final java.util.List<JailCreateResult> results =
+          jb.jailCreateMany(jail_base, jail_base_template, configs, options);
+
+        for (final JailCreateResult result : results) {
+          final String name = result.configuration().name().value();
+          if (result.succeeded()) {
+            LOG.info("{}: created", name);
+          } else {
+            LOG.error("{}: {}", name, result.error().get().getMessage());
+            this.fail();
+          }
         }
+
+        return unit();
+      } catch (final IllegalArgumentException e) {
+        LOG.error("parameter error: {}", e.getMessage());
+        this.fail();
+        return unit();
       }
+    }
 
-      LOG.debug("archive-format: {}", this.archive_format);
+    private java.util.List<Path> configurationPaths()
+      throws IOException
+    {
+      final java.util.List<Path> paths = new ArrayList<>(this.config_files.size());
+      for (final String file : this.config_files) {
+        paths.add(Paths.get(file));
+      }
+      if (this.config_directory != null) {
+        try (final Stream<Path> files = Files.list(Paths.get(this.config_directory))) {
+          files.filter(file -> file.getFileName().toString().endsWith(".conf"))
+            .filter(Files::isRegularFile)
+            .sorted()
+            .forEach(paths::add);
+        }
+      }
+      return paths;
+    }
 
-      jb.jailCreateBase(
-        jail_base_archive,
-        this.archive_format,
-        jail_base,
-        jail_base_template);
+    private java.util.List<JailConfiguration> configurations(
+      final java.util.List<Path> paths)
+      throws IOException
+    {
+      final java.util.List<JailConfiguration> configs = new ArrayList<>(paths.size());
+      for (final Path path : paths) {
+        LOG.debug("configuration: {}", path);
+        final Properties props = new Properties();
+        try (final InputStream is = Files.newInputStream(path)) {
+          props.load(is);
+        }
 
-      return unit();
+        final Validation<List<JailConfigurationError>, JailConfiguration> result =
+          JailConfigurations.fromProperties(path, props);
+        if (result.isValid()) {
+          configs.add(result.get());
+        } else {
+          result.getError().forEach(error -> {
+            LOG.error("{}: {}: {}", error.path(), error.key(), error.message());
+          });
+          this.fail();
+        }
+      }
+      return configs;
     }
   }
 
-  @Parameters(commandDescription = "Download a binary archive for creating a jail")
-  private final class CommandDownloadBinaryArchive extends CommandRoot
+  @Parameters(commandDescription = "Replace hard-linked jail files with private copies")
+  private final class CommandBreakJailLinks extends JGCommandRoot
   {
     @Parameter(
-      names = "-archive",
+      names = "-name",
       required = true,
-      description = "The output file")
-    private String file;
+      description = "The jail name")
+    private String jail_name;
+
+    @Parameter(
+      names = "-root",
+      required = true,
+      description = "The jail directory")
+    private String root;
 
     @Parameter(
-      names = "-arch",
-      description = "Override the system architecture")
-    private String arch;
+      names = "-file",
+      description = "A file, relative to the jail directory, whose link will be broken (may be repeated; defaults to all files)")
+    private java.util.List<String> files = new ArrayList<>(8);
+
+    CommandBreakJailLinks()
+    {
+
+    }
+
+    @Override
+    public Unit call()
+      throws Exception
+    {
+      super.call();
+
+      final Path jail_root = Paths.get(this.root).toAbsolutePath();
+      LOG.debug("root: {}", jail_root);
+
+      try {
+        final JailBuildType jb = JailBuild.get(
+          JailBuild.clients(), POSIXFactory.getNativePOSIX());
+
+        final Optional<Set<String>> selected;
+        if (this.files.isEmpty()) {
+          selected = Optional.empty();
+        } else {
+          selected = Optional.of(new HashSet<>(this.files));
+        }
+
+        final int count =
+          jb.jailBreakLinks(jail_root, JailName.of(this.jail_name), selected);
+        LOG.info("copied {} files", Integer.valueOf(count));
+        return unit();
+      } catch (final IllegalArgumentException e) {
+        LOG.error("parameter error: {}", e.getMessage());
+        this.fail();
+        return unit();
+      }
+    }
+  }
+
+  @Parameters(commandDescription = "Create a base jail and template from an archive")
+  private final class CommandCreateJailBase extends JGCommandRoot
+  {
+    @Parameter(
+      names = "-base",
+      required = true,
+      description = "The created base directory")
+    private String base;
 
     @Parameter(
-      names = "-release",
-      description = "Override the system release")
-    private String release;
+      names = "-base-template",
+      required = true,
+      description = "The created base template directory")
+    private String base_template;
 
     @Parameter(
-      names = "-fetch-archive",
+      names = "-archive",
+      required = true,
       description = "Select a specific archive file")
-    private String archive_file = "base.txz";
+    private String archive_file;
 
     @Parameter(
-      names = "-base-uri",
-      description = "Override the base URI")
-    private URI base_uri = URI.create(
-      "http://ftp.freebsd.org/pub/FreeBSD/releases/");
+      names = "-archive-format",
+      description = "Explicitly specify the archive format")
+    private JailArchiveFormat archive_format;
 
     @Parameter(
-      names = "-retry",
-      description = "Set the number of retries for failed downloads (0 is unlimited)")
-    private int retry_max = 10;
+      names = "-decoder-threads",
+      description = "The number of threads used to decompress the archive")
+    private int decoder_threads = Runtime.getRuntime().availableProcessors();
 
-    CommandDownloadBinaryArchive()
+    @Parameter(
+      names = "-writer-threads",
+      description = "The number of threads used to write unpacked files")
+    private int writer_threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+      names = "-verify-sha256",
+      description = "Verify the archive against the given SHA-256 digest while unpacking it")
+    private String verify_sha256;
+
+    CommandCreateJailBase()
     {
 
     }
@@ -452,104 +595,58 @@ public final class Main implements Runnable
     {
       super.call();
 
-      final String archive_arch = this.getArch();
-      LOG.debug("arch: {}", archive_arch);
-      final String archive_release = this.getRelease();
-      LOG.debug("release: {}", archive_release);
+      final Path jail_base_archive =
+        Paths.get(this.archive_file).toAbsolutePath();
+      final Path jail_base =
+        Paths.get(this.base).toAbsolutePath();
+      final Path jail_base_template =
+        Paths.get(this.base_template).toAbsolutePath();
 
-      final Path out_file = Paths.get(this.file);
-      final Path out_file_tmp = Paths.get(this.file + ".tmp");
+      LOG.debug("archive:        {}", jail_base_archive);
+      LOG.debug("base:           {}", jail_base);
+      LOG.debug("base-template:  {}", jail_base_template);
 
       final JailBuildType jb = JailBuild.get(
         JailBuild.clients(), POSIXFactory.getNativePOSIX());
 
-      int attempt = 0;
-
-      while (true) {
-        try {
-          ++attempt;
-
-          final JailDownloadProgressType progress =
-            JailDownloadOctetsPerSecond.get(
-              (total_expected, total_received, octets_per_second) ->
-                LOG.info(
-                  "download ({}) {} / {} bytes ({} MiB/s)",
-                  CommandDownloadBinaryArchive.this.archive_file,
-                  Long.valueOf(total_received),
-                  Long.valueOf(total_expected),
-                  Double.valueOf((double) octets_per_second / 1000_000.0)),
-              Clock.systemUTC());
-
-          LOG.info(
-            "downloading {} - attempt {} of {}",
-            this.archive_file,
-            Integer.valueOf(attempt),
-            Integer.valueOf(this.retry_max));
-
-          jb.jailDownloadBinaryArchive(
-            out_file_tmp,
-            this.base_uri,
-            archive_arch,
-            archive_release,
-            this.archive_file,
-            Optional.of(progress));
-
-          LOG.info("download completed");
-          LOG.debug("rename: {} → {}", out_file_tmp, out_file);
-          Files.move(
-            out_file_tmp,
-            out_file,
-            StandardCopyOption.ATOMIC_MOVE,
-            StandardCopyOption.REPLACE_EXISTING);
-
-          return unit();
-        } catch (final Exception e) {
-          LOG.error("download failed: ", e.getCause());
-
-          final boolean retry =
-            this.retry_max <= 0 || attempt < this.retry_max;
-
-          if (retry) {
-            LOG.debug("waiting 3 seconds for retry");
-            TimeUnit.SECONDS.sleep(3L);
-          } else {
-            LOG.error("giving up after too many retries");
-            Main.this.exit_code = 1;
-            return unit();
-          }
+      if (this.archive_format == null) {
+        final Optional<JailArchiveFormat> format_opt =
+          JailArchiveFormat.inferFrom(jail_base_archive);
+        if (format_opt.isPresent()) {
+          this.archive_format = format_opt.get();
         }
       }
-    }
 
-    private String getArch()
-    {
-      String archive_arch = System.getProperty("os.arch");
-      if (this.arch != null) {
-        archive_arch = this.arch;
-      }
-      if (archive_arch == null) {
-        throw new ParameterException(
-          "Could not detect the system architecture and no override was provided");
-      }
-      return archive_arch;
-    }
+      LOG.debug("archive-format: {}", this.archive_format);
 
-    private String getRelease()
-    {
-      String archive_release = System.getProperty("os.version");
-      if (this.release != null) {
-        archive_release = this.release;
+      final JailUnpackOptions.Builder options_builder =
+        JailUnpackOptions.builder()
+          .setDecoderThreads(this.decoder_threads)
+          .setWriterThreads(this.writer_threads);
+      if (this.verify_sha256 != null) {
+        options_builder.setExpectedDigest(this.verify_sha256);
       }
-      if (archive_release == null) {
-        throw new ParameterException(
-          "Could not detect the system version and no override was provided");
-      }
-      return archive_release;
+      final JailUnpackOptions options = options_builder.build();
+
+      final JailUnpackStatistics statistics =
+        jb.jailCreateBase(
+          jail_base_archive,
+          this.archive_format,
+          jail_base,
+          jail_base_template,
+          options);
+
+      LOG.debug(
+        "directories: {} created, {} skipped",
+        Long.valueOf(statistics.directoriesCreated()),
+        Long.valueOf(statistics.directoriesSkipped()));
+
+      return unit();
     }
   }
 
   @Parameters(commandDescription = "Start a jail")
-  private final class CommandStart extends CommandRoot
+  private final class CommandStart extends JGCommandRoot
   {
     @Parameter(
       names = "-file",
@@ -579,14 +676,14 @@ public final class Main implements Runnable
             control.jailStart(config);
           } catch (final JailControlException e) {
             LOG.error("could not start jail: {}", e.getMessage());
-            Main.this.exit_code = 1;
+            this.fail();
           }
         } else {
           final List<JailConfigurationError> errors = result.getError();
           errors.forEach(error -> {
             LOG.error("{}: {}: {}", error.path(), error.key(), error.message());
           });
-          Main.this.exit_code = 1;
+          this.fail();
         }
       }
 
@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * <p>The type of archive decoders.</p>
+ *
+ * <p>A decoder removes the compression (if any) from an archive of a given
+ * format, yielding a stream of uncompressed tar data. Decoders are discovered
+ * using {@link java.util.ServiceLoader}, and so additional formats can be
+ * supported by placing decoder implementations on the class path.</p>
+ */
+
+public interface JailArchiveDecoderType
+{
+  /**
+   * @return The archive format supported by the decoder
+   */
+
+  JailArchiveFormat format();
+
+  /**
+   * Decompress the given stream. Closing the returned stream closes {@code
+   * stream}.
+   *
+   * @param stream The compressed archive
+   *
+   * @return A stream of uncompressed tar data
+   *
+   * @throws IOException On errors
+   */
+
+  InputStream decompressStream(
+    InputStream stream)
+    throws IOException;
+
+  /**
+   * Decompress the given file. Decoders that can exploit random access to the
+   * file (for example, to decompress parts of the file in parallel) should
+   * override this method.
+   *
+   * @param file    The compressed archive
+   * @param options The unpacking options
+   *
+   * @return A stream of uncompressed tar data
+   *
+   * @throws IOException On errors
+   */
+
+  default InputStream decompressFile(
+    final Path file,
+    final JailUnpackOptions options)
+    throws IOException
+  {
+    return this.decompressStream(
+      new BufferedInputStream(Files.newInputStream(file)));
+  }
+}
@@ -20,6 +20,9 @@ import com.io7m.jnull.NullCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
 
@@ -33,9 +36,31 @@ public enum JailArchiveFormat
    * A tar file compressed with XZ.
    */
 
-  JAIL_ARCHIVE_FORMAT_TAR_XZ("txz");
+  JAIL_ARCHIVE_FORMAT_TAR_XZ("txz"),
+
+  /**
+   * A tar file compressed with Zstandard. No decoder for this format is
+   * included; one must be provided on the class path as a {@link
+   * JailArchiveDecoderType} service.
+   */
+
+  JAIL_ARCHIVE_FORMAT_TAR_ZSTD("tzst"),
+
+  /**
+   * A tar file compressed with gzip.
+   */
+
+  JAIL_ARCHIVE_FORMAT_TAR_GZIP("tgz"),
+
+  /**
+   * An uncompressed tar file.
+   */
+
+  JAIL_ARCHIVE_FORMAT_TAR("tar");
 
   private static final Logger LOG;
+  private static final int HEADER_SIZE = 512;
+  private static final int TAR_MAGIC_OFFSET = 257;
 
   static {
     LOG = LoggerFactory.getLogger(JailArchiveFormat.class);
@@ -59,7 +84,9 @@ public enum JailArchiveFormat
   }
 
   /**
-   * Try to infer the archive format from the given filename.
+   * Try to infer the archive format from the given file. If the file can be
+   * read, the format is inferred from the magic number at the start of the
+   * file. Otherwise, the format is inferred from the filename.
    *
    * @param path The file
    *
@@ -71,10 +98,104 @@ public enum JailArchiveFormat
   {
     NullCheck.notNull(path, "Path");
 
-    final String path_text = path.toString();
-    if (path_text.endsWith(".txz")) {
+    if (Files.isRegularFile(path)) {
+      try (final InputStream stream = Files.newInputStream(path)) {
+        final byte[] header = new byte[HEADER_SIZE];
+        int length = 0;
+        while (length < header.length) {
+          final int r = stream.read(header, length, header.length - length);
+          if (r == -1) {
+            break;
+          }
+          length = length + r;
+        }
+
+        final Optional<JailArchiveFormat> format =
+          inferFromHeader(header, length);
+        if (format.isPresent()) {
+          LOG.debug("inferred format {} from the content of {}",
+                    format.get(), path);
+          return format;
+        }
+      } catch (final IOException e) {
+        LOG.debug("could not read {}: ", path, e);
+      }
+    }
+
+    return inferFromName(path.toString());
+  }
+
+  /**
+   * Try to infer the archive format from the magic number at the start of an
+   * archive.
+   *
+   * @param header The first octets of the archive
+   * @param length The number of valid octets in {@code header}
+   *
+   * @return An inferred format, if any
+   */
+
+  public static Optional<JailArchiveFormat> inferFromHeader(
+    final byte[] header,
+    final int length)
+  {
+    NullCheck.notNull(header, "Header");
+
+    if (startsWith(header, length, 0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00)) {
       return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_XZ);
     }
+    if (startsWith(header, length, 0x28, 0xB5, 0x2F, 0xFD)) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_ZSTD);
+    }
+    if (startsWith(header, length, 0x1F, 0x8B)) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_GZIP);
+    }
+
+    final byte[] ustar = {'u', 's', 't', 'a', 'r'};
+    if (length >= TAR_MAGIC_OFFSET + ustar.length) {
+      boolean tar = true;
+      for (int index = 0; index < ustar.length; index = index + 1) {
+        tar = tar && header[TAR_MAGIC_OFFSET + index] == ustar[index];
+      }
+      if (tar) {
+        return Optional.of(JAIL_ARCHIVE_FORMAT_TAR);
+      }
+    }
+
+    return Optional.empty();
+  }
+
+  private static boolean startsWith(
+    final byte[] header,
+    final int length,
+    final int... magic)
+  {
+    if (length < magic.length) {
+      return false;
+    }
+    for (int index = 0; index < magic.length; index = index + 1) {
+      if (((int) header[index] & 0xff) != magic[index]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Optional<JailArchiveFormat> inferFromName(
+    final String path_text)
+  {
+    if (path_text.endsWith(".txz") || path_text.endsWith(".tar.xz")) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_XZ);
+    }
+    if (path_text.endsWith(".tzst") || path_text.endsWith(".tar.zst")) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_ZSTD);
+    }
+    if (path_text.endsWith(".tgz") || path_text.endsWith(".tar.gz")) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR_GZIP);
+    }
+    if (path_text.endsWith(".tar")) {
+      return Optional.of(JAIL_ARCHIVE_FORMAT_TAR);
+    }
 
     return Optional.empty();
   }
@@ -17,13 +17,19 @@
 package com.io7m.jguard.jailbuild.api;
 
 import com.io7m.jguard.core.JailConfiguration;
+import com.io7m.jguard.core.JailName;
 
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * An API for building jails.
@@ -55,6 +61,230 @@ public interface JailBuildType
     Optional<JailDownloadProgressType> progress)
     throws IOException;
 
+  /**
+   * Download a binary archive from a FreeBSD mirror using the given options.
+   * The download is performed synchronously on the calling thread, although
+   * the implementation may use other threads to fetch parts of the archive
+   * concurrently. Failed attempts are retried according to {@link
+   * JailDownloadOptions#policy()}.
+   *
+   * @param file         The output file
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param options      The download options
+   * @param progress     An optional consumer of download progress information
+   *
+   * @throws IOException On any error
+   */
+
+  void jailDownloadBinaryArchive(
+    Path file,
+    URI base,
+    String arch,
+    String release,
+    String archive_file,
+    JailDownloadOptions options,
+    Optional<JailDownloadProgressType> progress)
+    throws IOException;
+
+  /**
+   * Download a binary archive from a FreeBSD mirror asynchronously, using a
+   * new download session that is closed when the download completes.
+   * Applications performing many downloads should instead open a session
+   * with {@link #jailDownloadSession()} and use {@link
+   * JailDownloadSessionType#downloadAsync(Path, URI, String, String, String,
+   * JailDownloadOptions, Optional, Executor)}, so that the downloads share
+   * a pool of connections.
+   *
+   * @param file         The output file
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param options      The download options
+   * @param progress     An optional consumer of download progress information
+   * @param executor     The executor on which the download is performed
+   *
+   * @return A future representing the download
+   */
+
+  CompletableFuture<Void> jailDownloadBinaryArchiveAsync(
+    Path file,
+    URI base,
+    String arch,
+    String release,
+    String archive_file,
+    JailDownloadOptions options,
+    Optional<JailDownloadProgressType> progress,
+    Executor executor);
+
+  /**
+   * <p>Download a set of binary archives from a FreeBSD mirror. Up to {@link
+   * JailDownloadBatchOptions#archiveThreads()} archives are downloaded
+   * concurrently over a shared pool of HTTP connections, and the calling
+   * thread blocks until all of them have either completed or failed.</p>
+   *
+   * <p>Each archive is downloaded to a temporary file named {@code
+   * archive_file + ".tmp"} in {@code directory}, and is atomically renamed to
+   * {@code archive_file} when the download completes. Each archive is retried
+   * independently of the others according to {@link
+   * JailDownloadOptions#policy()}, and the failure of one archive does not
+   * prevent the others from being downloaded: A result is returned for each
+   * of the given archives, in the order in which the archives were given.
+   * Archives that are named more than once fail with {@link
+   * FileAlreadyExistsException}.</p>
+   *
+   * @param directory     The output directory
+   * @param base          The base URI
+   * @param arch          The architecture of the release (such as {@code
+   *                      amd64})
+   * @param release       The release (such as {@code 10.3-RELEASE}).
+   * @param archive_files The archive files (such as {@code base.txz} and
+   *                      {@code lib32.txz})
+   * @param options       The download options
+   * @param progress      A receiver of download progress information
+   *
+   * @return The results of downloading each archive
+   *
+   * @throws IOException If the calling thread is interrupted
+   */
+
+  List<JailDownloadResult> jailDownloadBinaryArchives(
+    Path directory,
+    URI base,
+    String arch,
+    String release,
+    Collection<String> archive_files,
+    JailDownloadBatchOptions options,
+    JailDownloadBatchProgressType progress)
+    throws IOException;
+
+  /**
+   * Open a session for downloading binary archives. Archives downloaded
+   * through the same session share a pool of kept-alive HTTP connections.
+   * The session must be closed when it is no longer needed.
+   *
+   * @return A new download session
+   *
+   * @throws IOException On errors
+   */
+
+  JailDownloadSessionType jailDownloadSession()
+    throws IOException;
+
+  /**
+   * Retrieve the SHA-256 digest of a binary archive from the {@code MANIFEST}
+   * file published alongside the archives of a release.
+   *
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   *
+   * @return The digest of the archive as a lowercase hexadecimal string
+   *
+   * @throws IOException If the manifest cannot be retrieved, or does not list
+   *                     the archive
+   * @see JailUnpackOptions#expectedDigest()
+   */
+
+  String jailDownloadBinaryArchiveDigest(
+    URI base,
+    String arch,
+    String release,
+    String archive_file)
+    throws IOException;
+
+  /**
+   * Probe a set of mirrors by requesting the first {@link
+   * JailDownloadOptions#mirrorProbeOctets()} octets of a binary archive from
+   * each of them in turn.
+   *
+   * @param bases        The mirror base URIs
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param options      The download options
+   *
+   * @return The probe results, fastest first, with failed probes last
+   *
+   * @throws IOException On errors
+   * @see JailDownloadOptions#mirrors()
+   */
+
+  List<JailDownloadMirrorProbe> jailDownloadProbeMirrors(
+    Collection<URI> bases,
+    String arch,
+    String release,
+    String archive_file,
+    JailDownloadOptions options)
+    throws IOException;
+
+  /**
+   * <p>Remove archives from the download cache in {@code cache_directory},
+   * least recently used first, until the cache holds at most {@code
+   * size_limit} octets of archive data.</p>
+   *
+   * <p>Cache entries that refer to missing archives, archives that are not
+   * referred to by any entry, and archives that no longer match their
+   * recorded SHA-256 digest, are always removed. Every archive in the cache
+   * is read in full to check its digest.</p>
+   *
+   * @param cache_directory The download cache directory
+   * @param size_limit      The maximum number of octets to retain
+   *
+   * @return Statistics describing the collection
+   *
+   * @throws IOException On errors
+   * @see JailDownloadOptions#cacheDirectory()
+   */
+
+  JailDownloadCacheStatistics jailDownloadCacheCollectGarbage(
+    Path cache_directory,
+    long size_limit)
+    throws IOException;
+
+  /**
+   * <p>Download a binary archive from a FreeBSD mirror and unpack it into
+   * {@code output} as it arrives, without first waiting for the complete
+   * archive to be written to disk. The download is performed on a separate
+   * thread while the archive is unpacked on the calling thread, and the
+   * amount of memory used to buffer data between the two is bounded.</p>
+   *
+   * <p>If {@code archive_copy} is specified, the downloaded archive is also
+   * written to the given file so that it can be reused later.</p>
+   *
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param format       The archive format
+   * @param output       The directory into which the archive will be
+   *                     unpacked
+   * @param archive_copy The file to which the archive will be copied, if any
+   * @param progress     An optional consumer of download progress information
+   *
+   * @throws IOException On any error
+   */
+
+  void jailDownloadAndUnpackBinaryArchive(
+    URI base,
+    String arch,
+    String release,
+    String archive_file,
+    JailArchiveFormat format,
+    Path output,
+    Optional<Path> archive_copy,
+    Optional<JailDownloadProgressType> progress)
+    throws IOException;
+
   /**
    * <p>Unpack {@code base_archive} into {@code base} and then create the base
    * template directory {@code base_template}.</p>
@@ -79,6 +309,34 @@ public interface JailBuildType
     Path base_template)
     throws IOException, FileAlreadyExistsException;
 
+  /**
+   * <p>Unpack {@code base_archive} into {@code base} using the given options
+   * and then create the base template directory {@code base_template}.</p>
+   *
+   * <p>The directories {@code base} and {@code base_template} must not
+   * exist.</p>
+   *
+   * @param base_archive  The base archive (such as {@code base.txz})
+   * @param format        The archive format
+   * @param base          The base directory
+   * @param base_template The base template for new jails
+   * @param options       The unpacking options
+   *
+   * @return Statistics describing the unpacking of the archive
+   *
+   * @throws FileAlreadyExistsException If {@code base} or {@code base_template}
+   *                                    already exist
+   * @throws IOException                On any error
+   */
+
+  JailUnpackStatistics jailCreateBase(
+    Path base_archive,
+    JailArchiveFormat format,
+    Path base,
+    Path base_template,
+    JailUnpackOptions options)
+    throws IOException, FileAlreadyExistsException;
+
   /**
    * Unpack the given archive.
    *
@@ -95,6 +353,26 @@ public interface JailBuildType
     Path base)
     throws IOException;
 
+  /**
+   * Unpack the given archive using the given options.
+   *
+   * @param base_archive The archive
+   * @param format       The archive format
+   * @param base         The base directory
+   * @param options      The unpacking options
+   *
+   * @return Statistics describing the unpacking operation
+   *
+   * @throws IOException On errors
+   */
+
+  JailUnpackStatistics jailUnpackArchive(
+    Path base_archive,
+    JailArchiveFormat format,
+    Path base,
+    JailUnpackOptions options)
+    throws IOException;
+
   /**
    * Create a new jail.
    *
@@ -118,4 +396,143 @@ public interface JailBuildType
     throws IOException,
     FileAlreadyExistsException,
     NotDirectoryException;
+
+  /**
+   * Create a new jail using the given options.
+   *
+   * @param base          The base directory that will be mounted inside the
+   *                      jail
+   * @param base_template The template directory
+   * @param config        The jail configuration
+   * @param options       The creation options
+   *
+   * @throws NotDirectoryException      If {@code base} is not a directory
+   * @throws NotDirectoryException      If {@code base_template} is not a
+   *                                    directory
+   * @throws FileAlreadyExistsException If a jail already exists with the given
+   *                                    name
+   * @throws IOException                On errors
+   */
+
+  void jailCreate(
+    Path base,
+    Path base_template,
+    JailConfiguration config,
+    JailCreateOptions options)
+    throws IOException,
+    FileAlreadyExistsException,
+    NotDirectoryException;
+
+  /**
+   * Create a set of jails from the same base template using the default
+   * options.
+   *
+   * @param base          The base directory that will be mounted inside the
+   *                      jails
+   * @param base_template The template directory
+   * @param configs       The jail configurations
+   *
+   * @return The results of creating each jail
+   *
+   * @throws NotDirectoryException If {@code base} is not a directory
+   * @throws NotDirectoryException If {@code base_template} is not a
+   *                               directory
+   * @throws IOException           If the template cannot be examined
+   * @see #jailCreateMany(Path, Path, Collection, JailCreateOptions)
+   */
+
+  List<JailCreateResult> jailCreateMany(
+    Path base,
+    Path base_template,
+    Collection<JailConfiguration> configs)
+    throws IOException,
+    NotDirectoryException;
+
+  /**
+   * <p>Create a set of jails from the same base template. The template is
+   * examined once, and up to {@link JailCreateOptions#jailThreads()} jails
+   * are created concurrently.</p>
+   *
+   * <p>The failure to create one jail does not prevent the creation of the
+   * others: A result is returned for each of the given configurations, in the
+   * order in which the configurations were given. Configurations that share
+   * a name or a root directory with an earlier configuration in the
+   * collection fail with {@link FileAlreadyExistsException}.</p>
+   *
+   * @param base          The base directory that will be mounted inside the
+   *                      jails
+   * @param base_template The template directory
+   * @param configs       The jail configurations
+   * @param options       The creation options
+   *
+   * @return The results of creating each jail
+   *
+   * @throws NotDirectoryException If {@code base} is not a directory
+   * @throws NotDirectoryException If {@code base_template} is not a
+   *                               directory
+   * @throws IOException           If the template cannot be examined
+   */
+
+  List<JailCreateResult> jailCreateMany(
+    Path base,
+    Path base_template,
+    Collection<JailConfiguration> configs,
+    JailCreateOptions options)
+    throws IOException,
+    NotDirectoryException;
+
+  /**
+   * <p>Create a pool of jail roots copied from {@code base_template} into
+   * {@code staging}. The pool begins filling in the background immediately.
+   * The template is examined once, when the pool is created. Any roots left
+   * in {@code staging} by an earlier pool are deleted.</p>
+   *
+   * @param base          The base directory that will be mounted inside the
+   *                      jails
+   * @param base_template The template directory
+   * @param staging       The directory that will hold the staged jail roots
+   * @param options       The pool options
+   *
+   * @return A new pool
+   *
+   * @throws NotDirectoryException If {@code base} is not a directory
+   * @throws NotDirectoryException If {@code base_template} is not a
+   *                               directory
+   * @throws NotDirectoryException If {@code staging} is not a directory
+   * @throws IOException           If the template cannot be examined
+   * @see JailPoolType
+   */
+
+  JailPoolType jailPool(
+    Path base,
+    Path base_template,
+    Path staging,
+    JailPoolOptions options)
+    throws IOException,
+    NotDirectoryException;
+
+  /**
+   * <p>Replace the files that were hard-linked into a jail created with
+   * {@link JailCopyMode#JAIL_COPY_MODE_HARD_LINK} with private copies, so
+   * that they can be modified without affecting the base template or any
+   * other jail. Files that are no longer linked (for example, because they
+   * have been replaced inside the jail) are not copied.</p>
+   *
+   * <p>Broken links are removed from the jail's list of tracked links.</p>
+   *
+   * @param root  The jail root directory
+   * @param name  The jail name
+   * @param files The names of the files, relative to {@code root}, whose links
+   *              will be broken, or all tracked files if not specified
+   *
+   * @return The number of files that were copied
+   *
+   * @throws IOException On errors
+   */
+
+  int jailBreakLinks(
+    Path root,
+    JailName name,
+    Optional<Set<String>> files)
+    throws IOException;
 }
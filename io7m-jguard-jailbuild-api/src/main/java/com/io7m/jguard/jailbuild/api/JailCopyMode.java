@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+/**
+ * The ways in which files can be copied from a base template into a jail.
+ */
+
+public enum JailCopyMode
+{
+  /**
+   * Files are copied by reading their contents into memory and writing them
+   * to the target.
+   */
+
+  JAIL_COPY_MODE_STREAM,
+
+  /**
+   * Files are copied inside the kernel where possible, using {@code
+   * copy_file_range} or the platform's implementation of {@link
+   * java.nio.channels.FileChannel#transferTo(long, long,
+   * java.nio.channels.WritableByteChannel)}. If neither mechanism can be
+   * used, files are copied as with {@link #JAIL_COPY_MODE_STREAM}.
+   */
+
+  JAIL_COPY_MODE_KERNEL,
+
+  /**
+   * Files are hard-linked to the files in the base template and therefore
+   * share both contents and metadata with the template until the links are
+   * broken. The names of linked files are recorded so that the links can be
+   * replaced with private copies before the files are modified. Files that
+   * cannot be linked (such as when the template and jail reside on different
+   * filesystems) are copied as with {@link #JAIL_COPY_MODE_KERNEL}.
+   */
+
+  JAIL_COPY_MODE_HARD_LINK
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of options that control how jails are created.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailCreateOptionsType
+{
+  /**
+   * The number of threads that will be used to copy the base template into
+   * the jail. Directories are always created first, after which files and
+   * symbolic links are copied concurrently by a pool of the given size. A
+   * value of {@code 1} indicates that the template will be copied on the
+   * calling thread.
+   *
+   * @return The number of copying threads
+   */
+
+  @Value.Default
+  default int copyThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * The number of jails that will be created concurrently by {@link
+   * JailBuildType#jailCreateMany(java.nio.file.Path, java.nio.file.Path,
+   * java.util.Collection, JailCreateOptions)}. Each jail is copied with
+   * {@link #copyThreads()} threads, so up to {@code jailThreads() *
+   * copyThreads()} threads may be copying files at any given time.
+   *
+   * @return The number of jails created concurrently
+   */
+
+  @Value.Default
+  default int jailThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * @return The mechanism used to copy files from the base template
+   */
+
+  @Value.Default
+  default JailCopyMode copyMode()
+  {
+    return JailCopyMode.JAIL_COPY_MODE_STREAM;
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.copyThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Copy thread count must be positive (received %d)",
+          Integer.valueOf(this.copyThreads())));
+    }
+    if (this.jailThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Jail thread count must be positive (received %d)",
+          Integer.valueOf(this.jailThreads())));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import com.io7m.jguard.core.JailConfiguration;
+import org.immutables.value.Value;
+
+import java.util.Optional;
+
+/**
+ * The result of creating a single jail as part of a batch.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailCreateResultType
+{
+  /**
+   * @return The configuration of the jail
+   */
+
+  @Value.Parameter(order = 0)
+  JailConfiguration configuration();
+
+  /**
+   * @return The error that prevented the jail from being created, if any
+   */
+
+  @Value.Parameter(order = 1)
+  Optional<Exception> error();
+
+  /**
+   * @return {@code true} iff the jail was created
+   */
+
+  default boolean succeeded()
+  {
+    return !this.error().isPresent();
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of options that control how sets of binary archives are
+ * downloaded.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailDownloadBatchOptionsType
+{
+  /**
+   * The number of archives that will be downloaded concurrently. Each archive
+   * is fetched with {@link JailDownloadOptions#segments()} connections, so up
+   * to {@code archiveThreads() * segments()} connections may be open at any
+   * given time.
+   *
+   * @return The number of archives downloaded concurrently
+   */
+
+  @Value.Default
+  default int archiveThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * The options used to download each archive. Each archive is retried
+   * independently of the others according to {@link
+   * JailDownloadOptions#policy()}, and is always downloaded via a temporary
+   * file regardless of {@link JailDownloadPolicy#temporaryFile()}.
+   *
+   * @return The options used to download each archive
+   */
+
+  @Value.Default
+  default JailDownloadOptions downloadOptions()
+  {
+    return JailDownloadOptions.builder().build();
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.archiveThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Archive thread count must be positive (received %d)",
+          Integer.valueOf(this.archiveThreads())));
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+/**
+ * <p>A receiver of progress information for a set of archives that are
+ * downloaded concurrently.</p>
+ *
+ * <p>The receiver returned by {@link #combined()} is informed of the total
+ * number of octets expected and received across all archives. Calls to it
+ * are serialized, and the number of received octets it is given never
+ * decreases, even when archives are retried. It is therefore safe to use a
+ * {@link JailDownloadOctetsPerSecond} instance as the combined receiver.</p>
+ */
+
+public interface JailDownloadBatchProgressType
+{
+  /**
+   * Called once for each archive, before the archive is downloaded. The
+   * returned receiver is used for every attempt to download the archive.
+   *
+   * @param archive_file The name of the archive file (such as {@code
+   *                     base.txz})
+   *
+   * @return A receiver for the progress of the archive
+   */
+
+  JailDownloadProgressType archive(String archive_file);
+
+  /**
+   * Called once, before any archives are downloaded.
+   *
+   * @return A receiver for the combined progress of all archives
+   */
+
+  JailDownloadProgressType combined();
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import java.io.IOException;
+
+/**
+ * An exception raised when a server responds to a download request with an
+ * unusable HTTP status.
+ */
+
+public final class JailDownloadHTTPException extends IOException
+{
+  private final int status;
+
+  /**
+   * Construct an exception.
+   *
+   * @param message   The exception message
+   * @param in_status The HTTP status code
+   */
+
+  public JailDownloadHTTPException(
+    final String message,
+    final int in_status)
+  {
+    super(message);
+    this.status = in_status;
+  }
+
+  /**
+   * @return The HTTP status code returned by the server
+   */
+
+  public int statusCode()
+  {
+    return this.status;
+  }
+}
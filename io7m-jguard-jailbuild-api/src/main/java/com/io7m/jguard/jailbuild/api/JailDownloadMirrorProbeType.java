@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * The result of probing a single download mirror.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailDownloadMirrorProbeType
+{
+  /**
+   * @return The base URI of the mirror
+   */
+
+  @Value.Parameter(order = 0)
+  URI base();
+
+  /**
+   * @return The time taken for the mirror to respond to the probe
+   */
+
+  @Value.Parameter(order = 1)
+  Duration latency();
+
+  /**
+   * @return The rate at which the probe was received, including the latency
+   */
+
+  @Value.Parameter(order = 2)
+  long octetsPerSecond();
+
+  /**
+   * @return The error that caused the probe to fail, if any
+   */
+
+  @Value.Parameter(order = 3)
+  Optional<Exception> error();
+
+  /**
+   * @return {@code true} iff the probe succeeded
+   */
+
+  default boolean succeeded()
+  {
+    return !this.error().isPresent();
+  }
+}
@@ -19,22 +19,36 @@ package com.io7m.jguard.jailbuild.api;
 import com.io7m.jnull.NullCheck;
 
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 
 /**
- * A progress indicator that calculates the number of octets received per
- * second.
+ * <p>A progress indicator that calculates the number of octets received per
+ * second.</p>
+ *
+ * <p>The rate is an exponentially weighted moving average with a time
+ * constant of {@value #SMOOTHING_SECONDS} seconds, weighted by the time
+ * between successive calls, and so the rate is smooth regardless of the
+ * cadence at which progress is reported. The receiver is called at most once
+ * per second.</p>
  */
 
 public final class JailDownloadOctetsPerSecond implements
   JailDownloadProgressType
 {
+  /**
+   * The time constant of the moving average, in seconds.
+   */
+
+  public static final int SMOOTHING_SECONDS = 3;
+
   private final Clock clock;
-  private Instant time_start;
   private final JailDownloadOctetsPerSecondProgressType progress;
-  private long count;
+  private Instant time_published;
+  private Instant time_previous;
   private long total_received_previous;
+  private double rate;
+  private boolean rate_valid;
 
   /**
    * @param in_progress A progress receiver
@@ -76,9 +90,11 @@ public final class JailDownloadOctetsPerSecond implements
   {
     this.clock = NullCheck.notNull(in_clock, "Clock");
     this.progress = NullCheck.notNull(in_progress, "Progress");
-    this.time_start = this.clock.instant();
+    this.time_published = this.clock.instant();
+    this.time_previous = this.time_published;
     this.total_received_previous = 0L;
-    this.count = 0L;
+    this.rate = 0.0;
+    this.rate_valid = false;
   }
 
   @Override
@@ -86,20 +102,36 @@ public final class JailDownloadOctetsPerSecond implements
     final long total_expected,
     final long total_received)
   {
-    final long received =
-      Math.subtractExact(total_received, this.total_received_previous);
-
     final Instant time_now = this.clock.instant();
-    this.count = Math.addExact(this.count, received);
-    if (ChronoUnit.SECONDS.between(this.time_start, time_now) >= 1L) {
+    final long elapsed =
+      Duration.between(this.time_previous, time_now).toNanos();
+
+    if (elapsed > 0L) {
+      final long received =
+        Math.max(0L, Math.subtractExact(
+          total_received, this.total_received_previous));
+      final double seconds = (double) elapsed / 1_000_000_000.0;
+      final double rate_now = (double) received / seconds;
+
+      if (this.rate_valid) {
+        final double alpha =
+          1.0 - Math.exp(-seconds / (double) SMOOTHING_SECONDS);
+        this.rate = this.rate + (alpha * (rate_now - this.rate));
+      } else {
+        this.rate = rate_now;
+        this.rate_valid = true;
+      }
+
+      this.time_previous = time_now;
+      this.total_received_previous = total_received;
+    }
+
+    if (Duration.between(this.time_published, time_now).getSeconds() >= 1L) {
       this.progress.onProgressOctetsPerSecond(
         total_expected,
         total_received,
-        this.count);
-      this.count = 0L;
-      this.time_start = time_now;
+        (long) this.rate);
+      this.time_published = time_now;
     }
-
-    this.total_received_previous = total_received;
   }
 }
@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import javaslang.collection.List;
+import org.immutables.value.Value;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * The type of options that control how binary archives are downloaded.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailDownloadOptionsType
+{
+  /**
+   * The number of segments into which a download will be split. Each segment
+   * is fetched concurrently with an HTTP range request and is resumed
+   * independently of the others. A value of {@code 1} indicates that the
+   * archive will be fetched with a single request.
+   *
+   * @return The number of download segments
+   */
+
+  @Value.Default
+  default int segments()
+  {
+    return 1;
+  }
+
+  /**
+   * Whether the downloaded archive will be verified against the SHA-256
+   * digest listed for it in the {@code MANIFEST} file published alongside the
+   * release's archives. The digest is calculated as the archive is
+   * downloaded. If verification fails, the downloaded file is deleted.
+   *
+   * @return {@code true} iff archives will be verified
+   */
+
+  @Value.Default
+  default boolean verifyDigest()
+  {
+    return false;
+  }
+
+  /**
+   * The directory of a local download cache. If specified, archives are
+   * added to the cache after being downloaded, and are served from the cache
+   * when the same archive has previously been downloaded, the remote archive
+   * is unchanged according to a conditional request, and (if {@link
+   * #verifyDigest()} is {@code true}) the cached archive matches the digest
+   * given in the release {@code MANIFEST}.
+   *
+   * @return The download cache directory, if any
+   */
+
+  Optional<Path> cacheDirectory();
+
+  /**
+   * The maximum number of octets that the download cache may hold. The least
+   * recently used archives are removed from the cache when an archive is
+   * added that would exceed the limit.
+   *
+   * @return The download cache size limit
+   */
+
+  @Value.Default
+  default long cacheSizeLimit()
+  {
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * A limit on the rate at which archives are received. The same limiter may
+   * be given to any number of downloads to limit their combined rate, and may
+   * be adjusted while the downloads are running.
+   *
+   * @return The rate limiter, if any
+   */
+
+  Optional<JailDownloadRateLimiter> rateLimiter();
+
+  /**
+   * Alternative base URIs from which archives may be downloaded. If any are
+   * specified, each mirror (including the base URI given to the download
+   * method) is probed with a small range request, and the archive is
+   * downloaded from the fastest mirror.
+   *
+   * @return The alternative mirror base URIs
+   */
+
+  @Value.Default
+  default List<URI> mirrors()
+  {
+    return List.empty();
+  }
+
+  /**
+   * @return The number of octets requested from each mirror when probing
+   */
+
+  @Value.Default
+  default int mirrorProbeOctets()
+  {
+    return 65536;
+  }
+
+  /**
+   * The minimum acceptable download rate. If the rate at which an archive is
+   * received from a mirror falls below this value for a whole {@link
+   * #mirrorRateInterval()}, the download is resumed from the next fastest
+   * mirror. The last remaining mirror is never abandoned. A value of {@code
+   * 0} indicates that downloads never switch mirrors because of their rate.
+   * Segmented downloads always use the fastest mirror.
+   *
+   * @return The minimum acceptable number of octets per second
+   */
+
+  @Value.Default
+  default long mirrorMinimumOctetsPerSecond()
+  {
+    return 0L;
+  }
+
+  /**
+   * @return The interval over which download rates are measured
+   *
+   * @see #mirrorMinimumOctetsPerSecond()
+   */
+
+  @Value.Default
+  default Duration mirrorRateInterval()
+  {
+    return Duration.ofSeconds(10L);
+  }
+
+  /**
+   * The number of octets written to a downloaded file between explicit
+   * flushes of its data to the underlying storage device (as if by {@code
+   * fdatasync}). If a value is specified, the file is also flushed once the
+   * download completes, and so an interrupted download never resumes from
+   * data that was lost from the operating system's cache. A value of {@code
+   * 0} indicates that data is only flushed when the operating system chooses
+   * to flush it.
+   *
+   * @return The number of octets written between explicit flushes
+   */
+
+  @Value.Default
+  default long syncIntervalOctets()
+  {
+    return 0L;
+  }
+
+  /**
+   * @return The policy that controls how failed downloads are retried
+   */
+
+  @Value.Default
+  default JailDownloadPolicy policy()
+  {
+    return JailDownloadPolicy.builder().build();
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.segments() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Segment count must be positive (received %d)",
+          Integer.valueOf(this.segments())));
+    }
+    if (this.mirrorProbeOctets() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Mirror probe size must be positive (received %d)",
+          Integer.valueOf(this.mirrorProbeOctets())));
+    }
+    if (this.mirrorMinimumOctetsPerSecond() < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Minimum mirror rate must be non-negative (received %d)",
+          Long.valueOf(this.mirrorMinimumOctetsPerSecond())));
+    }
+    if (this.mirrorRateInterval().isNegative()) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Mirror rate interval must be non-negative (received %s)",
+          this.mirrorRateInterval()));
+    }
+    if (this.syncIntervalOctets() < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Sync interval must be non-negative (received %d)",
+          Long.valueOf(this.syncIntervalOctets())));
+    }
+    if (this.cacheSizeLimit() < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Cache size limit must be non-negative (received %d)",
+          Long.valueOf(this.cacheSizeLimit())));
+    }
+  }
+}
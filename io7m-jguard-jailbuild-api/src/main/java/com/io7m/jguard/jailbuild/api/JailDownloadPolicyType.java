@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import javaslang.collection.HashSet;
+import javaslang.collection.Set;
+import org.immutables.value.Value;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * <p>The type of policies that control how failed downloads are retried.</p>
+ *
+ * <p>A failed attempt is retried if the failure is likely to be transient:
+ * Network errors, timeouts, truncated transfers, failed digest
+ * verifications, and HTTP responses with one of the {@link
+ * #retryableStatusCodes()} are retried. Other HTTP errors (such as {@code
+ * 404}) and errors accessing the local filesystem fail the download
+ * immediately. A retried attempt resumes from wherever the previous attempt
+ * stopped using an HTTP range request.</p>
+ *
+ * <p>The delay before the {@code n}th retry is {@code retryDelayInitial() *
+ * retryDelayMultiplier()^(n - 1)}, limited to {@link #retryDelayMaximum()},
+ * and then reduced by a random fraction of at most {@link #retryJitter()} so
+ * that many clients retrying against the same mirror do not do so in
+ * lockstep.</p>
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailDownloadPolicyType
+{
+  /**
+   * @return The maximum number of attempts made to download a file
+   */
+
+  @Value.Default
+  default int attempts()
+  {
+    return 1;
+  }
+
+  /**
+   * @return The delay before the first retry
+   */
+
+  @Value.Default
+  default Duration retryDelayInitial()
+  {
+    return Duration.ofSeconds(1L);
+  }
+
+  /**
+   * @return The maximum delay between retries
+   */
+
+  @Value.Default
+  default Duration retryDelayMaximum()
+  {
+    return Duration.ofSeconds(60L);
+  }
+
+  /**
+   * @return The factor by which the delay increases after each retry
+   */
+
+  @Value.Default
+  default double retryDelayMultiplier()
+  {
+    return 2.0;
+  }
+
+  /**
+   * @return The maximum fraction, in the range {@code [0, 1]}, by which each
+   * delay is randomly reduced
+   */
+
+  @Value.Default
+  default double retryJitter()
+  {
+    return 0.5;
+  }
+
+  /**
+   * The maximum duration of a single attempt. An attempt that runs for
+   * longer is abandoned and, if attempts remain, retried. If no value is
+   * specified, attempts may run for any length of time.
+   *
+   * @return The maximum duration of each attempt
+   */
+
+  Optional<Duration> attemptTimeout();
+
+  /**
+   * @return The HTTP status codes that indicate a transient server error
+   */
+
+  @Value.Default
+  default Set<Integer> retryableStatusCodes()
+  {
+    return HashSet.of(
+      Integer.valueOf(408),
+      Integer.valueOf(425),
+      Integer.valueOf(429),
+      Integer.valueOf(500),
+      Integer.valueOf(502),
+      Integer.valueOf(503),
+      Integer.valueOf(504));
+  }
+
+  /**
+   * If {@code true}, a file is downloaded to a temporary file named {@code
+   * file + ".tmp"}, and is atomically renamed to {@code file} only once the
+   * download has completed. The temporary file is kept between attempts
+   * (and between downloads) so that downloads can be resumed.
+   *
+   * @return {@code true} iff files should be downloaded via a temporary file
+   */
+
+  @Value.Default
+  default boolean temporaryFile()
+  {
+    return false;
+  }
+
+  /**
+   * @param status An HTTP status code
+   *
+   * @return {@code true} iff a response with the given status should be
+   * retried
+   */
+
+  default boolean isRetryableStatus(final int status)
+  {
+    return this.retryableStatusCodes().contains(Integer.valueOf(status));
+  }
+
+  /**
+   * Calculate the delay before a retry.
+   *
+   * @param attempt The number of the attempt that failed, starting at
+   *                {@code 1}
+   * @param random  A random value in the range {@code [0, 1)}
+   *
+   * @return The delay before the next attempt
+   */
+
+  default Duration retryDelay(
+    final int attempt,
+    final double random)
+  {
+    final double initial = (double) this.retryDelayInitial().toNanos();
+    final double maximum = (double) this.retryDelayMaximum().toNanos();
+    final double exponential =
+      initial * Math.pow(
+        this.retryDelayMultiplier(), (double) Math.max(0, attempt - 1));
+    final double limited = Math.min(maximum, exponential);
+    final double jittered = limited * (1.0 - (this.retryJitter() * random));
+    return Duration.ofNanos((long) jittered);
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.attempts() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Attempt count must be positive (received %d)",
+          Integer.valueOf(this.attempts())));
+    }
+    if (this.retryDelayInitial().isNegative()) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Initial retry delay must be non-negative (received %s)",
+          this.retryDelayInitial()));
+    }
+    if (this.retryDelayMaximum().compareTo(this.retryDelayInitial()) < 0) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Maximum retry delay %s must not be less than the initial delay %s",
+          this.retryDelayMaximum(),
+          this.retryDelayInitial()));
+    }
+    if (!(this.retryDelayMultiplier() >= 1.0)) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Retry delay multiplier must be at least 1.0 (received %f)",
+          Double.valueOf(this.retryDelayMultiplier())));
+    }
+    if (!(this.retryJitter() >= 0.0 && this.retryJitter() <= 1.0)) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Retry jitter must be in the range [0, 1] (received %f)",
+          Double.valueOf(this.retryJitter())));
+    }
+    if (this.attemptTimeout().isPresent()) {
+      final Duration timeout = this.attemptTimeout().get();
+      if (timeout.isNegative() || timeout.isZero()) {
+        throw new IllegalArgumentException(
+          String.format(
+            "Attempt timeout must be positive (received %s)",
+            timeout));
+      }
+    }
+  }
+}
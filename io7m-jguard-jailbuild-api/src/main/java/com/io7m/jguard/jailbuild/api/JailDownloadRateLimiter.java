@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jnull.NullCheck;
+
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A token bucket that limits the rate at which downloads receive data.</p>
+ *
+ * <p>Downloads charge each chunk of data to the limiter from the same counter
+ * that feeds their {@link JailDownloadProgressType} receivers, so the limiter
+ * and a {@link JailDownloadOctetsPerSecond} receiver attached to a limited
+ * download observe exactly the same octets. The limiter keeps its own token
+ * count because it may be shared between any number of concurrent downloads
+ * to limit their combined rate, whereas progress is reported per download.
+ * The bucket holds at most one second of data, so a burst after an idle
+ * period is shorter than the smoothing period of {@link
+ * JailDownloadOctetsPerSecond}, and the reported rate settles at the
+ * limit.</p>
+ *
+ * <p>The rate may be changed at any time, and takes effect for all
+ * downloads using the limiter from the next chunk they receive.</p>
+ */
+
+public final class JailDownloadRateLimiter
+{
+  private final Clock clock;
+  private final Object lock;
+  private long rate;
+  private double tokens;
+  private Instant time_last;
+
+  private JailDownloadRateLimiter(
+    final long in_rate,
+    final Clock in_clock)
+  {
+    this.clock = NullCheck.notNull(in_clock, "Clock");
+    this.lock = new Object();
+    this.rate = checkRate(in_rate);
+    this.tokens = (double) in_rate;
+    this.time_last = this.clock.instant();
+  }
+
+  /**
+   * @param in_rate  The maximum number of octets per second, or {@code 0} for
+   *                 no limit
+   * @param in_clock A clock
+   *
+   * @return A new rate limiter
+   */
+
+  public static JailDownloadRateLimiter create(
+    final long in_rate,
+    final Clock in_clock)
+  {
+    return new JailDownloadRateLimiter(in_rate, in_clock);
+  }
+
+  private static long checkRate(final long in_rate)
+  {
+    if (in_rate < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Rate limit must be non-negative (received %d)",
+          Long.valueOf(in_rate)));
+    }
+    return in_rate;
+  }
+
+  /**
+   * @return The maximum number of octets per second, or {@code 0} if there is
+   * no limit
+   */
+
+  public long octetsPerSecond()
+  {
+    synchronized (this.lock) {
+      return this.rate;
+    }
+  }
+
+  /**
+   * Set the maximum number of octets per second.
+   *
+   * @param in_rate The maximum number of octets per second, or {@code 0} for
+   *                no limit
+   */
+
+  public void setOctetsPerSecond(
+    final long in_rate)
+  {
+    checkRate(in_rate);
+    synchronized (this.lock) {
+      this.refill();
+      if (this.rate == 0L) {
+        this.tokens = (double) in_rate;
+      } else {
+        this.tokens = Math.min(this.tokens, (double) in_rate);
+      }
+      this.rate = in_rate;
+    }
+  }
+
+  /**
+   * Account for {@code octets} octets of received data, blocking the calling
+   * thread for as long as is necessary to keep the rate within the limit.
+   *
+   * @param octets The number of octets received
+   *
+   * @throws InterruptedIOException If the calling thread is interrupted while
+   *                                waiting
+   */
+
+  public void acquire(
+    final long octets)
+    throws InterruptedIOException
+  {
+    final long wait;
+    synchronized (this.lock) {
+      this.refill();
+      if (this.rate == 0L) {
+        return;
+      }
+
+      this.tokens = this.tokens - (double) octets;
+      if (this.tokens >= 0.0) {
+        return;
+      }
+      wait = (long) ((-this.tokens / (double) this.rate) * 1_000_000_000.0);
+    }
+
+    try {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException ex =
+        new InterruptedIOException("Interrupted while limiting download rate");
+      ex.initCause(e);
+      throw ex;
+    }
+  }
+
+  private void refill()
+  {
+    final Instant time_now = this.clock.instant();
+    final long elapsed = Duration.between(this.time_last, time_now).toNanos();
+    if (elapsed > 0L) {
+      this.tokens = Math.min(
+        (double) this.rate,
+        this.tokens + (((double) this.rate * (double) elapsed) / 1_000_000_000.0));
+      this.time_last = time_now;
+    }
+  }
+}
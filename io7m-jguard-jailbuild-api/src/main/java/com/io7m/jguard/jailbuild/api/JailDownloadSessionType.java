@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>A session that downloads any number of binary archives over a shared
+ * pool of HTTP connections.</p>
+ *
+ * <p>Connections are kept alive between downloads, and so fetching the
+ * archives of a release (such as {@code base.txz}, {@code lib32.txz}, and
+ * {@code src.txz}) from a single mirror only pays for connection setup
+ * once.</p>
+ *
+ * @see JailBuildType#jailDownloadSession()
+ */
+
+public interface JailDownloadSessionType extends Closeable
+{
+  /**
+   * Download a binary archive from a FreeBSD mirror using the given options.
+   * The download is performed synchronously on the calling thread, and
+   * failed attempts are retried according to {@link
+   * JailDownloadOptions#policy()}.
+   *
+   * @param file         The output file
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param options      The download options
+   * @param progress     An optional consumer of download progress information
+   *
+   * @throws IOException           On any error
+   * @throws IllegalStateException If the session has been closed
+   * @see JailBuildType#jailDownloadBinaryArchive(Path, URI, String, String,
+   * String, JailDownloadOptions, Optional)
+   */
+
+  void download(
+    Path file,
+    URI base,
+    String arch,
+    String release,
+    String archive_file,
+    JailDownloadOptions options,
+    Optional<JailDownloadProgressType> progress)
+    throws IOException;
+
+  /**
+   * <p>Download a binary archive from a FreeBSD mirror asynchronously. The
+   * download is performed on a thread supplied by {@code executor}, and
+   * occupies that thread only while it is running: Any number of downloads
+   * may be queued on an executor with a small, fixed number of threads.</p>
+   *
+   * <p>The returned future is completed when the download has completed, or
+   * is completed exceptionally with the error that caused the download to
+   * fail. Cancelling the future stops the download at its next read from the
+   * network, leaving any data received so far in {@code file} so that a
+   * later download may resume from it. Progress is delivered to {@code
+   * progress} in the same manner as for synchronous downloads.</p>
+   *
+   * @param file         The output file
+   * @param base         The base URI
+   * @param arch         The architecture of the release (such as {@code
+   *                     amd64})
+   * @param release      The release (such as {@code 10.3-RELEASE}).
+   * @param archive_file The archive file (such as {@code base.txz})
+   * @param options      The download options
+   * @param progress     An optional consumer of download progress information
+   * @param executor     The executor on which the download is performed
+   *
+   * @return A future representing the download
+   *
+   * @throws IllegalStateException If the session has been closed
+   * @see #download(Path, URI, String, String, String, JailDownloadOptions,
+   * Optional)
+   */
+
+  CompletableFuture<Void> downloadAsync(
+    Path file,
+    URI base,
+    String arch,
+    String release,
+    String archive_file,
+    JailDownloadOptions options,
+    Optional<JailDownloadProgressType> progress,
+    Executor executor);
+
+  /**
+   * @return Statistics describing the writes made to files by all downloads
+   * made using this session so far
+   */
+
+  JailDownloadWriteStatistics writeStatistics();
+
+  /**
+   * Close the session, releasing all pooled connections.
+   *
+   * @throws IOException On errors
+   */
+
+  @Override
+  void close()
+    throws IOException;
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of statistics describing the writes made to files by downloads.
+ * Each write corresponds to a single {@code write} system call.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailDownloadWriteStatisticsType
+{
+  /**
+   * @return The number of writes made
+   */
+
+  long writes();
+
+  /**
+   * @return The total number of octets written
+   */
+
+  long octetsWritten();
+
+  /**
+   * @return The size in octets of the largest single write
+   */
+
+  long writeLargest();
+
+  /**
+   * @return The number of times that written data was explicitly flushed to
+   * the underlying storage device
+   */
+
+  long syncs();
+
+  /**
+   * @return The mean number of octets per write
+   */
+
+  default long writeMean()
+  {
+    if (this.writes() == 0L) {
+      return 0L;
+    }
+    return this.octetsWritten() / this.writes();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of options that control a pool of pre-provisioned jail roots.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailPoolOptionsType
+{
+  /**
+   * The number of jail roots that the pool attempts to keep copied from the
+   * base template and ready to be claimed.
+   *
+   * @return The size of the pool
+   */
+
+  @Value.Default
+  default int size()
+  {
+    return 4;
+  }
+
+  /**
+   * The number of jail roots that may be copied into the pool concurrently.
+   * Each root is copied with {@link JailCreateOptions#copyThreads()} threads.
+   *
+   * @return The number of refill threads
+   */
+
+  @Value.Default
+  default int refillThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * @return The options used to copy jail roots from the base template
+   */
+
+  @Value.Default
+  default JailCreateOptions createOptions()
+  {
+    return JailCreateOptions.builder().build();
+  }
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.size() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Pool size must be positive (received %d)",
+          Integer.valueOf(this.size())));
+    }
+    if (this.refillThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Refill thread count must be positive (received %d)",
+          Integer.valueOf(this.refillThreads())));
+    }
+  }
+}
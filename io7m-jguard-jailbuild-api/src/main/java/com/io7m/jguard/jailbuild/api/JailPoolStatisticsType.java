@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of statistics produced by a pool of pre-provisioned jail roots.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailPoolStatisticsType
+{
+  /**
+   * @return The number of jails that were claimed using a root taken from
+   * the pool
+   */
+
+  long hits();
+
+  /**
+   * @return The number of jails that had to be copied from the base template
+   * because the pool was empty
+   */
+
+  long misses();
+
+  /**
+   * @return The number of roots that could not be copied into the pool
+   */
+
+  long refillFailures();
+
+  /**
+   * @return The number of roots currently ready to be claimed
+   */
+
+  int available();
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.JailConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+
+/**
+ * <p>A pool of jail roots that have already been copied from a base template
+ * into a staging directory.</p>
+ *
+ * <p>Claiming a jail writes the jail's configuration and moves one of the
+ * staged roots into place, after which the pool is refilled in the
+ * background. If the pool is empty, the jail is copied from the base template
+ * on the calling thread, in the same manner as {@link
+ * JailBuildType#jailCreate(java.nio.file.Path, java.nio.file.Path,
+ * JailConfiguration, JailCreateOptions)}.</p>
+ *
+ * <p>Staged roots are moved with an atomic rename, and so the staging
+ * directory should be on the same filesystem as the roots of any claimed
+ * jails. A staged root that cannot be moved into place is deleted, and the
+ * jail is copied from the base template instead.</p>
+ */
+
+public interface JailPoolType extends Closeable
+{
+  /**
+   * Create a new jail using a staged root, if one is available.
+   *
+   * @param config The jail configuration
+   *
+   * @throws FileAlreadyExistsException If a jail already exists with the given
+   *                                    name
+   * @throws IOException                On errors
+   * @throws IllegalStateException      If the pool has been closed
+   */
+
+  void claim(JailConfiguration config)
+    throws IOException, FileAlreadyExistsException;
+
+  /**
+   * @return The current pool statistics
+   */
+
+  JailPoolStatistics statistics();
+
+  /**
+   * Stop refilling the pool, waiting for any roots that are currently being
+   * staged. Roots that are still staged are deleted from the staging
+   * directory.
+   *
+   * @throws IOException On errors
+   */
+
+  @Override
+  void close()
+    throws IOException;
+}
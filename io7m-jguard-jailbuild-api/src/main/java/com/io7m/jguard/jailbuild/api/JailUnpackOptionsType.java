@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+import java.util.Optional;
+
+/**
+ * The type of options that control how archives are unpacked.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailUnpackOptionsType
+{
+  /**
+   * The number of threads that will be used to decompress archives. Archives
+   * that consist of multiple independently compressed blocks (such as those
+   * produced by {@code xz -T}) can be decompressed in parallel, with each
+   * block decoded on a separate thread. Archives that consist of a single
+   * block are always decompressed on a single thread. A value of {@code 1}
+   * indicates that archives will be decompressed on the calling thread.
+   *
+   * @return The number of decompression threads
+   */
+
+  @Value.Default
+  default int decoderThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * The number of threads that will be used to write unpacked files. If more
+   * than one thread is specified, decompression, parsing of the archive, and
+   * writing of files proceed concurrently, with files written by a pool of
+   * threads of the given size. A value of {@code 1} indicates that files will
+   * be written on the calling thread.
+   *
+   * @return The number of writer threads
+   */
+
+  @Value.Default
+  default int writerThreads()
+  {
+    return 1;
+  }
+
+  /**
+   * The expected SHA-256 digest of the archive, as a hexadecimal string. If
+   * specified, the digest of the archive is calculated as the archive is
+   * read for decompression, so that the archive is only read once, and
+   * unpacking fails if the digest does not match. Because the archive must
+   * then be read sequentially, it is decompressed on a single thread
+   * regardless of {@link #decoderThreads()}.
+   *
+   * @return The expected digest of the archive, if any
+   */
+
+  Optional<String> expectedDigest();
+
+  /**
+   * Check preconditions for the type.
+   */
+
+  @Value.Check
+  default void checkPreconditions()
+  {
+    if (this.decoderThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Decoder thread count must be positive (received %d)",
+          Integer.valueOf(this.decoderThreads())));
+    }
+    if (this.writerThreads() < 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Writer thread count must be positive (received %d)",
+          Integer.valueOf(this.writerThreads())));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.api;
+
+import com.io7m.jguard.core.ImmutableStyleType;
+import org.immutables.value.Value;
+
+/**
+ * The type of statistics produced by unpacking an archive.
+ */
+
+@Value.Immutable
+@ImmutableStyleType
+public interface JailUnpackStatisticsType
+{
+  /**
+   * @return The number of directories that were created
+   */
+
+  long directoriesCreated();
+
+  /**
+   * @return The number of directory creations that were skipped because the
+   * directory was already known to exist
+   */
+
+  long directoriesSkipped();
+
+  /**
+   * @return The number of hard links that were created as soon as they were
+   * encountered, because their targets had already been extracted
+   */
+
+  long hardLinksImmediate();
+
+  /**
+   * @return The number of hard links that were created after the rest of the
+   * archive had been extracted
+   */
+
+  long hardLinksDeferred();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.tests.jailbuild.api;
+
+import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public final class JailArchiveFormatTest
+{
+  private static Optional<JailArchiveFormat> header(
+    final int... octets)
+  {
+    final byte[] header = new byte[512];
+    for (int index = 0; index < octets.length; index = index + 1) {
+      header[index] = (byte) octets[index];
+    }
+    return JailArchiveFormat.inferFromHeader(header, header.length);
+  }
+
+  @Test
+  public void testHeaderXZ()
+  {
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ),
+      header(0xFD, 0x37, 0x7A, 0x58, 0x5A, 0x00));
+  }
+
+  @Test
+  public void testHeaderZstd()
+  {
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_ZSTD),
+      header(0x28, 0xB5, 0x2F, 0xFD));
+  }
+
+  @Test
+  public void testHeaderGzip()
+  {
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP),
+      header(0x1F, 0x8B, 0x08));
+  }
+
+  @Test
+  public void testHeaderTar()
+  {
+    final byte[] header = new byte[512];
+    header[257] = (byte) 'u';
+    header[258] = (byte) 's';
+    header[259] = (byte) 't';
+    header[260] = (byte) 'a';
+    header[261] = (byte) 'r';
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR),
+      JailArchiveFormat.inferFromHeader(header, header.length));
+  }
+
+  @Test
+  public void testHeaderUnknown()
+  {
+    Assert.assertEquals(Optional.empty(), header(0x00, 0x01, 0x02));
+  }
+
+  @Test
+  public void testHeaderShort()
+  {
+    final byte[] header = {(byte) 0xFD, (byte) 0x37};
+    Assert.assertEquals(
+      Optional.empty(),
+      JailArchiveFormat.inferFromHeader(header, header.length));
+  }
+
+  @Test
+  public void testNameFallback()
+  {
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ),
+      JailArchiveFormat.inferFrom(Paths.get("/nonexistent/base.txz")));
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_ZSTD),
+      JailArchiveFormat.inferFrom(Paths.get("/nonexistent/base.tar.zst")));
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP),
+      JailArchiveFormat.inferFrom(Paths.get("/nonexistent/base.tgz")));
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR),
+      JailArchiveFormat.inferFrom(Paths.get("/nonexistent/base.tar")));
+    Assert.assertEquals(
+      Optional.empty(),
+      JailArchiveFormat.inferFrom(Paths.get("/nonexistent/base.zip")));
+  }
+
+  @Test
+  public void testContentOverridesName()
+    throws Exception
+  {
+    final Path file = Files.createTempFile("jguard-", ".txz");
+    try {
+      Files.write(file, new byte[]{(byte) 0x1F, (byte) 0x8B, 0x08, 0x00});
+      Assert.assertEquals(
+        Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP),
+        JailArchiveFormat.inferFrom(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
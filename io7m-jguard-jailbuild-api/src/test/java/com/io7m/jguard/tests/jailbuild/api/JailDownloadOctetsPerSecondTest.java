@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.tests.jailbuild.api;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadOctetsPerSecond;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class JailDownloadOctetsPerSecondTest
+{
+  private static final class SettableClock extends Clock
+  {
+    private Instant now = Instant.parse("2016-01-01T00:00:00Z");
+
+    @Override
+    public ZoneId getZone()
+    {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(final ZoneId zone)
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Instant instant()
+    {
+      return this.now;
+    }
+  }
+
+  @Test
+  public void testSteadyRate()
+  {
+    final SettableClock clock = new SettableClock();
+    final List<Long> rates = new ArrayList<>();
+    final JailDownloadProgressType progress =
+      JailDownloadOctetsPerSecond.get(
+        (total_expected, total_received, octets_per_second) ->
+          rates.add(Long.valueOf(octets_per_second)),
+        clock);
+
+    long received = 0L;
+    for (int index = 0; index < 40; ++index) {
+      clock.now = clock.now.plus(Duration.ofMillis(250L));
+      received = received + 250L;
+      progress.onProgress(10000L, received);
+    }
+
+    Assert.assertEquals(10L, (long) rates.size());
+    for (final Long rate : rates) {
+      Assert.assertEquals(1000L, rate.longValue(), 1L);
+    }
+  }
+
+  @Test
+  public void testSmoothed()
+  {
+    final SettableClock clock = new SettableClock();
+    final List<Long> rates = new ArrayList<>();
+    final JailDownloadProgressType progress =
+      JailDownloadOctetsPerSecond.get(
+        (total_expected, total_received, octets_per_second) ->
+          rates.add(Long.valueOf(octets_per_second)),
+        clock);
+
+    long received = 0L;
+    for (int index = 0; index < 8; ++index) {
+      clock.now = clock.now.plus(Duration.ofMillis(250L));
+      received = received + 250L;
+      progress.onProgress(10000L, received);
+    }
+
+    /*
+     * The rate halves, but the published rate only moves part of the way
+     * towards the new rate.
+     */
+
+    for (int index = 0; index < 4; ++index) {
+      clock.now = clock.now.plus(Duration.ofMillis(250L));
+      received = received + 125L;
+      progress.onProgress(10000L, received);
+    }
+
+    final long last = rates.get(rates.size() - 1).longValue();
+    Assert.assertTrue(last > 500L);
+    Assert.assertTrue(last < 1000L);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.tests.jailbuild.api;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+
+public final class JailDownloadPolicyTest
+{
+  @Test
+  public void testBackoffExponential()
+  {
+    final JailDownloadPolicy policy =
+      JailDownloadPolicy.builder()
+        .setRetryDelayInitial(Duration.ofSeconds(1L))
+        .setRetryDelayMaximum(Duration.ofSeconds(10L))
+        .setRetryDelayMultiplier(2.0)
+        .setRetryJitter(0.0)
+        .build();
+
+    Assert.assertEquals(Duration.ofSeconds(1L), policy.retryDelay(1, 0.5));
+    Assert.assertEquals(Duration.ofSeconds(2L), policy.retryDelay(2, 0.5));
+    Assert.assertEquals(Duration.ofSeconds(4L), policy.retryDelay(3, 0.5));
+    Assert.assertEquals(Duration.ofSeconds(8L), policy.retryDelay(4, 0.5));
+    Assert.assertEquals(Duration.ofSeconds(10L), policy.retryDelay(5, 0.5));
+    Assert.assertEquals(Duration.ofSeconds(10L), policy.retryDelay(100, 0.5));
+  }
+
+  @Test
+  public void testBackoffJitter()
+  {
+    final JailDownloadPolicy policy =
+      JailDownloadPolicy.builder()
+        .setRetryDelayInitial(Duration.ofSeconds(4L))
+        .setRetryDelayMaximum(Duration.ofSeconds(4L))
+        .setRetryJitter(0.5)
+        .build();
+
+    Assert.assertEquals(Duration.ofSeconds(4L), policy.retryDelay(1, 0.0));
+    Assert.assertEquals(Duration.ofSeconds(3L), policy.retryDelay(1, 0.5));
+    Assert.assertTrue(
+      policy.retryDelay(1, 0.999).compareTo(Duration.ofSeconds(2L)) > 0);
+  }
+
+  @Test
+  public void testRetryableStatus()
+  {
+    final JailDownloadPolicy policy = JailDownloadPolicy.builder().build();
+    Assert.assertTrue(policy.isRetryableStatus(429));
+    Assert.assertTrue(policy.isRetryableStatus(503));
+    Assert.assertFalse(policy.isRetryableStatus(403));
+    Assert.assertFalse(policy.isRetryableStatus(404));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAttemptsZero()
+  {
+    JailDownloadPolicy.builder().setAttempts(0).build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaximumBelowInitial()
+  {
+    JailDownloadPolicy.builder()
+      .setRetryDelayInitial(Duration.ofSeconds(10L))
+      .setRetryDelayMaximum(Duration.ofSeconds(1L))
+      .build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testJitterOutOfRange()
+  {
+    JailDownloadPolicy.builder().setRetryJitter(1.5).build();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAttemptTimeoutZero()
+  {
+    JailDownloadPolicy.builder().setAttemptTimeout(Duration.ZERO).build();
+  }
+}
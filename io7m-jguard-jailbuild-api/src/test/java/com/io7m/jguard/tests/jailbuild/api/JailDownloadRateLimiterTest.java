@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.tests.jailbuild.api;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadRateLimiter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+
+public final class JailDownloadRateLimiterTest
+{
+  @Test
+  public void testUnlimited()
+    throws Exception
+  {
+    final JailDownloadRateLimiter limiter =
+      JailDownloadRateLimiter.create(0L, Clock.systemUTC());
+
+    final long time_start = System.nanoTime();
+    limiter.acquire(1_000_000_000L);
+    final long elapsed = System.nanoTime() - time_start;
+    Assert.assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500L));
+  }
+
+  @Test
+  public void testLimited()
+    throws Exception
+  {
+    final JailDownloadRateLimiter limiter =
+      JailDownloadRateLimiter.create(100_000L, Clock.systemUTC());
+
+    final long time_start = System.nanoTime();
+    limiter.acquire(100_000L);
+    limiter.acquire(50_000L);
+    final long elapsed = System.nanoTime() - time_start;
+    Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(400L));
+  }
+
+  @Test
+  public void testAdjusted()
+    throws Exception
+  {
+    final JailDownloadRateLimiter limiter =
+      JailDownloadRateLimiter.create(100_000L, Clock.systemUTC());
+    Assert.assertEquals(100_000L, limiter.octetsPerSecond());
+
+    limiter.setOctetsPerSecond(0L);
+    Assert.assertEquals(0L, limiter.octetsPerSecond());
+
+    final long time_start = System.nanoTime();
+    limiter.acquire(1_000_000_000L);
+    final long elapsed = System.nanoTime() - time_start;
+    Assert.assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(500L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegative()
+  {
+    JailDownloadRateLimiter.create(-1L, Clock.systemUTC());
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailArchiveDecoderType;
+import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
+import com.io7m.jnull.NullCheck;
+
+import java.io.InputStream;
+
+/**
+ * A decoder for uncompressed tar archives.
+ */
+
+public final class JailArchiveDecoderTar implements JailArchiveDecoderType
+{
+  /**
+   * Construct a decoder.
+   */
+
+  public JailArchiveDecoderTar()
+  {
+
+  }
+
+  @Override
+  public JailArchiveFormat format()
+  {
+    return JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR;
+  }
+
+  @Override
+  public InputStream decompressStream(
+    final InputStream stream)
+  {
+    return NullCheck.notNull(stream, "Stream");
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailArchiveDecoderType;
+import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
+import com.io7m.jnull.NullCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.ServiceLoader;
+
+/**
+ * The set of archive decoders discovered via {@link ServiceLoader}.
+ */
+
+final class JailArchiveDecoders
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailArchiveDecoders.class);
+  }
+
+  private final EnumMap<JailArchiveFormat, JailArchiveDecoderType> decoders;
+
+  private JailArchiveDecoders(
+    final EnumMap<JailArchiveFormat, JailArchiveDecoderType> in_decoders)
+  {
+    this.decoders = NullCheck.notNull(in_decoders, "Decoders");
+  }
+
+  /**
+   * Discover all available decoders. If more than one decoder is available
+   * for a given format, the first decoder discovered is used.
+   *
+   * @return A set of decoders
+   */
+
+  static JailArchiveDecoders load()
+  {
+    final EnumMap<JailArchiveFormat, JailArchiveDecoderType> decoders =
+      new EnumMap<>(JailArchiveFormat.class);
+
+    final ServiceLoader<JailArchiveDecoderType> loader =
+      ServiceLoader.load(
+        JailArchiveDecoderType.class,
+        JailArchiveDecoders.class.getClassLoader());
+
+    for (final JailArchiveDecoderType decoder : loader) {
+      final JailArchiveFormat format = decoder.format();
+      if (decoders.containsKey(format)) {
+        LOG.debug(
+          "ignoring decoder {} for format {}: {} is already registered",
+          decoder.getClass().getCanonicalName(),
+          format,
+          decoders.get(format).getClass().getCanonicalName());
+        continue;
+      }
+
+      LOG.debug(
+        "registered decoder {} for format {}",
+        decoder.getClass().getCanonicalName(),
+        format);
+      decoders.put(format, decoder);
+    }
+
+    return new JailArchiveDecoders(decoders);
+  }
+
+  /**
+   * @param format The archive format
+   *
+   * @return A decoder for the given format
+   *
+   * @throws IOException If no decoder is available for the format
+   */
+
+  JailArchiveDecoderType decoderFor(
+    final JailArchiveFormat format)
+    throws IOException
+  {
+    NullCheck.notNull(format, "Format");
+
+    final JailArchiveDecoderType decoder = this.decoders.get(format);
+    if (decoder == null) {
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append("No decoder is available for the archive format.");
+      sb.append(System.lineSeparator());
+      sb.append("  Format: ");
+      sb.append(format);
+      sb.append(System.lineSeparator());
+      sb.append("  Available decoders are registered via ServiceLoader as ");
+      sb.append(JailArchiveDecoderType.class.getCanonicalName());
+      sb.append(System.lineSeparator());
+      throw new IOException(sb.toString());
+    }
+    return decoder;
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A pipe between a producer thread and a consumer thread that holds at
+ * most a fixed number of fixed-size chunks of data at any given time.</p>
+ *
+ * <p>The producer writes to {@link #output()}, and closes the output to
+ * indicate the end of the data, or calls {@link #fail(IOException)} to pass
+ * an error to the consumer. The consumer reads from {@link #input()}. Closing
+ * the stream returned by {@link #input()} has no effect, so that the consumer
+ * can pass the stream to decoders that close their underlying streams and
+ * then continue to read any trailing data. The consumer calls {@link
+ * #close()} when it has finished reading, after which any further writes by
+ * the producer will fail.</p>
+ */
+
+final class JailBoundedPipe implements AutoCloseable
+{
+  private static final byte[] END = new byte[0];
+  private static final long POLL_MILLISECONDS = 100L;
+
+  private final ArrayBlockingQueue<byte[]> queue;
+  private final int chunk_size;
+  private final Input input;
+  private final Output output;
+  private volatile @Nullable IOException error;
+  private volatile boolean closed;
+
+  /**
+   * Construct a pipe.
+   *
+   * @param in_chunk_size The size of the chunks that will be passed between
+   *                      threads
+   * @param in_chunks     The maximum number of chunks that can be queued
+   */
+
+  JailBoundedPipe(
+    final int in_chunk_size,
+    final int in_chunks)
+  {
+    this.chunk_size = in_chunk_size;
+    this.queue = new ArrayBlockingQueue<>(in_chunks);
+    this.input = new Input(this);
+    this.output = new Output(this);
+    this.closed = false;
+  }
+
+  /**
+   * @return The stream from which the consumer reads
+   */
+
+  InputStream input()
+  {
+    return this.input;
+  }
+
+  /**
+   * @return The stream to which the producer writes
+   */
+
+  OutputStream output()
+  {
+    return this.output;
+  }
+
+  /**
+   * Indicate that the producer has failed. The consumer will receive the
+   * given exception after reading all of the data written so far.
+   *
+   * @param e The exception
+   */
+
+  void fail(final IOException e)
+  {
+    this.error = NullCheck.notNull(e, "Exception");
+    try {
+      this.put(END);
+    } catch (final IOException x) {
+      e.addSuppressed(x);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    this.closed = true;
+    this.queue.clear();
+  }
+
+  private void put(final byte[] chunk)
+    throws IOException
+  {
+    try {
+      while (!this.queue.offer(chunk, POLL_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+        if (this.closed) {
+          throw new IOException("Pipe closed by consumer");
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private byte[] take()
+    throws IOException
+  {
+    try {
+      return this.queue.take();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+  }
+
+  private static final class Input extends InputStream
+  {
+    private final JailBoundedPipe pipe;
+    private byte[] chunk;
+    private int offset;
+
+    Input(final JailBoundedPipe in_pipe)
+    {
+      this.pipe = in_pipe;
+      this.chunk = new byte[0];
+      this.offset = 0;
+    }
+
+    private boolean fill()
+      throws IOException
+    {
+      if (this.chunk == END) {
+        return false;
+      }
+
+      while (this.offset == this.chunk.length) {
+        this.chunk = this.pipe.take();
+        this.offset = 0;
+        if (this.chunk == END) {
+          final IOException e = this.pipe.error;
+          if (e != null) {
+            throw new IOException(e);
+          }
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      if (!this.fill()) {
+        return -1;
+      }
+      final int r = (int) this.chunk[this.offset] & 0xff;
+      ++this.offset;
+      return r;
+    }
+
+    @Override
+    public int read(
+      final byte[] buffer,
+      final int buffer_offset,
+      final int length)
+      throws IOException
+    {
+      if (length == 0) {
+        return 0;
+      }
+      if (!this.fill()) {
+        return -1;
+      }
+
+      final int count = Math.min(length, this.chunk.length - this.offset);
+      System.arraycopy(this.chunk, this.offset, buffer, buffer_offset, count);
+      this.offset += count;
+      return count;
+    }
+
+    @Override
+    public int available()
+    {
+      return this.chunk.length - this.offset;
+    }
+
+    @Override
+    public void close()
+    {
+      /*
+       * The pipe is closed explicitly by the consumer.
+       */
+    }
+  }
+
+  private static final class Output extends OutputStream
+  {
+    private final JailBoundedPipe pipe;
+    private byte[] chunk;
+    private int offset;
+    private boolean closed;
+
+    Output(final JailBoundedPipe in_pipe)
+    {
+      this.pipe = in_pipe;
+      this.chunk = new byte[in_pipe.chunk_size];
+      this.offset = 0;
+      this.closed = false;
+    }
+
+    @Override
+    public void write(final int b)
+      throws IOException
+    {
+      this.checkOpen();
+      this.chunk[this.offset] = (byte) b;
+      ++this.offset;
+      if (this.offset == this.chunk.length) {
+        this.flush();
+      }
+    }
+
+    @Override
+    public void write(
+      final byte[] buffer,
+      final int buffer_offset,
+      final int length)
+      throws IOException
+    {
+      this.checkOpen();
+
+      int position = buffer_offset;
+      int remaining = length;
+      while (remaining > 0) {
+        final int count = Math.min(remaining, this.chunk.length - this.offset);
+        System.arraycopy(buffer, position, this.chunk, this.offset, count);
+        this.offset += count;
+        position += count;
+        remaining -= count;
+        if (this.offset == this.chunk.length) {
+          this.flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    {
+      this.checkOpen();
+      if (this.offset > 0) {
+        final byte[] full = this.chunk;
+        final byte[] send;
+        if (this.offset == full.length) {
+          send = full;
+        } else {
+          send = new byte[this.offset];
+          System.arraycopy(full, 0, send, 0, this.offset);
+        }
+        this.pipe.put(send);
+        this.chunk = new byte[this.pipe.chunk_size];
+        this.offset = 0;
+      }
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      if (!this.closed) {
+        this.flush();
+        this.closed = true;
+        this.pipe.put(END);
+      }
+    }
+
+    private void checkOpen()
+      throws IOException
+    {
+      if (this.closed) {
+        throw new IOException("Stream closed");
+      }
+      if (this.pipe.closed) {
+        throw new IOException("Pipe closed by consumer");
+      }
+    }
+  }
+}
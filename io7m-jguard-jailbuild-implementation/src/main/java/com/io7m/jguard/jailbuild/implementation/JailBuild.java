@@ -16,31 +16,34 @@
 
 package com.io7m.jguard.jailbuild.implementation;
 
-import com.io7m.jaffirm.core.Invariants;
 import com.io7m.jguard.core.JailConfiguration;
 import com.io7m.jguard.core.JailConfigurationType;
+import com.io7m.jguard.core.JailName;
+import com.io7m.jguard.jailbuild.api.JailArchiveDecoderType;
 import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
 import com.io7m.jguard.jailbuild.api.JailBuildType;
+import com.io7m.jguard.jailbuild.api.JailCreateOptions;
+import com.io7m.jguard.jailbuild.api.JailCreateResult;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadCacheStatistics;
+import com.io7m.jguard.jailbuild.api.JailDownloadMirrorProbe;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
 import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadResult;
+import com.io7m.jguard.jailbuild.api.JailDownloadSessionType;
+import com.io7m.jguard.jailbuild.api.JailPoolOptions;
+import com.io7m.jguard.jailbuild.api.JailPoolType;
+import com.io7m.jguard.jailbuild.api.JailUnpackOptions;
+import com.io7m.jguard.jailbuild.api.JailUnpackStatistics;
 import com.io7m.jnull.NullCheck;
-import com.io7m.jnull.Nullable;
 import javaslang.collection.List;
 import jnr.ffi.LibraryLoader;
-import jnr.posix.FileStat;
+import jnr.ffi.Pointer;
+import jnr.ffi.types.size_t;
+import jnr.ffi.types.ssize_t;
 import jnr.posix.POSIX;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,19 +52,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.UncheckedIOException;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 /**
@@ -71,14 +78,20 @@ import java.util.function.Supplier;
 public final class JailBuild implements JailBuildType
 {
   private static final Logger LOG;
+  private static final int PIPE_CHUNK_SIZE = 65536;
+  private static final int PIPE_CHUNKS = 32;
 
   static {
     LOG = LoggerFactory.getLogger(JailBuild.class);
   }
 
   private final Supplier<CloseableHttpClient> clients;
-  private final StrErrorType strerror;
-  private final POSIX posix;
+  private final JailPOSIX posix_ops;
+  private final JailUnpacker unpacker;
+  private final JailFileCopier file_copier;
+  private final JailTreeCopier copier;
+  private final JailCloneLinks clone_links;
+  private final JailArchiveDecoders decoders;
 
   /**
    * The symlinks created for jail templates.
@@ -108,11 +121,16 @@ public final class JailBuild implements JailBuildType
   private JailBuild(
     final Supplier<CloseableHttpClient> in_clients,
     final POSIX in_posix,
-    final StrErrorType in_strerror)
+    final StrErrorType in_strerror,
+    final Optional<CopyFileRangeType> in_copy_file_range)
   {
     this.clients = NullCheck.notNull(in_clients, "Clients");
-    this.strerror = NullCheck.notNull(in_strerror, "Strerror");
-    this.posix = NullCheck.notNull(in_posix, "POSIX");
+    this.posix_ops = new JailPOSIX(in_posix, in_strerror);
+    this.unpacker = new JailUnpacker(this.posix_ops);
+    this.file_copier = new JailFileCopier(this.posix_ops, in_copy_file_range);
+    this.copier = new JailTreeCopier(this.posix_ops, this.file_copier);
+    this.clone_links = new JailCloneLinks(this.posix_ops);
+    this.decoders = JailArchiveDecoders.load();
   }
 
   /**
@@ -130,6 +148,32 @@ public final class JailBuild implements JailBuildType
     String strerror(int e);
   }
 
+  /**
+   * Interface to the standard library's {@code copy_file_range} function.
+   */
+
+  public interface CopyFileRangeType
+  {
+    /**
+     * @param fd_in   The source file descriptor
+     * @param off_in  The source offset, or {@code null} to use the file offset
+     * @param fd_out  The target file descriptor
+     * @param off_out The target offset, or {@code null} to use the file offset
+     * @param len     The maximum number of octets to copy
+     * @param flags   The flags (must be {@code 0})
+     *
+     * @return The number of octets copied, or {@code -1} on errors
+     */
+
+    @ssize_t long copy_file_range(
+      int fd_in,
+      Pointer off_in,
+      int fd_out,
+      Pointer off_out,
+      @size_t long len,
+      int flags);
+  }
+
   /**
    * @param in_clients An HTTP client supplier
    * @param in_posix   A POSIX interface
@@ -150,7 +194,46 @@ public final class JailBuild implements JailBuildType
     final StrErrorType strerror = c_loader.load("c");
     LOG.debug("loaded libc library: {}", strerror);
 
-    return new JailBuild(in_clients, in_posix, strerror);
+    return new JailBuild(
+      in_clients, in_posix, strerror, loadCopyFileRange());
+  }
+
+  private static Optional<CopyFileRangeType> loadCopyFileRange()
+  {
+    try {
+      final LibraryLoader<CopyFileRangeType> loader =
+        LibraryLoader.create(CopyFileRangeType.class);
+      loader.failImmediately();
+      return Optional.of(loader.load("c"));
+    } catch (final LinkageError e) {
+      LOG.debug("copy_file_range is unavailable: {}", e.getMessage());
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public void jailDownloadBinaryArchive(
+    final Path file,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(progress, "Progress");
+    this.jailDownloadBinaryArchive(
+      file,
+      base,
+      arch,
+      release,
+      archive_file,
+      JailDownloadOptions.builder().build(),
+      progress);
   }
 
   @Override
@@ -160,6 +243,7 @@ public final class JailBuild implements JailBuildType
     final String arch,
     final String release,
     final String archive_file,
+    final JailDownloadOptions options,
     final Optional<JailDownloadProgressType> progress)
     throws IOException
   {
@@ -167,8 +251,74 @@ public final class JailBuild implements JailBuildType
     NullCheck.notNull(base, "Base");
     NullCheck.notNull(arch, "Arch");
     NullCheck.notNull(release, "Release");
+    NullCheck.notNull(options, "Options");
+    NullCheck.notNull(progress, "Progress");
+    try (final JailDownloadSessionType session = this.jailDownloadSession()) {
+      session.download(
+        file, base, arch, release, archive_file, options, progress);
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> jailDownloadBinaryArchiveAsync(
+    final Path file,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailDownloadOptions options,
+    final Optional<JailDownloadProgressType> progress,
+    final Executor executor)
+  {
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
+    NullCheck.notNull(options, "Options");
+    NullCheck.notNull(progress, "Progress");
+    NullCheck.notNull(executor, "Executor");
+
+    return this.newDownloadSession().downloadAsyncAndClose(
+      file, base, arch, release, archive_file, options, progress, executor);
+  }
+
+  @Override
+  public java.util.List<JailDownloadResult> jailDownloadBinaryArchives(
+    final Path directory,
+    final URI base,
+    final String arch,
+    final String release,
+    final Collection<String> archive_files,
+    final JailDownloadBatchOptions options,
+    final JailDownloadBatchProgressType progress)
+    throws IOException
+  {
+    NullCheck.notNull(directory, "Directory");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_files, "Archive files");
+    NullCheck.notNull(options, "Options");
     NullCheck.notNull(progress, "Progress");
-    this.download(file, base, arch, release, archive_file, progress);
+
+    try (final JailDownloadSession session = this.newDownloadSession()) {
+      return session.downloadBatch(
+        directory, base, arch, release, archive_files, options, progress);
+    }
+  }
+
+  @Override
+  public JailDownloadSessionType jailDownloadSession()
+    throws IOException
+  {
+    return this.newDownloadSession();
+  }
+
+  private JailDownloadSession newDownloadSession()
+  {
+    return new JailDownloadSession(
+      NullCheck.notNull(this.clients.get(), "Client"), this.file_copier);
   }
 
   @Override
@@ -178,11 +328,29 @@ public final class JailBuild implements JailBuildType
     final Path base,
     final Path base_template)
     throws IOException
+  {
+    this.jailCreateBase(
+      base_archive,
+      format,
+      base,
+      base_template,
+      JailUnpackOptions.builder().build());
+  }
+
+  @Override
+  public JailUnpackStatistics jailCreateBase(
+    final Path base_archive,
+    final JailArchiveFormat format,
+    final Path base,
+    final Path base_template,
+    final JailUnpackOptions options)
+    throws IOException
   {
     NullCheck.notNull(base_archive, "Base archive");
     NullCheck.notNull(format, "Format");
     NullCheck.notNull(base, "Base");
     NullCheck.notNull(base_template, "Base template");
+    NullCheck.notNull(options, "Options");
 
     if (Files.exists(base)) {
       throw new FileAlreadyExistsException(base.toString());
@@ -191,8 +359,21 @@ public final class JailBuild implements JailBuildType
       throw new FileAlreadyExistsException(base_template.toString());
     }
 
-    this.jailUnpackArchive(base_archive, format, base);
+    final JailUnpackStatistics statistics =
+      this.jailUnpackArchive(base_archive, format, base, options);
     this.jailCreateBaseTemplate(base, base_template);
+
+    /*
+     * The manifest only serves to avoid walking the template when creating
+     * jails, and jail creation will walk the template if it is missing.
+     */
+
+    try {
+      this.copier.writeManifest(base_template);
+    } catch (final IOException e) {
+      LOG.warn("could not write template manifest: {}", e.getMessage());
+    }
+    return statistics;
   }
 
   private void jailCreateBaseTemplate(
@@ -254,20 +435,141 @@ public final class JailBuild implements JailBuildType
     final JailArchiveFormat format,
     final Path base)
     throws IOException
+  {
+    this.jailUnpackArchive(
+      base_archive, format, base, JailUnpackOptions.builder().build());
+  }
+
+  @Override
+  public JailUnpackStatistics jailUnpackArchive(
+    final Path base_archive,
+    final JailArchiveFormat format,
+    final Path base,
+    final JailUnpackOptions options)
+    throws IOException
   {
     NullCheck.notNull(base_archive, "Base archive");
     NullCheck.notNull(format, "Format");
     NullCheck.notNull(base, "Base");
+    NullCheck.notNull(options, "Options");
 
     LOG.debug("unpack {} ({}) -> {}", base_archive, format, base);
 
-    try (final BufferedInputStream stream =
-           new BufferedInputStream(Files.newInputStream(base_archive))) {
-      switch (format) {
-        case JAIL_ARCHIVE_FORMAT_TAR_XZ: {
-          this.jailUnpackArchiveTarXZ(base_archive, stream, base);
-          return;
+    final JailArchiveDecoderType decoder = this.decoders.decoderFor(format);
+    final Optional<String> digest_expected = options.expectedDigest();
+    if (!digest_expected.isPresent()) {
+      try (final InputStream stream =
+             decoder.decompressFile(base_archive, options)) {
+        return this.unpacker.unpack(stream, base, options);
+      }
+    }
+
+    final MessageDigest digest = JailDigests.newDigest();
+    try (final InputStream raw = new BufferedInputStream(
+      new DigestInputStream(Files.newInputStream(base_archive), digest))) {
+      final JailUnpackStatistics statistics;
+      try (final InputStream stream = decoder.decompressStream(
+        new JailCloseShieldInputStream(raw))) {
+        statistics = this.unpacker.unpack(stream, base, options);
+      }
+
+      /*
+       * The archive may contain data following the end of the tar stream
+       * that must still be included in the digest.
+       */
+
+      final byte[] buffer = new byte[PIPE_CHUNK_SIZE];
+      while (raw.read(buffer) != -1) {
+        LOG.trace("hashing trailing archive data");
+      }
+
+      final String received = JailDigests.hex(digest.digest());
+      final String expected = digest_expected.get().toLowerCase(Locale.ROOT);
+      if (!expected.equals(received)) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("Archive failed verification.");
+        sb.append(System.lineSeparator());
+        sb.append("  Archive: ");
+        sb.append(base_archive);
+        sb.append(System.lineSeparator());
+        sb.append("  Expected SHA-256: ");
+        sb.append(expected);
+        sb.append(System.lineSeparator());
+        sb.append("  Received SHA-256: ");
+        sb.append(received);
+        sb.append(System.lineSeparator());
+        throw new IOException(sb.toString());
+      }
+
+      LOG.debug("verified {} (SHA-256 {})", base_archive, received);
+      return statistics;
+    }
+  }
+
+  private void jailUnpackStream(
+    final BufferedInputStream stream,
+    final JailArchiveFormat format,
+    final Path base)
+    throws IOException
+  {
+    final JailArchiveDecoderType decoder = this.decoders.decoderFor(format);
+    try (final InputStream decompressed = decoder.decompressStream(stream)) {
+      this.unpacker.unpack(
+        decompressed, base, JailUnpackOptions.builder().build());
+    }
+  }
+
+  @Override
+  public void jailDownloadAndUnpackBinaryArchive(
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailArchiveFormat format,
+    final Path output,
+    final Optional<Path> archive_copy,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
+    NullCheck.notNull(format, "Format");
+    NullCheck.notNull(output, "Output");
+    NullCheck.notNull(archive_copy, "Archive copy");
+    NullCheck.notNull(progress, "Progress");
+
+    final URI uri = JailDownloads.archiveURI(base, arch, release, archive_file);
+    LOG.debug("download and unpack {} ({}) -> {}", uri, format, output);
+
+    try (final CloseableHttpClient client =
+           NullCheck.notNull(this.clients.get(), "Client")) {
+      try (final JailBoundedPipe pipe =
+             new JailBoundedPipe(PIPE_CHUNK_SIZE, PIPE_CHUNKS)) {
+        final JailDownloadThread download =
+          new JailDownloadThread(client, uri, pipe, archive_copy, progress);
+        download.start();
+
+        try {
+          this.jailUnpackStream(
+            new BufferedInputStream(pipe.input()), format, output);
+
+          /*
+           * Consume any data that follows the end of the archive so that
+           * the download, and the copy of the archive, completes.
+           */
+
+          final InputStream input = pipe.input();
+          final byte[] buffer = new byte[PIPE_CHUNK_SIZE];
+          while (input.read(buffer) != -1) {
+            LOG.trace("discarding trailing archive data");
+          }
+        } finally {
+          pipe.close();
         }
+
+        download.finish();
       }
     }
   }
@@ -278,16 +580,154 @@ public final class JailBuild implements JailBuildType
     final Path base_template,
     final JailConfiguration config)
     throws IOException
+  {
+    this.jailCreate(
+      base, base_template, config, JailCreateOptions.builder().build());
+  }
+
+  @Override
+  public void jailCreate(
+    final Path base,
+    final Path base_template,
+    final JailConfiguration config,
+    final JailCreateOptions options)
+    throws IOException
   {
     NullCheck.notNull(config, "Config");
+    NullCheck.notNull(options, "Options");
+
+    jailCreateCheckBase(base, base_template);
+
+    /*
+     * Check for existing jails before examining the template, as examining
+     * the template may be expensive.
+     */
+
+    final Path root = config.path();
+    jailCreateCheckFiles(
+      root.getParent().resolve(config.name().value() + ".conf"),
+      root.getParent().resolve(config.name().value() + ".fstab"),
+      JailCloneLinks.file(root, config.name()));
+
+    this.jailCreateFromEntries(
+      base,
+      base_template,
+      config,
+      options,
+      this.copier.entries(base_template));
+  }
+
+  @Override
+  public java.util.List<JailCreateResult> jailCreateMany(
+    final Path base,
+    final Path base_template,
+    final Collection<JailConfiguration> configs)
+    throws IOException
+  {
+    return this.jailCreateMany(
+      base, base_template, configs, JailCreateOptions.builder().build());
+  }
+
+  @Override
+  public java.util.List<JailCreateResult> jailCreateMany(
+    final Path base,
+    final Path base_template,
+    final Collection<JailConfiguration> configs,
+    final JailCreateOptions options)
+    throws IOException
+  {
+    NullCheck.notNull(configs, "Configs");
+    NullCheck.notNull(options, "Options");
+
+    jailCreateCheckBase(base, base_template);
+    final java.util.List<JailTreeEntry> entries =
+      this.copier.entries(base_template);
+
+    return JailCreateBatch.run(
+      configs,
+      options.jailThreads(),
+      config -> this.jailCreateFromEntries(
+        base, base_template, config, options, entries));
+  }
 
+  private static void jailCreateCheckBase(
+    final Path base,
+    final Path base_template)
+    throws NotDirectoryException
+  {
     if (!Files.exists(base)) {
       throw new NotDirectoryException(base.toString());
     }
     if (!Files.exists(base_template)) {
       throw new NotDirectoryException(base_template.toString());
     }
+  }
 
+  private static void jailCreateCheckFiles(
+    final Path path_config,
+    final Path path_fstab,
+    final Path path_links)
+    throws FileAlreadyExistsException
+  {
+    if (Files.exists(path_config)) {
+      throw new FileAlreadyExistsException(path_config.toString());
+    }
+    if (Files.exists(path_fstab)) {
+      throw new FileAlreadyExistsException(path_fstab.toString());
+    }
+    if (Files.exists(path_links)) {
+      throw new FileAlreadyExistsException(path_links.toString());
+    }
+  }
+
+  @Override
+  public JailPoolType jailPool(
+    final Path base,
+    final Path base_template,
+    final Path staging,
+    final JailPoolOptions options)
+    throws IOException
+  {
+    NullCheck.notNull(staging, "Staging");
+    NullCheck.notNull(options, "Options");
+
+    jailCreateCheckBase(base, base_template);
+    if (!Files.isDirectory(staging)) {
+      throw new NotDirectoryException(staging.toString());
+    }
+
+    final JailCreateOptions create_options = options.createOptions();
+    final java.util.List<JailTreeEntry> entries =
+      this.copier.entries(base_template);
+
+    return new JailPool(
+      staging,
+      options.size(),
+      options.refillThreads(),
+      root -> this.copier.replay(base_template, root, entries, create_options),
+      (config, stager) -> this.jailCreateInstall(base, config, stager));
+  }
+
+  private void jailCreateFromEntries(
+    final Path base,
+    final Path base_template,
+    final JailConfiguration config,
+    final JailCreateOptions options,
+    final java.util.List<JailTreeEntry> entries)
+    throws IOException
+  {
+    this.jailCreateInstall(
+      base,
+      config,
+      root -> this.copier.replay(base_template, root, entries, options));
+  }
+
+  private void jailCreateInstall(
+    final Path base,
+    final JailConfiguration config,
+    final JailPool.StagerType stager)
+    throws IOException
+  {
     final Path root = config.path();
     final Path path_config =
       root.getParent().resolve(config.name().value() + ".conf");
@@ -299,25 +739,31 @@ public final class JailBuild implements JailBuildType
     final Path path_fstab_tmp =
       root.getParent().resolve(config.name().value() + ".fstab.tmp");
 
+    final Path path_links =
+      JailCloneLinks.file(root, config.name());
+    final Path path_links_tmp =
+      root.getParent().resolve(config.name().value() + ".links.tmp");
+
     LOG.debug("root:        {}", root);
     LOG.debug("path_config: {}", path_config);
     LOG.debug("path_fstab:  {}", path_fstab);
 
-    if (Files.exists(path_config)) {
-      throw new FileAlreadyExistsException(path_config.toString());
-    }
-    if (Files.exists(path_fstab)) {
-      throw new FileAlreadyExistsException(path_fstab.toString());
-    }
+    jailCreateCheckFiles(path_config, path_fstab, path_links);
 
     try {
-      this.jailCreateCopyTree(base_template, root);
+      final Collection<String> links = stager.stage(root);
       this.jailCreateWriteConfig(path_config_tmp, config);
       this.jailCreateWriteFSTab(base, path_fstab_tmp, config);
 
+      if (!links.isEmpty()) {
+        JailCloneLinks.write(path_links_tmp, links);
+        Files.move(path_links_tmp, path_links, StandardCopyOption.ATOMIC_MOVE);
+      }
       Files.move(path_fstab_tmp, path_fstab, StandardCopyOption.ATOMIC_MOVE);
       Files.move(path_config_tmp, path_config, StandardCopyOption.ATOMIC_MOVE);
     } catch (final IOException e) {
+      Files.deleteIfExists(path_links);
+      Files.deleteIfExists(path_links_tmp);
       Files.deleteIfExists(path_fstab);
       Files.deleteIfExists(path_fstab_tmp);
       Files.deleteIfExists(path_config);
@@ -326,67 +772,14 @@ public final class JailBuild implements JailBuildType
     }
   }
 
-  private void jailCreateCopyTree(
-    final Path source,
-    final Path root)
+  @Override
+  public int jailBreakLinks(
+    final Path root,
+    final JailName name,
+    final Optional<Set<String>> files)
     throws IOException
   {
-    try {
-      Files.walk(source).forEach(current_file -> {
-        try {
-          if (Files.isSymbolicLink(current_file)) {
-            final Path file_target = root.resolve(source.relativize(current_file));
-            final Path link_target = Files.readSymbolicLink(current_file);
-            LOG.debug(
-              "copy-link: {} {} (→ {})",
-              current_file,
-              file_target,
-              link_target);
-            Files.createSymbolicLink(file_target, link_target);
-
-            /*
-             * XXX: The link should have its owner and mode set here.
-             * Unfortunately, lchmod() and friends are not available outside of BSD
-             * and the POSIX bindings don't appear to provide any way to check
-             * for support. Do nothing until this is resolved!
-             */
-
-          } else if (Files.isRegularFile(current_file)) {
-            final Path file_target = root.resolve(source.relativize(current_file));
-            LOG.debug("copy-file: {} {}", current_file, file_target);
-            Files.copy(
-              current_file,
-              file_target,
-              StandardCopyOption.REPLACE_EXISTING);
-
-            final String file_s = current_file.toString();
-            final FileStat stat =
-              NullCheck.notNull(
-                this.posix.stat(file_s),
-                "this.posix.stat(file_s)");
-            this.chown(stat.uid(), stat.gid(), file_s);
-            this.chmod(stat.mode(), file_s);
-
-          } else if (Files.isDirectory(current_file)) {
-            final Path file_target = root.resolve(source.relativize(current_file));
-            LOG.debug("create-directory: {}", file_target);
-            Files.createDirectories(file_target);
-
-            final String file_s = current_file.toString();
-            final FileStat stat =
-              NullCheck.notNull(
-                this.posix.stat(file_s),
-                "this.posix.stat(file_s)");
-            this.chown(stat.uid(), stat.gid(), file_s);
-            this.chmod(stat.mode(), file_s);
-          }
-        } catch (final IOException e) {
-          throw new UncheckedIOException(e);
-        }
-      });
-    } catch (final UncheckedIOException e) {
-      throw e.getCause();
-    }
+    return this.clone_links.breakLinks(root, name, files);
   }
 
   private void jailCreateWriteConfig(
@@ -425,530 +818,83 @@ public final class JailBuild implements JailBuildType
     return sb.toString();
   }
 
-  private void check(
-    final String function,
-    final String name,
-    final String message,
-    final int code,
-    final int errno)
-    throws IOException
-  {
-    if (code == -1) {
-      final StringBuilder sb = new StringBuilder(128);
-      sb.append(message);
-      sb.append(System.lineSeparator());
-      sb.append("  Function:   ");
-      sb.append(function);
-      sb.append(System.lineSeparator());
-      sb.append("  Name:       ");
-      sb.append(name);
-      sb.append(System.lineSeparator());
-      sb.append("  Error code: ");
-      sb.append(code);
-      sb.append(System.lineSeparator());
-      sb.append("  Message:    ");
-      sb.append(this.strerror.strerror(errno));
-      sb.append(System.lineSeparator());
-      throw new IOException(sb.toString());
-    }
-  }
-
-  private void jailUnpackArchiveTarXZ(
-    final Path base_archive,
-    final BufferedInputStream stream,
-    final Path base)
-    throws IOException
-  {
-    try (final XZCompressorInputStream stream_xz =
-           new XZCompressorInputStream(stream)) {
-
-      try (final TarArchiveInputStream stream_tar =
-             new TarArchiveInputStream(stream_xz)) {
-
-        List<TarArchiveEntry> defer_links = List.empty();
-        while (true) {
-          final TarArchiveEntry entry = stream_tar.getNextTarEntry();
-          if (entry == null) {
-            break;
-          }
-
-          final long uid = entry.getLongUserId();
-          final long gid = entry.getLongGroupId();
-          final int mode = entry.getMode();
-          final String name = entry.getName();
-          final long size = entry.getSize();
-
-          if (!entry.isCheckSumOK()) {
-            LOG.warn("incorrect checksum for {}", name);
-          }
-
-          String target = null;
-          FileKind kind = null;
-          if (entry.isLink()) {
-            defer_links = defer_links.append(entry);
-            continue;
-          }
-
-          if (entry.isSymbolicLink()) {
-            target = entry.getLinkName();
-            kind = FileKind.SYMBOLIC_LINK;
-          } else if (entry.isFile()) {
-            kind = FileKind.FILE;
-          } else if (entry.isDirectory()) {
-            kind = FileKind.DIRECTORY;
-          }
-
-          this.jailUnpackFile(
-            base,
-            stream_tar,
-            uid,
-            gid,
-            mode,
-            name,
-            size,
-            target,
-            NullCheck.notNull(kind, "File kind"));
-        }
-
-        LOG.debug("completing deferred hard links");
-
-        for (final TarArchiveEntry entry : defer_links) {
-          Invariants.checkInvariant(
-            entry,
-            TarArchiveEntry::isLink,
-            e -> String.format("Entry %s is a hard link", e));
-
-          final long uid = entry.getLongUserId();
-          final long gid = entry.getLongGroupId();
-          final int mode = entry.getMode();
-          final String name = entry.getName();
-          final long size = entry.getSize();
-          final String target = entry.getLinkName();
-
-          this.jailUnpackFile(
-            base,
-            stream_tar,
-            uid,
-            gid,
-            mode,
-            name,
-            size,
-            target,
-            FileKind.HARD_LINK);
-        }
-      }
-    }
-  }
-
-  private enum FileKind
-  {
-    FILE,
-    DIRECTORY,
-    SYMBOLIC_LINK,
-    HARD_LINK
-  }
-
-  private void jailUnpackFile(
-    final Path base,
-    final InputStream stream,
-    final long uid,
-    final long gid,
-    final int mode,
-    final String name,
-    final long expect_size,
-    final @Nullable String target,
-    final FileKind kind)
-    throws IOException
-  {
-    final Path path = base.resolve(name).toAbsolutePath();
-
-
-    switch (kind) {
-      case FILE: {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(
-            "file {} (uid {} gid {} mode {} size {})",
-            path,
-            Long.valueOf(uid),
-            Long.valueOf(gid),
-            Integer.valueOf(mode),
-            Long.valueOf(expect_size));
-        }
-
-        Files.createDirectories(path.getParent());
-        Files.copy(stream, path);
-
-        final long result_size = Files.size(path);
-        if (result_size != expect_size) {
-          final StringBuilder sb = new StringBuilder(128);
-          sb.append("Failed to write file.");
-          sb.append(System.lineSeparator());
-          sb.append("  Expected size:  ");
-          sb.append(expect_size);
-          sb.append(System.lineSeparator());
-          sb.append("  Resulting size: ");
-          sb.append(result_size);
-          sb.append(System.lineSeparator());
-          throw new IOException(sb.toString());
-        }
-        break;
-      }
-
-      case DIRECTORY: {
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(
-            "directory {} (uid {} gid {} mode {})",
-            path,
-            Long.valueOf(uid),
-            Long.valueOf(gid),
-            Integer.valueOf(mode));
-        }
-
-        Files.createDirectories(path);
-        break;
-      }
-
-      case SYMBOLIC_LINK: {
-        final Path target_resolved = path.resolve(target);
-
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(
-            "symbolic-link {} → {} (uid {} gid {} mode {})",
-            path,
-            target_resolved,
-            Long.valueOf(uid),
-            Long.valueOf(gid),
-            Integer.valueOf(mode));
-        }
-
-        Files.createDirectories(path.getParent());
-        Files.createSymbolicLink(path, target_resolved);
-        break;
-      }
-
-      case HARD_LINK:
-        final Path target_resolved = base.resolve(target);
-
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(
-            "hard-link {} → {} (uid {} gid {} mode {})",
-            path,
-            target_resolved,
-            Long.valueOf(uid),
-            Long.valueOf(gid),
-            Integer.valueOf(mode));
-        }
-
-        Files.createDirectories(path.getParent());
-        Files.createLink(path, target_resolved);
-        break;
-    }
-
-    final String path_s = path.toString();
-    switch (kind) {
-      case FILE:
-      case HARD_LINK:
-      case DIRECTORY: {
-        this.chown((int) uid, (int) gid, path_s);
-        this.chmod(mode, path_s);
-        break;
-      }
-      case SYMBOLIC_LINK: {
-        /*
-         * XXX: The link should have its owner and mode set here.
-         * Unfortunately, lchmod() and friends are not available outside of BSD
-         * and the POSIX bindings don't appear to provide any way to check
-         * for support. Do nothing until this is resolved!
-         */
-
-        break;
-      }
-    }
-  }
-
-  private void chmodLink(
-    final int mode,
-    final String path_s)
-    throws IOException
-  {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug(
-        "lchmod {} (mode {})",
-        path_s,
-        Integer.toOctalString(mode));
-    }
-
-    final int r = this.posix.lchmod(path_s, mode);
-    final int errno = this.posix.errno();
-    this.check("lchmod", path_s, "Could not set link mode", r, errno);
-  }
-
-  private void chownLink(
-    final int uid,
-    final int gid,
-    final String path_s)
-    throws IOException
-  {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug(
-        "lchown {} (uid {} gid {})",
-        path_s,
-        Integer.valueOf(uid),
-        Integer.valueOf(gid));
-    }
-
-    final int r = this.posix.lchown(path_s, uid, gid);
-    final int errno = this.posix.errno();
-    this.check("lchown", path_s, "Could not set link owner", r, errno);
-  }
-
-  private void chmod(
-    final int mode,
-    final String path_s)
+  @Override
+  public String jailDownloadBinaryArchiveDigest(
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file)
     throws IOException
   {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug(
-        "chmod {} (mode {})",
-        path_s,
-        Integer.toOctalString(mode));
-    }
-
-    final int r = this.posix.chmod(path_s, mode);
-    final int errno = this.posix.errno();
-    this.check("chmod", path_s, "Could not set mode", r, errno);
-  }
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
 
-  private void chown(
-    final int uid,
-    final int gid,
-    final String path_s)
-    throws IOException
-  {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug(
-        "chown {} (uid {} gid {})",
-        path_s,
-        Integer.valueOf(uid),
-        Integer.valueOf(gid));
+    final URI uri = JailDownloads.archiveURI(base, arch, release, archive_file);
+    try (final CloseableHttpClient client =
+           NullCheck.notNull(this.clients.get(), "Client")) {
+      return JailReleaseManifest.digestFor(client, uri);
     }
-
-    final int r = this.posix.chown(path_s, uid, gid);
-    final int errno = this.posix.errno();
-    this.check("chown", path_s, "Could not set owner", r, errno);
   }
 
-  private Path download(
-    final Path file,
-    final URI base,
+  @Override
+  public java.util.List<JailDownloadMirrorProbe> jailDownloadProbeMirrors(
+    final Collection<URI> bases,
     final String arch,
     final String release,
     final String archive_file,
-    final Optional<JailDownloadProgressType> progress)
+    final JailDownloadOptions options)
     throws IOException
   {
-    final StringBuilder sb = new StringBuilder(128);
-    sb.append(base);
-    sb.append("/");
-    sb.append(arch);
-    sb.append("/");
-    sb.append(release);
-    sb.append("/");
-    sb.append(archive_file);
-
-    final URI uri;
+    NullCheck.notNull(bases, "Bases");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
+    NullCheck.notNull(options, "Options");
 
-    try {
-      uri = new URI(sb.toString());
-    } catch (final URISyntaxException e) {
-      throw new IllegalArgumentException(e);
+    final LinkedHashMap<URI, URI> mirrors = new LinkedHashMap<>(bases.size());
+    for (final URI mirror : bases) {
+      mirrors.put(mirror, JailDownloads.archiveURI(mirror, arch, release, archive_file));
     }
 
     try (final CloseableHttpClient client =
            NullCheck.notNull(this.clients.get(), "Client")) {
-
-      final long bytes_total_expected =
-        downloadGetTotalExpectedBytes(client, uri);
-
-      final long bytes_starting;
-      if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
-        bytes_starting = Files.size(file);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug(
-            "file exists and is {} octets",
-            Long.valueOf(bytes_starting));
-        }
-      } else {
-        bytes_starting = 0L;
-        LOG.debug("file does not exist");
-      }
-
-      LOG.debug("opening {} for writing", file);
-      try (final OutputStream output =
-             Files.newOutputStream(
-               file,
-               StandardOpenOption.APPEND,
-               StandardOpenOption.CREATE)) {
-        downloadToFile(
-          client, uri, output, bytes_starting, bytes_total_expected, progress);
-      }
+      return JailDownloadMirrors.probe(
+        client, mirrors, options.mirrorProbeOctets());
     }
-
-    return file;
   }
 
-  private static long downloadGetTotalExpectedBytes(
-    final CloseableHttpClient client,
-    final URI uri)
-    throws IOException
-  {
-    LOG.debug("HEAD {}", uri);
-
-    final HttpUriRequest request = new HttpHead(uri);
-    try (final CloseableHttpResponse response = client.execute(request)) {
-      final StatusLine status = response.getStatusLine();
-      final int code = status.getStatusCode();
-
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("HEAD {} returned {}", uri, Integer.valueOf(code));
-      }
-
-      if (code >= 400) {
-        throw httpError(
-          "Server returned an error when checking the remote file size.",
-          response);
-      }
-
-      final Header[] headers = response.getHeaders("Content-Length");
-      if (headers != null && headers.length > 0) {
-        try {
-          return Long.parseUnsignedLong(headers[0].getValue());
-        } catch (final NumberFormatException e) {
-          LOG.error("unparseable Content-Length: ", e);
-        }
-      }
-
-      throw httpError(
-        "Server did not return a usable Content-Length when checking the remote file size.",
-        response);
-    }
-  }
-
-  private static IOException httpError(
-    final String message,
-    final HttpResponse response)
-  {
-    final StatusLine status = response.getStatusLine();
-    final int code = status.getStatusCode();
-
-    final StringBuilder sb = new StringBuilder(128);
-    sb.append(message);
-    sb.append(System.lineSeparator());
-    sb.append("  Status: ");
-    sb.append(status.getReasonPhrase());
-    sb.append(System.lineSeparator());
-    sb.append("  Status code: ");
-    sb.append(code);
-    sb.append(System.lineSeparator());
-    return new IOException(sb.toString());
-  }
-
-  private static void downloadToFile(
-    final CloseableHttpClient client,
-    final URI uri,
-    final OutputStream output,
-    final long bytes_starting,
-    final long bytes_total_expected,
-    final Optional<JailDownloadProgressType> progress)
+  @Override
+  public JailDownloadCacheStatistics jailDownloadCacheCollectGarbage(
+    final Path cache_directory,
+    final long size_limit)
     throws IOException
   {
-    if (bytes_starting == bytes_total_expected) {
-      LOG.debug("file already completely downloaded");
-      return;
+    NullCheck.notNull(cache_directory, "Cache directory");
+    if (size_limit < 0L) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Cache size limit must be non-negative (received %d)",
+          Long.valueOf(size_limit)));
     }
 
-    LOG.debug(
-      "GET {} (starting at {} bytes)",
-      uri,
-      Long.valueOf(bytes_starting));
-
-    final HttpUriRequest request = new HttpGet(uri);
-    request.addHeader(
-      "Range",
-      String.format("bytes=%d-", Long.valueOf(bytes_starting)));
-
-    try (final CloseableHttpResponse response = client.execute(request)) {
-      final StatusLine status = response.getStatusLine();
-      final int code = status.getStatusCode();
-      if (code >= 400) {
-        throw httpError(
-          "Server returned an error when attempting to retrieve the file.",
-          response);
-      }
-
-      final HttpEntity entity = response.getEntity();
-      if (entity == null) {
-        throw httpError(
-          "Server failed to return a usable HTTP entity.",
-          response);
-      }
-
-      final long bytes_now_expected = entity.getContentLength();
-      try (final InputStream stream =
-             NullCheck.notNull(entity.getContent(), "Entity content")) {
-        final byte[] buffer = new byte[4096];
-        long bytes_now_received = 0L;
-        while (true) {
-          final int r = stream.read(buffer);
-          if (r == -1) {
-            break;
-          }
-
-          output.write(buffer, 0, r);
-
-          bytes_now_received = Math.addExact(bytes_now_received, (long) r);
-          final long bytes_received_now = bytes_now_received;
-          progress.ifPresent(callback -> callback.onProgress(
-            bytes_total_expected,
-            bytes_received_now));
-        }
-
-        final long bytes_total_received =
-          Math.addExact(bytes_starting, bytes_now_received);
-
-        if (bytes_total_received != bytes_total_expected) {
-          final StringBuilder sb = new StringBuilder(128);
-          sb.append("Downloaded file was truncated.");
-          sb.append(System.lineSeparator());
-          sb.append("  Expected (total): ");
-          sb.append(bytes_total_expected);
-          sb.append(" octets");
-          sb.append(System.lineSeparator());
-          sb.append("  Received (total): ");
-          sb.append(bytes_total_received);
-          sb.append(" octets");
-          sb.append(System.lineSeparator());
-          sb.append("  Expected (now): ");
-          sb.append(bytes_now_expected);
-          sb.append(" octets");
-          sb.append(System.lineSeparator());
-          sb.append("  Received (now): ");
-          sb.append(bytes_now_received);
-          sb.append(" octets");
-          sb.append(System.lineSeparator());
-          sb.append(System.lineSeparator());
-          throw new IOException(sb.toString());
-        }
-      }
-    }
+    return JailDownloadCache.open(cache_directory, this.file_copier)
+      .collectGarbage(size_limit, true);
   }
 
   /**
+   * Yield a supplier of default HTTP clients. The clients time out
+   * connections that cannot be established within 30 seconds, and reads
+   * that receive no data within 60 seconds, so that a stalled connection is
+   * reported as a (retryable) error rather than blocking a download
+   * forever.
+   *
    * @return A supplier that yields a default HTTP client implementation
    */
 
   public static Supplier<CloseableHttpClient> clients()
   {
-    return HttpClients::createSystem;
+    return JailDownloads::newClient;
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.core.JailName;
+import com.io7m.jnull.NullCheck;
+import jnr.posix.FileStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * <p>Functions to track and break the hard links created when jails are
+ * cloned from a base template.</p>
+ *
+ * <p>The names of files that were hard-linked into a jail are recorded,
+ * relative to the jail root, one per line in a file named {@code
+ * name.links} next to the jail configuration. Breaking a link replaces the
+ * file in the jail with a private copy and removes it from the list.</p>
+ */
+
+final class JailCloneLinks
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailCloneLinks.class);
+  }
+
+  private final JailPOSIX posix;
+
+  /**
+   * Construct a set of functions.
+   *
+   * @param in_posix The POSIX functions used to read and set file metadata
+   */
+
+  JailCloneLinks(
+    final JailPOSIX in_posix)
+  {
+    this.posix = NullCheck.notNull(in_posix, "POSIX");
+  }
+
+  /**
+   * @param root The jail root directory
+   * @param name The jail name
+   *
+   * @return The file that records the hard links of the given jail
+   */
+
+  static Path file(
+    final Path root,
+    final JailName name)
+  {
+    return root.getParent().resolve(name.value() + ".links");
+  }
+
+  /**
+   * Write the given list of names to {@code file}.
+   *
+   * @param file  The output file
+   * @param names The names of the linked files
+   *
+   * @throws IOException On errors
+   */
+
+  static void write(
+    final Path file,
+    final Collection<String> names)
+    throws IOException
+  {
+    Files.write(file, names, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Break the hard links of the jail at {@code root}. Links that have already
+   * been broken (such as by a file being replaced inside the jail) are simply
+   * removed from the list.
+   *
+   * @param root  The jail root directory
+   * @param name  The jail name
+   * @param files The names of the files to be processed, or all tracked files
+   *              if not specified
+   *
+   * @return The number of files that were copied
+   *
+   * @throws IOException On errors
+   */
+
+  int breakLinks(
+    final Path root,
+    final JailName name,
+    final Optional<Set<String>> files)
+    throws IOException
+  {
+    NullCheck.notNull(root, "Root");
+    NullCheck.notNull(name, "Name");
+    NullCheck.notNull(files, "Files");
+
+    final Path path_links = file(root, name);
+    final Path path_links_tmp =
+      root.getParent().resolve(name.value() + ".links.tmp");
+
+    final List<String> names;
+    try {
+      names = Files.readAllLines(path_links, StandardCharsets.UTF_8);
+    } catch (final NoSuchFileException e) {
+      LOG.debug("no links are tracked: {}", path_links);
+      return 0;
+    }
+
+    final ArrayList<String> remaining = new ArrayList<>(names.size());
+    int copied = 0;
+    for (final String file_name : names) {
+      if (files.isPresent() && !files.get().contains(file_name)) {
+        remaining.add(file_name);
+      } else if (this.breakLink(root.resolve(file_name))) {
+        copied = copied + 1;
+      }
+    }
+
+    if (remaining.isEmpty()) {
+      Files.delete(path_links);
+    } else {
+      write(path_links_tmp, remaining);
+      Files.move(
+        path_links_tmp, path_links, StandardCopyOption.ATOMIC_MOVE);
+    }
+    return copied;
+  }
+
+  private boolean breakLink(
+    final Path file)
+    throws IOException
+  {
+    if (!Files.isRegularFile(file)) {
+      LOG.debug("break-link: {} no longer exists", file);
+      return false;
+    }
+
+    final String file_s = file.toString();
+    final FileStat stat = this.posix.posix().stat(file_s);
+    if (stat == null) {
+      throw new IOException("Could not stat file: " + file_s);
+    }
+
+    if (stat.nlink() <= 1) {
+      LOG.debug("break-link: {} is not linked", file);
+      return false;
+    }
+
+    LOG.debug("break-link: {}", file);
+    final Path file_tmp =
+      file.resolveSibling(file.getFileName() + ".jguard-tmp");
+    Files.copy(
+      file,
+      file_tmp,
+      StandardCopyOption.COPY_ATTRIBUTES,
+      StandardCopyOption.REPLACE_EXISTING);
+
+    final String file_tmp_s = file_tmp.toString();
+    this.posix.chown(stat.uid(), stat.gid(), file_tmp_s);
+    this.posix.chmod(stat.mode(), file_tmp_s);
+    Files.move(file_tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    return true;
+  }
+}
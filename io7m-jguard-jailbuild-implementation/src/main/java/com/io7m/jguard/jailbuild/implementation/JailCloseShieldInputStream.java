@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * An input stream that ignores {@link #close()}, allowing a consumer that
+ * closes its input to be given a stream that the caller continues to read
+ * from afterwards.
+ */
+
+final class JailCloseShieldInputStream extends FilterInputStream
+{
+  /**
+   * Construct a stream.
+   *
+   * @param in_stream The underlying stream
+   */
+
+  JailCloseShieldInputStream(final InputStream in_stream)
+  {
+    super(in_stream);
+  }
+
+  @Override
+  public void close()
+  {
+    /*
+     * The underlying stream is closed by its owner.
+     */
+  }
+}
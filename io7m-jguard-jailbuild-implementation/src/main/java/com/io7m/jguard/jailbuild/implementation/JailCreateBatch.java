@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.core.JailConfiguration;
+import com.io7m.jguard.core.JailName;
+import com.io7m.jguard.jailbuild.api.JailCreateResult;
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Functions to create batches of jails concurrently.
+ */
+
+final class JailCreateBatch
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailCreateBatch.class);
+  }
+
+  private JailCreateBatch()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * A function that creates a single jail.
+   */
+
+  interface CreatorType
+  {
+    /**
+     * Create a jail.
+     *
+     * @param config The jail configuration
+     *
+     * @throws IOException On errors
+     */
+
+    void create(JailConfiguration config)
+      throws IOException;
+  }
+
+  /**
+   * Create the given jails using up to {@code threads} threads.
+   *
+   * @param configs The jail configurations
+   * @param threads The maximum number of jails created concurrently
+   * @param creator A function that creates a single jail
+   *
+   * @return A result for each configuration, in the original order
+   *
+   * @throws IOException If the calling thread is interrupted
+   */
+
+  static List<JailCreateResult> run(
+    final Collection<JailConfiguration> configs,
+    final int threads,
+    final CreatorType creator)
+    throws IOException
+  {
+    NullCheck.notNull(configs, "Configs");
+    NullCheck.notNull(creator, "Creator");
+
+    final HashSet<JailName> names = new HashSet<>(configs.size());
+    final HashSet<Path> roots = new HashSet<>(configs.size());
+    final ArrayList<Callable<Optional<Exception>>> tasks =
+      new ArrayList<>(configs.size());
+
+    for (final JailConfiguration config : configs) {
+      final boolean name_unique = names.add(config.name());
+      final boolean root_unique = roots.add(config.path());
+      if (name_unique && root_unique) {
+        tasks.add(() -> create(creator, config));
+      } else {
+        final FileAlreadyExistsException e =
+          new FileAlreadyExistsException(
+            config.path().toString(),
+            null,
+            "Jail name or root directory appears more than once in the batch");
+        tasks.add(() -> Optional.of(e));
+      }
+    }
+
+    final AtomicInteger thread_count = new AtomicInteger(0);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-create-" + thread_count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    try {
+      final List<Future<Optional<Exception>>> futures =
+        executor.invokeAll(tasks);
+
+      final ArrayList<JailCreateResult> results =
+        new ArrayList<>(configs.size());
+      int index = 0;
+      for (final JailConfiguration config : configs) {
+        results.add(JailCreateResult.of(config, futures.get(index).get()));
+        index = index + 1;
+      }
+      return results;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException ex =
+        new InterruptedIOException("Interrupted while creating jails");
+      ex.initCause(e);
+      throw ex;
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static Optional<Exception> create(
+    final CreatorType creator,
+    final JailConfiguration config)
+  {
+    try {
+      creator.create(config);
+      LOG.debug("created jail {}", config.name().value());
+      return Optional.empty();
+    } catch (final IOException | RuntimeException e) {
+      LOG.error("could not create jail {}: {}", config.name().value(), e.getMessage());
+      return Optional.of(e);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.junreachable.UnreachableCodeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Functions to calculate SHA-256 digests.
+ */
+
+final class JailDigests
+{
+  private static final int BUFFER_SIZE = 65536;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private JailDigests()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Calculate the SHA-256 digest of {@code file}.
+   *
+   * @param file The file
+   *
+   * @return The digest as a lowercase hexadecimal string
+   *
+   * @throws IOException On errors
+   */
+
+  static String sha256(
+    final Path file)
+    throws IOException
+  {
+    final MessageDigest digest = newDigest();
+    update(digest, file);
+    return hex(digest.digest());
+  }
+
+  /**
+   * Update {@code digest} with the contents of {@code file}.
+   *
+   * @param digest The digest
+   * @param file   The file
+   *
+   * @throws IOException On errors
+   */
+
+  static void update(
+    final MessageDigest digest,
+    final Path file)
+    throws IOException
+  {
+    try (final InputStream input = Files.newInputStream(file)) {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (true) {
+        final int r = input.read(buffer);
+        if (r == -1) {
+          break;
+        }
+        digest.update(buffer, 0, r);
+      }
+    }
+  }
+
+  /**
+   * @return A new SHA-256 digest
+   */
+
+  static MessageDigest newDigest()
+  {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param data The data
+   *
+   * @return The data as a lowercase hexadecimal string
+   */
+
+  static String hex(
+    final byte[] data)
+  {
+    final char[] text = new char[data.length * 2];
+    for (int index = 0; index < data.length; ++index) {
+      final int value = (int) data[index] & 0xff;
+      text[index * 2] = HEX[value >>> 4];
+      text[(index * 2) + 1] = HEX[value & 0xf];
+    }
+    return new String(text);
+  }
+}
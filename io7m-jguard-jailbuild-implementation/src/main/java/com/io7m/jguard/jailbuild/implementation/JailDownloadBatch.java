@@ -0,0 +1,249 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadResult;
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Functions to download sets of archives concurrently.
+ */
+
+final class JailDownloadBatch
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadBatch.class);
+  }
+
+  private JailDownloadBatch()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * A function that downloads a single archive.
+   */
+
+  interface DownloaderType
+  {
+    /**
+     * Download an archive, retrying according to the download policy.
+     *
+     * @param file         The output file
+     * @param archive_file The name of the archive file
+     * @param progress     A progress receiver
+     *
+     * @throws IOException On errors
+     */
+
+    void download(
+      Path file,
+      String archive_file,
+      JailDownloadProgressType progress)
+      throws IOException;
+  }
+
+  /**
+   * Download the given archives into {@code directory}.
+   *
+   * @param directory     The output directory
+   * @param archive_files The archive files
+   * @param options       The batch options
+   * @param progress      A progress receiver
+   * @param downloader    A function that downloads a single archive
+   *
+   * @return A result for each archive, in the original order
+   *
+   * @throws IOException If the calling thread is interrupted
+   */
+
+  static List<JailDownloadResult> run(
+    final Path directory,
+    final Collection<String> archive_files,
+    final JailDownloadBatchOptions options,
+    final JailDownloadBatchProgressType progress,
+    final DownloaderType downloader)
+    throws IOException
+  {
+    NullCheck.notNull(directory, "Directory");
+    NullCheck.notNull(archive_files, "Archive files");
+    NullCheck.notNull(options, "Options");
+    NullCheck.notNull(progress, "Progress");
+    NullCheck.notNull(downloader, "Downloader");
+
+    final Combined combined = new Combined(progress.combined());
+    final HashSet<String> names = new HashSet<>(archive_files.size());
+    final ArrayList<Callable<JailDownloadResult>> tasks =
+      new ArrayList<>(archive_files.size());
+
+    for (final String archive_file : archive_files) {
+      final Path file = directory.resolve(archive_file);
+      if (names.add(archive_file)) {
+        tasks.add(() -> download(
+          progress, combined, downloader, archive_file, file));
+      } else {
+        final FileAlreadyExistsException e =
+          new FileAlreadyExistsException(
+            file.toString(),
+            null,
+            "Archive appears more than once in the batch");
+        tasks.add(() -> JailDownloadResult.of(
+          archive_file, file, Optional.of(e)));
+      }
+    }
+
+    final AtomicInteger thread_count = new AtomicInteger(0);
+    final ExecutorService executor =
+      Executors.newFixedThreadPool(options.archiveThreads(), r -> {
+        final Thread t = new Thread(r);
+        t.setName("jguard-download-" + thread_count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+
+    try {
+      final List<Future<JailDownloadResult>> futures =
+        executor.invokeAll(tasks);
+
+      final ArrayList<JailDownloadResult> results =
+        new ArrayList<>(futures.size());
+      for (final Future<JailDownloadResult> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      final InterruptedIOException ex =
+        new InterruptedIOException("Interrupted while downloading archives");
+      ex.initCause(e);
+      throw ex;
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static JailDownloadResult download(
+    final JailDownloadBatchProgressType progress,
+    final Combined combined,
+    final DownloaderType downloader,
+    final String archive_file,
+    final Path file)
+  {
+    try {
+      LOG.info("downloading {}", archive_file);
+
+      final JailDownloadProgressType archive_progress =
+        NullCheck.notNull(progress.archive(archive_file), "Progress");
+      combined.start(archive_file);
+      downloader.download(
+        file,
+        archive_file,
+        (expected, received) -> {
+          archive_progress.onProgress(expected, received);
+          combined.onProgress(archive_file, expected, received);
+        });
+      return JailDownloadResult.of(archive_file, file, Optional.empty());
+    } catch (final IOException | RuntimeException e) {
+      LOG.error("download of {} failed: {}", archive_file, e.getMessage());
+      return JailDownloadResult.of(archive_file, file, Optional.of(e));
+    }
+  }
+
+  /**
+   * The combined progress of all archives. The progress of each archive is
+   * tracked separately so that the total number of octets received only
+   * ever increases, even though a retried archive may report its progress
+   * from a lower value than it previously reported.
+   */
+
+  private static final class Combined
+  {
+    private final JailDownloadProgressType progress;
+    private final Map<String, Long> expected;
+    private final Map<String, Long> received_attempt;
+    private long expected_total;
+    private long received_total;
+
+    Combined(
+      final JailDownloadProgressType in_progress)
+    {
+      this.progress = NullCheck.notNull(in_progress, "Progress");
+      this.expected = new HashMap<>(8);
+      this.received_attempt = new HashMap<>(8);
+      this.expected_total = 0L;
+      this.received_total = 0L;
+    }
+
+    synchronized void start(
+      final String archive_file)
+    {
+      this.received_attempt.put(archive_file, Long.valueOf(0L));
+    }
+
+    synchronized void onProgress(
+      final String archive_file,
+      final long archive_expected,
+      final long archive_received)
+    {
+      final Long expected_previous =
+        this.expected.put(archive_file, Long.valueOf(archive_expected));
+      if (expected_previous != null) {
+        this.expected_total =
+          Math.subtractExact(this.expected_total, expected_previous.longValue());
+      }
+      this.expected_total =
+        Math.addExact(this.expected_total, archive_expected);
+
+      final Long received_previous =
+        this.received_attempt.put(archive_file, Long.valueOf(archive_received));
+      final long delta = Math.max(
+        0L,
+        Math.subtractExact(archive_received, received_previous.longValue()));
+      this.received_total = Math.addExact(this.received_total, delta);
+
+      this.progress.onProgress(this.expected_total, this.received_total);
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.junreachable.UnreachableCodeException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * <p>A pool of direct buffers used to write downloaded data to files.</p>
+ *
+ * <p>Writing a heap buffer to a channel causes the JDK to copy the data into
+ * a temporary direct buffer on every write. Buffers taken from this pool are
+ * direct, and are retained between downloads so that the (comparatively
+ * expensive) allocation of direct memory is not repeated for each file.</p>
+ *
+ * <p>Buffers are allocated in power-of-two sizes between {@link
+ * #SIZE_MINIMUM} and {@link #SIZE_MAXIMUM}, and at most {@link
+ * #RETAINED_PER_SIZE} buffers of each size are retained.</p>
+ */
+
+final class JailDownloadBuffers
+{
+  /**
+   * The smallest buffer size.
+   */
+
+  static final int SIZE_MINIMUM = 65536;
+
+  /**
+   * The largest buffer size.
+   */
+
+  static final int SIZE_MAXIMUM = 4194304;
+
+  private static final int RETAINED_PER_SIZE = 4;
+  private static final ConcurrentLinkedDeque<ByteBuffer>[] POOL;
+
+  static {
+    final int classes =
+      Integer.numberOfTrailingZeros(SIZE_MAXIMUM)
+        - Integer.numberOfTrailingZeros(SIZE_MINIMUM) + 1;
+
+    @SuppressWarnings("unchecked")
+    final ConcurrentLinkedDeque<ByteBuffer>[] pool =
+      new ConcurrentLinkedDeque[classes];
+    for (int index = 0; index < classes; ++index) {
+      pool[index] = new ConcurrentLinkedDeque<>();
+    }
+    POOL = pool;
+  }
+
+  private JailDownloadBuffers()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  private static int sizeClass(final int size)
+  {
+    return Integer.numberOfTrailingZeros(size)
+      - Integer.numberOfTrailingZeros(SIZE_MINIMUM);
+  }
+
+  /**
+   * Take a cleared buffer of the given size from the pool, allocating a new
+   * buffer if none are available.
+   *
+   * @param size The buffer size, a power of two in the range {@code
+   *             [SIZE_MINIMUM, SIZE_MAXIMUM]}
+   *
+   * @return A direct buffer
+   */
+
+  static ByteBuffer take(final int size)
+  {
+    if (size < SIZE_MINIMUM
+      || size > SIZE_MAXIMUM
+      || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException(
+        String.format(
+          "Buffer size must be a power of two in the range [%d, %d] (received %d)",
+          Integer.valueOf(SIZE_MINIMUM),
+          Integer.valueOf(SIZE_MAXIMUM),
+          Integer.valueOf(size)));
+    }
+
+    final ByteBuffer buffer = POOL[sizeClass(size)].pollFirst();
+    if (buffer != null) {
+      buffer.clear();
+      return buffer;
+    }
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * Return a buffer to the pool. The buffer must not be used by the caller
+   * afterwards.
+   *
+   * @param buffer A buffer previously returned by {@link #take(int)}
+   */
+
+  static void release(final ByteBuffer buffer)
+  {
+    final ConcurrentLinkedDeque<ByteBuffer> queue =
+      POOL[sizeClass(buffer.capacity())];
+
+    /*
+     * The size check is racy, and so slightly more than the intended number
+     * of buffers may occasionally be retained. This is harmless.
+     */
+
+    if (queue.size() < RETAINED_PER_SIZE) {
+      buffer.clear();
+      queue.offerFirst(buffer);
+    }
+  }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailCopyMode;
+import com.io7m.jguard.jailbuild.api.JailDownloadCacheStatistics;
+import com.io7m.jnull.NullCheck;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>A content-addressed cache of downloaded archives.</p>
+ *
+ * <p>Archives are stored in {@code objects/H}, where {@code H} is the
+ * SHA-256 digest of the archive. Each downloaded URI is recorded in {@code
+ * keys/K}, where {@code K} is the SHA-256 digest of the URI, as a property
+ * file holding the URI, the digest, size and modification time of the
+ * archive, and the HTTP validators of the download (see {@link
+ * JailDownloadValidators}). The URI is derived from the base URI,
+ * architecture, release and archive file name, so identical archives
+ * published for different releases share a single object.</p>
+ *
+ * <p>An archive is only served from the cache if its recorded digest
+ * matches the expected digest (if one is given), and the remote file is
+ * unchanged according to a conditional request made with the recorded
+ * validators. A remote file that has been republished is therefore
+ * downloaded again rather than served from the cache.</p>
+ *
+ * <p>The modification time of a key records when it was last used, and is
+ * used to evict the least recently used objects when the cache exceeds its
+ * size limit.</p>
+ *
+ * <p>Archives are copied into and out of the cache in {@link
+ * JailCopyMode#JAIL_COPY_MODE_KERNEL} mode, which allows the kernel to share
+ * the underlying blocks where the filesystem supports it. Objects are never
+ * hard-linked to output files, because a later download that writes to an
+ * output file in place would otherwise modify the object. Serving an object
+ * only checks its size and modification time against those recorded when
+ * it was stored; objects are verified against their digests in full when
+ * garbage is collected explicitly.</p>
+ */
+
+final class JailDownloadCache
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadCache.class);
+  }
+
+  private final Path objects;
+  private final Path keys;
+  private final JailFileCopier copier;
+
+  private JailDownloadCache(
+    final Path in_directory,
+    final JailFileCopier in_copier)
+  {
+    NullCheck.notNull(in_directory, "Directory");
+    this.copier = NullCheck.notNull(in_copier, "Copier");
+    this.objects = in_directory.resolve("objects");
+    this.keys = in_directory.resolve("keys");
+  }
+
+  /**
+   * Open the cache in {@code directory}, creating it if necessary.
+   *
+   * @param directory The cache directory
+   * @param copier    The copier used to copy objects
+   *
+   * @return A cache
+   *
+   * @throws IOException On errors
+   */
+
+  static JailDownloadCache open(
+    final Path directory,
+    final JailFileCopier copier)
+    throws IOException
+  {
+    final JailDownloadCache cache = new JailDownloadCache(directory, copier);
+    Files.createDirectories(cache.objects);
+    Files.createDirectories(cache.keys);
+    return cache;
+  }
+
+  /**
+   * Serve {@code uri} from the cache, replacing {@code file}. The validators
+   * recorded when the archive was stored are recorded for {@code file}.
+   *
+   * @param client          The HTTP client used to revalidate the archive
+   * @param uri             The archive URI
+   * @param file            The output file
+   * @param digest_expected The expected SHA-256 digest of the archive, if
+   *                        any
+   *
+   * @return {@code true} iff the archive was in the cache
+   *
+   * @throws IOException On errors
+   */
+
+  boolean fetch(
+    final CloseableHttpClient client,
+    final URI uri,
+    final Path file,
+    final Optional<String> digest_expected)
+    throws IOException
+  {
+    NullCheck.notNull(client, "Client");
+    NullCheck.notNull(uri, "URI");
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(digest_expected, "Digest");
+
+    final Optional<Entry> entry_opt = this.entry(uri);
+    if (!entry_opt.isPresent()) {
+      return false;
+    }
+
+    final Entry entry = entry_opt.get();
+    if (digest_expected.isPresent()
+      && !digest_expected.get().equals(entry.digest)) {
+      LOG.info(
+        "cached archive for {} does not match the expected digest", uri);
+      return false;
+    }
+
+    if (entry.validators.isPresent()
+      && !JailDownloads.isUnmodified(client, entry.validators.get())) {
+      LOG.info("cached archive for {} has been modified remotely", uri);
+      return false;
+    }
+
+    LOG.debug("cache hit: {} → {}", uri, entry.object);
+    final Path file_tmp =
+      file.resolveSibling(file.getFileName() + ".cache-tmp");
+    Files.deleteIfExists(file_tmp);
+    this.copier.copy(
+      entry.object, file_tmp, JailCopyMode.JAIL_COPY_MODE_KERNEL);
+    Files.move(
+      file_tmp,
+      file,
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING);
+
+    if (entry.validators.isPresent()) {
+      entry.validators.get().save(file);
+    } else {
+      JailDownloadValidators.remove(file);
+    }
+
+    Files.setLastModifiedTime(
+      entry.key, FileTime.fromMillis(System.currentTimeMillis()));
+    return true;
+  }
+
+  private Optional<Entry> entry(final URI uri)
+    throws IOException
+  {
+    final Path key = this.keyFile(uri);
+    final Properties props = new Properties();
+    try (final InputStream input = Files.newInputStream(key)) {
+      props.load(input);
+    } catch (final NoSuchFileException e) {
+      LOG.debug("cache miss: {}", uri);
+      return Optional.empty();
+    }
+
+    final String digest = props.getProperty("digest");
+    final String size_text = props.getProperty("size");
+    final String modified_text = props.getProperty("modified");
+    if (digest == null || size_text == null || modified_text == null) {
+      LOG.warn("discarding malformed cache key {}", key);
+      Files.deleteIfExists(key);
+      return Optional.empty();
+    }
+
+    final Path object = this.objects.resolve(digest);
+    if (!Files.isRegularFile(object)) {
+      LOG.warn("discarding cache key {} for missing object {}", key, object);
+      Files.deleteIfExists(key);
+      return Optional.empty();
+    }
+
+    final long size;
+    final long modified;
+    try {
+      size = Long.parseUnsignedLong(size_text);
+      modified = Long.parseLong(modified_text);
+    } catch (final NumberFormatException e) {
+      LOG.warn("discarding malformed cache key {}", key);
+      Files.deleteIfExists(key);
+      return Optional.empty();
+    }
+
+    if (Files.size(object) != size
+      || Files.getLastModifiedTime(object).toMillis() != modified) {
+      LOG.warn("discarding modified cache object {}", object);
+      Files.deleteIfExists(object);
+      Files.deleteIfExists(key);
+      return Optional.empty();
+    }
+
+    return Optional.of(new Entry(
+      key,
+      object,
+      digest,
+      JailDownloadValidators.fromProperties(props, "validators.")));
+  }
+
+  /**
+   * Add the downloaded archive {@code file} to the cache, and then collect
+   * garbage until the cache holds at most {@code size_limit} octets.
+   *
+   * @param uri        The archive URI
+   * @param file       The downloaded archive
+   * @param validators The validators of the download, if any
+   * @param size_limit The cache size limit
+   *
+   * @throws IOException On errors
+   */
+
+  void store(
+    final URI uri,
+    final Path file,
+    final Optional<JailDownloadValidators> validators,
+    final long size_limit)
+    throws IOException
+  {
+    NullCheck.notNull(uri, "URI");
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(validators, "Validators");
+
+    final String digest = JailDigests.sha256(file);
+    final Path object = this.objects.resolve(digest);
+
+    if (!Files.exists(object)) {
+      final Path object_tmp =
+        this.objects.resolve(digest + "." + UUID.randomUUID() + ".tmp");
+      this.copier.copy(file, object_tmp, JailCopyMode.JAIL_COPY_MODE_KERNEL);
+      try {
+        Files.move(object_tmp, object, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final FileAlreadyExistsException e) {
+        Files.deleteIfExists(object_tmp);
+      }
+    }
+
+    final Properties props = new Properties();
+    props.setProperty("uri", uri.toString());
+    props.setProperty("digest", digest);
+    props.setProperty("size", Long.toUnsignedString(Files.size(object)));
+    props.setProperty(
+      "modified",
+      Long.toString(Files.getLastModifiedTime(object).toMillis()));
+    validators.ifPresent(v -> v.toProperties(props, "validators."));
+
+    final Path key = this.keyFile(uri);
+    final Path key_tmp =
+      this.keys.resolve(key.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    try (final OutputStream output = Files.newOutputStream(key_tmp)) {
+      props.store(output, "");
+    }
+    Files.move(
+      key_tmp,
+      key,
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING);
+
+    LOG.debug("cache store: {} → {}", uri, object);
+    this.collectGarbage(size_limit, false);
+  }
+
+  /**
+   * Remove the least recently used objects until the cache holds at most
+   * {@code size_limit} octets. If {@code verify} is {@code true}, every
+   * object is first verified against its digest, and objects that fail
+   * verification are removed.
+   *
+   * @param size_limit The cache size limit
+   * @param verify     {@code true} iff objects should be verified
+   *
+   * @return Statistics describing the collection
+   *
+   * @throws IOException On errors
+   */
+
+  JailDownloadCacheStatistics collectGarbage(
+    final long size_limit,
+    final boolean verify)
+    throws IOException
+  {
+    final Map<String, List<Path>> keys_by_digest = new HashMap<>(16);
+    final Map<String, FileTime> used_by_digest = new HashMap<>(16);
+
+    for (final Path key : list(this.keys)) {
+      final Properties props = new Properties();
+      try (final InputStream input = Files.newInputStream(key)) {
+        props.load(input);
+      }
+
+      final String digest = props.getProperty("digest");
+      if (digest == null || !Files.isRegularFile(this.objects.resolve(digest))) {
+        LOG.debug("gc: removing dangling key {}", key);
+        Files.deleteIfExists(key);
+        continue;
+      }
+
+      keys_by_digest.computeIfAbsent(digest, d -> new ArrayList<>(1)).add(key);
+      final FileTime time = Files.getLastModifiedTime(key);
+      used_by_digest.merge(
+        digest, time, (t0, t1) -> t0.compareTo(t1) >= 0 ? t0 : t1);
+    }
+
+    final ArrayList<Path> retained = new ArrayList<>(16);
+    long octets_total = 0L;
+    long octets_removed = 0L;
+    long removed = 0L;
+
+    for (final Path object : list(this.objects)) {
+      final String digest = object.getFileName().toString();
+      if (!used_by_digest.containsKey(digest)) {
+        LOG.debug("gc: removing unreferenced object {}", object);
+        octets_removed = Math.addExact(octets_removed, Files.size(object));
+        removed = removed + 1L;
+        Files.deleteIfExists(object);
+        continue;
+      }
+      if (verify && !digest.equals(JailDigests.sha256(object))) {
+        LOG.warn("gc: removing corrupted object {}", object);
+        for (final Path key : keys_by_digest.get(digest)) {
+          Files.deleteIfExists(key);
+        }
+        octets_removed = Math.addExact(octets_removed, Files.size(object));
+        removed = removed + 1L;
+        Files.deleteIfExists(object);
+        continue;
+      }
+      octets_total = Math.addExact(octets_total, Files.size(object));
+      retained.add(object);
+    }
+
+    retained.sort(Comparator.comparing(
+      object -> used_by_digest.get(object.getFileName().toString())));
+
+    int index = 0;
+    while (octets_total > size_limit && index < retained.size()) {
+      final Path object = retained.get(index);
+      final String digest = object.getFileName().toString();
+      final long size = Files.size(object);
+
+      LOG.debug("gc: evicting {}", object);
+      for (final Path key : keys_by_digest.get(digest)) {
+        Files.deleteIfExists(key);
+      }
+      Files.deleteIfExists(object);
+
+      octets_total = octets_total - size;
+      octets_removed = Math.addExact(octets_removed, size);
+      removed = removed + 1L;
+      index = index + 1;
+    }
+
+    return JailDownloadCacheStatistics.builder()
+      .setArchivesRetained((long) (retained.size() - index))
+      .setArchivesRemoved(removed)
+      .setOctetsRetained(octets_total)
+      .setOctetsRemoved(octets_removed)
+      .build();
+  }
+
+  private static List<Path> list(
+    final Path directory)
+    throws IOException
+  {
+    try (final Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+        .collect(Collectors.toList());
+    }
+  }
+
+  private Path keyFile(
+    final URI uri)
+  {
+    return this.keys.resolve(
+      JailDigests.hex(JailDigests.newDigest().digest(
+        uri.toString().getBytes(StandardCharsets.UTF_8))));
+  }
+
+  private static final class Entry
+  {
+    private final Path key;
+    private final Path object;
+    private final String digest;
+    private final Optional<JailDownloadValidators> validators;
+
+    Entry(
+      final Path in_key,
+      final Path in_object,
+      final String in_digest,
+      final Optional<JailDownloadValidators> in_validators)
+    {
+      this.key = NullCheck.notNull(in_key, "Key");
+      this.object = NullCheck.notNull(in_object, "Object");
+      this.digest = NullCheck.notNull(in_digest, "Digest");
+      this.validators = NullCheck.notNull(in_validators, "Validators");
+    }
+  }
+}
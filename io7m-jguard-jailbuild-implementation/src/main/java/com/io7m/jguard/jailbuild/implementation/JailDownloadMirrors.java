@@ -0,0 +1,265 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadMirrorProbe;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * <p>Downloads from sets of mirrors.</p>
+ *
+ * <p>Each mirror is probed in turn by requesting a small prefix of the
+ * archive, and the mirrors that responded are tried in order of the rate at
+ * which the prefix was received. A single-stream download that falls below
+ * the minimum acceptable rate is abandoned, and the next mirror resumes the
+ * file from wherever the previous mirror stopped.</p>
+ */
+
+final class JailDownloadMirrors
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadMirrors.class);
+  }
+
+  private JailDownloadMirrors()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Probe the given mirrors. Mirrors are probed sequentially so that the
+   * probes do not compete with each other for bandwidth.
+   *
+   * @param client  The HTTP client
+   * @param mirrors A map from mirror base URIs to archive URIs
+   * @param octets  The number of octets to request from each mirror
+   *
+   * @return The probe results, fastest first, with failed probes last
+   */
+
+  static List<JailDownloadMirrorProbe> probe(
+    final CloseableHttpClient client,
+    final Map<URI, URI> mirrors,
+    final int octets)
+  {
+    NullCheck.notNull(client, "Client");
+    NullCheck.notNull(mirrors, "Mirrors");
+
+    final ArrayList<JailDownloadMirrorProbe> probes =
+      new ArrayList<>(mirrors.size());
+    for (final Map.Entry<URI, URI> mirror : mirrors.entrySet()) {
+      probes.add(probeOne(client, mirror.getKey(), mirror.getValue(), octets));
+    }
+
+    probes.sort(
+      Comparator.comparing(JailDownloadMirrorProbe::succeeded)
+        .thenComparingLong(JailDownloadMirrorProbe::octetsPerSecond)
+        .reversed());
+    return probes;
+  }
+
+  private static JailDownloadMirrorProbe probeOne(
+    final CloseableHttpClient client,
+    final URI base,
+    final URI uri,
+    final int octets)
+  {
+    LOG.debug("probing {}", uri);
+
+    final HttpUriRequest request = new HttpGet(uri);
+    request.addHeader(
+      "Range",
+      String.format("bytes=0-%d", Integer.valueOf(octets - 1)));
+
+    final long time_start = System.nanoTime();
+    try (final CloseableHttpResponse response = client.execute(request)) {
+      final long time_response = System.nanoTime();
+
+      final StatusLine status = response.getStatusLine();
+      if (status.getStatusCode() >= 400) {
+        throw new IOException(
+          String.format(
+            "Server returned an error when probing the mirror: %d %s",
+            Integer.valueOf(status.getStatusCode()),
+            status.getReasonPhrase()));
+      }
+
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw new IOException(
+          "Server failed to return a usable HTTP entity when probing the mirror.");
+      }
+
+      /*
+       * A server that ignores the range request returns the entire archive,
+       * and so reading stops after the requested number of octets.
+       */
+
+      long received = 0L;
+      try (final InputStream stream = entity.getContent()) {
+        final byte[] buffer = new byte[4096];
+        while (received < (long) octets) {
+          final int r = stream.read(buffer);
+          if (r == -1) {
+            break;
+          }
+          received = Math.addExact(received, (long) r);
+        }
+      }
+
+      final long time_end = System.nanoTime();
+      final long elapsed = Math.max(1L, time_end - time_start);
+      final long rate =
+        (long) (((double) received * 1_000_000_000.0) / (double) elapsed);
+      final Duration latency = Duration.ofNanos(time_response - time_start);
+
+      LOG.info(
+        "mirror {}: latency {} ms, {} octets/s",
+        base,
+        Long.valueOf(latency.toMillis()),
+        Long.valueOf(rate));
+      return JailDownloadMirrorProbe.of(base, latency, rate, Optional.empty());
+    } catch (final IOException | RuntimeException e) {
+      LOG.warn("mirror {}: probe failed: {}", base, e.getMessage());
+      return JailDownloadMirrorProbe.of(
+        base, Duration.ZERO, 0L, Optional.of(e));
+    }
+  }
+
+  /**
+   * Download an archive from the fastest of the given mirrors.
+   *
+   * @param client          The HTTP client
+   * @param counters        The counters to which writes to {@code file} are
+   *                        added
+   * @param mirrors         A map from mirror base URIs to archive URIs
+   * @param file            The output file
+   * @param options         The download options
+   * @param digest_expected The expected SHA-256 digest of the file, if any
+   * @param progress        An optional progress receiver
+   *
+   * @throws IOException On errors
+   */
+
+  static void download(
+    final CloseableHttpClient client,
+    final JailDownloadWriteCounters counters,
+    final Map<URI, URI> mirrors,
+    final Path file,
+    final JailDownloadOptions options,
+    final Optional<String> digest_expected,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    NullCheck.notNull(mirrors, "Mirrors");
+
+    if (mirrors.size() == 1) {
+      final URI uri = mirrors.values().iterator().next();
+      JailDownloads.download(
+        client, counters, uri, file, options, digest_expected, 0L, progress);
+      return;
+    }
+
+    final List<JailDownloadMirrorProbe> probes =
+      probe(client, mirrors, options.mirrorProbeOctets());
+
+    final ArrayList<JailDownloadMirrorProbe> usable =
+      new ArrayList<>(probes.size());
+    for (final JailDownloadMirrorProbe probe : probes) {
+      if (probe.succeeded()) {
+        usable.add(probe);
+      }
+    }
+
+    if (usable.isEmpty()) {
+      final IOException e = new IOException("No mirror could be reached.");
+      for (final JailDownloadMirrorProbe probe : probes) {
+        e.addSuppressed(probe.error().get());
+      }
+      throw e;
+    }
+
+    final int last = usable.size() - 1;
+    final long rate_minimum;
+    if (options.segments() > 1) {
+      rate_minimum = 0L;
+    } else {
+      rate_minimum = options.mirrorMinimumOctetsPerSecond();
+    }
+
+    for (int index = 0; index <= last; ++index) {
+      final JailDownloadMirrorProbe mirror = usable.get(index);
+      final URI uri = NullCheck.notNull(mirrors.get(mirror.base()), "URI");
+      LOG.info(
+        "downloading from mirror {} ({} octets/s when probed)",
+        mirror.base(),
+        Long.valueOf(mirror.octetsPerSecond()));
+
+      try {
+        JailDownloads.download(
+          client,
+          counters,
+          uri,
+          file,
+          options,
+          digest_expected,
+          index == last ? 0L : rate_minimum,
+          progress);
+        return;
+      } catch (final IOException e) {
+
+        /*
+         * Network timeouts are reported as subclasses of
+         * InterruptedIOException, and so the interrupt status of the thread
+         * is used to distinguish a cancelled download from a stalled mirror.
+         */
+
+        if (index == last || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        LOG.warn(
+          "abandoning mirror {}: {}",
+          mirror.base(),
+          e.getMessage());
+      }
+    }
+  }
+}
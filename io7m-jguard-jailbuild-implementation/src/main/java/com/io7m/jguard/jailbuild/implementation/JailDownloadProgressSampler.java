@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadRateLimiter;
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.Optional;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A progress counter that decouples progress reporting from the threads
+ * performing I/O.</p>
+ *
+ * <p>Threads receiving data only add to a {@link LongAdder}, and so neither
+ * allocate, lock, nor read the clock per chunk. A single shared sampler
+ * thread reads the counter at a fixed cadence and passes the totals to the
+ * progress receiver. A final sample is always published when the counter is
+ * closed, so receivers observe the complete total of a download.</p>
+ *
+ * <p>The counter is also the only point at which downloads account for
+ * received data against a {@link JailDownloadRateLimiter}: every octet
+ * charged to the limiter is counted, and every counted octet is charged, so
+ * throttling and progress reporting always see the same totals. Only
+ * downloads that are rate limited lock or read the clock per chunk.</p>
+ *
+ * <p>Calls to the progress receiver are serialized, but are made from the
+ * sampler thread and from the thread that closes the counter.</p>
+ */
+
+final class JailDownloadProgressSampler implements Closeable
+{
+  private static final Logger LOG;
+  private static final long SAMPLE_INTERVAL_MILLISECONDS = 250L;
+  private static final ScheduledThreadPoolExecutor SAMPLER;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadProgressSampler.class);
+    SAMPLER = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-progress");
+      t.setDaemon(true);
+      return t;
+    });
+    SAMPLER.setRemoveOnCancelPolicy(true);
+  }
+
+  private final long expected;
+  private final LongAdder received;
+  private final Optional<JailDownloadProgressType> progress;
+  private final Optional<JailDownloadRateLimiter> limiter;
+  private @Nullable ScheduledFuture<?> task;
+  private boolean closed;
+
+  private JailDownloadProgressSampler(
+    final long in_expected,
+    final Optional<JailDownloadRateLimiter> in_limiter,
+    final Optional<JailDownloadProgressType> in_progress)
+  {
+    this.expected = in_expected;
+    this.limiter = NullCheck.notNull(in_limiter, "Limiter");
+    this.progress = NullCheck.notNull(in_progress, "Progress");
+    this.received = new LongAdder();
+    this.closed = false;
+  }
+
+  /**
+   * Start sampling.
+   *
+   * @param expected The total number of octets expected
+   * @param limiter  An optional rate limiter
+   * @param progress An optional progress receiver
+   *
+   * @return A new counter
+   */
+
+  static JailDownloadProgressSampler start(
+    final long expected,
+    final Optional<JailDownloadRateLimiter> limiter,
+    final Optional<JailDownloadProgressType> progress)
+  {
+    final JailDownloadProgressSampler sampler =
+      new JailDownloadProgressSampler(expected, limiter, progress);
+    if (progress.isPresent()) {
+      sampler.task = SAMPLER.scheduleAtFixedRate(
+        sampler::sample,
+        SAMPLE_INTERVAL_MILLISECONDS,
+        SAMPLE_INTERVAL_MILLISECONDS,
+        TimeUnit.MILLISECONDS);
+    }
+    return sampler;
+  }
+
+  /**
+   * Record the receipt of {@code octets} octets, blocking the calling thread
+   * for as long as the rate limiter (if any) requires.
+   *
+   * @param octets The number of octets received
+   *
+   * @throws InterruptedIOException If the calling thread is interrupted while
+   *                                waiting for the rate limiter
+   */
+
+  void add(
+    final long octets)
+    throws InterruptedIOException
+  {
+    this.received.add(octets);
+    if (this.limiter.isPresent()) {
+      this.limiter.get().acquire(octets);
+    }
+  }
+
+  /**
+   * @return The number of octets received so far
+   */
+
+  long received()
+  {
+    return this.received.sum();
+  }
+
+  private void sample()
+  {
+    try {
+      synchronized (this) {
+        if (!this.closed) {
+          this.publish();
+        }
+      }
+    } catch (final RuntimeException e) {
+      LOG.error("progress receiver failed: ", e);
+    }
+  }
+
+  private void publish()
+  {
+    this.progress.get().onProgress(this.expected, this.received.sum());
+  }
+
+  @Override
+  public void close()
+  {
+    final ScheduledFuture<?> current = this.task;
+    if (current != null) {
+      current.cancel(false);
+    }
+
+    synchronized (this) {
+      if (!this.closed) {
+        this.closed = true;
+        if (this.progress.isPresent()) {
+          this.publish();
+        }
+      }
+    }
+  }
+}
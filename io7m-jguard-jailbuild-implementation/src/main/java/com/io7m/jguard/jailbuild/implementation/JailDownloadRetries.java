@@ -0,0 +1,323 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadHTTPException;
+import com.io7m.jguard.jailbuild.api.JailDownloadPolicy;
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Functions for retrying downloads according to a {@link JailDownloadPolicy}.
+ */
+
+final class JailDownloadRetries
+{
+  private static final Logger LOG;
+  private static final ScheduledThreadPoolExecutor DEADLINES;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadRetries.class);
+    DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-download-deadline");
+      t.setDaemon(true);
+      return t;
+    });
+    DEADLINES.setRemoveOnCancelPolicy(true);
+  }
+
+  private JailDownloadRetries()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * A single download attempt. When downloading via a temporary file, an
+   * attempt that leaves the temporary file absent indicates that the
+   * existing output file is already up to date.
+   */
+
+  interface AttemptType
+  {
+    /**
+     * Attempt to download a file.
+     *
+     * @param file The file to which data is written
+     *
+     * @throws IOException On errors
+     */
+
+    void download(Path file)
+      throws IOException;
+  }
+
+  /**
+   * Download {@code file}, retrying failed attempts according to {@code
+   * policy}.
+   *
+   * @param policy  The retry policy
+   * @param file    The output file
+   * @param attempt A function that performs a single attempt
+   *
+   * @throws IOException If the last attempt fails, or an attempt fails with
+   *                     an error that is not retryable
+   */
+
+  static void run(
+    final JailDownloadPolicy policy,
+    final Path file,
+    final AttemptType attempt)
+    throws IOException
+  {
+    NullCheck.notNull(policy, "Policy");
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(attempt, "Attempt");
+
+    final Path file_target;
+    if (policy.temporaryFile()) {
+      file_target = file.resolveSibling(file.getFileName() + ".tmp");
+    } else {
+      file_target = file;
+    }
+
+    int count = 0;
+    while (true) {
+      ++count;
+
+      try {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(
+            "downloading {} - attempt {} of {}",
+            file,
+            Integer.valueOf(count),
+            Integer.valueOf(policy.attempts()));
+        }
+        runAttempt(policy, file_target, attempt);
+        break;
+      } catch (final IOException e) {
+        if (count >= policy.attempts()) {
+          if (count > 1) {
+            LOG.error(
+              "giving up on {} after {} attempts",
+              file,
+              Integer.valueOf(count));
+          }
+          throw e;
+        }
+        if (!isRetryable(policy, e)) {
+          LOG.error("download of {} failed and cannot be retried", file);
+          throw e;
+        }
+
+        final Duration delay =
+          policy.retryDelay(count, ThreadLocalRandom.current().nextDouble());
+        LOG.warn(
+          "download of {} failed (attempt {} of {}), retrying in {}ms: {}",
+          file,
+          Integer.valueOf(count),
+          Integer.valueOf(policy.attempts()),
+          Long.valueOf(delay.toMillis()),
+          e.getMessage());
+
+        try {
+          TimeUnit.NANOSECONDS.sleep(delay.toNanos());
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          final InterruptedIOException ee =
+            new InterruptedIOException("Interrupted while waiting to retry");
+          ee.addSuppressed(e);
+          throw ee;
+        }
+      }
+    }
+
+    if (policy.temporaryFile()
+      && Files.exists(file_target, LinkOption.NOFOLLOW_LINKS)) {
+      LOG.debug("rename: {} → {}", file_target, file);
+      Files.move(
+        file_target,
+        file,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+      JailDownloadValidators.move(file_target, file);
+    }
+  }
+
+  /**
+   * Determine whether a failed download should be retried.
+   *
+   * @param policy The retry policy
+   * @param e      The error that caused the download to fail
+   *
+   * @return {@code true} iff the download should be retried
+   */
+
+  static boolean isRetryable(
+    final JailDownloadPolicy policy,
+    final IOException e)
+  {
+    if (e instanceof JailDownloadHTTPException) {
+      return policy.isRetryableStatus(
+        ((JailDownloadHTTPException) e).statusCode());
+    }
+    if (e instanceof AttemptTimedOutException) {
+      return true;
+    }
+
+    /*
+     * Network timeouts are reported as subclasses of InterruptedIOException,
+     * but do not indicate that the download was cancelled.
+     */
+
+    if (e instanceof SocketTimeoutException
+      || e instanceof ConnectTimeoutException) {
+      return true;
+    }
+    if (e instanceof InterruptedIOException) {
+      return false;
+    }
+    return !(e instanceof FileSystemException);
+  }
+
+  private static void runAttempt(
+    final JailDownloadPolicy policy,
+    final Path file,
+    final AttemptType attempt)
+    throws IOException
+  {
+    if (!policy.attemptTimeout().isPresent()) {
+      attempt.download(file);
+      return;
+    }
+
+    final Duration timeout = policy.attemptTimeout().get();
+    final Deadline deadline = new Deadline(Thread.currentThread());
+    final ScheduledFuture<?> task =
+      DEADLINES.schedule(
+        deadline::expire, timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+    try {
+      attempt.download(file);
+    } catch (final IOException e) {
+      if (deadline.isExpired() && !JailDownloadTask.isCurrentCancelled()) {
+        throw new AttemptTimedOutException(timeout, e);
+      }
+      throw e;
+    } finally {
+      task.cancel(false);
+      deadline.finish();
+    }
+  }
+
+  /**
+   * An exception raised when an attempt exceeds its timeout.
+   */
+
+  private static final class AttemptTimedOutException extends IOException
+  {
+    AttemptTimedOutException(
+      final Duration timeout,
+      final IOException cause)
+    {
+      super(String.format("Download attempt timed out after %s", timeout), cause);
+    }
+  }
+
+  /**
+   * The deadline of a single attempt. An expired deadline interrupts the
+   * thread running the attempt, which stops the attempt at its next read
+   * from the network. The interrupt is never delivered after the attempt
+   * has finished.
+   */
+
+  private static final class Deadline
+  {
+    private final Object lock;
+    private @Nullable Thread thread;
+    private boolean expired;
+
+    Deadline(final Thread in_thread)
+    {
+      this.lock = new Object();
+      this.thread = NullCheck.notNull(in_thread, "Thread");
+      this.expired = false;
+    }
+
+    void expire()
+    {
+      synchronized (this.lock) {
+        if (this.thread != null) {
+          LOG.debug(
+            "attempt deadline expired, interrupting {}",
+            this.thread.getName());
+          this.expired = true;
+          this.thread.interrupt();
+        }
+      }
+    }
+
+    boolean isExpired()
+    {
+      synchronized (this.lock) {
+        return this.expired;
+      }
+    }
+
+    void finish()
+    {
+      final boolean was_expired;
+      synchronized (this.lock) {
+        this.thread = null;
+        was_expired = this.expired;
+      }
+
+      /*
+       * Clear the interrupt delivered by the deadline so that it does not
+       * affect the next attempt. A cancellation may have interrupted the
+       * thread at the same time, in which case the interrupt is kept so that
+       * the download is not retried.
+       */
+
+      if (was_expired) {
+        Thread.interrupted();
+        if (JailDownloadTask.isCurrentCancelled()) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
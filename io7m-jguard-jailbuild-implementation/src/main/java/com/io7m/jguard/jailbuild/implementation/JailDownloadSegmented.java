@@ -0,0 +1,725 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadRateLimiter;
+import com.io7m.jnull.NullCheck;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Segmented downloads.</p>
+ *
+ * <p>The remote file is split into a number of byte ranges that are fetched
+ * concurrently using HTTP range requests and written directly into their
+ * positions in an output file that has been extended to the full size of the
+ * remote file. The extension is sparse: storage for the file is allocated by
+ * the file system as the segments are written. The progress of each segment
+ * is periodically recorded in a state file next to the output file so that
+ * an interrupted download can resume each segment from where it stopped. The
+ * output file is flushed to storage before each recorded checkpoint so that
+ * a resumed download never trusts a range that was not actually written.</p>
+ *
+ * <p>Each segment is requested with {@code If-Range} when validators are
+ * available. If the server indicates that the remote file has changed, the
+ * recorded state is discarded and the output file is truncated, so that the
+ * next attempt downloads the new file from the start rather than mixing
+ * segments of two different files.</p>
+ */
+
+final class JailDownloadSegmented
+{
+  private static final Logger LOG;
+  private static final long SEGMENT_MINIMUM_OCTETS = 65536L;
+  private static final long CHECKPOINT_OCTETS = 1048576L;
+  private static final int SEGMENT_ATTEMPTS = 3;
+  private static final int BUFFER_SIZE = 65536;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadSegmented.class);
+  }
+
+  private final CloseableHttpClient client;
+  private final URI uri;
+  private final Path file_state;
+  private final long size;
+  private final Optional<JailDownloadValidators> validators;
+  private final Segment[] segments;
+  private final long sync_interval;
+  private final JailDownloadWriteCounters counters;
+  private final JailDownloadProgressSampler progress;
+  private final Object state_lock;
+  private final AtomicLong unsaved;
+  private final AtomicLong unsynced;
+  private final AtomicBoolean changed;
+  private final AtomicBoolean stopped;
+
+  private JailDownloadSegmented(
+    final CloseableHttpClient in_client,
+    final URI in_uri,
+    final Path in_file_state,
+    final long in_size,
+    final Optional<JailDownloadValidators> in_validators,
+    final Segment[] in_segments,
+    final long in_sync_interval,
+    final JailDownloadWriteCounters in_counters,
+    final Optional<JailDownloadRateLimiter> in_limiter,
+    final Optional<JailDownloadProgressType> in_progress)
+  {
+    this.client = NullCheck.notNull(in_client, "Client");
+    this.uri = NullCheck.notNull(in_uri, "URI");
+    this.file_state = NullCheck.notNull(in_file_state, "State file");
+    this.size = in_size;
+    this.validators = NullCheck.notNull(in_validators, "Validators");
+    this.segments = NullCheck.notNull(in_segments, "Segments");
+    this.sync_interval = in_sync_interval;
+    this.counters = NullCheck.notNull(in_counters, "Counters");
+    this.progress =
+      JailDownloadProgressSampler.start(
+        in_size,
+        NullCheck.notNull(in_limiter, "Limiter"),
+        NullCheck.notNull(in_progress, "Progress"));
+    this.state_lock = new Object();
+    this.unsaved = new AtomicLong(0L);
+    this.unsynced = new AtomicLong(0L);
+    this.changed = new AtomicBoolean(false);
+    this.stopped = new AtomicBoolean(false);
+  }
+
+  /**
+   * Download {@code uri} to {@code file} using at most {@code count}
+   * concurrent segments.
+   *
+   * @param client        The HTTP client
+   * @param uri           The remote file
+   * @param file          The output file
+   * @param size          The size of the remote file
+   * @param validators    The validators upon which each segment request is
+   *                      made conditional, if any
+   * @param count         The maximum number of segments
+   * @param sync_interval The number of octets written between explicit
+   *                      flushes to storage, or {@code 0} to never flush
+   *                      explicitly
+   * @param counters      The counters to which writes to {@code file} are
+   *                      added
+   * @param limiter       An optional rate limiter shared by all segments
+   * @param progress      An optional progress receiver
+   *
+   * @throws IOException On errors
+   */
+
+  static void download(
+    final CloseableHttpClient client,
+    final URI uri,
+    final Path file,
+    final long size,
+    final Optional<JailDownloadValidators> validators,
+    final int count,
+    final long sync_interval,
+    final JailDownloadWriteCounters counters,
+    final Optional<JailDownloadRateLimiter> limiter,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    final Path file_state =
+      file.resolveSibling(file.getFileName() + ".segments");
+
+    final Segment[] segments = plan(file, file_state, size, count);
+    final JailDownloadSegmented download =
+      new JailDownloadSegmented(
+        client,
+        uri,
+        file_state,
+        size,
+        validators,
+        segments,
+        sync_interval,
+        counters,
+        limiter,
+        progress);
+    download.run(file);
+  }
+
+  private static Segment[] plan(
+    final Path file,
+    final Path file_state,
+    final long size,
+    final int count)
+    throws IOException
+  {
+    if (Files.exists(file_state, LinkOption.NOFOLLOW_LINKS)) {
+      final Optional<Segment[]> loaded = planLoad(file_state, size);
+      if (loaded.isPresent()) {
+        LOG.debug("resuming segmented download from {}", file_state);
+        return loaded.get();
+      }
+    }
+
+    /*
+     * Without a state file, any existing content is assumed to be the prefix
+     * of a download that was made without segments.
+     */
+
+    long start = 0L;
+    if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+      final long existing = Files.size(file);
+      if (existing <= size) {
+        start = existing;
+      }
+    }
+
+    final long remaining = size - start;
+    final long possible =
+      Math.max(1L, remaining / SEGMENT_MINIMUM_OCTETS);
+    final int actual = (int) Math.min((long) count, possible);
+    final long length = remaining / (long) actual;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "splitting {} octets into {} segments",
+        Long.valueOf(remaining),
+        Integer.valueOf(actual));
+    }
+
+    final Segment[] segments = new Segment[actual];
+    for (int index = 0; index < actual; ++index) {
+      final long segment_start = start + (length * (long) index);
+      final long segment_end;
+      if (index + 1 == actual) {
+        segment_end = size;
+      } else {
+        segment_end = segment_start + length;
+      }
+      segments[index] =
+        new Segment(index, segment_start, segment_end, segment_start);
+    }
+    return segments;
+  }
+
+  private static Optional<Segment[]> planLoad(
+    final Path file_state,
+    final long size)
+    throws IOException
+  {
+    final Properties props = new Properties();
+    try (final InputStream stream = Files.newInputStream(file_state)) {
+      props.load(stream);
+    }
+
+    try {
+      final long state_size =
+        Long.parseUnsignedLong(props.getProperty("size", "-"));
+      if (state_size != size) {
+        LOG.warn(
+          "segment state {} refers to a file of a different size; ignoring it",
+          file_state);
+        return Optional.empty();
+      }
+
+      final int count =
+        Integer.parseUnsignedInt(props.getProperty("segments", "-"));
+      final Segment[] segments = new Segment[count];
+      for (int index = 0; index < count; ++index) {
+        final String prefix = "segment." + index + ".";
+        final long start =
+          Long.parseUnsignedLong(props.getProperty(prefix + "start", "-"));
+        final long end =
+          Long.parseUnsignedLong(props.getProperty(prefix + "end", "-"));
+        final long position =
+          Long.parseUnsignedLong(props.getProperty(prefix + "position", "-"));
+
+        if (start > end || position < start || position > end || end > size) {
+          LOG.warn("invalid segment state {}; ignoring it", file_state);
+          return Optional.empty();
+        }
+        segments[index] = new Segment(index, start, end, position);
+      }
+      return Optional.of(segments);
+    } catch (final NumberFormatException e) {
+      LOG.warn("unparseable segment state {}; ignoring it: ", file_state, e);
+      return Optional.empty();
+    }
+  }
+
+  private void checkpoint(final FileChannel channel)
+    throws IOException
+  {
+    /*
+     * The segment positions are captured before the output file is flushed
+     * so that the recorded positions never cover data written after the
+     * flush.
+     */
+
+    final Properties props = this.stateProperties();
+    this.sync(channel);
+    this.writeState(props);
+  }
+
+  private void saveState()
+    throws IOException
+  {
+    this.writeState(this.stateProperties());
+  }
+
+  private Properties stateProperties()
+  {
+    final Properties props = new Properties();
+    props.setProperty("size", Long.toUnsignedString(this.size));
+    props.setProperty("segments", Integer.toString(this.segments.length));
+    for (final Segment segment : this.segments) {
+      final String prefix = "segment." + segment.index + ".";
+      props.setProperty(prefix + "start", Long.toString(segment.start));
+      props.setProperty(prefix + "end", Long.toString(segment.end));
+      props.setProperty(
+        prefix + "position", Long.toString(segment.position.get()));
+    }
+    return props;
+  }
+
+  private void writeState(final Properties props)
+    throws IOException
+  {
+    final Path file_state_tmp =
+      this.file_state.resolveSibling(this.file_state.getFileName() + ".tmp");
+
+    synchronized (this.state_lock) {
+      try (final OutputStream output = Files.newOutputStream(file_state_tmp)) {
+        props.store(output, "");
+      }
+      Files.move(
+        file_state_tmp,
+        this.file_state,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void run(final Path file)
+    throws IOException
+  {
+    try {
+      this.runSegments(file);
+    } finally {
+      this.progress.close();
+    }
+  }
+
+  private void runSegments(final Path file)
+    throws IOException
+  {
+    /*
+     * The state file is written before the output file is extended so that
+     * an extended output file is never mistaken for a complete one.
+     */
+
+    this.saveState();
+
+    try (final FileChannel channel = FileChannel.open(
+      file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      this.extend(channel);
+
+      final AtomicInteger thread_count = new AtomicInteger(0);
+      final ExecutorService executor =
+        Executors.newFixedThreadPool(this.segments.length, r -> {
+          final Thread th = new Thread(r);
+          th.setName("jguard-download-segment-" + thread_count.incrementAndGet());
+          th.setDaemon(true);
+          return th;
+        });
+
+      try {
+        this.fetchSegments(channel, executor);
+      } catch (final IOException | RuntimeException e) {
+        try {
+          this.stop(channel, executor);
+        } catch (final IOException ex) {
+          e.addSuppressed(ex);
+        }
+        throw e;
+      }
+      this.stop(channel, executor);
+    }
+
+    Files.deleteIfExists(this.file_state);
+  }
+
+  private void fetchSegments(
+    final FileChannel channel,
+    final ExecutorService executor)
+    throws IOException
+  {
+    final ArrayList<Future<Void>> futures =
+      new ArrayList<>(this.segments.length);
+    for (final Segment segment : this.segments) {
+      futures.add(executor.submit(() -> {
+        this.fetchSegment(channel, segment);
+        return null;
+      }));
+    }
+    this.waitForSegments(futures);
+    if (this.sync_interval > 0L) {
+      this.sync(channel);
+    }
+  }
+
+  /**
+   * Stop the segment threads and write the final checkpoint.
+   */
+
+  private void stop(
+    final FileChannel channel,
+    final ExecutorService executor)
+    throws IOException
+  {
+    /*
+     * The segment threads are asked to stop rather than being interrupted,
+     * because an interrupt during a write closes the shared channel, after
+     * which the checkpoint cannot be written. For the same reason, the
+     * interrupt status of this thread (set by a cancellation or an attempt
+     * deadline) is cleared until the checkpoint has been written.
+     */
+
+    this.stopped.set(true);
+    executor.shutdown();
+
+    boolean interrupted = Thread.interrupted();
+    try {
+      try {
+        while (!executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+          LOG.debug("waiting for segments to stop");
+        }
+      } catch (final InterruptedException e) {
+        interrupted = true;
+        executor.shutdownNow();
+      }
+
+      if (this.changed.get()) {
+        LOG.info("remote file has changed, discarding segment state");
+        channel.truncate(0L);
+        Files.deleteIfExists(this.file_state);
+      } else {
+        this.checkpoint(channel);
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void extend(final FileChannel channel)
+    throws IOException
+  {
+    /*
+     * Writing a single octet at the end of the file produces a sparse file:
+     * no storage is reserved for the ranges that have not yet been written.
+     */
+
+    final long current = channel.size();
+    if (current > this.size) {
+      channel.truncate(this.size);
+    } else if (current < this.size) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(
+          "extending output file to {} octets",
+          Long.valueOf(this.size));
+      }
+      final ByteBuffer zero = ByteBuffer.allocate(1);
+      while (zero.hasRemaining()) {
+        channel.write(zero, this.size - 1L);
+      }
+    }
+  }
+
+  private void waitForSegments(
+    final ArrayList<Future<Void>> futures)
+    throws IOException
+  {
+    IOException error = null;
+    for (final Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        error = addError(error, new InterruptedIOException(e.getMessage()));
+      } catch (final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          error = addError(error, (IOException) cause);
+        } else {
+          error = addError(error, new IOException(cause));
+        }
+      }
+    }
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static IOException addError(
+    final IOException existing,
+    final IOException next)
+  {
+    if (existing == null) {
+      return next;
+    }
+    existing.addSuppressed(next);
+    return existing;
+  }
+
+  private void fetchSegment(
+    final FileChannel channel,
+    final Segment segment)
+    throws IOException
+  {
+    IOException error = null;
+    for (int attempt = 1; attempt <= SEGMENT_ATTEMPTS; ++attempt) {
+      try {
+        this.fetchSegmentAttempt(channel, segment);
+        return;
+      } catch (final IOException e) {
+        if (this.isStopping() || this.changed.get()) {
+          throw e;
+        }
+        LOG.error(
+          "segment {} failed (attempt {} of {}): ",
+          Integer.valueOf(segment.index),
+          Integer.valueOf(attempt),
+          Integer.valueOf(SEGMENT_ATTEMPTS),
+          e);
+        error = addError(error, e);
+        this.checkpoint(channel);
+      }
+    }
+
+    throw NullCheck.notNull(error, "Error");
+  }
+
+  private void fetchSegmentAttempt(
+    final FileChannel channel,
+    final Segment segment)
+    throws IOException
+  {
+    final long position = segment.position.get();
+    if (position >= segment.end) {
+      return;
+    }
+
+    final String range =
+      String.format(
+        "bytes=%d-%d",
+        Long.valueOf(position),
+        Long.valueOf(segment.end - 1L));
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "GET {} (segment {}, {})",
+        this.uri,
+        Integer.valueOf(segment.index),
+        range);
+    }
+
+    final HttpUriRequest request = new HttpGet(this.uri);
+    request.addHeader("Range", range);
+    this.validators.ifPresent(v -> v.addIfRange(request));
+
+    try (final CloseableHttpResponse response = this.client.execute(request)) {
+      this.checkResponse(response, segment, position);
+
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw JailDownloads.httpError(
+          "Server failed to return a usable HTTP entity.",
+          response);
+      }
+
+      try (final InputStream stream =
+             NullCheck.notNull(entity.getContent(), "Entity content")) {
+        this.copySegment(channel, segment, stream);
+      }
+    }
+
+    if (segment.position.get() != segment.end) {
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append("Downloaded segment was truncated.");
+      sb.append(System.lineSeparator());
+      sb.append("  Segment: ");
+      sb.append(segment.index);
+      sb.append(System.lineSeparator());
+      sb.append("  Expected end: ");
+      sb.append(segment.end);
+      sb.append(System.lineSeparator());
+      sb.append("  Received end: ");
+      sb.append(segment.position.get());
+      sb.append(System.lineSeparator());
+      throw new IOException(sb.toString());
+    }
+  }
+
+  private void checkResponse(
+    final HttpResponse response,
+    final Segment segment,
+    final long position)
+    throws IOException
+  {
+    final StatusLine status = response.getStatusLine();
+    final int code = status.getStatusCode();
+    if (code >= 400) {
+      throw JailDownloads.httpError(
+        "Server returned an error when attempting to retrieve a segment of the file.",
+        response);
+    }
+
+    final boolean partial = code == HttpStatus.SC_PARTIAL_CONTENT;
+    if (!partial
+      && this.validators.isPresent()
+      && !this.validators.get().matches(response)) {
+      this.changed.set(true);
+      throw JailDownloads.httpError(
+        "Remote file changed during the segmented download.",
+        response);
+    }
+
+    final boolean whole = position == 0L && segment.end == this.size;
+    if (!partial && !whole) {
+      throw JailDownloads.httpError(
+        "Server does not support the range requests required for segmented downloads.",
+        response);
+    }
+  }
+
+  private void copySegment(
+    final FileChannel channel,
+    final Segment segment,
+    final InputStream stream)
+    throws IOException
+  {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+
+    while (segment.position.get() < segment.end) {
+      if (this.isStopping()) {
+        throw new InterruptedIOException("Segment download interrupted");
+      }
+
+      final long remaining = segment.end - segment.position.get();
+      final int r =
+        stream.read(buffer, 0, (int) Math.min((long) buffer.length, remaining));
+      if (r == -1) {
+        break;
+      }
+
+      wrapper.clear();
+      wrapper.limit(r);
+      long offset = segment.position.get();
+      while (wrapper.hasRemaining()) {
+        final int written = channel.write(wrapper, offset);
+        this.counters.onWrite((long) written);
+        offset = Math.addExact(offset, (long) written);
+      }
+
+      segment.position.addAndGet((long) r);
+      this.onReceived(channel, r);
+    }
+  }
+
+  private void onReceived(
+    final FileChannel channel,
+    final int r)
+    throws IOException
+  {
+    this.progress.add((long) r);
+
+    if (this.sync_interval > 0L
+      && this.unsynced.addAndGet((long) r) >= this.sync_interval) {
+      this.unsynced.set(0L);
+      this.sync(channel);
+    }
+
+    if (this.unsaved.addAndGet((long) r) >= CHECKPOINT_OCTETS) {
+      this.unsaved.set(0L);
+      this.checkpoint(channel);
+    }
+  }
+
+  private boolean isStopping()
+  {
+    return this.stopped.get() || Thread.currentThread().isInterrupted();
+  }
+
+  private void sync(final FileChannel channel)
+    throws IOException
+  {
+    channel.force(false);
+    this.counters.onSync();
+  }
+
+  private static final class Segment
+  {
+    private final int index;
+    private final long start;
+    private final long end;
+    private final AtomicLong position;
+
+    Segment(
+      final int in_index,
+      final long in_start,
+      final long in_end,
+      final long in_position)
+    {
+      this.index = in_index;
+      this.start = in_start;
+      this.end = in_end;
+      this.position = new AtomicLong(in_position);
+    }
+  }
+}
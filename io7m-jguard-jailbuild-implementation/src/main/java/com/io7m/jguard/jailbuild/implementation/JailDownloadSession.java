@@ -0,0 +1,306 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadResult;
+import com.io7m.jguard.jailbuild.api.JailDownloadSessionType;
+import com.io7m.jguard.jailbuild.api.JailDownloadWriteStatistics;
+import com.io7m.jnull.NullCheck;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The default implementation of the {@link JailDownloadSessionType}
+ * interface. A session holds a single HTTP client, and therefore a single
+ * connection pool, for its entire lifetime.
+ */
+
+final class JailDownloadSession implements JailDownloadSessionType
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadSession.class);
+  }
+
+  private final CloseableHttpClient client;
+  private final JailFileCopier file_copier;
+  private final JailDownloadWriteCounters counters;
+  private final AtomicBoolean closed;
+
+  /**
+   * Construct a session.
+   *
+   * @param in_client      The HTTP client, owned by the session
+   * @param in_file_copier A file copier used by the download cache
+   */
+
+  JailDownloadSession(
+    final CloseableHttpClient in_client,
+    final JailFileCopier in_file_copier)
+  {
+    this.client = NullCheck.notNull(in_client, "Client");
+    this.file_copier = NullCheck.notNull(in_file_copier, "File copier");
+    this.counters = new JailDownloadWriteCounters();
+    this.closed = new AtomicBoolean(false);
+  }
+
+  @Override
+  public void download(
+    final Path file,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailDownloadOptions options,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
+    NullCheck.notNull(options, "Options");
+    NullCheck.notNull(progress, "Progress");
+
+    if (this.closed.get()) {
+      throw new IllegalStateException("Download session has been closed");
+    }
+
+    JailDownloadRetries.run(
+      options.policy(),
+      file,
+      target -> this.downloadArchive(
+        file,
+        target,
+        base,
+        arch,
+        release,
+        archive_file,
+        options,
+        progress));
+  }
+
+  @Override
+  public CompletableFuture<Void> downloadAsync(
+    final Path file,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailDownloadOptions options,
+    final Optional<JailDownloadProgressType> progress,
+    final Executor executor)
+  {
+    NullCheck.notNull(file, "File");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(arch, "Arch");
+    NullCheck.notNull(release, "Release");
+    NullCheck.notNull(archive_file, "Archive file");
+    NullCheck.notNull(options, "Options");
+    NullCheck.notNull(progress, "Progress");
+    NullCheck.notNull(executor, "Executor");
+
+    if (this.closed.get()) {
+      throw new IllegalStateException("Download session has been closed");
+    }
+
+    return JailDownloadTask.submit(
+      executor,
+      () -> this.download(
+        file, base, arch, release, archive_file, options, progress));
+  }
+
+  /**
+   * Download an archive asynchronously, closing the session once the
+   * download has completed.
+   *
+   * @see #downloadAsync(Path, URI, String, String, String,
+   * JailDownloadOptions, Optional, Executor)
+   */
+
+  CompletableFuture<Void> downloadAsyncAndClose(
+    final Path file,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailDownloadOptions options,
+    final Optional<JailDownloadProgressType> progress,
+    final Executor executor)
+  {
+    final CompletableFuture<Void> future = this.downloadAsync(
+      file, base, arch, release, archive_file, options, progress, executor);
+    future.whenComplete((ignored, error) -> {
+      try {
+        this.close();
+      } catch (final IOException e) {
+        LOG.error("could not close download session: ", e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Download a set of archives concurrently using this session.
+   *
+   * @see JailDownloadBatch#run(Path, Collection, JailDownloadBatchOptions,
+   * JailDownloadBatchProgressType, JailDownloadBatch.DownloaderType)
+   */
+
+  java.util.List<JailDownloadResult> downloadBatch(
+    final Path directory,
+    final URI base,
+    final String arch,
+    final String release,
+    final Collection<String> archive_files,
+    final JailDownloadBatchOptions options,
+    final JailDownloadBatchProgressType progress)
+    throws IOException
+  {
+    final JailDownloadOptions download_options =
+      options.downloadOptions();
+    final JailDownloadOptions batch_options =
+      download_options.withPolicy(
+        download_options.policy().withTemporaryFile(true));
+
+    return JailDownloadBatch.run(
+      directory,
+      archive_files,
+      options,
+      progress,
+      (file, archive_file, archive_progress) -> this.download(
+        file,
+        base,
+        arch,
+        release,
+        archive_file,
+        batch_options,
+        Optional.of(archive_progress)));
+  }
+
+  /**
+   * Download an archive. The archive is written to {@code target}, which is
+   * either {@code file}, or a temporary file that is renamed to {@code file}
+   * once complete. If the temporary file is left absent, {@code file} is up
+   * to date.
+   */
+
+  private void downloadArchive(
+    final Path file,
+    final Path target,
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file,
+    final JailDownloadOptions options,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    final URI uri = JailDownloads.archiveURI(base, arch, release, archive_file);
+
+    /*
+     * When downloading via a temporary file, an existing complete file is
+     * revalidated first. Leaving the temporary file absent indicates that
+     * the existing file is up to date.
+     */
+
+    if (!target.equals(file)
+      && !Files.exists(target, LinkOption.NOFOLLOW_LINKS)
+      && JailDownloads.isUnmodified(this.client, uri, file)) {
+      LOG.info("{} is up to date", file);
+      return;
+    }
+
+    final Optional<String> digest;
+    if (options.verifyDigest()) {
+      digest = Optional.of(JailReleaseManifest.digestFor(this.client, uri));
+    } else {
+      digest = Optional.empty();
+    }
+
+    final Optional<Path> cache_directory = options.cacheDirectory();
+    if (cache_directory.isPresent()) {
+      final JailDownloadCache cache =
+        JailDownloadCache.open(cache_directory.get(), this.file_copier);
+      if (cache.fetch(this.client, uri, target, digest)) {
+        LOG.info("using cached archive for {}", uri);
+        return;
+      }
+    }
+
+    final LinkedHashMap<URI, URI> mirrors = new LinkedHashMap<>(8);
+    mirrors.put(base, uri);
+    for (final URI mirror : options.mirrors()) {
+      mirrors.put(mirror, JailDownloads.archiveURI(mirror, arch, release, archive_file));
+    }
+    JailDownloadMirrors.download(
+      this.client, this.counters, mirrors, target, options, digest, progress);
+
+    /*
+     * The cache only serves to avoid downloading archives, and so a failure
+     * to add an archive to it does not fail the download.
+     */
+
+    if (cache_directory.isPresent()) {
+      try {
+        JailDownloadCache.open(cache_directory.get(), this.file_copier)
+          .store(
+            uri,
+            target,
+            JailDownloadValidators.load(target),
+            options.cacheSizeLimit());
+      } catch (final IOException e) {
+        LOG.warn("could not add {} to the download cache: {}", uri, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public JailDownloadWriteStatistics writeStatistics()
+  {
+    return this.counters.snapshot();
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if (this.closed.compareAndSet(false, true)) {
+      LOG.debug("closing download session");
+      this.client.close();
+    }
+  }
+}
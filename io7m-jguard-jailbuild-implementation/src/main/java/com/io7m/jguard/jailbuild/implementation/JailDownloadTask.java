@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>A download that runs on an executor and completes a future.</p>
+ *
+ * <p>Cancelling the future interrupts the thread running the download, if
+ * the download has started, and the download stops at its next read from
+ * the network. A download that is cancelled before it starts never runs.
+ * The interrupt is never delivered after the download has finished, and so
+ * cannot leak into other tasks that later run on the same thread.</p>
+ */
+
+final class JailDownloadTask implements Runnable
+{
+  private static final Logger LOG;
+  private static final ThreadLocal<JailDownloadTask> CURRENT;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadTask.class);
+    CURRENT = new ThreadLocal<>();
+  }
+
+  private final CompletableFuture<Void> future;
+  private final ActionType action;
+  private final Object lock;
+  private @Nullable Thread runner;
+
+  /**
+   * A blocking download action.
+   */
+
+  interface ActionType
+  {
+    /**
+     * Perform the download.
+     *
+     * @throws IOException On errors
+     */
+
+    void run()
+      throws IOException;
+  }
+
+  private JailDownloadTask(final ActionType in_action)
+  {
+    this.action = NullCheck.notNull(in_action, "Action");
+    this.future = new CompletableFuture<>();
+    this.lock = new Object();
+    this.runner = null;
+  }
+
+  /**
+   * Submit a download to an executor.
+   *
+   * @param executor The executor
+   * @param action   The download action
+   *
+   * @return A future representing the download
+   */
+
+  static CompletableFuture<Void> submit(
+    final Executor executor,
+    final ActionType action)
+  {
+    NullCheck.notNull(executor, "Executor");
+
+    final JailDownloadTask task = new JailDownloadTask(action);
+    task.future.whenComplete((ignored, error) -> {
+      if (task.future.isCancelled()) {
+        task.interrupt();
+      }
+    });
+
+    try {
+      executor.execute(task);
+    } catch (final RejectedExecutionException e) {
+      task.future.completeExceptionally(e);
+    }
+    return task.future;
+  }
+
+  /**
+   * @return {@code true} iff the calling thread is running a download task
+   * that has been cancelled
+   */
+
+  static boolean isCurrentCancelled()
+  {
+    final JailDownloadTask task = CURRENT.get();
+    return task != null && task.future.isCancelled();
+  }
+
+  private void interrupt()
+  {
+    synchronized (this.lock) {
+      if (this.runner != null) {
+        LOG.debug("download cancelled, interrupting {}", this.runner.getName());
+        this.runner.interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    synchronized (this.lock) {
+      if (this.future.isDone()) {
+        return;
+      }
+      this.runner = Thread.currentThread();
+    }
+
+    CURRENT.set(this);
+    try {
+      this.action.run();
+      this.future.complete(null);
+    } catch (final Throwable e) {
+      this.future.completeExceptionally(e);
+    } finally {
+      synchronized (this.lock) {
+        this.runner = null;
+      }
+      CURRENT.remove();
+
+      /*
+       * Clear any interrupt delivered by a cancellation so that the thread
+       * can be reused by the executor.
+       */
+
+      Thread.interrupted();
+    }
+  }
+}
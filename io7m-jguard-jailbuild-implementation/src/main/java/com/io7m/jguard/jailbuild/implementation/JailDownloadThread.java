@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * A thread that downloads a file into a pipe, optionally copying the file to
+ * disk as it is downloaded.
+ */
+
+final class JailDownloadThread extends Thread
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadThread.class);
+  }
+
+  private final CloseableHttpClient client;
+  private final URI uri;
+  private final JailBoundedPipe pipe;
+  private final Optional<Path> copy;
+  private final Optional<JailDownloadProgressType> progress;
+  private volatile @Nullable IOException error;
+
+  /**
+   * Construct a download thread.
+   *
+   * @param in_client   The HTTP client
+   * @param in_uri      The remote file
+   * @param in_pipe     The pipe that will receive the file
+   * @param in_copy     The file to which the downloaded data will be copied,
+   *                    if any
+   * @param in_progress An optional progress receiver
+   */
+
+  JailDownloadThread(
+    final CloseableHttpClient in_client,
+    final URI in_uri,
+    final JailBoundedPipe in_pipe,
+    final Optional<Path> in_copy,
+    final Optional<JailDownloadProgressType> in_progress)
+  {
+    this.client = NullCheck.notNull(in_client, "Client");
+    this.uri = NullCheck.notNull(in_uri, "URI");
+    this.pipe = NullCheck.notNull(in_pipe, "Pipe");
+    this.copy = NullCheck.notNull(in_copy, "Copy");
+    this.progress = NullCheck.notNull(in_progress, "Progress");
+    this.setName("jguard-download-" + this.getId());
+    this.setDaemon(true);
+  }
+
+  @Override
+  public void run()
+  {
+    try {
+      if (this.copy.isPresent()) {
+        this.runCopy(this.copy.get());
+      } else {
+        final OutputStream output = this.pipe.output();
+        JailDownloads.downloadToStream(
+          this.client, this.uri, output, this.progress);
+        output.close();
+      }
+    } catch (final IOException e) {
+      this.onFailure(e);
+    } catch (final RuntimeException e) {
+      this.onFailure(new IOException(e));
+    }
+  }
+
+  private void runCopy(final Path file)
+    throws IOException
+  {
+    /*
+     * Closing the pipe output signals a clean end of stream to the consumer,
+     * so it is only closed once the copy is safely in place. Any earlier
+     * failure reaches the consumer through the pipe's failure path instead.
+     */
+
+    final Path file_tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    final OutputStream output = this.pipe.output();
+    try (final OutputStream file_output = Files.newOutputStream(file_tmp)) {
+      JailDownloads.downloadToStream(
+        this.client,
+        this.uri,
+        new TeeOutputStream(output, file_output),
+        this.progress);
+    }
+
+    LOG.debug("rename: {} → {}", file_tmp, file);
+    Files.move(
+      file_tmp,
+      file,
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING);
+    output.close();
+  }
+
+  private void onFailure(final IOException e)
+  {
+    LOG.debug("download failed: ", e);
+    this.error = e;
+    this.pipe.fail(e);
+  }
+
+  /**
+   * Wait for the download to finish.
+   *
+   * @throws IOException If the download failed
+   */
+
+  void finish()
+    throws IOException
+  {
+    try {
+      this.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+
+    final IOException e = this.error;
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  private static final class TeeOutputStream extends OutputStream
+  {
+    private final OutputStream first;
+    private final OutputStream second;
+
+    TeeOutputStream(
+      final OutputStream in_first,
+      final OutputStream in_second)
+    {
+      this.first = in_first;
+      this.second = in_second;
+    }
+
+    @Override
+    public void write(final int b)
+      throws IOException
+    {
+      this.first.write(b);
+      this.second.write(b);
+    }
+
+    @Override
+    public void write(
+      final byte[] buffer,
+      final int offset,
+      final int length)
+      throws IOException
+    {
+      this.first.write(buffer, offset, length);
+      this.second.write(buffer, offset, length);
+    }
+
+    @Override
+    public void flush()
+      throws IOException
+    {
+      this.first.flush();
+      this.second.flush();
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      try {
+        this.first.close();
+      } finally {
+        this.second.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+
+/**
+ * <p>The HTTP validators ({@code ETag} and {@code Last-Modified}) of a
+ * downloaded file.</p>
+ *
+ * <p>The validators are stored in a file next to the downloaded file, and
+ * are used to make conditional requests: A complete file is revalidated with
+ * {@code If-None-Match} and {@code If-Modified-Since}, so that an unchanged
+ * remote file costs a single {@code 304} response, and a partial file is
+ * resumed with {@code If-Range}, so that a remote file that has changed is
+ * downloaded again in full rather than being appended to the stale
+ * prefix.</p>
+ *
+ * <p>Validators are only meaningful to the server that issued them, and so
+ * the URI from which they were received is recorded alongside them.
+ * Validators are not used for requests to any other URI, such as when a
+ * download moves to a different mirror.</p>
+ */
+
+final class JailDownloadValidators
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadValidators.class);
+  }
+
+  private final URI uri;
+  private final Optional<String> etag;
+  private final Optional<String> last_modified;
+  private final long size;
+
+  private JailDownloadValidators(
+    final URI in_uri,
+    final Optional<String> in_etag,
+    final Optional<String> in_last_modified,
+    final long in_size)
+  {
+    this.uri = NullCheck.notNull(in_uri, "URI");
+    this.etag = NullCheck.notNull(in_etag, "ETag");
+    this.last_modified = NullCheck.notNull(in_last_modified, "Last modified");
+    this.size = in_size;
+  }
+
+  private static Path validatorsFile(final Path file)
+  {
+    return file.resolveSibling(file.getFileName() + ".validators");
+  }
+
+  /**
+   * @return The URI from which the validators were received
+   */
+
+  URI uri()
+  {
+    return this.uri;
+  }
+
+  /**
+   * @return The size of the remote file when the validators were recorded
+   */
+
+  long size()
+  {
+    return this.size;
+  }
+
+  /**
+   * Load the validators recorded for {@code file}, if any.
+   *
+   * @param file The downloaded file
+   *
+   * @return The validators, or nothing if none are recorded or the recorded
+   * validators are unusable
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static Optional<JailDownloadValidators> load(final Path file)
+    throws IOException
+  {
+    final Path file_validators = validatorsFile(file);
+    if (!Files.exists(file_validators, LinkOption.NOFOLLOW_LINKS)) {
+      return Optional.empty();
+    }
+
+    final Properties props = new Properties();
+    try (final InputStream stream = Files.newInputStream(file_validators)) {
+      props.load(stream);
+    }
+
+    final Optional<JailDownloadValidators> validators =
+      fromProperties(props, "");
+    if (!validators.isPresent()) {
+      LOG.warn("unusable validators {}; ignoring them", file_validators);
+    }
+    return validators;
+  }
+
+  /**
+   * Load the validators recorded for {@code file}, if any, for use in
+   * requests to {@code uri}.
+   *
+   * @param file The downloaded file
+   * @param uri  The URI to which requests will be made
+   *
+   * @return The validators, or nothing if none are recorded, the recorded
+   * validators are unusable, or the recorded validators were received from a
+   * URI other than {@code uri}
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static Optional<JailDownloadValidators> load(
+    final Path file,
+    final URI uri)
+    throws IOException
+  {
+    final Optional<JailDownloadValidators> validators = load(file);
+    if (validators.isPresent() && !validators.get().uri.equals(uri)) {
+      LOG.debug(
+        "validators for {} were received from {}, not {}; ignoring them",
+        file,
+        validators.get().uri,
+        uri);
+      return Optional.empty();
+    }
+    return validators;
+  }
+
+  /**
+   * Parse validators from properties written by {@link
+   * #toProperties(Properties, String)}.
+   *
+   * @param props  The properties
+   * @param prefix The prefix of each property name
+   *
+   * @return The validators, or nothing if the properties do not hold usable
+   * validators
+   */
+
+  static Optional<JailDownloadValidators> fromProperties(
+    final Properties props,
+    final String prefix)
+  {
+    final String uri_text = props.getProperty(prefix + "uri");
+    final String size_text = props.getProperty(prefix + "size");
+    final Optional<String> etag =
+      Optional.ofNullable(props.getProperty(prefix + "etag"));
+    final Optional<String> last_modified =
+      Optional.ofNullable(props.getProperty(prefix + "last-modified"));
+    if (uri_text == null
+      || size_text == null
+      || (!etag.isPresent() && !last_modified.isPresent())) {
+      return Optional.empty();
+    }
+
+    try {
+      return Optional.of(new JailDownloadValidators(
+        new URI(uri_text),
+        etag,
+        last_modified,
+        Long.parseUnsignedLong(size_text)));
+    } catch (final URISyntaxException | NumberFormatException e) {
+      LOG.debug("unparseable validators: ", e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Add the validators to {@code props}.
+   *
+   * @param props  The properties
+   * @param prefix The prefix of each property name
+   */
+
+  void toProperties(
+    final Properties props,
+    final String prefix)
+  {
+    props.setProperty(prefix + "uri", this.uri.toString());
+    props.setProperty(prefix + "size", Long.toUnsignedString(this.size));
+    this.etag.ifPresent(
+      value -> props.setProperty(prefix + "etag", value));
+    this.last_modified.ifPresent(
+      value -> props.setProperty(prefix + "last-modified", value));
+  }
+
+  /**
+   * Record the validators of {@code response} for {@code file}. If the
+   * response has no validators, any validators previously recorded for
+   * {@code file} are removed.
+   *
+   * @param file     The downloaded file
+   * @param uri      The URI to which the request was made
+   * @param response The response from which {@code file} is being
+   *                 downloaded
+   * @param size     The size of the remote file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void update(
+    final Path file,
+    final URI uri,
+    final HttpResponse response,
+    final long size)
+    throws IOException
+  {
+    final Optional<String> etag = header(response, "ETag");
+    final Optional<String> last_modified = header(response, "Last-Modified");
+
+    if (!etag.isPresent() && !last_modified.isPresent()) {
+      LOG.debug("server returned no validators for {}", file);
+      remove(file);
+      return;
+    }
+
+    new JailDownloadValidators(uri, etag, last_modified, size).save(file);
+  }
+
+  /**
+   * Record the validators for {@code file}, replacing any validators
+   * previously recorded for it.
+   *
+   * @param file The downloaded file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  void save(final Path file)
+    throws IOException
+  {
+    final Properties props = new Properties();
+    this.toProperties(props, "");
+
+    final Path file_validators = validatorsFile(file);
+    final Path file_validators_tmp =
+      file_validators.resolveSibling(file_validators.getFileName() + ".tmp");
+    try (final OutputStream output = Files.newOutputStream(file_validators_tmp)) {
+      props.store(output, "");
+    }
+    Files.move(
+      file_validators_tmp,
+      file_validators,
+      StandardCopyOption.ATOMIC_MOVE,
+      StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Remove any validators recorded for {@code file}.
+   *
+   * @param file The downloaded file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void remove(final Path file)
+    throws IOException
+  {
+    Files.deleteIfExists(validatorsFile(file));
+  }
+
+  /**
+   * Move the validators recorded for {@code source} so that they are
+   * recorded for {@code target}. If no validators are recorded for {@code
+   * source}, any validators recorded for {@code target} are removed.
+   *
+   * @param source The source file
+   * @param target The target file
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static void move(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    final Path source_validators = validatorsFile(source);
+    final Path target_validators = validatorsFile(target);
+    if (Files.exists(source_validators, LinkOption.NOFOLLOW_LINKS)) {
+      Files.move(
+        source_validators,
+        target_validators,
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.deleteIfExists(target_validators);
+    }
+  }
+
+  private static Optional<String> header(
+    final HttpResponse response,
+    final String name)
+  {
+    final Header header = response.getFirstHeader(name);
+    if (header == null) {
+      return Optional.empty();
+    }
+    return Optional.of(header.getValue());
+  }
+
+  /**
+   * Determine whether {@code response} could be a response for the remote
+   * file from which the validators were recorded. A response that carries
+   * no comparable validator is assumed to match.
+   *
+   * @param response A response
+   *
+   * @return {@code false} iff the response is known to be for a different
+   * version of the remote file
+   */
+
+  boolean matches(final HttpResponse response)
+  {
+    final Optional<String> response_etag = header(response, "ETag");
+    if (this.etag.isPresent() && response_etag.isPresent()) {
+      return this.etag.equals(response_etag);
+    }
+
+    final Optional<String> response_last_modified =
+      header(response, "Last-Modified");
+    if (this.last_modified.isPresent() && response_last_modified.isPresent()) {
+      return this.last_modified.equals(response_last_modified);
+    }
+    return true;
+  }
+
+  /**
+   * Add headers that make {@code request} conditional on the remote file
+   * having changed since the validators were recorded.
+   *
+   * @param request The request
+   */
+
+  void addIfModified(final HttpRequest request)
+  {
+    this.etag.ifPresent(
+      value -> request.addHeader("If-None-Match", value));
+    this.last_modified.ifPresent(
+      value -> request.addHeader("If-Modified-Since", value));
+  }
+
+  /**
+   * Add a header that makes the range of {@code request} conditional on the
+   * remote file being unchanged. Weak entity tags cannot be used with {@code
+   * If-Range}, and so the modification time is used instead if the entity
+   * tag is weak. If neither validator is usable, no header is added.
+   *
+   * @param request The request
+   */
+
+  void addIfRange(final HttpRequest request)
+  {
+    if (this.etag.isPresent() && !this.etag.get().startsWith("W/")) {
+      request.addHeader("If-Range", this.etag.get());
+    } else if (this.last_modified.isPresent()) {
+      request.addHeader("If-Range", this.last_modified.get());
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadWriteStatistics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the writes made to files by downloads. The counters may be
+ * updated concurrently by any number of threads.
+ */
+
+final class JailDownloadWriteCounters
+{
+  private final LongAdder writes;
+  private final LongAdder octets;
+  private final LongAdder syncs;
+  private final LongAccumulator largest;
+
+  JailDownloadWriteCounters()
+  {
+    this.writes = new LongAdder();
+    this.octets = new LongAdder();
+    this.syncs = new LongAdder();
+    this.largest = new LongAccumulator(Math::max, 0L);
+  }
+
+  /**
+   * Record a single write.
+   *
+   * @param size The number of octets written
+   */
+
+  void onWrite(final long size)
+  {
+    this.writes.increment();
+    this.octets.add(size);
+    this.largest.accumulate(size);
+  }
+
+  /**
+   * Record an explicit flush of written data to storage.
+   */
+
+  void onSync()
+  {
+    this.syncs.increment();
+  }
+
+  /**
+   * Add all of the counts of {@code other} to this set of counters.
+   *
+   * @param other The other counters
+   */
+
+  void addAll(final JailDownloadWriteCounters other)
+  {
+    this.writes.add(other.writes.sum());
+    this.octets.add(other.octets.sum());
+    this.syncs.add(other.syncs.sum());
+    this.largest.accumulate(other.largest.get());
+  }
+
+  /**
+   * @return A snapshot of the current values of the counters
+   */
+
+  JailDownloadWriteStatistics snapshot()
+  {
+    return JailDownloadWriteStatistics.builder()
+      .setWrites(this.writes.sum())
+      .setOctetsWritten(this.octets.sum())
+      .setWriteLargest(this.largest.get())
+      .setSyncs(this.syncs.sum())
+      .build();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadWriteStatistics;
+import com.io7m.jnull.NullCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A writer that accumulates received data in a pooled direct buffer and
+ * writes it to a file channel a whole buffer at a time.</p>
+ *
+ * <p>The size of the buffer adapts to the observed throughput: If a buffer
+ * fills in less than {@link #GROW_NANOSECONDS}, the next buffer is twice the
+ * size, and if a buffer takes longer than {@link #SHRINK_NANOSECONDS} to fill,
+ * the next buffer is half the size. Fast downloads therefore use few, large
+ * writes, and slow downloads do not hold large amounts of data in memory
+ * that has not yet been written to the file.</p>
+ *
+ * <p>Any buffered data is written when the writer is closed, including when
+ * a download fails, and so the file always contains every octet received so
+ * far. This includes downloads that fail because the thread was interrupted
+ * (by a cancellation or an attempt deadline): The interrupt status is
+ * cleared for the final write, which would otherwise fail with {@link
+ * java.nio.channels.ClosedByInterruptException}, and is restored
+ * afterwards.</p>
+ */
+
+final class JailDownloadWriter implements Closeable
+{
+  private static final Logger LOG;
+  private static final long GROW_NANOSECONDS = 100_000_000L;
+  private static final long SHRINK_NANOSECONDS = 1_000_000_000L;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloadWriter.class);
+  }
+
+  private final FileChannel channel;
+  private final long sync_interval;
+  private final JailDownloadWriteCounters counters;
+  private final JailDownloadWriteCounters counters_total;
+  private ByteBuffer buffer;
+  private long fill_start;
+  private long unsynced;
+  private boolean closed;
+
+  private JailDownloadWriter(
+    final FileChannel in_channel,
+    final long in_sync_interval,
+    final JailDownloadWriteCounters in_counters_total)
+  {
+    this.channel = NullCheck.notNull(in_channel, "Channel");
+    this.sync_interval = in_sync_interval;
+    this.counters_total = NullCheck.notNull(in_counters_total, "Counters");
+    this.counters = new JailDownloadWriteCounters();
+    this.buffer = JailDownloadBuffers.take(JailDownloadBuffers.SIZE_MINIMUM);
+    this.fill_start = System.nanoTime();
+    this.unsynced = 0L;
+    this.closed = false;
+  }
+
+  /**
+   * Create a writer that writes to the current position of {@code channel}.
+   * The writer does not close the channel.
+   *
+   * @param channel       The file channel
+   * @param sync_interval The number of octets written between explicit
+   *                      flushes to storage, or {@code 0} to never flush
+   *                      explicitly
+   * @param counters      The counters to which the writes made are added
+   *                      when the writer is closed
+   *
+   * @return A new writer
+   */
+
+  static JailDownloadWriter open(
+    final FileChannel channel,
+    final long sync_interval,
+    final JailDownloadWriteCounters counters)
+  {
+    return new JailDownloadWriter(channel, sync_interval, counters);
+  }
+
+  /**
+   * Write data. The data is copied, and so {@code data} may be reused as soon
+   * as this method returns.
+   *
+   * @param data   The data
+   * @param offset The offset of the first octet in {@code data}
+   * @param length The number of octets
+   *
+   * @throws IOException On errors
+   */
+
+  void write(
+    final byte[] data,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    int position = offset;
+    int remaining = length;
+    while (remaining > 0) {
+      final int count = Math.min(remaining, this.buffer.remaining());
+      this.buffer.put(data, position, count);
+      position += count;
+      remaining -= count;
+
+      if (!this.buffer.hasRemaining()) {
+        final long time_now = System.nanoTime();
+        this.flush();
+        this.resize(time_now - this.fill_start);
+        this.fill_start = time_now;
+      }
+    }
+  }
+
+  private void resize(final long elapsed)
+  {
+    final int capacity = this.buffer.capacity();
+    final int capacity_next;
+    if (elapsed < GROW_NANOSECONDS
+      && capacity < JailDownloadBuffers.SIZE_MAXIMUM) {
+      capacity_next = capacity * 2;
+    } else if (elapsed > SHRINK_NANOSECONDS
+      && capacity > JailDownloadBuffers.SIZE_MINIMUM) {
+      capacity_next = capacity / 2;
+    } else {
+      return;
+    }
+
+    if (LOG.isTraceEnabled()) {
+      LOG.trace(
+        "buffer filled in {}ms, resizing from {} to {} octets",
+        Long.valueOf(elapsed / 1_000_000L),
+        Integer.valueOf(capacity),
+        Integer.valueOf(capacity_next));
+    }
+
+    final ByteBuffer next = JailDownloadBuffers.take(capacity_next);
+    JailDownloadBuffers.release(this.buffer);
+    this.buffer = next;
+  }
+
+  private void flush()
+    throws IOException
+  {
+    this.buffer.flip();
+    while (this.buffer.hasRemaining()) {
+      final int written = this.channel.write(this.buffer);
+      this.counters.onWrite((long) written);
+      this.unsynced = Math.addExact(this.unsynced, (long) written);
+    }
+    this.buffer.clear();
+
+    if (this.sync_interval > 0L && this.unsynced >= this.sync_interval) {
+      this.sync();
+    }
+  }
+
+  private void sync()
+    throws IOException
+  {
+    this.channel.force(false);
+    this.counters.onSync();
+    this.unsynced = 0L;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+
+    final boolean interrupted = Thread.interrupted();
+    try {
+      this.flush();
+      if (this.sync_interval > 0L && this.unsynced > 0L) {
+        this.sync();
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+
+      JailDownloadBuffers.release(this.buffer);
+      this.counters_total.addAll(this.counters);
+
+      if (LOG.isDebugEnabled()) {
+        final JailDownloadWriteStatistics stats = this.counters.snapshot();
+        LOG.debug(
+          "wrote {} octets in {} writes (mean {}, largest {} octets), {} syncs",
+          Long.valueOf(stats.octetsWritten()),
+          Long.valueOf(stats.writes()),
+          Long.valueOf(stats.writeMean()),
+          Long.valueOf(stats.writeLargest()),
+          Long.valueOf(stats.syncs()));
+      }
+    }
+  }
+}
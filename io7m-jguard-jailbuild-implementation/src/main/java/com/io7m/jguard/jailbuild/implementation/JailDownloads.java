@@ -0,0 +1,903 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailDownloadHTTPException;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadRateLimiter;
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Functions for downloading files over HTTP.
+ */
+
+final class JailDownloads
+{
+  private static final Logger LOG;
+  private static final Pattern CONTENT_RANGE =
+    Pattern.compile("bytes\\s+(\\*|[0-9]+-[0-9]+)/([0-9]+)");
+  private static final int RECEIVE_BUFFER_SIZE = 65536;
+  private static final int HTTP_CONNECTIONS_PER_ROUTE = 16;
+  private static final int HTTP_CONNECTIONS_TOTAL = 64;
+  private static final int HTTP_CONNECT_TIMEOUT_MILLISECONDS = 30_000;
+  private static final int HTTP_SOCKET_TIMEOUT_MILLISECONDS = 60_000;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailDownloads.class);
+  }
+
+  private JailDownloads()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Create a default HTTP client. The client times out connections that
+   * cannot be established within 30 seconds, and reads that receive no data
+   * within 60 seconds.
+   *
+   * @return A new HTTP client
+   */
+
+  static CloseableHttpClient newClient()
+  {
+    final PoolingHttpClientConnectionManager connections =
+      new PoolingHttpClientConnectionManager();
+    connections.setDefaultMaxPerRoute(HTTP_CONNECTIONS_PER_ROUTE);
+    connections.setMaxTotal(HTTP_CONNECTIONS_TOTAL);
+    final RequestConfig config =
+      RequestConfig.custom()
+        .setConnectTimeout(HTTP_CONNECT_TIMEOUT_MILLISECONDS)
+        .setSocketTimeout(HTTP_SOCKET_TIMEOUT_MILLISECONDS)
+        .build();
+    return HttpClients.custom()
+      .useSystemProperties()
+      .setConnectionManager(connections)
+      .setDefaultRequestConfig(config)
+      .build();
+  }
+
+  /**
+   * @param base         The base URI
+   * @param arch         The architecture of the release
+   * @param release      The release
+   * @param archive_file The archive file
+   *
+   * @return The URI of {@code archive_file} for the given release
+   */
+
+  static URI archiveURI(
+    final URI base,
+    final String arch,
+    final String release,
+    final String archive_file)
+  {
+    final StringBuilder sb = new StringBuilder(128);
+    sb.append(base);
+    sb.append("/");
+    sb.append(arch);
+    sb.append("/");
+    sb.append(release);
+    sb.append("/");
+    sb.append(archive_file);
+
+    try {
+      return new URI(sb.toString());
+    } catch (final URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * <p>Download {@code uri} to {@code file}, resuming the download if {@code
+   * file} already contains a prefix of the remote file.</p>
+   *
+   * <p>If {@code digest_expected} is specified, the SHA-256 digest of the
+   * file is calculated as it is downloaded, and {@code file} is deleted if
+   * the digest does not match. When a download is resumed, only the existing
+   * prefix of the file is read back. Segmented downloads arrive out of order,
+   * and so are read back in full once complete.</p>
+   *
+   * <p>The HTTP validators of the remote file are recorded next to {@code
+   * file} (see {@link JailDownloadValidators}). A complete file is
+   * revalidated rather than downloaded again, and a partial file is only
+   * resumed if the remote file is unchanged.</p>
+   *
+   * @param client          The HTTP client
+   * @param counters        The counters to which writes to {@code file} are
+   *                        added
+   * @param uri             The remote file
+   * @param file            The output file
+   * @param options         The download options
+   * @param digest_expected The expected SHA-256 digest of the file, if any
+   * @param rate_minimum    The minimum acceptable number of octets per second
+   *                        for a single-stream download, or {@code 0} for no
+   *                        minimum
+   * @param progress        An optional progress receiver
+   *
+   * @throws IOException      On errors
+   * @throws TooSlowException If the download rate falls below {@code
+   *                          rate_minimum}
+   */
+
+  static void download(
+    final CloseableHttpClient client,
+    final JailDownloadWriteCounters counters,
+    final URI uri,
+    final Path file,
+    final JailDownloadOptions options,
+    final Optional<String> digest_expected,
+    final long rate_minimum,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    if (options.segments() > 1) {
+      downloadSegmented(
+        client, counters, uri, file, options, digest_expected, progress);
+      return;
+    }
+
+    final long bytes_starting = existingSize(file);
+    final Optional<MessageDigest> digest =
+      digest_expected.map(ignored -> JailDigests.newDigest());
+    if (digest.isPresent() && bytes_starting > 0L) {
+      LOG.debug("hashing existing {} octets", Long.valueOf(bytes_starting));
+      JailDigests.update(digest.get(), file);
+    }
+
+    final Optional<JailDownloadValidators> validators;
+    if (bytes_starting > 0L) {
+      validators = JailDownloadValidators.load(file, uri);
+    } else {
+      validators = Optional.empty();
+    }
+
+    try (final RangeResponse response =
+           get(client, uri, bytes_starting, validators)) {
+      if (response.complete()) {
+        LOG.debug("file already completely downloaded");
+      } else {
+        JailDownloadValidators.update(
+          file, uri, response.response, response.total);
+        receiveFile(
+          response,
+          file,
+          bytes_starting,
+          counters,
+          options,
+          digest,
+          rate_minimum,
+          progress);
+      }
+    }
+
+    if (digest_expected.isPresent()) {
+      verify(
+        file,
+        digest_expected.get(),
+        JailDigests.hex(digest.get().digest()));
+    }
+  }
+
+  private static void downloadSegmented(
+    final CloseableHttpClient client,
+    final JailDownloadWriteCounters counters,
+    final URI uri,
+    final Path file,
+    final JailDownloadOptions options,
+    final Optional<String> digest_expected,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    /*
+     * Existing content was received under the validators that were recorded
+     * before the HEAD request replaces them, and so those validators are
+     * the ones that each resumed segment must be conditional upon.
+     */
+
+    final boolean resuming = existingSize(file) > 0L;
+    final Optional<JailDownloadValidators> validators_previous =
+      JailDownloadValidators.load(file, uri);
+    final long bytes_total_expected =
+      downloadGetTotalExpectedBytes(client, uri, file);
+
+    final Optional<JailDownloadValidators> validators;
+    if (resuming) {
+      validators = validators_previous;
+    } else {
+      validators = JailDownloadValidators.load(file, uri);
+    }
+
+    JailDownloadSegmented.download(
+      client,
+      uri,
+      file,
+      bytes_total_expected,
+      validators,
+      options.segments(),
+      options.syncIntervalOctets(),
+      counters,
+      options.rateLimiter(),
+      progress);
+    if (digest_expected.isPresent()) {
+      verify(file, digest_expected.get(), JailDigests.sha256(file));
+    }
+  }
+
+  private static long existingSize(final Path file)
+    throws IOException
+  {
+    if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+      final long size = Files.size(file);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("file exists and is {} octets", Long.valueOf(size));
+      }
+      return size;
+    }
+
+    LOG.debug("file does not exist");
+    return 0L;
+  }
+
+  private static void receiveFile(
+    final RangeResponse response,
+    final Path file,
+    final long bytes_starting,
+    final JailDownloadWriteCounters counters,
+    final JailDownloadOptions options,
+    final Optional<MessageDigest> digest,
+    final long rate_minimum,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    final OpenOption[] open_options;
+    if (response.offset == bytes_starting) {
+      open_options = new OpenOption[]{
+        StandardOpenOption.WRITE,
+        StandardOpenOption.CREATE,
+      };
+    } else {
+      LOG.debug("server ignored the requested range, restarting download");
+      if (digest.isPresent()) {
+        digest.get().reset();
+      }
+      open_options = new OpenOption[]{
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.CREATE,
+      };
+    }
+
+    LOG.debug("opening {} for writing", file);
+    try (final FileChannel channel = FileChannel.open(file, open_options)) {
+      channel.position(response.offset);
+      try (final JailDownloadWriter writer = JailDownloadWriter.open(
+        channel, options.syncIntervalOctets(), counters)) {
+        receive(
+          response,
+          writer::write,
+          digest,
+          rate_minimum,
+          options.mirrorRateInterval().toNanos(),
+          options.rateLimiter(),
+          progress);
+      }
+    }
+  }
+
+  private static void verify(
+    final Path file,
+    final String digest_expected,
+    final String digest_received)
+    throws IOException
+  {
+    if (digest_expected.equals(digest_received)) {
+      LOG.debug("verified {} (SHA-256 {})", file, digest_received);
+      return;
+    }
+
+    Files.deleteIfExists(file);
+
+    final StringBuilder sb = new StringBuilder(128);
+    sb.append("Downloaded file failed verification.");
+    sb.append(System.lineSeparator());
+    sb.append("  File: ");
+    sb.append(file);
+    sb.append(System.lineSeparator());
+    sb.append("  Expected SHA-256: ");
+    sb.append(digest_expected);
+    sb.append(System.lineSeparator());
+    sb.append("  Received SHA-256: ");
+    sb.append(digest_received);
+    sb.append(System.lineSeparator());
+    throw new IOException(sb.toString());
+  }
+
+  /**
+   * Download the entirety of {@code uri} to the given stream.
+   *
+   * @param client   The HTTP client
+   * @param uri      The remote file
+   * @param output   The output stream
+   * @param progress An optional progress receiver
+   *
+   * @throws IOException On errors
+   */
+
+  static void downloadToStream(
+    final CloseableHttpClient client,
+    final URI uri,
+    final OutputStream output,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    try (final RangeResponse response =
+           get(client, uri, 0L, Optional.empty())) {
+      receive(
+        response,
+        output::write,
+        Optional.empty(),
+        0L,
+        0L,
+        Optional.empty(),
+        progress);
+    }
+  }
+
+  /**
+   * Determine whether a complete downloaded {@code file} is still identical
+   * to the remote file using a conditional request. The request is only
+   * made if validators were recorded for {@code file} and the size of
+   * {@code file} matches the recorded size.
+   *
+   * @param client The HTTP client
+   * @param uri    The remote file
+   * @param file   The downloaded file
+   *
+   * @return {@code true} iff the server indicated that the remote file has
+   * not been modified
+   *
+   * @throws IOException On errors
+   */
+
+  static boolean isUnmodified(
+    final CloseableHttpClient client,
+    final URI uri,
+    final Path file)
+    throws IOException
+  {
+    if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+      return false;
+    }
+
+    final Optional<JailDownloadValidators> validators =
+      JailDownloadValidators.load(file, uri);
+    if (!validators.isPresent()
+      || validators.get().size() != Files.size(file)) {
+      return false;
+    }
+
+    LOG.debug("revalidating {}", file);
+    return isUnmodified(client, validators.get());
+  }
+
+  /**
+   * Determine whether the remote file from which {@code validators} were
+   * received is unchanged, using a conditional request to the URI from which
+   * they were received.
+   *
+   * @param client     The HTTP client
+   * @param validators The validators
+   *
+   * @return {@code true} iff the server indicated that the remote file has
+   * not been modified
+   *
+   * @throws IOException On errors
+   */
+
+  static boolean isUnmodified(
+    final CloseableHttpClient client,
+    final JailDownloadValidators validators)
+    throws IOException
+  {
+    final URI uri = validators.uri();
+    LOG.debug("GET {} (conditional)", uri);
+    final HttpUriRequest request = new HttpGet(uri);
+    validators.addIfModified(request);
+
+    /*
+     * If the file has been modified, the response is closed without reading
+     * the entity, which discards the connection rather than transferring the
+     * whole file.
+     */
+
+    try (final CloseableHttpResponse response = client.execute(request)) {
+      final int code = response.getStatusLine().getStatusCode();
+      if (code == HttpStatus.SC_NOT_MODIFIED) {
+        return true;
+      }
+      LOG.debug(
+        "revalidation of {} returned status {}",
+        uri,
+        Integer.valueOf(code));
+      return false;
+    }
+  }
+
+  private static long downloadGetTotalExpectedBytes(
+    final CloseableHttpClient client,
+    final URI uri,
+    final Path file)
+    throws IOException
+  {
+    LOG.debug("HEAD {}", uri);
+
+    final HttpUriRequest request = new HttpHead(uri);
+    try (final CloseableHttpResponse response = client.execute(request)) {
+      final StatusLine status = response.getStatusLine();
+      final int code = status.getStatusCode();
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("HEAD {} returned {}", uri, Integer.valueOf(code));
+      }
+
+      if (code >= 400) {
+        throw httpError(
+          "Server returned an error when checking the remote file size.",
+          response);
+      }
+
+      final Header[] headers = response.getHeaders("Content-Length");
+      if (headers != null && headers.length > 0) {
+        try {
+          final long size = Long.parseUnsignedLong(headers[0].getValue());
+          JailDownloadValidators.update(file, uri, response, size);
+          return size;
+        } catch (final NumberFormatException e) {
+          LOG.error("unparseable Content-Length: ", e);
+        }
+      }
+
+      throw httpError(
+        "Server did not return a usable Content-Length when checking the remote file size.",
+        response);
+    }
+  }
+
+  static IOException httpError(
+    final String message,
+    final HttpResponse response)
+  {
+    final StatusLine status = response.getStatusLine();
+    final int code = status.getStatusCode();
+
+    final StringBuilder sb = new StringBuilder(128);
+    sb.append(message);
+    sb.append(System.lineSeparator());
+    sb.append("  Status: ");
+    sb.append(status.getReasonPhrase());
+    sb.append(System.lineSeparator());
+    sb.append("  Status code: ");
+    sb.append(code);
+    sb.append(System.lineSeparator());
+    return new JailDownloadHTTPException(sb.toString(), code);
+  }
+
+  /**
+   * A response to a request for the part of a remote file starting at a
+   * given offset.
+   */
+
+  private static final class RangeResponse implements Closeable
+  {
+    private final CloseableHttpResponse response;
+    private final @Nullable HttpEntity entity;
+    private final long offset;
+    private final long total;
+
+    RangeResponse(
+      final CloseableHttpResponse in_response,
+      final @Nullable HttpEntity in_entity,
+      final long in_offset,
+      final long in_total)
+    {
+      this.response = in_response;
+      this.entity = in_entity;
+      this.offset = in_offset;
+      this.total = in_total;
+    }
+
+    boolean complete()
+    {
+      return this.entity == null;
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      this.response.close();
+    }
+  }
+
+  /**
+   * Request the part of {@code uri} that starts at {@code bytes_starting}.
+   * The size of the remote file is taken from the {@code Content-Range} of a
+   * partial response, or the {@code Content-Length} of a complete response,
+   * so that no separate {@code HEAD} request is required. A server that
+   * ignores the requested range returns the complete file, in which case the
+   * offset of the response is {@code 0}. If {@code validators} are given, the
+   * range is requested with {@code If-Range}, and a complete file is
+   * requested with {@code If-None-Match} and {@code If-Modified-Since}. A
+   * local file that does not match the size of the remote file is
+   * downloaded again from the start.
+   */
+
+  private static RangeResponse get(
+    final CloseableHttpClient client,
+    final URI uri,
+    final long bytes_starting,
+    final Optional<JailDownloadValidators> validators)
+    throws IOException
+  {
+    LOG.debug(
+      "GET {} (starting at {} bytes)",
+      uri,
+      Long.valueOf(bytes_starting));
+
+    final boolean complete =
+      validators.isPresent() && validators.get().size() == bytes_starting;
+    final HttpUriRequest request =
+      rangeRequest(uri, bytes_starting, validators, complete);
+
+    final CloseableHttpResponse response = client.execute(request);
+    try {
+      final int code = response.getStatusLine().getStatusCode();
+
+      if (code == HttpStatus.SC_NOT_MODIFIED) {
+        return notModified(response, bytes_starting, complete);
+      }
+
+      if (code == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+        && bytes_starting > 0L) {
+        if (isRangeAtEnd(response, bytes_starting)) {
+          EntityUtils.consume(response.getEntity());
+          return new RangeResponse(
+            response, null, bytes_starting, bytes_starting);
+        }
+        response.close();
+        return get(client, uri, 0L, Optional.empty());
+      }
+
+      return received(response, code, bytes_starting);
+    } catch (final IOException | RuntimeException e) {
+      response.close();
+      throw e;
+    }
+  }
+
+  private static HttpUriRequest rangeRequest(
+    final URI uri,
+    final long bytes_starting,
+    final Optional<JailDownloadValidators> validators,
+    final boolean complete)
+  {
+    final HttpUriRequest request = new HttpGet(uri);
+    request.addHeader(
+      "Range",
+      String.format("bytes=%d-", Long.valueOf(bytes_starting)));
+
+    if (validators.isPresent()) {
+      if (complete) {
+        validators.get().addIfModified(request);
+      }
+      validators.get().addIfRange(request);
+    }
+    return request;
+  }
+
+  private static RangeResponse notModified(
+    final CloseableHttpResponse response,
+    final long bytes_starting,
+    final boolean complete)
+    throws IOException
+  {
+    if (complete) {
+      LOG.debug("remote file is not modified");
+      EntityUtils.consume(response.getEntity());
+      return new RangeResponse(
+        response, null, bytes_starting, bytes_starting);
+    }
+    throw httpError(
+      "Server returned an unexpected response when retrieving the file.",
+      response);
+  }
+
+  /**
+   * @return {@code true} iff an unsatisfiable range was requested because
+   * the local file is already the size of the remote file
+   */
+
+  private static boolean isRangeAtEnd(
+    final HttpResponse response,
+    final long bytes_starting)
+    throws IOException
+  {
+    final long total = contentRange(response, "*")[2];
+    if (total == bytes_starting) {
+      return true;
+    }
+
+    LOG.info(
+      "local file ({} octets) does not match the remote file ({} octets), restarting download",
+      Long.valueOf(bytes_starting),
+      Long.valueOf(total));
+    return false;
+  }
+
+  private static RangeResponse received(
+    final CloseableHttpResponse response,
+    final int code,
+    final long bytes_starting)
+    throws IOException
+  {
+    if (code >= 400) {
+      throw httpError(
+        "Server returned an error when attempting to retrieve the file.",
+        response);
+    }
+
+    final HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      throw httpError(
+        "Server failed to return a usable HTTP entity.",
+        response);
+    }
+
+    if (code == HttpStatus.SC_PARTIAL_CONTENT) {
+      final long[] range = contentRange(response, null);
+      if (range[0] != bytes_starting) {
+        throw httpError(
+          "Server returned a range that did not start at the requested offset.",
+          response);
+      }
+      return new RangeResponse(response, entity, range[0], range[2]);
+    }
+
+    return new RangeResponse(
+      response, entity, 0L, contentLength(response, entity));
+  }
+
+  private static long contentLength(
+    final HttpResponse response,
+    final HttpEntity entity)
+    throws IOException
+  {
+    final Header[] headers = response.getHeaders("Content-Length");
+    if (headers != null && headers.length > 0) {
+      try {
+        return Long.parseUnsignedLong(headers[0].getValue());
+      } catch (final NumberFormatException e) {
+        LOG.error("unparseable Content-Length: ", e);
+      }
+    }
+
+    final long length = entity.getContentLength();
+    if (length >= 0L) {
+      return length;
+    }
+
+    throw httpError(
+      "Server did not return a usable Content-Length when retrieving the file.",
+      response);
+  }
+
+  /**
+   * Parse a {@code Content-Range} header of the form {@code bytes S-E/T}, or
+   * {@code bytes *}{@code /T} if {@code unsatisfied} is {@code "*"}.
+   *
+   * @return The start, end, and total size
+   */
+
+  private static long[] contentRange(
+    final HttpResponse response,
+    final @Nullable String unsatisfied)
+    throws IOException
+  {
+    final Header[] headers = response.getHeaders("Content-Range");
+    if (headers != null && headers.length > 0) {
+      final Matcher matcher = CONTENT_RANGE.matcher(headers[0].getValue());
+      if (matcher.matches()) {
+        final String range = matcher.group(1);
+        final long total = Long.parseUnsignedLong(matcher.group(2));
+        if (range.equals(unsatisfied)) {
+          return new long[]{-1L, -1L, total};
+        }
+
+        final int dash = range.indexOf('-');
+        if (dash > 0) {
+          return new long[]{
+            Long.parseUnsignedLong(range.substring(0, dash)),
+            Long.parseUnsignedLong(range.substring(dash + 1)),
+            total,
+          };
+        }
+      }
+    }
+
+    throw httpError(
+      "Server did not return a usable Content-Range when retrieving the file.",
+      response);
+  }
+
+  /**
+   * An exception raised when a download is abandoned because the rate at
+   * which data is being received is too low.
+   */
+
+  static final class TooSlowException extends IOException
+  {
+    TooSlowException(
+      final long octets_per_second,
+      final long rate_minimum)
+    {
+      super(String.format(
+        "Download rate %d octets/s is below the minimum of %d octets/s",
+        Long.valueOf(octets_per_second),
+        Long.valueOf(rate_minimum)));
+    }
+  }
+
+  /**
+   * A destination for received data.
+   */
+
+  private interface SinkType
+  {
+    void write(
+      byte[] buffer,
+      int offset,
+      int length)
+      throws IOException;
+  }
+
+  private static void receive(
+    final RangeResponse range,
+    final SinkType sink,
+    final Optional<MessageDigest> digest,
+    final long rate_minimum,
+    final long rate_interval,
+    final Optional<JailDownloadRateLimiter> limiter,
+    final Optional<JailDownloadProgressType> progress)
+    throws IOException
+  {
+    final HttpEntity entity = NullCheck.notNull(range.entity, "Entity");
+    final long bytes_starting = range.offset;
+    final long bytes_total_expected = range.total;
+
+    final long bytes_now_expected = entity.getContentLength();
+    try (final InputStream stream =
+           NullCheck.notNull(entity.getContent(), "Entity content")) {
+      final byte[] buffer = new byte[RECEIVE_BUFFER_SIZE];
+      long bytes_now_received = 0L;
+      long rate_time = System.nanoTime();
+      long rate_octets = 0L;
+      try (final JailDownloadProgressSampler sampler =
+             JailDownloadProgressSampler.start(
+               bytes_total_expected, limiter, progress)) {
+        while (true) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Download interrupted");
+          }
+
+          final int r = stream.read(buffer);
+          if (r == -1) {
+            break;
+          }
+
+          sink.write(buffer, 0, r);
+          if (digest.isPresent()) {
+            digest.get().update(buffer, 0, r);
+          }
+
+          if (rate_minimum > 0L) {
+            rate_octets = Math.addExact(rate_octets, (long) r);
+            final long time_now = System.nanoTime();
+            final long elapsed = time_now - rate_time;
+            if (elapsed > 0L && elapsed >= rate_interval) {
+              final long rate =
+                (long) (((double) rate_octets * 1_000_000_000.0) / (double) elapsed);
+              if (rate < rate_minimum) {
+                throw new TooSlowException(rate, rate_minimum);
+              }
+              rate_time = time_now;
+              rate_octets = 0L;
+            }
+          }
+
+          bytes_now_received = Math.addExact(bytes_now_received, (long) r);
+          sampler.add((long) r);
+        }
+      }
+
+      final long bytes_total_received =
+        Math.addExact(bytes_starting, bytes_now_received);
+
+      if (bytes_total_received != bytes_total_expected) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("Downloaded file was truncated.");
+        sb.append(System.lineSeparator());
+        sb.append("  Expected (total): ");
+        sb.append(bytes_total_expected);
+        sb.append(" octets");
+        sb.append(System.lineSeparator());
+        sb.append("  Received (total): ");
+        sb.append(bytes_total_received);
+        sb.append(" octets");
+        sb.append(System.lineSeparator());
+        sb.append("  Expected (now): ");
+        sb.append(bytes_now_expected);
+        sb.append(" octets");
+        sb.append(System.lineSeparator());
+        sb.append("  Received (now): ");
+        sb.append(bytes_now_received);
+        sb.append(" octets");
+        sb.append(System.lineSeparator());
+        sb.append(System.lineSeparator());
+        throw new IOException(sb.toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailCopyMode;
+import com.io7m.jnull.NullCheck;
+import jnr.constants.platform.Errno;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * <p>A copier for individual files.</p>
+ *
+ * <p>In {@link JailCopyMode#JAIL_COPY_MODE_KERNEL} mode (and for files
+ * that could not be linked in {@link JailCopyMode#JAIL_COPY_MODE_HARD_LINK}
+ * mode), files on the
+ * default filesystem are copied with {@code copy_file_range} if the C
+ * library provides it. Otherwise, or if the kernel refuses to copy between
+ * the given files, the data is moved between file channels with {@link
+ * FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * Filesystems that do not support file channels fall back to {@link
+ * Files#copy(Path, Path, java.nio.file.CopyOption...)}.</p>
+ */
+
+final class JailFileCopier
+{
+  private static final Logger LOG;
+  private static final long RANGE_SIZE = 1L << 30;
+  private static final int INITIAL_MODE = 0600;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailFileCopier.class);
+  }
+
+  private final JailPOSIX posix;
+  private final Optional<JailBuild.CopyFileRangeType> copy_file_range;
+  private volatile boolean copy_file_range_usable;
+
+  /**
+   * Construct a copier.
+   *
+   * @param in_posix           The POSIX functions used to open files
+   * @param in_copy_file_range The {@code copy_file_range} function, if
+   *                           available
+   */
+
+  JailFileCopier(
+    final JailPOSIX in_posix,
+    final Optional<JailBuild.CopyFileRangeType> in_copy_file_range)
+  {
+    this.posix = NullCheck.notNull(in_posix, "POSIX");
+    this.copy_file_range =
+      NullCheck.notNull(in_copy_file_range, "Copy file range");
+    this.copy_file_range_usable = in_copy_file_range.isPresent();
+  }
+
+  /**
+   * Copy {@code source} to {@code target}, replacing {@code target} if it
+   * exists. The mode and ownership of {@code target} are not set.
+   *
+   * @param source The source file
+   * @param target The target file
+   * @param mode   The copy mode
+   *
+   * @throws IOException On errors
+   */
+
+  void copy(
+    final Path source,
+    final Path target,
+    final JailCopyMode mode)
+    throws IOException
+  {
+    switch (mode) {
+      case JAIL_COPY_MODE_STREAM: {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return;
+      }
+      case JAIL_COPY_MODE_KERNEL:
+      case JAIL_COPY_MODE_HARD_LINK: {
+        if (this.copyFileRangeUsable(source, target)) {
+          if (this.copyFileRange(source, target)) {
+            return;
+          }
+        }
+        if (transfer(source, target)) {
+          return;
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        return;
+      }
+    }
+  }
+
+  private boolean copyFileRangeUsable(
+    final Path source,
+    final Path target)
+  {
+    return this.copy_file_range_usable
+      && this.posix.posix().isNative()
+      && Objects.equals(source.getFileSystem(), FileSystems.getDefault())
+      && Objects.equals(target.getFileSystem(), FileSystems.getDefault());
+  }
+
+  private static boolean isUnsupported(
+    final int errno)
+  {
+    return errno == Errno.ENOSYS.intValue()
+      || errno == Errno.EXDEV.intValue()
+      || errno == Errno.EINVAL.intValue()
+      || errno == Errno.EOPNOTSUPP.intValue();
+  }
+
+  private boolean copyFileRange(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    final JailBuild.CopyFileRangeType function = this.copy_file_range.get();
+    final String source_s = source.toString();
+    final String target_s = target.toString();
+
+    final int fd_in = this.posix.openRead(source_s);
+    try {
+      final int fd_out = this.posix.openTruncate(target_s, INITIAL_MODE);
+      try {
+        long copied = 0L;
+        while (true) {
+          final long r =
+            function.copy_file_range(fd_in, null, fd_out, null, RANGE_SIZE, 0);
+          if (r == 0L) {
+            return true;
+          }
+
+          if (r < 0L) {
+            final int errno = this.posix.posix().errno();
+            if (copied == 0L && isUnsupported(errno)) {
+              if (errno == Errno.ENOSYS.intValue()) {
+                LOG.debug("copy_file_range is not supported by the kernel");
+                this.copy_file_range_usable = false;
+              }
+              return false;
+            }
+            this.posix.check(
+              "copy_file_range", target_s, "Could not copy file", -1, errno);
+          }
+          copied = copied + r;
+        }
+      } finally {
+        this.posix.close(fd_out, target_s);
+      }
+    } finally {
+      this.posix.close(fd_in, source_s);
+    }
+  }
+
+  private static boolean transfer(
+    final Path source,
+    final Path target)
+    throws IOException
+  {
+    try (final FileChannel input =
+           FileChannel.open(source, StandardOpenOption.READ)) {
+      try (final FileChannel output =
+             FileChannel.open(
+               target,
+               StandardOpenOption.WRITE,
+               StandardOpenOption.CREATE,
+               StandardOpenOption.TRUNCATE_EXISTING)) {
+        final long size = input.size();
+        long position = 0L;
+        while (position < size) {
+          final long r = input.transferTo(position, size - position, output);
+          if (r <= 0L) {
+            break;
+          }
+          position = position + r;
+        }
+        return true;
+      }
+    } catch (final UnsupportedOperationException e) {
+      LOG.debug("file channels are not supported: {}", e.getMessage());
+      return false;
+    }
+  }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import jnr.constants.platform.OpenFlags;
+import jnr.posix.POSIX;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Checked wrappers around the POSIX functions used to set file metadata.
+ */
+
+final class JailPOSIX
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailPOSIX.class);
+  }
+
+  private final POSIX posix;
+  private final JailBuild.StrErrorType strerror;
+
+  /**
+   * Construct a set of wrappers.
+   *
+   * @param in_posix    A POSIX interface
+   * @param in_strerror An interface to {@code strerror}
+   */
+
+  JailPOSIX(
+    final POSIX in_posix,
+    final JailBuild.StrErrorType in_strerror)
+  {
+    this.posix = NullCheck.notNull(in_posix, "POSIX");
+    this.strerror = NullCheck.notNull(in_strerror, "Strerror");
+  }
+
+  /**
+   * @return The underlying POSIX interface
+   */
+
+  POSIX posix()
+  {
+    return this.posix;
+  }
+
+  /**
+   * Raise an exception if {@code code} indicates that a function failed.
+   *
+   * @param function The function name
+   * @param name     The file name
+   * @param message  The error message
+   * @param code     The function return value
+   * @param errno    The value of {@code errno} after the function returned
+   *
+   * @throws IOException If {@code code == -1}
+   */
+
+  void check(
+    final String function,
+    final String name,
+    final String message,
+    final int code,
+    final int errno)
+    throws IOException
+  {
+    if (code == -1) {
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append(message);
+      sb.append(System.lineSeparator());
+      sb.append("  Function:   ");
+      sb.append(function);
+      sb.append(System.lineSeparator());
+      sb.append("  Name:       ");
+      sb.append(name);
+      sb.append(System.lineSeparator());
+      sb.append("  Error code: ");
+      sb.append(code);
+      sb.append(System.lineSeparator());
+      sb.append("  Message:    ");
+      sb.append(this.strerror.strerror(errno));
+      sb.append(System.lineSeparator());
+      throw new IOException(sb.toString());
+    }
+  }
+
+  /**
+   * Set the mode of a symbolic link.
+   *
+   * @param mode   The mode
+   * @param path_s The path
+   *
+   * @throws IOException On errors
+   */
+
+  void chmodLink(
+    final int mode,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "lchmod {} (mode {})",
+        path_s,
+        Integer.toOctalString(mode));
+    }
+
+    final int r = this.posix.lchmod(path_s, mode);
+    final int errno = this.posix.errno();
+    this.check("lchmod", path_s, "Could not set link mode", r, errno);
+  }
+
+  /**
+   * Set the owner of a symbolic link.
+   *
+   * @param uid    The user ID
+   * @param gid    The group ID
+   * @param path_s The path
+   *
+   * @throws IOException On errors
+   */
+
+  void chownLink(
+    final int uid,
+    final int gid,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "lchown {} (uid {} gid {})",
+        path_s,
+        Integer.valueOf(uid),
+        Integer.valueOf(gid));
+    }
+
+    final int r = this.posix.lchown(path_s, uid, gid);
+    final int errno = this.posix.errno();
+    this.check("lchown", path_s, "Could not set link owner", r, errno);
+  }
+
+  /**
+   * Set the mode of a file.
+   *
+   * @param mode   The mode
+   * @param path_s The path
+   *
+   * @throws IOException On errors
+   */
+
+  void chmod(
+    final int mode,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "chmod {} (mode {})",
+        path_s,
+        Integer.toOctalString(mode));
+    }
+
+    final int r = this.posix.chmod(path_s, mode);
+    final int errno = this.posix.errno();
+    this.check("chmod", path_s, "Could not set mode", r, errno);
+  }
+
+  /**
+   * Set the owner of a file.
+   *
+   * @param uid    The user ID
+   * @param gid    The group ID
+   * @param path_s The path
+   *
+   * @throws IOException On errors
+   */
+
+  void chown(
+    final int uid,
+    final int gid,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "chown {} (uid {} gid {})",
+        path_s,
+        Integer.valueOf(uid),
+        Integer.valueOf(gid));
+    }
+
+    final int r = this.posix.chown(path_s, uid, gid);
+    final int errno = this.posix.errno();
+    this.check("chown", path_s, "Could not set owner", r, errno);
+  }
+
+  /**
+   * Create a new file for writing. The file must not already exist.
+   *
+   * @param path_s The path
+   * @param mode   The initial mode of the file
+   *
+   * @return A file descriptor
+   *
+   * @throws IOException On errors
+   */
+
+  int openCreate(
+    final String path_s,
+    final int mode)
+    throws IOException
+  {
+    final int flags =
+      OpenFlags.O_WRONLY.intValue()
+        | OpenFlags.O_CREAT.intValue()
+        | OpenFlags.O_EXCL.intValue();
+
+    final int fd = this.posix.open(path_s, flags, mode);
+    final int errno = this.posix.errno();
+    this.check("open", path_s, "Could not create file", fd, errno);
+    return fd;
+  }
+
+  /**
+   * Create or truncate a file for writing.
+   *
+   * @param path_s The path
+   * @param mode   The initial mode of the file, if it is created
+   *
+   * @return A file descriptor
+   *
+   * @throws IOException On errors
+   */
+
+  int openTruncate(
+    final String path_s,
+    final int mode)
+    throws IOException
+  {
+    final int flags =
+      OpenFlags.O_WRONLY.intValue()
+        | OpenFlags.O_CREAT.intValue()
+        | OpenFlags.O_TRUNC.intValue();
+
+    final int fd = this.posix.open(path_s, flags, mode);
+    final int errno = this.posix.errno();
+    this.check("open", path_s, "Could not open file", fd, errno);
+    return fd;
+  }
+
+  /**
+   * Open an existing file for reading.
+   *
+   * @param path_s The path
+   *
+   * @return A file descriptor
+   *
+   * @throws IOException On errors
+   */
+
+  int openRead(
+    final String path_s)
+    throws IOException
+  {
+    final int fd = this.posix.open(path_s, OpenFlags.O_RDONLY.intValue(), 0);
+    final int errno = this.posix.errno();
+    this.check("open", path_s, "Could not open file", fd, errno);
+    return fd;
+  }
+
+  /**
+   * Write all of the given data to a file descriptor.
+   *
+   * @param fd     The file descriptor
+   * @param path_s The path (used for error messages)
+   * @param data   The data
+   * @param offset The offset of the first octet in {@code data}
+   * @param length The number of octets to write
+   *
+   * @throws IOException On errors
+   */
+
+  void writeFully(
+    final int fd,
+    final String path_s,
+    final byte[] data,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    final ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+    while (buffer.hasRemaining()) {
+      final int r = this.posix.write(fd, buffer, buffer.remaining());
+      final int errno = this.posix.errno();
+      this.check("write", path_s, "Could not write file", r, errno);
+      buffer.position(buffer.position() + r);
+    }
+  }
+
+  /**
+   * Set the owner of an open file.
+   *
+   * @param fd     The file descriptor
+   * @param uid    The user ID
+   * @param gid    The group ID
+   * @param path_s The path (used for error messages)
+   *
+   * @throws IOException On errors
+   */
+
+  void fchown(
+    final int fd,
+    final int uid,
+    final int gid,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "fchown {} (uid {} gid {})",
+        path_s,
+        Integer.valueOf(uid),
+        Integer.valueOf(gid));
+    }
+
+    final int r = this.posix.fchown(fd, uid, gid);
+    final int errno = this.posix.errno();
+    this.check("fchown", path_s, "Could not set owner", r, errno);
+  }
+
+  /**
+   * Set the mode of an open file.
+   *
+   * @param fd     The file descriptor
+   * @param mode   The mode
+   * @param path_s The path (used for error messages)
+   *
+   * @throws IOException On errors
+   */
+
+  void fchmod(
+    final int fd,
+    final int mode,
+    final String path_s)
+    throws IOException
+  {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "fchmod {} (mode {})",
+        path_s,
+        Integer.toOctalString(mode));
+    }
+
+    final int r = this.posix.fchmod(fd, mode);
+    final int errno = this.posix.errno();
+    this.check("fchmod", path_s, "Could not set mode", r, errno);
+  }
+
+  /**
+   * Set the access and modification times of an open file.
+   *
+   * @param fd     The file descriptor
+   * @param time   The time in milliseconds since the epoch
+   * @param path_s The path (used for error messages)
+   *
+   * @throws IOException On errors
+   */
+
+  void futimes(
+    final int fd,
+    final long time,
+    final String path_s)
+    throws IOException
+  {
+    final long[] timeval = {
+      Math.floorDiv(time, 1000L),
+      Math.multiplyExact(Math.floorMod(time, 1000L), 1000L),
+    };
+
+    final int r = this.posix.futimes(fd, timeval, timeval);
+    final int errno = this.posix.errno();
+    this.check("futimes", path_s, "Could not set times", r, errno);
+  }
+
+  /**
+   * Close a file descriptor.
+   *
+   * @param fd     The file descriptor
+   * @param path_s The path (used for error messages)
+   *
+   * @throws IOException On errors
+   */
+
+  void close(
+    final int fd,
+    final String path_s)
+    throws IOException
+  {
+    final int r = this.posix.close(fd);
+    final int errno = this.posix.errno();
+    this.check("close", path_s, "Could not close file", r, errno);
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.core.JailConfiguration;
+import com.io7m.jguard.jailbuild.api.JailPoolStatistics;
+import com.io7m.jguard.jailbuild.api.JailPoolType;
+import com.io7m.jnull.NullCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * <p>The default implementation of the {@link JailPoolType} interface.</p>
+ *
+ * <p>Staged roots are named {@code staged-N} inside the staging directory.
+ * The names of any files that were hard-linked into a staged root are held
+ * in memory alongside the root, and are written to the jail's links file
+ * when the root is claimed.</p>
+ *
+ * <p>Because the links are only held in memory, roots staged by an earlier
+ * pool cannot be reused: any {@code staged-N} directories found in the
+ * staging directory when a pool is constructed are deleted. Roots that are
+ * only partially staged, or that cannot be moved into place, are also
+ * deleted.</p>
+ */
+
+final class JailPool implements JailPoolType
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailPool.class);
+  }
+
+  private final Path staging;
+  private final int size;
+  private final StagerType stager;
+  private final InstallerType installer;
+  private final ExecutorService executor;
+  private final LinkedBlockingDeque<Staged> available;
+  private final AtomicInteger pending;
+  private final AtomicLong names;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong refill_failures;
+  private final AtomicBoolean closed;
+
+  /**
+   * A function that copies the base template into a new root directory.
+   */
+
+  interface StagerType
+  {
+    /**
+     * Copy the base template into {@code root}.
+     *
+     * @param root The new root directory
+     *
+     * @return The names of the files that were hard-linked rather than copied
+     *
+     * @throws IOException On errors
+     */
+
+    Collection<String> stage(Path root)
+      throws IOException;
+  }
+
+  /**
+   * A function that writes the configuration of a jail, calling {@code
+   * stager} to populate the jail's root directory.
+   */
+
+  interface InstallerType
+  {
+    /**
+     * Install a jail.
+     *
+     * @param config The jail configuration
+     * @param stager A function that populates the jail root
+     *
+     * @throws IOException On errors
+     */
+
+    void install(
+      JailConfiguration config,
+      StagerType stager)
+      throws IOException;
+  }
+
+  private static final class Staged
+  {
+    private final Path root;
+    private final Collection<String> links;
+
+    Staged(
+      final Path in_root,
+      final Collection<String> in_links)
+    {
+      this.root = in_root;
+      this.links = in_links;
+    }
+  }
+
+  /**
+   * Construct a pool and begin filling it.
+   *
+   * @param in_staging   The staging directory
+   * @param in_size      The number of roots to keep staged
+   * @param in_threads   The number of roots staged concurrently
+   * @param in_stager    A function that copies the template into a root
+   * @param in_installer A function that installs a jail
+   *
+   * @throws IOException If the staging directory cannot be read
+   */
+
+  JailPool(
+    final Path in_staging,
+    final int in_size,
+    final int in_threads,
+    final StagerType in_stager,
+    final InstallerType in_installer)
+    throws IOException
+  {
+    this.staging = NullCheck.notNull(in_staging, "Staging");
+    this.stager = NullCheck.notNull(in_stager, "Stager");
+    this.installer = NullCheck.notNull(in_installer, "Installer");
+    this.size = in_size;
+
+    this.available = new LinkedBlockingDeque<>();
+    this.pending = new AtomicInteger(0);
+    this.names = new AtomicLong(0L);
+    this.hits = new AtomicLong(0L);
+    this.misses = new AtomicLong(0L);
+    this.refill_failures = new AtomicLong(0L);
+    this.closed = new AtomicBoolean(false);
+
+    final AtomicInteger thread_count = new AtomicInteger(0);
+    this.executor = Executors.newFixedThreadPool(in_threads, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-pool-" + thread_count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    this.deleteStale();
+    this.refill();
+  }
+
+  @Override
+  public void claim(
+    final JailConfiguration config)
+    throws IOException
+  {
+    NullCheck.notNull(config, "Config");
+
+    if (this.closed.get()) {
+      throw new IllegalStateException("Pool is closed");
+    }
+
+    final Staged staged = this.available.pollFirst();
+    if (staged == null) {
+      LOG.debug("pool miss: {}", config.name().value());
+      this.misses.incrementAndGet();
+      this.refill();
+      this.installer.install(config, this.stager);
+      return;
+    }
+
+    LOG.debug("pool hit: {} ← {}", config.name().value(), staged.root);
+    this.hits.incrementAndGet();
+
+    final AtomicBoolean used = new AtomicBoolean(false);
+    try {
+      this.installer.install(config, root -> {
+        used.set(true);
+        return this.install(staged, root);
+      });
+    } catch (final IOException e) {
+      if (!used.get()) {
+        this.available.offerFirst(staged);
+      }
+      throw e;
+    }
+
+    this.refill();
+  }
+
+  private Collection<String> install(
+    final Staged staged,
+    final Path root)
+    throws IOException
+  {
+    try {
+      LOG.debug("move {} → {}", staged.root, root);
+      Files.move(staged.root, root, StandardCopyOption.ATOMIC_MOVE);
+      return staged.links;
+    } catch (final IOException e) {
+      LOG.warn(
+        "could not move staged root {}; copying the template instead: {}",
+        staged.root,
+        e.getMessage());
+      delete(staged.root);
+      return this.stager.stage(root);
+    }
+  }
+
+  @Override
+  public JailPoolStatistics statistics()
+  {
+    return JailPoolStatistics.builder()
+      .setHits(this.hits.get())
+      .setMisses(this.misses.get())
+      .setRefillFailures(this.refill_failures.get())
+      .setAvailable(this.available.size())
+      .build();
+  }
+
+  @Override
+  public void close()
+  {
+    if (this.closed.compareAndSet(false, true)) {
+      LOG.debug("closing pool {}", this.staging);
+      this.executor.shutdown();
+
+      try {
+        while (!this.executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+          LOG.trace("waiting for staging to finish");
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        this.executor.shutdownNow();
+      }
+
+      while (true) {
+        final Staged staged = this.available.pollFirst();
+        if (staged == null) {
+          break;
+        }
+        delete(staged.root);
+      }
+    }
+  }
+
+  private void refill()
+  {
+    while (!this.closed.get()) {
+      final int current = this.pending.get();
+      if (current + this.available.size() >= this.size) {
+        return;
+      }
+      if (this.pending.compareAndSet(current, current + 1)) {
+        this.executor.execute(this::refillOne);
+      }
+    }
+  }
+
+  private void refillOne()
+  {
+    final Path root = this.stagedRootName();
+    try {
+      if (this.closed.get()) {
+        return;
+      }
+      LOG.debug("staging {}", root);
+      final Collection<String> links = this.stager.stage(root);
+      if (this.closed.get()) {
+        delete(root);
+      } else {
+        this.available.offerLast(new Staged(root, links));
+      }
+    } catch (final IOException | RuntimeException e) {
+      LOG.error("could not stage jail root: {}", e.getMessage());
+      this.refill_failures.incrementAndGet();
+      delete(root);
+    } finally {
+      this.pending.decrementAndGet();
+    }
+  }
+
+  private Path stagedRootName()
+  {
+    while (true) {
+      final Path root =
+        this.staging.resolve("staged-" + this.names.incrementAndGet());
+      if (!Files.exists(root)) {
+        return root;
+      }
+    }
+  }
+
+  private void deleteStale()
+    throws IOException
+  {
+    try (final Stream<Path> files = Files.list(this.staging)) {
+      files.filter(path -> path.getFileName().toString().startsWith("staged-"))
+        .forEach(path -> {
+          LOG.debug("deleting stale staged root {}", path);
+          delete(path);
+        });
+    }
+  }
+
+  private static void delete(final Path root)
+  {
+    try (final Stream<Path> files = Files.walk(root)) {
+      final Path[] paths =
+        files.sorted(Comparator.reverseOrder()).toArray(Path[]::new);
+      for (final Path path : paths) {
+        Files.deleteIfExists(path);
+      }
+    } catch (final NoSuchFileException e) {
+      LOG.trace("staged root {} does not exist", root);
+    } catch (final IOException e) {
+      LOG.error("could not delete staged root {}: {}", root, e.getMessage());
+    }
+  }
+}
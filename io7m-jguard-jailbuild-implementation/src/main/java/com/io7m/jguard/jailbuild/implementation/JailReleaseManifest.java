@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Functions to read the {@code MANIFEST} file published alongside the
+ * archives of a FreeBSD release.</p>
+ *
+ * <p>Each line of the manifest describes one archive as a set of
+ * tab-separated fields, the first two of which are the archive file name
+ * and the SHA-256 digest of the archive.</p>
+ */
+
+final class JailReleaseManifest
+{
+  private static final Logger LOG;
+  private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+  static {
+    LOG = LoggerFactory.getLogger(JailReleaseManifest.class);
+  }
+
+  private JailReleaseManifest()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * Fetch the manifest that accompanies the archive at {@code archive}, and
+   * return the digest that it records for the archive.
+   *
+   * @param client  The HTTP client
+   * @param archive The archive URI
+   *
+   * @return The SHA-256 digest of the archive as a lowercase hexadecimal
+   * string
+   *
+   * @throws IOException If the manifest cannot be retrieved, or does not
+   *                     list the archive
+   */
+
+  static String digestFor(
+    final CloseableHttpClient client,
+    final URI archive)
+    throws IOException
+  {
+    NullCheck.notNull(client, "Client");
+    NullCheck.notNull(archive, "Archive");
+
+    final URI uri = archive.resolve("MANIFEST");
+    final String path = archive.getPath();
+    final String name = path.substring(path.lastIndexOf('/') + 1);
+
+    LOG.debug("GET {}", uri);
+    final HttpUriRequest request = new HttpGet(uri);
+    try (final CloseableHttpResponse response = client.execute(request)) {
+      final int code = response.getStatusLine().getStatusCode();
+      if (code >= 400) {
+        throw JailDownloads.httpError(
+          "Server returned an error when attempting to retrieve the release manifest.",
+          response);
+      }
+
+      final HttpEntity entity = response.getEntity();
+      if (entity == null) {
+        throw JailDownloads.httpError(
+          "Server failed to return a usable HTTP entity.",
+          response);
+      }
+
+      try (final InputStream stream =
+             NullCheck.notNull(entity.getContent(), "Entity content")) {
+        final Map<String, String> digests = parse(stream);
+        final String digest = digests.get(name);
+        if (digest == null) {
+          throw new IOException(
+            String.format("Release manifest %s does not list %s", uri, name));
+        }
+        return digest;
+      }
+    }
+  }
+
+  /**
+   * Parse a manifest.
+   *
+   * @param stream The manifest
+   *
+   * @return The SHA-256 digest of each archive, by archive file name
+   *
+   * @throws IOException On errors
+   */
+
+  static Map<String, String> parse(
+    final InputStream stream)
+    throws IOException
+  {
+    final Map<String, String> digests = new HashMap<>(8);
+    final BufferedReader reader =
+      new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+
+    while (true) {
+      final String line = reader.readLine();
+      if (line == null) {
+        break;
+      }
+
+      final String[] fields = line.split("\t");
+      if (fields.length < 2) {
+        continue;
+      }
+
+      final String digest = fields[1].trim().toLowerCase(Locale.ROOT);
+      if (!SHA256.matcher(digest).matches()) {
+        LOG.debug("ignoring unparseable manifest line: {}", line);
+        continue;
+      }
+      digests.put(fields[0].trim(), digest);
+    }
+    return digests;
+  }
+}
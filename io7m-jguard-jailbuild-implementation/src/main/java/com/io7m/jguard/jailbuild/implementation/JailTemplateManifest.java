@@ -0,0 +1,213 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.junreachable.UnreachableCodeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Functions to read and write base template manifests.</p>
+ *
+ * <p>A manifest records every entry of a base template so that jails can be
+ * created without walking the template and calling {@code stat} on every
+ * file. The manifest is stored in a file named {@code base_template.manifest}
+ * next to the template, and records the modification time of the template's
+ * root directory at the time that the template was scanned. A manifest is
+ * ignored if the modification time of the root directory has changed since,
+ * or if the manifest was written by an incompatible version.</p>
+ */
+
+final class JailTemplateManifest
+{
+  private static final Logger LOG;
+  private static final int MAGIC = 0x4A474D46;
+  private static final int VERSION = 1;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailTemplateManifest.class);
+  }
+
+  private JailTemplateManifest()
+  {
+    throw new UnreachableCodeException();
+  }
+
+  /**
+   * @param base_template The base template
+   *
+   * @return The manifest file for the given template
+   */
+
+  static Path file(
+    final Path base_template)
+  {
+    return base_template.resolveSibling(
+      base_template.getFileName() + ".manifest");
+  }
+
+  /**
+   * @param base_template The base template
+   *
+   * @return The current modification time of the template root
+   *
+   * @throws IOException On errors
+   */
+
+  static long rootTime(
+    final Path base_template)
+    throws IOException
+  {
+    return Files.getLastModifiedTime(base_template)
+      .to(TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Write a manifest for {@code base_template}.
+   *
+   * @param base_template The base template
+   * @param root_time     The modification time of the template root, taken
+   *                      before the template was scanned
+   * @param entries       The entries of the template
+   *
+   * @throws IOException On errors
+   */
+
+  static void write(
+    final Path base_template,
+    final long root_time,
+    final List<JailTreeEntry> entries)
+    throws IOException
+  {
+    NullCheck.notNull(base_template, "Base template");
+    NullCheck.notNull(entries, "Entries");
+
+    final Path path = file(base_template);
+    final Path path_tmp =
+      path.resolveSibling(path.getFileName() + ".tmp");
+
+    LOG.debug("write manifest: {}", path);
+    try (final DataOutputStream output = new DataOutputStream(
+      new BufferedOutputStream(Files.newOutputStream(path_tmp)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeLong(root_time);
+      output.writeInt(entries.size());
+      for (final JailTreeEntry entry : entries) {
+        output.writeUTF(entry.name());
+        output.writeByte(entry.kind().ordinal());
+        output.writeInt(entry.uid());
+        output.writeInt(entry.gid());
+        output.writeInt(entry.mode());
+        output.writeLong(entry.size());
+        final Optional<String> target = entry.target();
+        output.writeBoolean(target.isPresent());
+        if (target.isPresent()) {
+          output.writeUTF(target.get());
+        }
+      }
+    }
+
+    Files.move(path_tmp, path, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the manifest for {@code base_template}, if one exists and is up to
+   * date.
+   *
+   * @param base_template The base template
+   *
+   * @return The entries of the template, or nothing if the template must be
+   * scanned
+   *
+   * @throws IOException On errors
+   */
+
+  static Optional<List<JailTreeEntry>> read(
+    final Path base_template)
+    throws IOException
+  {
+    NullCheck.notNull(base_template, "Base template");
+
+    final Path path = file(base_template);
+    try (final DataInputStream input = new DataInputStream(
+      new BufferedInputStream(Files.newInputStream(path)))) {
+
+      if (input.readInt() != MAGIC) {
+        LOG.warn("ignoring manifest {}: not a manifest file", path);
+        return Optional.empty();
+      }
+
+      final int version = input.readInt();
+      if (version != VERSION) {
+        LOG.debug(
+          "ignoring manifest {}: unsupported version {}",
+          path,
+          Integer.valueOf(version));
+        return Optional.empty();
+      }
+
+      final long root_time = input.readLong();
+      if (root_time != rootTime(base_template)) {
+        LOG.debug("ignoring manifest {}: template has changed", path);
+        return Optional.empty();
+      }
+
+      final JailTreeEntry.Kind[] kinds = JailTreeEntry.Kind.values();
+      final int count = input.readInt();
+      final ArrayList<JailTreeEntry> entries = new ArrayList<>(count);
+      for (int index = 0; index < count; index = index + 1) {
+        final String name = input.readUTF();
+        final JailTreeEntry.Kind kind = kinds[input.readUnsignedByte()];
+        final int uid = input.readInt();
+        final int gid = input.readInt();
+        final int mode = input.readInt();
+        final long size = input.readLong();
+        final String target = input.readBoolean() ? input.readUTF() : null;
+        entries.add(
+          new JailTreeEntry(name, kind, uid, gid, mode, size, target));
+      }
+
+      LOG.debug(
+        "read manifest {}: {} entries", path, Integer.valueOf(count));
+      return Optional.of(entries);
+    } catch (final NoSuchFileException e) {
+      LOG.debug("no manifest: {}", path);
+      return Optional.empty();
+    } catch (final EOFException | ArrayIndexOutOfBoundsException e) {
+      LOG.warn("ignoring manifest {}: truncated or corrupt", path);
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jguard.jailbuild.api.JailCopyMode;
+import com.io7m.jguard.jailbuild.api.JailCreateOptions;
+import com.io7m.jnull.NullCheck;
+import jnr.posix.FileStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/**
+ * <p>A copier for directory trees such as the base template.</p>
+ *
+ * <p>The tree is first scanned into a list of entries, or the list is read
+ * from the tree's manifest if an up-to-date manifest exists. All directories are
+ * then created, after which files and symbolic links are copied (optionally
+ * in parallel on a fork/join pool). Finally, the ownership and mode of each
+ * directory is set, deepest directories first, so that restrictive directory
+ * modes cannot prevent the copying of their contents.</p>
+ *
+ * <p>In {@link JailCopyMode#JAIL_COPY_MODE_HARD_LINK} mode, files are
+ * hard-linked to the source instead of being copied, and their metadata is
+ * left untouched because it is shared with the source.</p>
+ */
+
+final class JailTreeCopier
+{
+  private static final Logger LOG;
+  private static final int TASK_ENTRIES = 64;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailTreeCopier.class);
+  }
+
+  private final JailPOSIX posix;
+  private final JailFileCopier file_copier;
+
+  /**
+   * Construct a copier.
+   *
+   * @param in_posix       The POSIX functions used to read and set file
+   *                       metadata
+   * @param in_file_copier The copier used to copy file contents
+   */
+
+  JailTreeCopier(
+    final JailPOSIX in_posix,
+    final JailFileCopier in_file_copier)
+  {
+    this.posix = NullCheck.notNull(in_posix, "POSIX");
+    this.file_copier = NullCheck.notNull(in_file_copier, "File copier");
+  }
+
+  /**
+   * Read the entries of the tree {@code source} from its manifest, or scan
+   * the tree if it has no up-to-date manifest.
+   *
+   * @param source The source directory
+   *
+   * @return The entries in the tree
+   *
+   * @throws IOException On errors
+   */
+
+  List<JailTreeEntry> entries(
+    final Path source)
+    throws IOException
+  {
+    final Optional<List<JailTreeEntry>> manifest =
+      JailTemplateManifest.read(source);
+    if (manifest.isPresent()) {
+      return manifest.get();
+    }
+    return this.scan(source);
+  }
+
+  /**
+   * Scan the tree {@code source} and write a manifest for it, so that
+   * subsequent copies of the tree do not need to scan it.
+   *
+   * @param source The source directory
+   *
+   * @throws IOException On errors
+   */
+
+  void writeManifest(
+    final Path source)
+    throws IOException
+  {
+    final long root_time = JailTemplateManifest.rootTime(source);
+    JailTemplateManifest.write(source, root_time, this.scan(source));
+  }
+
+  /**
+   * Scan the tree {@code source}. Directories always appear in the returned
+   * list before their contents.
+   *
+   * @param source The source directory
+   *
+   * @return The entries in the tree
+   *
+   * @throws IOException On errors
+   */
+
+  List<JailTreeEntry> scan(
+    final Path source)
+    throws IOException
+  {
+    final ArrayList<JailTreeEntry> entries = new ArrayList<>(256);
+
+    try (final Stream<Path> files = Files.walk(source)) {
+      files.forEach(current_file -> {
+        try {
+          final String name = source.relativize(current_file).toString();
+          if (Files.isSymbolicLink(current_file)) {
+            final Path link_target = Files.readSymbolicLink(current_file);
+            entries.add(new JailTreeEntry(
+              name,
+              JailTreeEntry.Kind.SYMBOLIC_LINK,
+              0,
+              0,
+              0,
+              0L,
+              link_target.toString()));
+          } else if (Files.isRegularFile(current_file)) {
+            final FileStat stat = this.stat(current_file);
+            entries.add(new JailTreeEntry(
+              name,
+              JailTreeEntry.Kind.FILE,
+              stat.uid(),
+              stat.gid(),
+              stat.mode(),
+              stat.st_size(),
+              null));
+          } else if (Files.isDirectory(current_file)) {
+            final FileStat stat = this.stat(current_file);
+            entries.add(new JailTreeEntry(
+              name,
+              JailTreeEntry.Kind.DIRECTORY,
+              stat.uid(),
+              stat.gid(),
+              stat.mode(),
+              0L,
+              null));
+          }
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (final UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    return entries;
+  }
+
+  private FileStat stat(
+    final Path file)
+    throws IOException
+  {
+    final String file_s = file.toString();
+    final FileStat stat = this.posix.posix().stat(file_s);
+    if (stat == null) {
+      throw new IOException("Could not stat file: " + file_s);
+    }
+    return stat;
+  }
+
+  /**
+   * Recreate the given entries of the tree {@code source} in {@code root}.
+   *
+   * @param source  The source directory
+   * @param root    The target directory
+   * @param entries The entries, with directories preceding their contents
+   * @param options The creation options
+   *
+   * @return The names of the files that were hard-linked rather than copied
+   *
+   * @throws IOException On errors
+   */
+
+  Collection<String> replay(
+    final Path source,
+    final Path root,
+    final List<JailTreeEntry> entries,
+    final JailCreateOptions options)
+    throws IOException
+  {
+    final ArrayList<JailTreeEntry> directories = new ArrayList<>(64);
+    final ArrayList<JailTreeEntry> others = new ArrayList<>(entries.size());
+    for (final JailTreeEntry entry : entries) {
+      if (entry.kind() == JailTreeEntry.Kind.DIRECTORY) {
+        directories.add(entry);
+      } else {
+        others.add(entry);
+      }
+    }
+
+    for (final JailTreeEntry entry : directories) {
+      final Path file_target = root.resolve(entry.name());
+      LOG.debug("create-directory: {}", file_target);
+      Files.createDirectories(file_target);
+    }
+
+    final ConcurrentLinkedQueue<String> linked = new ConcurrentLinkedQueue<>();
+    final JailCopyMode mode = options.copyMode();
+    final int threads = options.copyThreads();
+    if (threads > 1 && others.size() > TASK_ENTRIES) {
+      final ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new CopyTask(
+          this, source, root, mode, linked, others, 0, others.size()));
+      } catch (final UncheckedIOException e) {
+        throw e.getCause();
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      for (final JailTreeEntry entry : others) {
+        this.copyEntry(source, root, mode, linked, entry);
+      }
+    }
+
+    for (int index = directories.size() - 1; index >= 0; index = index - 1) {
+      final JailTreeEntry entry = directories.get(index);
+      final String file_s = root.resolve(entry.name()).toString();
+      this.posix.chown(entry.uid(), entry.gid(), file_s);
+      this.posix.chmod(entry.mode(), file_s);
+    }
+
+    final ArrayList<String> linked_names = new ArrayList<>(linked);
+    Collections.sort(linked_names);
+    return linked_names;
+  }
+
+  private void copyEntry(
+    final Path source,
+    final Path root,
+    final JailCopyMode mode,
+    final Collection<String> linked,
+    final JailTreeEntry entry)
+    throws IOException
+  {
+    final Path file_source = source.resolve(entry.name());
+    final Path file_target = root.resolve(entry.name());
+
+    switch (entry.kind()) {
+      case SYMBOLIC_LINK: {
+        final Path link_target =
+          file_source.getFileSystem().getPath(entry.target().get());
+        LOG.debug(
+          "copy-link: {} {} (→ {})",
+          file_source,
+          file_target,
+          link_target);
+        Files.createSymbolicLink(file_target, link_target);
+
+        /*
+         * XXX: The link should have its owner and mode set here.
+         * Unfortunately, lchmod() and friends are not available outside of BSD
+         * and the POSIX bindings don't appear to provide any way to check
+         * for support. Do nothing until this is resolved!
+         */
+
+        break;
+      }
+
+      case FILE: {
+        if (mode == JailCopyMode.JAIL_COPY_MODE_HARD_LINK) {
+          if (linkFile(file_source, file_target)) {
+            linked.add(entry.name());
+            break;
+          }
+        }
+
+        LOG.debug("copy-file: {} {}", file_source, file_target);
+        this.file_copier.copy(file_source, file_target, mode);
+
+        final String file_s = file_target.toString();
+        this.posix.chown(entry.uid(), entry.gid(), file_s);
+        this.posix.chmod(entry.mode(), file_s);
+        break;
+      }
+
+      case DIRECTORY: {
+        break;
+      }
+    }
+  }
+
+  private static boolean linkFile(
+    final Path file_source,
+    final Path file_target)
+    throws IOException
+  {
+    try {
+      LOG.debug("link-file: {} {}", file_source, file_target);
+      Files.createLink(file_target, file_source);
+      return true;
+    } catch (final FileSystemException | UnsupportedOperationException e) {
+      LOG.debug("could not link {}: {}", file_target, e.getMessage());
+      return false;
+    }
+  }
+
+  private static final class CopyTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final transient JailTreeCopier copier;
+    private final transient Path source;
+    private final transient Path root;
+    private final JailCopyMode mode;
+    private final transient Collection<String> linked;
+    private final transient List<JailTreeEntry> entries;
+    private final int start;
+    private final int end;
+
+    CopyTask(
+      final JailTreeCopier in_copier,
+      final Path in_source,
+      final Path in_root,
+      final JailCopyMode in_mode,
+      final Collection<String> in_linked,
+      final List<JailTreeEntry> in_entries,
+      final int in_start,
+      final int in_end)
+    {
+      this.copier = in_copier;
+      this.source = in_source;
+      this.root = in_root;
+      this.mode = in_mode;
+      this.linked = in_linked;
+      this.entries = in_entries;
+      this.start = in_start;
+      this.end = in_end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      final int count = this.end - this.start;
+      if (count <= TASK_ENTRIES) {
+        try {
+          for (int index = this.start; index < this.end; index = index + 1) {
+            this.copier.copyEntry(
+              this.source,
+              this.root,
+              this.mode,
+              this.linked,
+              this.entries.get(index));
+          }
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return;
+      }
+
+      final int middle = this.start + (count / 2);
+      invokeAll(
+        new CopyTask(
+          this.copier,
+          this.source,
+          this.root,
+          this.mode,
+          this.linked,
+          this.entries,
+          this.start,
+          middle),
+        new CopyTask(
+          this.copier,
+          this.source,
+          this.root,
+          this.mode,
+          this.linked,
+          this.entries,
+          middle,
+          this.end));
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+
+import java.util.Optional;
+
+/**
+ * An entry in a directory tree that will be copied.
+ */
+
+final class JailTreeEntry
+{
+  private final String name;
+  private final Kind kind;
+  private final int uid;
+  private final int gid;
+  private final int mode;
+  private final long size;
+  private final @Nullable String target;
+
+  /**
+   * Construct an entry.
+   *
+   * @param in_name   The name of the entry relative to the root of the tree
+   * @param in_kind   The kind of entry
+   * @param in_uid    The owner of the entry
+   * @param in_gid    The group of the entry
+   * @param in_mode   The mode of the entry
+   * @param in_size   The size of the entry
+   * @param in_target The target of the entry, if the entry is a symbolic link
+   */
+
+  JailTreeEntry(
+    final String in_name,
+    final Kind in_kind,
+    final int in_uid,
+    final int in_gid,
+    final int in_mode,
+    final long in_size,
+    final @Nullable String in_target)
+  {
+    this.name = NullCheck.notNull(in_name, "Name");
+    this.kind = NullCheck.notNull(in_kind, "Kind");
+    this.uid = in_uid;
+    this.gid = in_gid;
+    this.mode = in_mode;
+    this.size = in_size;
+    this.target = in_target;
+  }
+
+  /**
+   * @return The name of the entry relative to the root of the tree
+   */
+
+  String name()
+  {
+    return this.name;
+  }
+
+  /**
+   * @return The kind of entry
+   */
+
+  Kind kind()
+  {
+    return this.kind;
+  }
+
+  /**
+   * @return The owner of the entry
+   */
+
+  int uid()
+  {
+    return this.uid;
+  }
+
+  /**
+   * @return The group of the entry
+   */
+
+  int gid()
+  {
+    return this.gid;
+  }
+
+  /**
+   * @return The mode of the entry
+   */
+
+  int mode()
+  {
+    return this.mode;
+  }
+
+  /**
+   * @return The size of the entry
+   */
+
+  long size()
+  {
+    return this.size;
+  }
+
+  /**
+   * @return The target of the entry, if the entry is a symbolic link
+   */
+
+  Optional<String> target()
+  {
+    return Optional.ofNullable(this.target);
+  }
+
+  /**
+   * The kind of entry.
+   */
+
+  enum Kind
+  {
+    /**
+     * A directory.
+     */
+
+    DIRECTORY,
+
+    /**
+     * A regular file.
+     */
+
+    FILE,
+
+    /**
+     * A symbolic link.
+     */
+
+    SYMBOLIC_LINK
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>A record of the directories that have been created during a single
+ * unpacking operation.</p>
+ *
+ * <p>Directories are keyed on their archive-relative names. Creating a
+ * directory records the directory and all of its ancestors, so that later
+ * entries in the same directories do not require the filesystem to be
+ * examined again. The cache is not thread-safe.</p>
+ */
+
+final class JailUnpackDirectories
+{
+  private static final Logger LOG;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailUnpackDirectories.class);
+  }
+
+  private final Path base;
+  private final Set<String> directories;
+  private long created;
+  private long skipped;
+
+  /**
+   * Construct a cache.
+   *
+   * @param in_base The directory into which the archive is being unpacked
+   */
+
+  JailUnpackDirectories(
+    final Path in_base)
+  {
+    this.base = NullCheck.notNull(in_base, "Base");
+    this.directories = new HashSet<>(1024);
+  }
+
+  /**
+   * @return The directory into which the archive is being unpacked
+   */
+
+  Path base()
+  {
+    return this.base;
+  }
+
+  /**
+   * @return The number of directories that were created
+   */
+
+  long created()
+  {
+    return this.created;
+  }
+
+  /**
+   * @return The number of directory creations that were skipped because the
+   * directory was already known to exist
+   */
+
+  long skipped()
+  {
+    return this.skipped;
+  }
+
+  /**
+   * Create the parent directory of the archive entry {@code name}, if the
+   * directory has not already been created.
+   *
+   * @param name The archive-relative name of an entry
+   *
+   * @throws IOException On errors
+   */
+
+  void createParent(
+    final String name)
+    throws IOException
+  {
+    this.create(parentOf(normalize(name)));
+  }
+
+  /**
+   * Create the directory {@code name}, if the directory has not already been
+   * created.
+   *
+   * @param name The archive-relative name of a directory
+   *
+   * @throws IOException On errors
+   */
+
+  void create(
+    final String name)
+    throws IOException
+  {
+    final String key = normalize(name);
+    if (this.directories.contains(key)) {
+      this.skipped = this.skipped + 1L;
+      return;
+    }
+
+    final Path path = this.base.resolve(key).toAbsolutePath();
+    LOG.trace("create directory {}", path);
+    Files.createDirectories(path);
+    this.created = this.created + 1L;
+
+    String current = key;
+    while (this.directories.add(current) && !current.isEmpty()) {
+      current = parentOf(current);
+    }
+  }
+
+  /**
+   * Normalize an archive-relative name by removing any leading {@code ./}
+   * and trailing {@code /} characters.
+   *
+   * @param name The name
+   *
+   * @return The normalized name
+   */
+
+  static String normalize(
+    final String name)
+  {
+    int start = 0;
+    while (name.startsWith("./", start)) {
+      start = start + 2;
+    }
+
+    int end = name.length();
+    while (end > start && name.charAt(end - 1) == '/') {
+      end = end - 1;
+    }
+
+    if (start == 0 && end == name.length()) {
+      return name;
+    }
+    return name.substring(start, end);
+  }
+
+  private static String parentOf(
+    final String name)
+  {
+    final int index = name.lastIndexOf('/');
+    if (index < 0) {
+      return "";
+    }
+    return name.substring(0, index);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>A plan for the hard links in an archive.</p>
+ *
+ * <p>A hard link can only be created once its target exists. The plan records
+ * the names of the files that have been extracted so far; links to those
+ * files can be created immediately, and all other links are recorded in a
+ * compact list and created after the rest of the archive has been
+ * extracted.</p>
+ *
+ * <p>Files may be marked as extracted from any thread, but all other methods
+ * must be called from a single thread.</p>
+ */
+
+final class JailUnpackHardLinks
+{
+  private final Set<String> extracted;
+  private final ArrayList<Link> deferred;
+  private long immediate;
+
+  /**
+   * Construct an empty plan.
+   */
+
+  JailUnpackHardLinks()
+  {
+    this.extracted = ConcurrentHashMap.newKeySet(1024);
+    this.deferred = new ArrayList<>(256);
+  }
+
+  /**
+   * Record that the file {@code name} now exists.
+   *
+   * @param name The archive-relative name of the file
+   */
+
+  void markExtracted(
+    final String name)
+  {
+    this.extracted.add(JailUnpackDirectories.normalize(name));
+  }
+
+  /**
+   * @param name The archive-relative name of a file
+   *
+   * @return {@code true} iff the file {@code name} has been extracted
+   */
+
+  boolean isExtracted(
+    final String name)
+  {
+    return this.extracted.contains(JailUnpackDirectories.normalize(name));
+  }
+
+  /**
+   * Record that a hard link was created immediately.
+   *
+   * @param name The archive-relative name of the link
+   */
+
+  void linkedImmediately(
+    final String name)
+  {
+    this.immediate = this.immediate + 1L;
+    this.markExtracted(name);
+  }
+
+  /**
+   * Defer the creation of a hard link until the end of the archive.
+   *
+   * @param name   The archive-relative name of the link
+   * @param target The archive-relative name of the target
+   * @param uid    The owner of the link
+   * @param gid    The group of the link
+   * @param mode   The mode of the link
+   */
+
+  void defer(
+    final String name,
+    final String target,
+    final int uid,
+    final int gid,
+    final int mode)
+  {
+    this.deferred.add(new Link(name, target, uid, gid, mode));
+  }
+
+  /**
+   * @return The links that were deferred, in archive order
+   */
+
+  List<Link> deferred()
+  {
+    return Collections.unmodifiableList(this.deferred);
+  }
+
+  /**
+   * @return The number of links that were created immediately
+   */
+
+  long immediateCount()
+  {
+    return this.immediate;
+  }
+
+  /**
+   * @return The number of links that were deferred
+   */
+
+  long deferredCount()
+  {
+    return (long) this.deferred.size();
+  }
+
+  /**
+   * A deferred hard link.
+   */
+
+  static final class Link
+  {
+    private final String name;
+    private final String target;
+    private final int uid;
+    private final int gid;
+    private final int mode;
+
+    Link(
+      final String in_name,
+      final String in_target,
+      final int in_uid,
+      final int in_gid,
+      final int in_mode)
+    {
+      this.name = NullCheck.notNull(in_name, "Name");
+      this.target = NullCheck.notNull(in_target, "Target");
+      this.uid = in_uid;
+      this.gid = in_gid;
+      this.mode = in_mode;
+    }
+
+    String name()
+    {
+      return this.name;
+    }
+
+    String target()
+    {
+      return this.target;
+    }
+
+    int uid()
+    {
+      return this.uid;
+    }
+
+    int gid()
+    {
+      return this.gid;
+    }
+
+    int mode()
+    {
+      return this.mode;
+    }
+  }
+}
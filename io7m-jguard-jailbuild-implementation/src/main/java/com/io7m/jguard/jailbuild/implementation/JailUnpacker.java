@@ -0,0 +1,771 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jaffirm.core.Invariants;
+import com.io7m.jguard.jailbuild.api.JailUnpackOptions;
+import com.io7m.jguard.jailbuild.api.JailUnpackStatistics;
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>An extraction engine for tar archives.</p>
+ *
+ * <p>If more than one writer thread is requested, extraction is split into
+ * three stages: A decoder thread decompresses the archive into a bounded
+ * pipe, the calling thread parses tar headers and reads entry bodies into
+ * buffers, and a pool of writer threads writes the buffered bodies to files
+ * and sets their metadata. Otherwise, the archive is extracted on the calling
+ * thread.</p>
+ *
+ * <p>When unpacking onto the default filesystem with a native POSIX
+ * implementation, each regular file is opened exactly once and its owner,
+ * mode, and modification time are set through the open file descriptor.</p>
+ */
+
+final class JailUnpacker
+{
+  private static final Logger LOG;
+  private static final int PIPE_CHUNK_SIZE = 65536;
+  private static final int PIPE_CHUNKS = 32;
+  private static final int WRITER_BUFFERED_MAXIMUM_OCTETS = 64 * 1024 * 1024;
+  private static final int WRITER_FILE_MAXIMUM_OCTETS = 8 * 1024 * 1024;
+  private static final int WRITER_ENTRY_OVERHEAD_OCTETS = 512;
+  private static final int FILE_BUFFER_SIZE = 65536;
+  private static final int FILE_INITIAL_MODE = 0600;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailUnpacker.class);
+  }
+
+  private final JailPOSIX posix;
+  private final boolean native_posix;
+
+  /**
+   * Construct an extraction engine.
+   *
+   * @param in_posix The POSIX functions used to set file metadata
+   */
+
+  JailUnpacker(
+    final JailPOSIX in_posix)
+  {
+    this.posix = NullCheck.notNull(in_posix, "POSIX");
+    this.native_posix = in_posix.posix().isNative();
+  }
+
+  /**
+   * Unpack the tar archive in {@code stream} into {@code base}.
+   *
+   * @param stream  The decompressed archive
+   * @param base    The output directory
+   * @param options The unpacking options
+   *
+   * @return Statistics describing the unpacking operation
+   *
+   * @throws IOException On errors
+   */
+
+  JailUnpackStatistics unpack(
+    final InputStream stream,
+    final Path base,
+    final JailUnpackOptions options)
+    throws IOException
+  {
+    NullCheck.notNull(stream, "Stream");
+    NullCheck.notNull(base, "Base");
+    NullCheck.notNull(options, "Options");
+
+    final JailUnpackDirectories directories = new JailUnpackDirectories(base);
+    final JailUnpackHardLinks links = new JailUnpackHardLinks();
+    final int threads = options.writerThreads();
+    if (threads > 1) {
+      LOG.debug("unpacking with {} writer threads", Integer.valueOf(threads));
+      this.unpackPipelined(stream, directories, links, threads);
+    } else {
+      this.unpackSequential(stream, directories, links);
+    }
+
+    final JailUnpackStatistics statistics =
+      JailUnpackStatistics.builder()
+        .setDirectoriesCreated(directories.created())
+        .setDirectoriesSkipped(directories.skipped())
+        .setHardLinksImmediate(links.immediateCount())
+        .setHardLinksDeferred(links.deferredCount())
+        .build();
+
+    LOG.debug("unpack statistics: {}", statistics);
+    return statistics;
+  }
+
+  private void unpackPipelined(
+    final InputStream stream,
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links,
+    final int threads)
+    throws IOException
+  {
+    final AtomicInteger thread_count = new AtomicInteger(0);
+    final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-unpack-decoder");
+      t.setDaemon(true);
+      return t;
+    });
+    final ExecutorService writers = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-unpack-writer-" + thread_count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    try (final JailBoundedPipe pipe =
+           new JailBoundedPipe(PIPE_CHUNK_SIZE, PIPE_CHUNKS)) {
+      final Future<Void> decoded = decoder.submit(() -> {
+        try (final OutputStream output = pipe.output()) {
+          final byte[] buffer = new byte[PIPE_CHUNK_SIZE];
+          while (true) {
+            final int r = stream.read(buffer);
+            if (r == -1) {
+              break;
+            }
+            output.write(buffer, 0, r);
+          }
+        } catch (final IOException e) {
+          pipe.fail(e);
+          throw e;
+        }
+        return null;
+      });
+
+      final Writers writer_state = new Writers(writers);
+      final InputStream input = pipe.input();
+
+      try (final TarArchiveInputStream stream_tar =
+             new TarArchiveInputStream(input)) {
+        while (true) {
+          writer_state.checkFailure();
+
+          final TarArchiveEntry entry = stream_tar.getNextTarEntry();
+          if (entry == null) {
+            break;
+          }
+
+          if (!entry.isCheckSumOK()) {
+            LOG.warn("incorrect checksum for {}", entry.getName());
+          }
+
+          if (entry.isLink()) {
+            this.unpackHardLink(directories, links, entry);
+            continue;
+          }
+
+          this.unpackPipelinedEntry(
+            directories, links, stream_tar, entry, writer_state);
+        }
+
+        /*
+         * Consume any padding that follows the end of the archive so that the
+         * decoder stage can complete.
+         */
+
+        final byte[] buffer = new byte[PIPE_CHUNK_SIZE];
+        while (input.read(buffer) != -1) {
+          LOG.trace("discarding trailing archive data");
+        }
+      }
+
+      awaitDecoder(decoded);
+      writer_state.finish();
+      this.unpackDeferredHardLinks(directories, links);
+    } finally {
+      writers.shutdownNow();
+      decoder.shutdownNow();
+    }
+  }
+
+  private void unpackPipelinedEntry(
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links,
+    final TarArchiveInputStream stream_tar,
+    final TarArchiveEntry entry,
+    final Writers writer_state)
+    throws IOException
+  {
+    final long uid = entry.getLongUserId();
+    final long gid = entry.getLongGroupId();
+    final int mode = entry.getMode();
+    final String name = entry.getName();
+    final long size = entry.getSize();
+    final long mtime = entry.getModTime().getTime();
+
+    /*
+     * Directories, symbolic links, and files too large to be buffered are
+     * created directly on the parsing thread. Directories are therefore always
+     * created before any file that is submitted to the writers for them.
+     */
+
+    if (entry.isSymbolicLink()) {
+      this.unpackEntry(
+        directories, stream_tar, uid, gid, mode, name, size,
+        entry.getLinkName(), FileKind.SYMBOLIC_LINK);
+      return;
+    }
+    if (entry.isDirectory()) {
+      this.unpackEntry(
+        directories, stream_tar, uid, gid, mode, name, size,
+        null, FileKind.DIRECTORY);
+      return;
+    }
+
+    Invariants.checkInvariant(
+      entry,
+      TarArchiveEntry::isFile,
+      e -> String.format("Entry %s is a regular file", e));
+
+    if (size > WRITER_FILE_MAXIMUM_OCTETS) {
+      this.unpackFile(directories, links, stream_tar, entry);
+      return;
+    }
+
+    final Path path =
+      directories.base().resolve(name).toAbsolutePath();
+    directories.createParent(name);
+
+    final int permits = Math.max(
+      Math.toIntExact(size), WRITER_ENTRY_OVERHEAD_OCTETS);
+    writer_state.acquire(permits);
+
+    final byte[] data;
+    try {
+      data = readFully(stream_tar, Math.toIntExact(size), name);
+    } catch (final IOException e) {
+      writer_state.release(permits);
+      throw e;
+    }
+
+    writer_state.submit(permits, () -> {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(
+          "file {} (uid {} gid {} mode {} size {})",
+          path,
+          Long.valueOf(uid),
+          Long.valueOf(gid),
+          Integer.valueOf(mode),
+          Long.valueOf(size));
+      }
+
+      final String path_s = path.toString();
+      if (this.descriptors(path)) {
+        final int fd = this.posix.openCreate(path_s, FILE_INITIAL_MODE);
+        try {
+          this.posix.writeFully(fd, path_s, data, 0, data.length);
+          this.posix.fchown(fd, (int) uid, (int) gid, path_s);
+          this.posix.fchmod(fd, mode, path_s);
+          this.posix.futimes(fd, mtime, path_s);
+        } finally {
+          this.posix.close(fd, path_s);
+        }
+      } else {
+        Files.write(path, data, StandardOpenOption.CREATE_NEW);
+        checkSize(size, Files.size(path));
+        this.posix.chown((int) uid, (int) gid, path_s);
+        this.posix.chmod(mode, path_s);
+      }
+
+      links.markExtracted(name);
+    });
+  }
+
+  private static byte[] readFully(
+    final InputStream stream,
+    final int size,
+    final String name)
+    throws IOException
+  {
+    final byte[] data = new byte[size];
+    int offset = 0;
+    while (offset < size) {
+      final int r = stream.read(data, offset, size - offset);
+      if (r == -1) {
+        throw new EOFException(
+          String.format("Archive entry %s is truncated", name));
+      }
+      offset = offset + r;
+    }
+    return data;
+  }
+
+  private static void awaitDecoder(
+    final Future<Void> decoded)
+    throws IOException
+  {
+    try {
+      decoded.get();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new IOException(cause.getMessage(), cause);
+      }
+      throw new IOException(e);
+    }
+  }
+
+  private interface WriteType
+  {
+    void write()
+      throws IOException;
+  }
+
+  /**
+   * The state of the writer pool. The amount of entry data that has been
+   * read from the archive but not yet written is bounded by a semaphore.
+   */
+
+  private static final class Writers
+  {
+    private final ExecutorService executor;
+    private final Semaphore octets;
+    private final AtomicReference<Throwable> failure;
+
+    Writers(
+      final ExecutorService in_executor)
+    {
+      this.executor = NullCheck.notNull(in_executor, "Executor");
+      this.octets = new Semaphore(WRITER_BUFFERED_MAXIMUM_OCTETS);
+      this.failure = new AtomicReference<>();
+    }
+
+    void acquire(
+      final int permits)
+      throws IOException
+    {
+      try {
+        this.octets.acquire(permits);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      }
+    }
+
+    void release(
+      final int permits)
+    {
+      this.octets.release(permits);
+    }
+
+    void submit(
+      final int permits,
+      final WriteType write)
+    {
+      this.executor.execute(() -> {
+        try {
+          if (this.failure.get() == null) {
+            write.write();
+          }
+        } catch (final Throwable e) {
+          this.failure.compareAndSet(null, e);
+        } finally {
+          this.octets.release(permits);
+        }
+      });
+    }
+
+    void checkFailure()
+      throws IOException
+    {
+      final Throwable e = this.failure.get();
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+      if (e != null) {
+        throw new IOException(e.getMessage(), e);
+      }
+    }
+
+    void finish()
+      throws IOException
+    {
+      this.executor.shutdown();
+      try {
+        while (!this.executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+          LOG.trace("waiting for writers");
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      }
+      this.checkFailure();
+    }
+  }
+
+  private void unpackSequential(
+    final InputStream stream,
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links)
+    throws IOException
+  {
+    try (final TarArchiveInputStream stream_tar =
+           new TarArchiveInputStream(stream)) {
+
+      while (true) {
+        final TarArchiveEntry entry = stream_tar.getNextTarEntry();
+        if (entry == null) {
+          break;
+        }
+
+        final long uid = entry.getLongUserId();
+        final long gid = entry.getLongGroupId();
+        final int mode = entry.getMode();
+        final String name = entry.getName();
+        final long size = entry.getSize();
+
+        if (!entry.isCheckSumOK()) {
+          LOG.warn("incorrect checksum for {}", name);
+        }
+
+        String target = null;
+        FileKind kind = null;
+        if (entry.isLink()) {
+          this.unpackHardLink(directories, links, entry);
+          continue;
+        }
+
+        if (entry.isSymbolicLink()) {
+          target = entry.getLinkName();
+          kind = FileKind.SYMBOLIC_LINK;
+        } else if (entry.isFile()) {
+          this.unpackFile(directories, links, stream_tar, entry);
+          continue;
+        } else if (entry.isDirectory()) {
+          kind = FileKind.DIRECTORY;
+        }
+
+        this.unpackEntry(
+          directories,
+          stream_tar,
+          uid,
+          gid,
+          mode,
+          name,
+          size,
+          target,
+          NullCheck.notNull(kind, "File kind"));
+      }
+
+      this.unpackDeferredHardLinks(directories, links);
+    }
+  }
+
+  private void unpackHardLink(
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links,
+    final TarArchiveEntry entry)
+    throws IOException
+  {
+    Invariants.checkInvariant(
+      entry,
+      TarArchiveEntry::isLink,
+      e -> String.format("Entry %s is a hard link", e));
+
+    final String name = entry.getName();
+    final String target = entry.getLinkName();
+    final int uid = (int) entry.getLongUserId();
+    final int gid = (int) entry.getLongGroupId();
+    final int mode = entry.getMode();
+
+    if (links.isExtracted(target)) {
+      this.linkHard(directories, name, target, uid, gid, mode);
+      links.linkedImmediately(name);
+    } else {
+      links.defer(name, target, uid, gid, mode);
+    }
+  }
+
+  private void unpackDeferredHardLinks(
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links)
+    throws IOException
+  {
+    LOG.debug(
+      "completing {} deferred hard links",
+      Long.valueOf(links.deferredCount()));
+
+    for (final JailUnpackHardLinks.Link link : links.deferred()) {
+      this.linkHard(
+        directories,
+        link.name(),
+        link.target(),
+        link.uid(),
+        link.gid(),
+        link.mode());
+    }
+  }
+
+  private void linkHard(
+    final JailUnpackDirectories directories,
+    final String name,
+    final String target,
+    final int uid,
+    final int gid,
+    final int mode)
+    throws IOException
+  {
+    final Path base = directories.base();
+    final Path path = base.resolve(name).toAbsolutePath();
+    final Path target_resolved = base.resolve(target);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "hard-link {} → {} (uid {} gid {} mode {})",
+        path,
+        target_resolved,
+        Integer.valueOf(uid),
+        Integer.valueOf(gid),
+        Integer.valueOf(mode));
+    }
+
+    directories.createParent(name);
+    Files.createLink(path, target_resolved);
+
+    final String path_s = path.toString();
+    this.posix.chown(uid, gid, path_s);
+    this.posix.chmod(mode, path_s);
+  }
+
+  private boolean descriptors(
+    final Path path)
+  {
+    return this.native_posix
+      && Objects.equals(path.getFileSystem(), FileSystems.getDefault());
+  }
+
+  private void unpackFile(
+    final JailUnpackDirectories directories,
+    final JailUnpackHardLinks links,
+    final InputStream stream,
+    final TarArchiveEntry entry)
+    throws IOException
+  {
+    final Path path =
+      directories.base().resolve(entry.getName()).toAbsolutePath();
+    if (!this.descriptors(path)) {
+      this.unpackEntry(
+        directories,
+        stream,
+        entry.getLongUserId(),
+        entry.getLongGroupId(),
+        entry.getMode(),
+        entry.getName(),
+        entry.getSize(),
+        null,
+        FileKind.FILE);
+      links.markExtracted(entry.getName());
+      return;
+    }
+
+    final int uid = (int) entry.getLongUserId();
+    final int gid = (int) entry.getLongGroupId();
+    final int mode = entry.getMode();
+    final long size = entry.getSize();
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(
+        "file {} (uid {} gid {} mode {} size {})",
+        path,
+        Integer.valueOf(uid),
+        Integer.valueOf(gid),
+        Integer.valueOf(mode),
+        Long.valueOf(size));
+    }
+
+    /*
+     * Open the file once, and then write the data and set all of the file's
+     * metadata through the resulting descriptor. The number of octets written
+     * is checked directly instead of examining the size of the file afterwards.
+     */
+
+    directories.createParent(entry.getName());
+
+    final String path_s = path.toString();
+    final int fd = this.posix.openCreate(path_s, FILE_INITIAL_MODE);
+    try {
+      final byte[] buffer =
+        new byte[(int) Math.min(size, (long) FILE_BUFFER_SIZE)];
+
+      long written = 0L;
+      while (written < size) {
+        final int want = (int) Math.min((long) buffer.length, size - written);
+        final int r = stream.read(buffer, 0, want);
+        if (r == -1) {
+          break;
+        }
+        this.posix.writeFully(fd, path_s, buffer, 0, r);
+        written = written + (long) r;
+      }
+
+      checkSize(size, written);
+      this.posix.fchown(fd, uid, gid, path_s);
+      this.posix.fchmod(fd, mode, path_s);
+      this.posix.futimes(fd, entry.getModTime().getTime(), path_s);
+    } finally {
+      this.posix.close(fd, path_s);
+    }
+
+    links.markExtracted(entry.getName());
+  }
+
+  private static void checkSize(
+    final long expect_size,
+    final long result_size)
+    throws IOException
+  {
+    if (result_size != expect_size) {
+      final StringBuilder sb = new StringBuilder(128);
+      sb.append("Failed to write file.");
+      sb.append(System.lineSeparator());
+      sb.append("  Expected size:  ");
+      sb.append(expect_size);
+      sb.append(System.lineSeparator());
+      sb.append("  Resulting size: ");
+      sb.append(result_size);
+      sb.append(System.lineSeparator());
+      throw new IOException(sb.toString());
+    }
+  }
+
+  private enum FileKind
+  {
+    FILE,
+    DIRECTORY,
+    SYMBOLIC_LINK
+  }
+
+  private void unpackEntry(
+    final JailUnpackDirectories directories,
+    final InputStream stream,
+    final long uid,
+    final long gid,
+    final int mode,
+    final String name,
+    final long expect_size,
+    final @Nullable String target,
+    final FileKind kind)
+    throws IOException
+  {
+    final Path base = directories.base();
+    final Path path = base.resolve(name).toAbsolutePath();
+
+    switch (kind) {
+      case FILE: {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(
+            "file {} (uid {} gid {} mode {} size {})",
+            path,
+            Long.valueOf(uid),
+            Long.valueOf(gid),
+            Integer.valueOf(mode),
+            Long.valueOf(expect_size));
+        }
+
+        directories.createParent(name);
+        Files.copy(stream, path);
+        checkSize(expect_size, Files.size(path));
+        break;
+      }
+
+      case DIRECTORY: {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(
+            "directory {} (uid {} gid {} mode {})",
+            path,
+            Long.valueOf(uid),
+            Long.valueOf(gid),
+            Integer.valueOf(mode));
+        }
+
+        directories.create(name);
+        break;
+      }
+
+      case SYMBOLIC_LINK: {
+        final Path target_resolved = path.resolve(target);
+
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(
+            "symbolic-link {} → {} (uid {} gid {} mode {})",
+            path,
+            target_resolved,
+            Long.valueOf(uid),
+            Long.valueOf(gid),
+            Integer.valueOf(mode));
+        }
+
+        directories.createParent(name);
+        Files.createSymbolicLink(path, target_resolved);
+        break;
+      }
+    }
+
+    final String path_s = path.toString();
+    switch (kind) {
+      case FILE:
+      case DIRECTORY: {
+        this.posix.chown((int) uid, (int) gid, path_s);
+        this.posix.chmod(mode, path_s);
+        break;
+      }
+      case SYMBOLIC_LINK: {
+        /*
+         * XXX: The link should have its owner and mode set here.
+         * Unfortunately, lchmod() and friends are not available outside of BSD
+         * and the POSIX bindings don't appear to provide any way to check
+         * for support. Do nothing until this is resolved!
+         */
+
+        break;
+      }
+    }
+  }
+}
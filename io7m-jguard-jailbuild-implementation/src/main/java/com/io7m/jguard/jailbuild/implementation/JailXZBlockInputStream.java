@@ -0,0 +1,407 @@
+/*
+ * Copyright © 2016 <code@io7m.com> http://io7m.com
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR
+ * IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+
+package com.io7m.jguard.jailbuild.implementation;
+
+import com.io7m.jnull.NullCheck;
+import com.io7m.jnull.Nullable;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An input stream that decompresses a multi-block XZ file by decoding
+ * blocks in parallel on a pool of worker threads. The decoded blocks are
+ * delivered in order.</p>
+ *
+ * <p>Each worker owns a separate decoder (and therefore a separate file
+ * handle), and at most twice as many blocks as there are workers are held in
+ * memory at any one time.</p>
+ */
+
+final class JailXZBlockInputStream extends InputStream
+{
+  private static final Logger LOG;
+  private static final long BLOCK_MAXIMUM_OCTETS = 256L * 1024L * 1024L;
+
+  static {
+    LOG = LoggerFactory.getLogger(JailXZBlockInputStream.class);
+  }
+
+  private final ExecutorService executor;
+  private final BlockingQueue<SeekableXZInputStream> decoders;
+  private final ArrayList<SeekableXZInputStream> decoders_opened;
+  private final ArrayDeque<Future<byte[]>> pending;
+  private final int block_count;
+  private final int window;
+  private int block_next;
+  private @Nullable byte[] current;
+  private int current_position;
+  private boolean closed;
+
+  private JailXZBlockInputStream(
+    final Path in_file,
+    final SeekableXZInputStream in_index,
+    final int in_threads)
+    throws IOException
+  {
+    NullCheck.notNull(in_file, "File");
+    NullCheck.notNull(in_index, "Index");
+
+    this.block_count = in_index.getBlockCount();
+    this.window = Math.multiplyExact(in_threads, 2);
+    this.pending = new ArrayDeque<>(this.window);
+    this.decoders = new ArrayBlockingQueue<>(in_threads);
+    this.decoders_opened = new ArrayList<>(in_threads);
+    this.decoders.add(in_index);
+    this.decoders_opened.add(in_index);
+
+    final AtomicInteger thread_count = new AtomicInteger(0);
+    this.executor = Executors.newFixedThreadPool(in_threads, r -> {
+      final Thread t = new Thread(r);
+      t.setName("jguard-xz-" + thread_count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+
+    try {
+      for (int index = 1; index < in_threads; index = index + 1) {
+        final SeekableXZInputStream decoder = openDecoder(in_file);
+        this.decoders_opened.add(decoder);
+        this.decoders.add(decoder);
+      }
+    } catch (final IOException e) {
+      this.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Open an XZ file for reading. If the file consists of more than one block,
+   * and more than one thread is requested, the blocks of the file are decoded
+   * in parallel. Otherwise, the file is decoded with a streaming decoder on
+   * the calling thread.
+   *
+   * @param file    The file
+   * @param threads The maximum number of decoder threads
+   *
+   * @return A stream of decompressed data
+   *
+   * @throws IOException On I/O errors
+   */
+
+  static InputStream open(
+    final Path file,
+    final int threads)
+    throws IOException
+  {
+    NullCheck.notNull(file, "File");
+
+    if (threads > 1) {
+      final SeekableXZInputStream index = openDecoder(file);
+      final int blocks = index.getBlockCount();
+      final long largest = index.getLargestBlockSize();
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(
+          "{}: {} blocks (largest {} octets)",
+          file,
+          Integer.valueOf(blocks),
+          Long.valueOf(largest));
+      }
+
+      if (blocks > 1 && largest <= BLOCK_MAXIMUM_OCTETS) {
+        LOG.debug("decoding {} with {} threads", file, Integer.valueOf(threads));
+        return new JailXZBlockInputStream(
+          file, index, Math.min(threads, blocks));
+      }
+
+      LOG.debug("{}: falling back to streaming decoder", file);
+      index.close();
+    }
+
+    return new XZCompressorInputStream(
+      new BufferedInputStream(Files.newInputStream(file)));
+  }
+
+  private static SeekableXZInputStream openDecoder(
+    final Path file)
+    throws IOException
+  {
+    final SeekableByteChannel channel =
+      Files.newByteChannel(file, StandardOpenOption.READ);
+    try {
+      return new SeekableXZInputStream(new ChannelInputStream(channel));
+    } catch (final IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private byte[] decodeBlock(
+    final int block)
+    throws IOException, InterruptedException
+  {
+    final SeekableXZInputStream decoder = this.decoders.take();
+    try {
+      decoder.seekToBlock(block);
+
+      final byte[] data =
+        new byte[Math.toIntExact(decoder.getBlockSize(block))];
+
+      int offset = 0;
+      while (offset < data.length) {
+        final int r = decoder.read(data, offset, data.length - offset);
+        if (r == -1) {
+          throw new EOFException(
+            String.format("Block %d of the XZ stream is truncated",
+                          Integer.valueOf(block)));
+        }
+        offset = offset + r;
+      }
+
+      /*
+       * Read a single octet past the end of the block. This causes the
+       * decoder to verify the integrity check of the block.
+       */
+
+      final int next = decoder.read();
+      if (next == -1 && block + 1 != this.block_count) {
+        throw new EOFException("XZ stream ended early");
+      }
+      return data;
+    } finally {
+      this.decoders.put(decoder);
+    }
+  }
+
+  private void fill()
+  {
+    while (this.pending.size() < this.window
+      && this.block_next < this.block_count) {
+      final int block = this.block_next;
+      this.pending.add(this.executor.submit(() -> this.decodeBlock(block)));
+      this.block_next = block + 1;
+    }
+  }
+
+  private boolean advance()
+    throws IOException
+  {
+    while (true) {
+      final byte[] data = this.current;
+      if (data != null && this.current_position < data.length) {
+        return true;
+      }
+
+      this.fill();
+      final Future<byte[]> future = this.pending.poll();
+      if (future == null) {
+        return false;
+      }
+
+      try {
+        this.current = future.get();
+        this.current_position = 0;
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(e.getMessage());
+      } catch (final ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw new IOException(cause.getMessage(), cause);
+        }
+        throw new IOException(e);
+      }
+    }
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    final byte[] buffer = new byte[1];
+    final int r = this.read(buffer, 0, 1);
+    if (r == -1) {
+      return -1;
+    }
+    return (int) buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(
+    final byte[] buffer,
+    final int offset,
+    final int length)
+    throws IOException
+  {
+    if (this.closed) {
+      throw new IOException("Stream is closed");
+    }
+    if (length == 0) {
+      return 0;
+    }
+    if (!this.advance()) {
+      return -1;
+    }
+
+    final byte[] data = NullCheck.notNull(this.current, "Current");
+    final int count = Math.min(length, data.length - this.current_position);
+    System.arraycopy(data, this.current_position, buffer, offset, count);
+    this.current_position = this.current_position + count;
+    return count;
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    if (this.closed) {
+      return;
+    }
+
+    this.closed = true;
+    this.current = null;
+    for (final Future<byte[]> future : this.pending) {
+      future.cancel(true);
+    }
+    this.pending.clear();
+    this.executor.shutdownNow();
+
+    /*
+     * Decoders that are in use by a running task are only returned to the
+     * queue when the task finishes, and so every decoder that was opened is
+     * closed once the tasks have stopped, rather than only those that are
+     * currently in the queue.
+     */
+
+    try {
+      while (!this.executor.awaitTermination(1L, TimeUnit.SECONDS)) {
+        LOG.debug("waiting for decoder threads to stop");
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    IOException error = null;
+    for (final SeekableXZInputStream decoder : this.decoders_opened) {
+      try {
+        decoder.close();
+      } catch (final IOException e) {
+        if (error == null) {
+          error = e;
+        } else {
+          error.addSuppressed(e);
+        }
+      }
+    }
+    this.decoders.clear();
+    this.decoders_opened.clear();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private static final class ChannelInputStream extends SeekableInputStream
+  {
+    private final SeekableByteChannel channel;
+
+    ChannelInputStream(
+      final SeekableByteChannel in_channel)
+    {
+      this.channel = NullCheck.notNull(in_channel, "Channel");
+    }
+
+    @Override
+    public long length()
+      throws IOException
+    {
+      return this.channel.size();
+    }
+
+    @Override
+    public long position()
+      throws IOException
+    {
+      return this.channel.position();
+    }
+
+    @Override
+    public void seek(
+      final long position)
+      throws IOException
+    {
+      this.channel.position(position);
+    }
+
+    @Override
+    public int read()
+      throws IOException
+    {
+      final byte[] buffer = new byte[1];
+      final int r = this.read(buffer, 0, 1);
+      if (r == -1) {
+        return -1;
+      }
+      return (int) buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(
+      final byte[] buffer,
+      final int offset,
+      final int length)
+      throws IOException
+    {
+      if (length == 0) {
+        return 0;
+      }
+      return this.channel.read(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public void close()
+      throws IOException
+    {
+      this.channel.close();
+    }
+  }
+}
@@ -20,20 +20,43 @@ import com.io7m.jguard.core.JailConfiguration;
 import com.io7m.jguard.core.JailName;
 import com.io7m.jguard.jailbuild.api.JailArchiveFormat;
 import com.io7m.jguard.jailbuild.api.JailBuildType;
+import com.io7m.jguard.jailbuild.api.JailCopyMode;
+import com.io7m.jguard.jailbuild.api.JailCreateOptions;
+import com.io7m.jguard.jailbuild.api.JailCreateResult;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadBatchProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadCacheStatistics;
+import com.io7m.jguard.jailbuild.api.JailDownloadHTTPException;
+import com.io7m.jguard.jailbuild.api.JailDownloadMirrorProbe;
 import com.io7m.jguard.jailbuild.api.JailDownloadOctetsPerSecond;
+import com.io7m.jguard.jailbuild.api.JailDownloadOptions;
+import com.io7m.jguard.jailbuild.api.JailDownloadPolicy;
 import com.io7m.jguard.jailbuild.api.JailDownloadProgressType;
+import com.io7m.jguard.jailbuild.api.JailDownloadResult;
+import com.io7m.jguard.jailbuild.api.JailDownloadSessionType;
+import com.io7m.jguard.jailbuild.api.JailDownloadWriteStatistics;
+import com.io7m.jguard.jailbuild.api.JailPoolOptions;
+import com.io7m.jguard.jailbuild.api.JailPoolStatistics;
+import com.io7m.jguard.jailbuild.api.JailPoolType;
+import com.io7m.jguard.jailbuild.api.JailUnpackOptions;
+import com.io7m.jguard.jailbuild.api.JailUnpackStatistics;
 import com.io7m.jguard.jailbuild.implementation.JailBuild;
 import javaslang.collection.HashMap;
 import javaslang.collection.List;
 import javaslang.collection.Map;
 import jnr.posix.FileStat;
 import jnr.posix.POSIX;
+import jnr.posix.POSIXFactory;
 import mockit.Mock;
 import mockit.MockUp;
 import mockit.StrictExpectations;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.ProtocolVersion;
@@ -44,44 +67,69 @@ import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 import org.hamcrest.Description;
 import org.hamcrest.TypeSafeMatcher;
 import org.hamcrest.core.Is;
+import org.hamcrest.core.IsInstanceOf;
 import org.hamcrest.core.StringStartsWith;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.Inet4Address;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Random;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public final class JailBuildTest
 {
@@ -210,6 +258,7 @@ public final class JailBuildTest
       "amd64",
       "10.3-RELEASE",
       "base.txz",
+      JailDownloadOptions.builder().setSegments(2).build(),
       Optional.of(PROGRESS));
   }
 
@@ -277,6 +326,7 @@ public final class JailBuildTest
       "amd64",
       "10.3-RELEASE",
       "base.txz",
+      JailDownloadOptions.builder().setSegments(2).build(),
       Optional.of(PROGRESS));
   }
 
@@ -346,6 +396,7 @@ public final class JailBuildTest
       "amd64",
       "10.3-RELEASE",
       "base.txz",
+      JailDownloadOptions.builder().setSegments(2).build(),
       Optional.of(PROGRESS));
   }
 
@@ -666,25 +717,6 @@ public final class JailBuildTest
   public void testDownloadGetAllCorrect()
     throws Exception
   {
-    final MockUp<CloseableHttpResponse> mock_head_response =
-      new MockUp<CloseableHttpResponse>()
-      {
-        @Mock
-        public StatusLine getStatusLine()
-        {
-          return new BasicStatusLine(
-            new ProtocolVersion("HTTP", 1, 1), 200, "OK");
-        }
-
-        @Mock
-        public Header[] getHeaders(final String name)
-        {
-          return new Header[]{
-            new BasicHeader("Content-Length", "32")
-          };
-        }
-      };
-
     final Random random = new Random();
     final byte[] data = new byte[32];
     random.nextBytes(data);
@@ -725,9 +757,7 @@ public final class JailBuildTest
           final HttpUriRequest request)
           throws IOException, ClientProtocolException
         {
-          if ("HEAD".equals(request.getMethod())) {
-            return mock_head_response.getMockInstance();
-          }
+          Assert.assertEquals("GET", request.getMethod());
           return mock_get_response.getMockInstance();
         }
       }.getMockInstance();
@@ -777,25 +807,6 @@ public final class JailBuildTest
 
     Assert.assertEquals(16L, Files.size(file));
 
-    final MockUp<CloseableHttpResponse> mock_head_response =
-      new MockUp<CloseableHttpResponse>()
-      {
-        @Mock
-        public StatusLine getStatusLine()
-        {
-          return new BasicStatusLine(
-            new ProtocolVersion("HTTP", 1, 1), 200, "OK");
-        }
-
-        @Mock
-        public Header[] getHeaders(final String name)
-        {
-          return new Header[]{
-            new BasicHeader("Content-Length", "32")
-          };
-        }
-      };
-
     final MockUp<CloseableHttpResponse> mock_get_response =
       new MockUp<CloseableHttpResponse>()
       {
@@ -803,12 +814,17 @@ public final class JailBuildTest
         public StatusLine getStatusLine()
         {
           return new BasicStatusLine(
-            new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+            new ProtocolVersion("HTTP", 1, 1), 206, "Partial Content");
         }
 
         @Mock
         public Header[] getHeaders(final String name)
         {
+          if ("Content-Range".equals(name)) {
+            return new Header[]{
+              new BasicHeader("Content-Range", "bytes 16-31/32")
+            };
+          }
           return new Header[]{
             new BasicHeader("Content-Length", "16")
           };
@@ -832,9 +848,8 @@ public final class JailBuildTest
           final HttpUriRequest request)
           throws IOException, ClientProtocolException
         {
-          if ("HEAD".equals(request.getMethod())) {
-            return mock_head_response.getMockInstance();
-          }
+          Assert.assertEquals(
+            "bytes=16-", request.getFirstHeader("Range").getValue());
           return mock_get_response.getMockInstance();
         }
       }.getMockInstance();
@@ -881,36 +896,28 @@ public final class JailBuildTest
 
     Assert.assertEquals(32L, Files.size(file));
 
-    final MockUp<CloseableHttpResponse> mock_head_response =
+    final URI expected_uri =
+      URI.create(BASE_URI + "/amd64/10.3-RELEASE/base.txz");
+
+    final MockUp<CloseableHttpResponse> mock_get_response =
       new MockUp<CloseableHttpResponse>()
       {
         @Mock
         public StatusLine getStatusLine()
         {
           return new BasicStatusLine(
-            new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+            new ProtocolVersion("HTTP", 1, 1), 416, "Range Not Satisfiable");
         }
 
         @Mock
         public Header[] getHeaders(final String name)
         {
           return new Header[]{
-            new BasicHeader("Content-Length", "32")
+            new BasicHeader("Content-Range", "bytes */32")
           };
         }
       };
 
-    final MockUp<CloseableHttpResponse> mock_get_response =
-      new MockUp<CloseableHttpResponse>()
-      {
-        @Mock
-        public StatusLine getStatusLine()
-        {
-          return new BasicStatusLine(
-            new ProtocolVersion("HTTP", 1, 1), 200, "OK");
-        }
-      };
-
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
       {
@@ -919,9 +926,7 @@ public final class JailBuildTest
           final HttpUriRequest request)
           throws IOException, ClientProtocolException
         {
-          if ("HEAD".equals(request.getMethod())) {
-            return mock_head_response.getMockInstance();
-          }
+          Assert.assertThat(request, MatchesRequest.of("GET", expected_uri));
           return mock_get_response.getMockInstance();
         }
       }.getMockInstance();
@@ -955,680 +960,3212 @@ public final class JailBuildTest
   }
 
   @Test
-  public void testUnpackArchiveOK()
+  public void testDownloadSegmentedAllCorrect()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 4) + 17];
+    random.nextBytes(data);
 
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
       {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveRange(request, data, ranges);
+        }
       }.getMockInstance();
 
     final POSIX mock_posix =
       new MockUp<POSIX>()
       {
-        @Mock
-        int errno()
-        {
-          return 0;
-        }
-
-        @Mock
-        int chown(
-          final String name,
-          final int uid,
-          final int gid)
-        {
-          LOG.debug(
-            "chown: {} {} {}",
-            name,
-            Integer.valueOf(uid),
-            Integer.valueOf(gid));
-          return 0;
-        }
+      }.getMockInstance();
 
-        @Mock
-        int lchown(
-          final String name,
-          final int uid,
-          final int gid)
-        {
-          LOG.debug(
-            "lchown: {} {} {}",
-            name,
-            Integer.valueOf(uid),
-            Integer.valueOf(gid));
-          return 0;
-        }
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-        @Mock
-        int chmod(
-          final String name,
-          final int mode)
-        {
-          LOG.debug(
-            "chmod: {} {}",
-            name,
-            Integer.valueOf(mode));
+    final Path file = this.filesystem.getPath("/base.txz");
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder().setSegments(4).build(),
+      Optional.of(PROGRESS));
 
-          final String ps;
-          final Path actual = path.resolve(name);
-          if (mode == 0755) {
-            ps = "rwxr-xr-x";
-          } else if (mode == 0644) {
-            ps = "rw-r--r--";
-          } else {
-            ps = "---------";
-          }
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertEquals(4L, (long) ranges.size());
+    Assert.assertFalse(
+      Files.exists(this.filesystem.getPath("/base.txz.segments")));
+  }
 
-          try {
-            Files.setPosixFilePermissions(
-              actual, PosixFilePermissions.fromString(ps));
-          } catch (final IOException e) {
-            LOG.error("failed to set file permissions: ", e);
-            return -1;
-          }
+  @Test
+  public void testDownloadSegmentedResume()
+    throws Exception
+  {
+    final Random random = new Random();
+    final int half = 65536 * 2;
+    final byte[] data = new byte[half * 2];
+    random.nextBytes(data);
 
-          return 0;
-        }
+    final Path file = this.filesystem.getPath("/base.txz");
+    final byte[] partial = new byte[data.length];
+    System.arraycopy(data, 0, partial, 0, half + 100);
+    Files.write(file, partial);
+
+    final Properties state = new Properties();
+    state.setProperty("size", Integer.toString(data.length));
+    state.setProperty("segments", "2");
+    state.setProperty("segment.0.start", "0");
+    state.setProperty("segment.0.end", Integer.toString(half));
+    state.setProperty("segment.0.position", Integer.toString(half));
+    state.setProperty("segment.1.start", Integer.toString(half));
+    state.setProperty("segment.1.end", Integer.toString(data.length));
+    state.setProperty("segment.1.position", Integer.toString(half + 100));
+    try (final OutputStream output =
+           Files.newOutputStream(this.filesystem.getPath("/base.txz.segments"))) {
+      state.store(output, "");
+    }
 
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        int lchmod(
-          final String name,
-          final int mode)
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug(
-            "lchmod: {} {}",
-            name,
-            Integer.valueOf(mode));
-          return 0;
+          return serveRange(request, data, ranges);
         }
-
       }.getMockInstance();
 
-    final MockUp<Files> mock_files =
-      new MockUp<Files>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        @Mock
-        public InputStream newInputStream(
-          final Path path,
-          final OpenOption... options)
-          throws IOException
-        {
-          LOG.debug("newInputStream: {}", path);
-          return new MockUp<InputStream>()
-          {
+      }.getMockInstance();
 
-          }.getMockInstance();
-        }
-      };
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-    final MockUp<XZCompressorInputStream> mock_xz =
-      new MockUp<XZCompressorInputStream>()
-      {
-        public InputStream inner;
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder().setSegments(2).build(),
+      Optional.of(PROGRESS));
 
-        @Mock
-        void $init(
-          final InputStream stream)
-        {
-          LOG.debug("XZCompressorInputStream: {}", stream);
-          this.inner = stream;
-        }
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertEquals(1L, (long) ranges.size());
+    Assert.assertEquals(
+      String.format("bytes=%d-%d", half + 100, data.length - 1),
+      ranges.peek());
+  }
 
-        @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
-        {
-          LOG.debug(
-            "XZCompressorInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-          return this.inner.read(buf, offset, r);
-        }
+  @Test
+  public void testDownloadCacheHit()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        void close()
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("XZCompressorInputStream: close");
+          return serveRange(request, data, ranges);
         }
-      };
+      }.getMockInstance();
 
-    final MockUp<TarArchiveInputStream> mock_tar =
-      new MockUp<TarArchiveInputStream>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        private int entry_index;
-        private int read_count;
-        private List<TarArchiveEntry> entries;
+      }.getMockInstance();
 
-        @Mock
-        void $init(
-          final InputStream stream)
-        {
-          LOG.debug("TarArchiveInputStream: {}", stream);
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
-          entry_file.setGroupId(100);
-          entry_file.setUserId(100);
-          entry_file.setMode(0644);
-          entry_file.setSize(4);
+    final Path cache = this.filesystem.getPath("/cache");
+    final JailDownloadOptions options =
+      JailDownloadOptions.builder()
+        .setSegments(2)
+        .setCacheDirectory(cache)
+        .build();
 
-          final TarArchiveEntry entry_dir = new TarArchiveEntry("directory/");
-          entry_dir.setGroupId(100);
-          entry_dir.setUserId(100);
-          entry_dir.setMode(0755);
+    final Path file0 = this.filesystem.getPath("/base0.txz");
+    build.jailDownloadBinaryArchive(
+      file0,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
 
-          final TarArchiveEntry entry_link = new TarArchiveEntry("link") {
-            @Override
-            public boolean isFile()
-            {
-              return false;
-            }
+    Assert.assertArrayEquals(data, Files.readAllBytes(file0));
+    Assert.assertEquals(2L, (long) ranges.size());
 
-            @Override
-            public String getLinkName()
-            {
-              return "/target";
-            }
+    final Path file1 = this.filesystem.getPath("/base1.txz");
+    build.jailDownloadBinaryArchive(
+      file1,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
 
-            @Override
-            public boolean isSymbolicLink()
-            {
-              return true;
-            }
-          };
-          entry_link.setGroupId(100);
-          entry_link.setUserId(100);
-          entry_link.setMode(0777);
-          entry_link.setSize(4);
+    Assert.assertArrayEquals(data, Files.readAllBytes(file1));
+    Assert.assertEquals(2L, (long) ranges.size());
 
-          this.entries = List.of(entry_file, entry_dir, entry_link);
-        }
+    final JailDownloadCacheStatistics kept =
+      build.jailDownloadCacheCollectGarbage(cache, (long) data.length);
+    Assert.assertEquals(1L, kept.archivesRetained());
+    Assert.assertEquals(0L, kept.archivesRemoved());
 
-        @Mock
-        public TarArchiveEntry getNextTarEntry()
-          throws IOException
-        {
-          if (this.entry_index < this.entries.size()) {
-            final TarArchiveEntry entry = this.entries.get(this.entry_index);
-            ++this.entry_index;
-            return entry;
-          }
-          return null;
-        }
+    final JailDownloadCacheStatistics removed =
+      build.jailDownloadCacheCollectGarbage(cache, 0L);
+    Assert.assertEquals(0L, removed.archivesRetained());
+    Assert.assertEquals(1L, removed.archivesRemoved());
+    Assert.assertEquals((long) data.length, removed.octetsRemoved());
+    Assert.assertArrayEquals(data, Files.readAllBytes(file1));
+  }
 
+  @Test
+  public void testDownloadCacheRevalidate()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data0 = new byte[(65536 * 2) + 17];
+    random.nextBytes(data0);
+    final byte[] data1 = new byte[(65536 * 2) + 17];
+    random.nextBytes(data1);
+
+    final AtomicBoolean republished = new AtomicBoolean(false);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<String> conditions =
+      new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug(
-            "TarArchiveInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-
-          try {
-            if (this.read_count == 0) {
-              Assert.assertTrue(buf.length >= 4);
-              buf[0] = (byte) 0x0;
-              buf[1] = (byte) 0x1;
-              buf[2] = (byte) 0x2;
-              buf[3] = (byte) 0x3;
-              return 4;
+          final Header if_none_match = request.getFirstHeader("If-None-Match");
+          if (if_none_match != null) {
+            conditions.add(if_none_match.getValue());
+            if (republished.get()) {
+              final TestResponse response = new TestResponse(200, "OK");
+              response.addHeader("ETag", "\"v2\"");
+              return response;
             }
+            return new TestResponse(304, "Not Modified");
+          }
 
-            return 0;
-          } finally {
-            ++this.read_count;
+          if (republished.get()) {
+            final CloseableHttpResponse response =
+              serveRange(request, data1, ranges);
+            response.addHeader("ETag", "\"v2\"");
+            return response;
           }
-        }
 
-        @Mock
-        void close()
-        {
-          LOG.debug("TarArchiveInputStream: close");
+          final CloseableHttpResponse response =
+            serveRange(request, data0, ranges);
+          response.addHeader("ETag", "\"v1\"");
+          return response;
         }
-      };
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    build.jailUnpackArchive(
-      archive_file,
-      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
-      path);
-
-    Assert.assertTrue(Files.isDirectory(path));
-    Assert.assertTrue(Files.isRegularFile(path.resolve("file")));
-    Assert.assertTrue(Files.isDirectory(path.resolve("directory")));
-    Assert.assertTrue(Files.isSymbolicLink(path.resolve("link")));
-
-    {
-      final byte[] data = Files.readAllBytes(path.resolve("file"));
-      Assert.assertArrayEquals(
-        new byte[]{
-          (byte) 0x0,
-          (byte) 0x1,
-          (byte) 0x2,
-          (byte) 0x3
-        }, data);
+    final Path cache = this.filesystem.getPath("/cache");
+    final JailDownloadOptions options =
+      JailDownloadOptions.builder()
+        .setCacheDirectory(cache)
+        .build();
 
-      final Set<PosixFilePermission> perms =
-        Files.getPosixFilePermissions(path.resolve("file"));
-      Assert.assertEquals("rw-r--r--", PosixFilePermissions.toString(perms));
-    }
+    final Path file0 = this.filesystem.getPath("/base0.txz");
+    build.jailDownloadBinaryArchive(
+      file0,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
+    Assert.assertEquals(1L, (long) ranges.size());
 
-    {
-      final Set<PosixFilePermission> perms =
-        Files.getPosixFilePermissions(path.resolve("directory"));
-      Assert.assertEquals("rwxr-xr-x", PosixFilePermissions.toString(perms));
-    }
+    /*
+     * The remote file is unchanged, so the cached archive is served along
+     * with its validators.
+     */
 
-    {
-      Assert.assertEquals("/target", Files.readSymbolicLink(path.resolve("link")).toString());
-    }
+    final Path file1 = this.filesystem.getPath("/base1.txz");
+    build.jailDownloadBinaryArchive(
+      file1,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
+    Assert.assertArrayEquals(data0, Files.readAllBytes(file1));
+    Assert.assertEquals(1L, (long) ranges.size());
+    Assert.assertTrue(Files.exists(
+      this.filesystem.getPath("/base1.txz.validators")));
+
+    /*
+     * The cache holds copies of the downloaded files, and so writing to a
+     * downloaded file does not affect the cache.
+     */
+
+    Files.write(file0, new byte[]{'x'});
+    Assert.assertArrayEquals(
+      data0,
+      Files.readAllBytes(cache.resolve("objects").resolve(sha256(data0))));
+
+    /*
+     * The remote file has been republished, so the cached archive is not
+     * served.
+     */
+
+    republished.set(true);
+    final Path file2 = this.filesystem.getPath("/base2.txz");
+    build.jailDownloadBinaryArchive(
+      file2,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
+    Assert.assertArrayEquals(data1, Files.readAllBytes(file2));
+    Assert.assertEquals(2L, (long) ranges.size());
+    Assert.assertEquals(
+      Arrays.asList("\"v1\"", "\"v1\""), new ArrayList<>(conditions));
   }
 
   @Test
-  public void testUnpackArchiveChmodFailed()
+  public void testDownloadCacheVerifyDigest()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+    final String digest = sha256(new byte[0]);
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
       {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveManifest(request, data, digest);
+        }
       }.getMockInstance();
 
     final POSIX mock_posix =
       new MockUp<POSIX>()
       {
-        @Mock
-        int errno()
-        {
-          return 5;
-        }
+      }.getMockInstance();
 
-        @Mock
-        int chown(
-          final String name,
-          final int uid,
-          final int gid)
-        {
-          LOG.debug(
-            "chown: {} {} {}",
-            name,
-            Integer.valueOf(uid),
-            Integer.valueOf(gid));
-          return 0;
-        }
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path cache = this.filesystem.getPath("/cache");
+    build.jailDownloadBinaryArchive(
+      this.filesystem.getPath("/base0.txz"),
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder()
+        .setCacheDirectory(cache)
+        .build(),
+      Optional.of(PROGRESS));
 
+    /*
+     * The archive was cached by a download that was not verified, and does
+     * not match the digest in the MANIFEST, so it is not served from the
+     * cache when verification is requested.
+     */
+
+    final Path file = this.filesystem.getPath("/base1.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder()
+          .setCacheDirectory(cache)
+          .setVerifyDigest(true)
+          .build(),
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertThat(
+        e.getMessage(),
+        StringStartsWith.startsWith("Downloaded file failed verification."));
+    }
+
+    Assert.assertFalse(Files.exists(file));
+  }
+
+  @Test
+  public void testDownloadSessionReusesClient()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        int chmod(
-          final String name,
-          final int mode)
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          return -1;
+          Assert.assertEquals("GET", request.getMethod());
+          return serveRange(request, data, ranges);
         }
+      }.getMockInstance();
 
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
       }.getMockInstance();
 
-    final MockUp<Files> mock_files =
-      new MockUp<Files>()
+    final AtomicInteger clients = new AtomicInteger(0);
+    final JailBuildType build =
+      JailBuild.get(() -> {
+        clients.incrementAndGet();
+        return mock_http_client;
+      }, mock_posix);
+
+    new StrictExpectations()
+    {{
+      mock_http_client.close();
+    }};
+
+    final Path file0 = this.filesystem.getPath("/base.txz");
+    final Path file1 = this.filesystem.getPath("/lib32.txz");
+    try (final JailDownloadSessionType session = build.jailDownloadSession()) {
+      session.download(
+        file0,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder().build(),
+        Optional.of(PROGRESS));
+      session.download(
+        file1,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "lib32.txz",
+        JailDownloadOptions.builder().build(),
+        Optional.of(PROGRESS));
+    }
+
+    Assert.assertEquals(1L, (long) clients.get());
+    Assert.assertEquals(2L, (long) ranges.size());
+    Assert.assertArrayEquals(data, Files.readAllBytes(file0));
+    Assert.assertArrayEquals(data, Files.readAllBytes(file1));
+  }
+
+  @Test
+  public void testDownloadSessionWriteStatistics()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
       {
         @Mock
-        public InputStream newInputStream(
-          final Path path,
-          final OpenOption... options)
-          throws IOException
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("newInputStream: {}", path);
-          return new MockUp<InputStream>()
-          {
-
-          }.getMockInstance();
+          return serveRange(request, data, ranges);
         }
-      };
+      }.getMockInstance();
 
-    final MockUp<XZCompressorInputStream> mock_xz =
-      new MockUp<XZCompressorInputStream>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        public InputStream inner;
+      }.getMockInstance();
 
-        @Mock
-        void $init(
-          final InputStream stream)
-        {
-          LOG.debug("XZCompressorInputStream: {}", stream);
-          this.inner = stream;
-        }
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-        @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
-        {
-          LOG.debug(
-            "XZCompressorInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-          return this.inner.read(buf, offset, r);
-        }
+    final Path file = this.filesystem.getPath("/base.txz");
+    final JailDownloadWriteStatistics stats;
+    try (final JailDownloadSessionType session = build.jailDownloadSession()) {
+      Assert.assertEquals(0L, session.writeStatistics().writes());
+
+      session.download(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder()
+          .setSyncIntervalOctets(65536L)
+          .build(),
+        Optional.of(PROGRESS));
+      stats = session.writeStatistics();
+    }
+
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertEquals((long) data.length, stats.octetsWritten());
+    Assert.assertTrue(stats.writes() >= 2L);
+    Assert.assertTrue(stats.writeLargest() >= 65536L);
+    Assert.assertTrue(stats.syncs() >= 2L);
+    Assert.assertEquals(
+      stats.octetsWritten() / stats.writes(), stats.writeMean());
+  }
+
+  @Test
+  public void testDownloadSessionAsync()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        void close()
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("XZCompressorInputStream: close");
+          return serveRange(request, data, ranges);
         }
-      };
+      }.getMockInstance();
 
-    final MockUp<TarArchiveInputStream> mock_tar =
-      new MockUp<TarArchiveInputStream>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        private int entry_index;
-        private int read_count;
-        private List<TarArchiveEntry> entries;
+      }.getMockInstance();
 
-        @Mock
-        void $init(
-          final InputStream stream)
-        {
-          LOG.debug("TarArchiveInputStream: {}", stream);
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
-          entry_file.setGroupId(100);
-          entry_file.setUserId(100);
-          entry_file.setMode(0644);
-          entry_file.setSize(4);
+    final AtomicLong received = new AtomicLong(0L);
+    final Path file0 = this.filesystem.getPath("/base.txz");
+    final Path file1 = this.filesystem.getPath("/lib32.txz");
+    final ExecutorService executor = Executors.newFixedThreadPool(1);
+    try (final JailDownloadSessionType session = build.jailDownloadSession()) {
+      final CompletableFuture<Void> future0 = session.downloadAsync(
+        file0,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder().build(),
+        Optional.of((expected, now) -> received.set(now)),
+        executor);
+      final CompletableFuture<Void> future1 = session.downloadAsync(
+        file1,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "lib32.txz",
+        JailDownloadOptions.builder().build(),
+        Optional.of(PROGRESS),
+        executor);
+
+      CompletableFuture.allOf(future0, future1).get(10L, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdown();
+    }
 
-          this.entries = List.of(entry_file);
-        }
+    Assert.assertEquals((long) data.length, received.get());
+    Assert.assertArrayEquals(data, Files.readAllBytes(file0));
+    Assert.assertArrayEquals(data, Files.readAllBytes(file1));
+  }
 
-        @Mock
-        public TarArchiveEntry getNextTarEntry()
-          throws IOException
-        {
-          if (this.entry_index < this.entries.size()) {
-            final TarArchiveEntry entry = this.entries.get(this.entry_index);
-            ++this.entry_index;
-            return entry;
-          }
-          return null;
-        }
+  @Test
+  public void testDownloadSessionAsyncCancel()
+    throws Exception
+  {
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
 
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug(
-            "TarArchiveInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-
-          try {
-            if (this.read_count == 0) {
-              Assert.assertTrue(buf.length >= 4);
-              buf[0] = (byte) 0x0;
-              buf[1] = (byte) 0x1;
-              buf[2] = (byte) 0x2;
-              buf[3] = (byte) 0x3;
-              return 4;
+          final TestResponse response =
+            new TestResponse(206, "Partial Content");
+          response.addHeader("Content-Range", "bytes 0-65535/65536");
+          final BasicHttpEntity entity = new BasicHttpEntity();
+          entity.setContentLength(65536L);
+          entity.setContent(new InputStream()
+          {
+            @Override
+            public int read()
+              throws IOException
+            {
+              reading.countDown();
+              try {
+                Thread.sleep(60_000L);
+              } catch (final InterruptedException e) {
+                interrupted.countDown();
+                throw new InterruptedIOException();
+              }
+              return -1;
             }
-
-            return 0;
-          } finally {
-            ++this.read_count;
-          }
+          });
+          response.setEntity(entity);
+          return response;
         }
+      }.getMockInstance();
 
-        @Mock
-        void close()
-        {
-          LOG.debug("TarArchiveInputStream: close");
-        }
-      };
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    this.expected.expect(IOException.class);
-    this.expected.expectMessage(new StringStartsWith("Could not set mode"));
+    final Path file = this.filesystem.getPath("/base.txz");
+    final ExecutorService executor = Executors.newFixedThreadPool(1);
+    try (final JailDownloadSessionType session = build.jailDownloadSession()) {
+      final CompletableFuture<Void> future = session.downloadAsync(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder().build(),
+        Optional.of(PROGRESS),
+        executor);
+
+      Assert.assertTrue(reading.await(10L, TimeUnit.SECONDS));
+      Assert.assertTrue(future.cancel(true));
+      Assert.assertTrue(interrupted.await(10L, TimeUnit.SECONDS));
+      Assert.assertTrue(future.isCancelled());
+    } finally {
+      executor.shutdown();
+    }
 
-    build.jailUnpackArchive(
-      archive_file,
-      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
-      path);
+    Assert.assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
   }
 
   @Test
-  public void testUnpackArchiveChownFailed()
+  public void testDownloadPolicyRetryResumes()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
+    final AtomicInteger requests = new AtomicInteger(0);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
       {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          switch (requests.incrementAndGet()) {
+            case 1:
+              return new TestResponse(503, "Service Unavailable");
+            case 2: {
+              final CloseableHttpResponse response =
+                serveRange(request, data, ranges);
+              final BasicHttpEntity entity = new BasicHttpEntity();
+              entity.setContentLength((long) data.length);
+              entity.setContent(new ByteArrayInputStream(data, 0, 65536));
+              response.setEntity(entity);
+              return response;
+            }
+            default:
+              return serveRange(request, data, ranges);
+          }
+        }
       }.getMockInstance();
 
     final POSIX mock_posix =
       new MockUp<POSIX>()
       {
-        @Mock
-        int errno()
-        {
-          return 5;
-        }
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder()
+        .setPolicy(JailDownloadPolicy.builder()
+                     .setAttempts(3)
+                     .setRetryDelayInitial(Duration.ZERO)
+                     .setRetryDelayMaximum(Duration.ZERO)
+                     .setTemporaryFile(true)
+                     .build())
+        .build(),
+      Optional.of(PROGRESS));
+
+    Assert.assertEquals(3L, (long) requests.get());
+    Assert.assertEquals(
+      Arrays.asList("bytes=0-", "bytes=65536-"),
+      new ArrayList<>(ranges));
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertFalse(Files.exists(
+      this.filesystem.getPath("/base.txz.tmp")));
+  }
 
+  @Test
+  public void testDownloadPolicyFatalStatus()
+    throws Exception
+  {
+    final AtomicInteger requests = new AtomicInteger(0);
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        int chown(
-          final String name,
-          final int uid,
-          final int gid)
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          return -1;
+          requests.incrementAndGet();
+          return new TestResponse(404, "Not Found");
         }
+      }.getMockInstance();
 
-        @Mock
-        int chmod(
-          final String name,
-          final int mode)
-        {
-          LOG.debug(
-            "chmod: {} {}",
-            name,
-            Integer.valueOf(mode));
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
 
-          final String ps;
-          final Path actual = path.resolve(name);
-          if (mode == 0755) {
-            ps = "rwxr-xr-x";
-          } else if (mode == 0644) {
-            ps = "rw-r--r--";
-          } else {
-            ps = "---------";
-          }
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-          try {
-            Files.setPosixFilePermissions(
-              actual, PosixFilePermissions.fromString(ps));
-          } catch (final IOException e) {
-            return -1;
-          }
+    final Path file = this.filesystem.getPath("/base.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder()
+          .setPolicy(JailDownloadPolicy.builder()
+                       .setAttempts(5)
+                       .setRetryDelayInitial(Duration.ZERO)
+                       .setRetryDelayMaximum(Duration.ZERO)
+                       .build())
+          .build(),
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final JailDownloadHTTPException e) {
+      Assert.assertEquals(404L, (long) e.statusCode());
+    }
 
-          return 0;
-        }
+    Assert.assertEquals(1L, (long) requests.get());
+  }
 
-      }.getMockInstance();
+  @Test
+  public void testDownloadRevalidateNotModified()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
-    final MockUp<Files> mock_files =
-      new MockUp<Files>()
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<String> conditions =
+      new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
       {
         @Mock
-        public InputStream newInputStream(
-          final Path path,
-          final OpenOption... options)
-          throws IOException
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("newInputStream: {}", path);
-          return new MockUp<InputStream>()
-          {
+          final Header if_none_match = request.getFirstHeader("If-None-Match");
+          if (if_none_match != null) {
+            conditions.add(if_none_match.getValue());
+            conditions.add(request.getFirstHeader("If-Range").getValue());
+            return new TestResponse(304, "Not Modified");
+          }
 
-          }.getMockInstance();
+          final CloseableHttpResponse response =
+            serveRange(request, data, ranges);
+          response.addHeader("ETag", "\"v1\"");
+          return response;
         }
-      };
+      }.getMockInstance();
 
-    final MockUp<XZCompressorInputStream> mock_xz =
-      new MockUp<XZCompressorInputStream>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        public InputStream inner;
+      }.getMockInstance();
 
-        @Mock
-        void $init(
-          final InputStream stream)
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    for (int index = 0; index < 2; ++index) {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        Optional.of(PROGRESS));
+    }
+
+    Assert.assertEquals(
+      Collections.singletonList("bytes=0-"), new ArrayList<>(ranges));
+    Assert.assertEquals(
+      Arrays.asList("\"v1\"", "\"v1\""), new ArrayList<>(conditions));
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+  }
+
+  @Test
+  public void testDownloadResumeRemoteChanged()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data0 = new byte[(65536 * 2) + 17];
+    random.nextBytes(data0);
+    final byte[] data1 = new byte[(65536 * 3) + 17];
+    random.nextBytes(data1);
+
+    final AtomicInteger requests = new AtomicInteger(0);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("XZCompressorInputStream: {}", stream);
-          this.inner = stream;
+          if (requests.incrementAndGet() == 1) {
+            final CloseableHttpResponse response =
+              serveRange(request, data0, ranges);
+            final BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContentLength((long) data0.length);
+            entity.setContent(new ByteArrayInputStream(data0, 0, 65536));
+            response.setEntity(entity);
+            response.addHeader("ETag", "\"v1\"");
+            return response;
+          }
+
+          /*
+           * The remote file has changed, so the If-Range condition fails and
+           * the whole file is returned.
+           */
+
+          Assert.assertEquals(
+            "\"v1\"", request.getFirstHeader("If-Range").getValue());
+          Assert.assertNull(request.getFirstHeader("If-None-Match"));
+          ranges.add(request.getFirstHeader("Range").getValue());
+
+          final TestResponse response = new TestResponse(200, "OK");
+          response.addHeader("ETag", "\"v2\"");
+          response.addHeader("Content-Length", Integer.toString(data1.length));
+          final BasicHttpEntity entity = new BasicHttpEntity();
+          entity.setContentLength((long) data1.length);
+          entity.setContent(new ByteArrayInputStream(data1));
+          response.setEntity(entity);
+          return response;
         }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertThat(
+        e.getMessage(), StringStartsWith.startsWith("Downloaded file was truncated."));
+    }
+
+    Assert.assertEquals(65536L, Files.size(file));
+
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      Optional.of(PROGRESS));
+
+    Assert.assertEquals(
+      Arrays.asList("bytes=0-", "bytes=65536-"), new ArrayList<>(ranges));
+    Assert.assertArrayEquals(data1, Files.readAllBytes(file));
+  }
+
+  @Test
+  public void testDownloadSegmentedRemoteChanged()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
+    final AtomicBoolean published = new AtomicBoolean(false);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<String> conditions =
+      new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug(
-            "XZCompressorInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-          return this.inner.read(buf, offset, r);
+          /*
+           * The remote file is replaced just after the first HEAD request,
+           * so the If-Range condition of each segment of the first download
+           * fails and the whole new file is returned.
+           */
+
+          if ("HEAD".equals(request.getMethod())) {
+            final CloseableHttpResponse response =
+              serveRange(request, data, ranges);
+            response.addHeader(
+              "ETag", published.getAndSet(true) ? "\"v2\"" : "\"v1\"");
+            return response;
+          }
+
+          final String condition =
+            request.getFirstHeader("If-Range").getValue();
+          conditions.add(condition);
+          if ("\"v1\"".equals(condition)) {
+            final TestResponse response = new TestResponse(200, "OK");
+            response.addHeader("ETag", "\"v2\"");
+            final BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContentLength((long) data.length);
+            entity.setContent(new ByteArrayInputStream(data));
+            response.setEntity(entity);
+            return response;
+          }
+
+          final CloseableHttpResponse response =
+            serveRange(request, data, ranges);
+          response.addHeader("ETag", "\"v2\"");
+          return response;
         }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder().setSegments(2).build(),
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertThat(
+        e.getMessage(),
+        StringStartsWith.startsWith(
+          "Remote file changed during the segmented download."));
+    }
+
+    Assert.assertEquals(0L, Files.size(file));
+    Assert.assertFalse(Files.exists(
+      this.filesystem.getPath("/base.txz.segments")));
+
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder().setSegments(2).build(),
+      Optional.of(PROGRESS));
+
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertEquals(2L, (long) ranges.size());
+    Assert.assertEquals(
+      Arrays.asList("\"v1\"", "\"v1\"", "\"v2\"", "\"v2\""),
+      new ArrayList<>(conditions));
+  }
+
+  @Test
+  public void testDownloadInterruptedKeepsReceived()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 3) + 17];
+    random.nextBytes(data);
 
+    final int received = 65536 + 34464;
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        void close()
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("XZCompressorInputStream: close");
+          /*
+           * The download is cancelled after some of the file has been
+           * received, leaving part of it buffered in the writer.
+           */
+
+          final CloseableHttpResponse response =
+            serveRange(request, data, ranges);
+          final BasicHttpEntity entity = new BasicHttpEntity();
+          entity.setContentLength((long) data.length);
+          entity.setContent(
+            new ByteArrayInputStream(data, 0, received)
+            {
+              @Override
+              public synchronized int read(
+                final byte[] buffer,
+                final int offset,
+                final int length)
+              {
+                final int r = super.read(buffer, offset, length);
+                if (r == -1) {
+                  Thread.currentThread().interrupt();
+                  return 0;
+                }
+                return r;
+              }
+            });
+          response.setEntity(entity);
+          return response;
         }
-      };
+      }.getMockInstance();
 
-    final MockUp<TarArchiveInputStream> mock_tar =
-      new MockUp<TarArchiveInputStream>()
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
       {
-        private int entry_index;
-        private int read_count;
-        private List<TarArchiveEntry> entries;
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertThat(
+        e, IsInstanceOf.instanceOf(InterruptedIOException.class));
+    } finally {
+      Assert.assertTrue(Thread.interrupted());
+    }
+
+    Assert.assertEquals((long) received, Files.size(file));
+  }
+
+  @Test
+  public void testDownloadRevalidateTemporaryFile()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
 
+    final AtomicInteger not_modified = new AtomicInteger(0);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
         @Mock
-        void $init(
-          final InputStream stream)
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
         {
-          LOG.debug("TarArchiveInputStream: {}", stream);
+          final Header if_modified = request.getFirstHeader("If-Modified-Since");
+          if (if_modified != null) {
+            Assert.assertNull(request.getFirstHeader("Range"));
+            Assert.assertEquals(
+              "Sat, 01 Oct 2016 00:00:00 GMT", if_modified.getValue());
+            not_modified.incrementAndGet();
+            return new TestResponse(304, "Not Modified");
+          }
+
+          final CloseableHttpResponse response =
+            serveRange(request, data, ranges);
+          response.addHeader("Last-Modified", "Sat, 01 Oct 2016 00:00:00 GMT");
+          return response;
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final JailDownloadOptions options =
+      JailDownloadOptions.builder()
+        .setPolicy(JailDownloadPolicy.builder()
+                     .setTemporaryFile(true)
+                     .build())
+        .build();
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    for (int index = 0; index < 2; ++index) {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        options,
+        Optional.of(PROGRESS));
+    }
+
+    Assert.assertEquals(1L, (long) ranges.size());
+    Assert.assertEquals(1L, (long) not_modified.get());
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertFalse(Files.exists(
+      this.filesystem.getPath("/base.txz.tmp")));
+  }
+
+  @Test
+  public void testDownloadBinaryArchivesRetry()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+
+    final AtomicInteger lib32_requests = new AtomicInteger(0);
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          if (request.getURI().getPath().endsWith("/lib32.txz")
+            && lib32_requests.incrementAndGet() == 1) {
+            return new TestResponse(503, "Service Unavailable");
+          }
+          return serveRange(request, data, ranges);
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final ConcurrentLinkedQueue<String> attempts = new ConcurrentLinkedQueue<>();
+    final AtomicLong combined_expected = new AtomicLong(0L);
+    final AtomicLong combined_received = new AtomicLong(0L);
+    final JailDownloadBatchProgressType progress =
+      new JailDownloadBatchProgressType()
+      {
+        @Override
+        public JailDownloadProgressType archive(final String archive_file)
+        {
+          attempts.add(archive_file);
+          return (total_expected, total_received) -> {
+          };
+        }
+
+        @Override
+        public JailDownloadProgressType combined()
+        {
+          return (total_expected, total_received) -> {
+            Assert.assertTrue(total_received >= combined_received.get());
+            combined_expected.set(total_expected);
+            combined_received.set(total_received);
+          };
+        }
+      };
+
+    final Path directory = this.filesystem.getPath("/archives");
+    Files.createDirectories(directory);
+
+    final java.util.List<JailDownloadResult> results =
+      build.jailDownloadBinaryArchives(
+        directory,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        Arrays.asList("base.txz", "lib32.txz", "base.txz"),
+        JailDownloadBatchOptions.builder()
+          .setArchiveThreads(2)
+          .setDownloadOptions(
+            JailDownloadOptions.builder()
+              .setPolicy(
+                JailDownloadPolicy.builder()
+                  .setAttempts(2)
+                  .setRetryDelayInitial(Duration.ZERO)
+                  .setRetryDelayMaximum(Duration.ZERO)
+                  .build())
+              .build())
+          .build(),
+        progress);
+
+    Assert.assertEquals(3L, (long) results.size());
+
+    final JailDownloadResult base = results.get(0);
+    Assert.assertEquals("base.txz", base.archiveFile());
+    Assert.assertTrue(base.succeeded());
+
+    final JailDownloadResult lib32 = results.get(1);
+    Assert.assertEquals("lib32.txz", lib32.archiveFile());
+    Assert.assertTrue(lib32.succeeded());
+    Assert.assertEquals(2L, (long) lib32_requests.get());
+
+    final JailDownloadResult duplicate = results.get(2);
+    Assert.assertFalse(duplicate.succeeded());
+    Assert.assertThat(
+      duplicate.error().get(),
+      IsInstanceOf.instanceOf(FileAlreadyExistsException.class));
+
+    Assert.assertArrayEquals(
+      data, Files.readAllBytes(directory.resolve("base.txz")));
+    Assert.assertArrayEquals(
+      data, Files.readAllBytes(directory.resolve("lib32.txz")));
+    Assert.assertFalse(Files.exists(directory.resolve("base.txz.tmp")));
+    Assert.assertFalse(Files.exists(directory.resolve("lib32.txz.tmp")));
+
+    Assert.assertEquals(2L, (long) attempts.size());
+    Assert.assertEquals((long) data.length * 2L, combined_expected.get());
+    Assert.assertEquals((long) data.length * 2L, combined_received.get());
+  }
+
+  @Test
+  public void testDownloadMirrorUnreachable()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+
+    final URI mirror = URI.create("http://mirror.example.com/FreeBSD/releases");
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          if (!Objects.equals(mirror.getHost(), request.getURI().getHost())) {
+            return new TestResponse(503, "Service Unavailable");
+          }
+          return serveRange(request, data, ranges);
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final JailDownloadOptions options =
+      JailDownloadOptions.builder()
+        .setMirrors(List.of(mirror))
+        .build();
+
+    final java.util.List<JailDownloadMirrorProbe> probes =
+      build.jailDownloadProbeMirrors(
+        Arrays.asList(BASE_URI, mirror),
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        options);
+
+    Assert.assertEquals(2L, (long) probes.size());
+    Assert.assertEquals(mirror, probes.get(0).base());
+    Assert.assertTrue(probes.get(0).succeeded());
+    Assert.assertEquals(BASE_URI, probes.get(1).base());
+    Assert.assertFalse(probes.get(1).succeeded());
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      options,
+      Optional.of(PROGRESS));
+
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+  }
+
+  @Test
+  public void testDownloadMirrorSwitch()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+
+    final URI mirror = URI.create("http://mirror.example.com/FreeBSD/releases");
+    final ConcurrentLinkedQueue<String> ranges = new ConcurrentLinkedQueue<>();
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveRange(request, data, ranges);
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    /*
+     * No mirror can satisfy the minimum rate, so the first mirror is
+     * abandoned after the first read, and the last mirror completes the
+     * file.
+     */
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder()
+        .setMirrors(List.of(mirror))
+        .setMirrorMinimumOctetsPerSecond(Long.MAX_VALUE)
+        .setMirrorRateInterval(Duration.ZERO)
+        .build(),
+      Optional.of(PROGRESS));
+
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertTrue(ranges.contains("bytes=0-"));
+    Assert.assertTrue(ranges.stream().anyMatch(
+      range -> range.matches("bytes=[1-9][0-9]*-")));
+  }
+
+  @Test
+  public void testDownloadVerifyDigest()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+    final String digest = sha256(data);
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveManifest(request, data, digest);
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    build.jailDownloadBinaryArchive(
+      file,
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailDownloadOptions.builder()
+        .setSegments(2)
+        .setVerifyDigest(true)
+        .build(),
+      Optional.of(PROGRESS));
+
+    Assert.assertArrayEquals(data, Files.readAllBytes(file));
+    Assert.assertEquals(
+      digest,
+      build.jailDownloadBinaryArchiveDigest(
+        BASE_URI, "amd64", "10.3-RELEASE", "base.txz"));
+  }
+
+  @Test
+  public void testDownloadVerifyDigestMismatch()
+    throws Exception
+  {
+    final Random random = new Random();
+    final byte[] data = new byte[(65536 * 2) + 17];
+    random.nextBytes(data);
+    final String digest = sha256(new byte[0]);
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveManifest(request, data, digest);
+        }
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path file = this.filesystem.getPath("/base.txz");
+    try {
+      build.jailDownloadBinaryArchive(
+        file,
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailDownloadOptions.builder()
+          .setSegments(2)
+          .setVerifyDigest(true)
+          .build(),
+        Optional.of(PROGRESS));
+      Assert.fail();
+    } catch (final IOException e) {
+      Assert.assertThat(
+        e.getMessage(),
+        StringStartsWith.startsWith("Downloaded file failed verification."));
+    }
+
+    Assert.assertFalse(Files.exists(file));
+  }
+
+  private static CloseableHttpResponse serveManifest(
+    final HttpUriRequest request,
+    final byte[] data,
+    final String digest)
+  {
+    if (request.getURI().getPath().endsWith("/MANIFEST")) {
+      final String manifest =
+        "base.txz\t" + digest + "\t1234\tbase\t\"Base system (MANDATORY)\"\ton\n";
+      final TestResponse response = new TestResponse(200, "OK");
+      final BasicHttpEntity entity = new BasicHttpEntity();
+      final byte[] manifest_bytes = manifest.getBytes(StandardCharsets.UTF_8);
+      entity.setContentLength((long) manifest_bytes.length);
+      entity.setContent(new ByteArrayInputStream(manifest_bytes));
+      response.setEntity(entity);
+      return response;
+    }
+    return serveRange(request, data, new ConcurrentLinkedQueue<>());
+  }
+
+  private static String sha256(
+    final byte[] data)
+    throws NoSuchAlgorithmException
+  {
+    final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+    final StringBuilder sb = new StringBuilder(64);
+    for (final byte b : digest) {
+      sb.append(String.format("%02x", Integer.valueOf((int) b & 0xff)));
+    }
+    return sb.toString();
+  }
+
+  private static CloseableHttpResponse serveRange(
+    final HttpUriRequest request,
+    final byte[] data,
+    final ConcurrentLinkedQueue<String> ranges)
+  {
+    if ("HEAD".equals(request.getMethod())) {
+      final TestResponse response = new TestResponse(200, "OK");
+      response.addHeader(
+        "Content-Length", Integer.toString(data.length));
+      return response;
+    }
+
+    final String range = request.getFirstHeader("Range").getValue();
+    ranges.add(range);
+
+    final String[] bounds = range.replace("bytes=", "").split("-");
+    final int start = Integer.parseInt(bounds[0]);
+    final int end;
+    if (bounds.length > 1) {
+      end = Integer.parseInt(bounds[1]);
+    } else {
+      end = data.length - 1;
+    }
+    final int length = (end - start) + 1;
+
+    final TestResponse response = new TestResponse(206, "Partial Content");
+    response.addHeader(
+      "Content-Range",
+      String.format("bytes %d-%d/%d",
+                    Integer.valueOf(start),
+                    Integer.valueOf(end),
+                    Integer.valueOf(data.length)));
+    final BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentLength((long) length);
+    entity.setContent(new ByteArrayInputStream(data, start, length));
+    response.setEntity(entity);
+    return response;
+  }
+
+  private static final class TestResponse extends BasicHttpResponse
+    implements CloseableHttpResponse
+  {
+    TestResponse(
+      final int code,
+      final String reason)
+    {
+      super(new BasicStatusLine(new ProtocolVersion("HTTP", 1, 1), code, reason));
+    }
+
+    @Override
+    public void close()
+    {
+
+    }
+  }
+
+  @Test
+  public void testUnpackArchiveOK()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+        @Mock
+        int errno()
+        {
+          return 0;
+        }
+
+        @Mock
+        int chown(
+          final String name,
+          final int uid,
+          final int gid)
+        {
+          LOG.debug(
+            "chown: {} {} {}",
+            name,
+            Integer.valueOf(uid),
+            Integer.valueOf(gid));
+          return 0;
+        }
+
+        @Mock
+        int lchown(
+          final String name,
+          final int uid,
+          final int gid)
+        {
+          LOG.debug(
+            "lchown: {} {} {}",
+            name,
+            Integer.valueOf(uid),
+            Integer.valueOf(gid));
+          return 0;
+        }
+
+        @Mock
+        int chmod(
+          final String name,
+          final int mode)
+        {
+          LOG.debug(
+            "chmod: {} {}",
+            name,
+            Integer.valueOf(mode));
+
+          final String ps;
+          final Path actual = path.resolve(name);
+          if (mode == 0755) {
+            ps = "rwxr-xr-x";
+          } else if (mode == 0644) {
+            ps = "rw-r--r--";
+          } else {
+            ps = "---------";
+          }
+
+          try {
+            Files.setPosixFilePermissions(
+              actual, PosixFilePermissions.fromString(ps));
+          } catch (final IOException e) {
+            LOG.error("failed to set file permissions: ", e);
+            return -1;
+          }
+
+          return 0;
+        }
+
+        @Mock
+        int lchmod(
+          final String name,
+          final int mode)
+        {
+          LOG.debug(
+            "lchmod: {} {}",
+            name,
+            Integer.valueOf(mode));
+          return 0;
+        }
+
+      }.getMockInstance();
+
+    final MockUp<Files> mock_files =
+      new MockUp<Files>()
+      {
+        @Mock
+        public InputStream newInputStream(
+          final Path path,
+          final OpenOption... options)
+          throws IOException
+        {
+          LOG.debug("newInputStream: {}", path);
+          return new MockUp<InputStream>()
+          {
+
+          }.getMockInstance();
+        }
+      };
+
+    final MockUp<XZCompressorInputStream> mock_xz =
+      new MockUp<XZCompressorInputStream>()
+      {
+        public InputStream inner;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("XZCompressorInputStream: {}", stream);
+          this.inner = stream;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "XZCompressorInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+          return this.inner.read(buf, offset, r);
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("XZCompressorInputStream: close");
+        }
+      };
+
+    final MockUp<TarArchiveInputStream> mock_tar =
+      new MockUp<TarArchiveInputStream>()
+      {
+        private int entry_index;
+        private int read_count;
+        private List<TarArchiveEntry> entries;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("TarArchiveInputStream: {}", stream);
+
+          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
+          entry_file.setGroupId(100);
+          entry_file.setUserId(100);
+          entry_file.setMode(0644);
+          entry_file.setSize(4);
+
+          final TarArchiveEntry entry_dir = new TarArchiveEntry("directory/");
+          entry_dir.setGroupId(100);
+          entry_dir.setUserId(100);
+          entry_dir.setMode(0755);
+
+          final TarArchiveEntry entry_link = new TarArchiveEntry("link") {
+            @Override
+            public boolean isFile()
+            {
+              return false;
+            }
+
+            @Override
+            public String getLinkName()
+            {
+              return "/target";
+            }
+
+            @Override
+            public boolean isSymbolicLink()
+            {
+              return true;
+            }
+          };
+          entry_link.setGroupId(100);
+          entry_link.setUserId(100);
+          entry_link.setMode(0777);
+          entry_link.setSize(4);
+
+          this.entries = List.of(entry_file, entry_dir, entry_link);
+        }
+
+        @Mock
+        public TarArchiveEntry getNextTarEntry()
+          throws IOException
+        {
+          if (this.entry_index < this.entries.size()) {
+            final TarArchiveEntry entry = this.entries.get(this.entry_index);
+            ++this.entry_index;
+            return entry;
+          }
+          return null;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "TarArchiveInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+
+          try {
+            if (this.read_count == 0) {
+              Assert.assertTrue(buf.length >= 4);
+              buf[0] = (byte) 0x0;
+              buf[1] = (byte) 0x1;
+              buf[2] = (byte) 0x2;
+              buf[3] = (byte) 0x3;
+              return 4;
+            }
+
+            return 0;
+          } finally {
+            ++this.read_count;
+          }
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("TarArchiveInputStream: close");
+        }
+      };
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path);
+
+    Assert.assertTrue(Files.isDirectory(path));
+    Assert.assertTrue(Files.isRegularFile(path.resolve("file")));
+    Assert.assertTrue(Files.isDirectory(path.resolve("directory")));
+    Assert.assertTrue(Files.isSymbolicLink(path.resolve("link")));
+
+    {
+      final byte[] data = Files.readAllBytes(path.resolve("file"));
+      Assert.assertArrayEquals(
+        new byte[]{
+          (byte) 0x0,
+          (byte) 0x1,
+          (byte) 0x2,
+          (byte) 0x3
+        }, data);
+
+      final Set<PosixFilePermission> perms =
+        Files.getPosixFilePermissions(path.resolve("file"));
+      Assert.assertEquals("rw-r--r--", PosixFilePermissions.toString(perms));
+    }
+
+    {
+      final Set<PosixFilePermission> perms =
+        Files.getPosixFilePermissions(path.resolve("directory"));
+      Assert.assertEquals("rwxr-xr-x", PosixFilePermissions.toString(perms));
+    }
+
+    {
+      Assert.assertEquals("/target", Files.readSymbolicLink(path.resolve("link")).toString());
+    }
+  }
+
+  @Test
+  public void testUnpackArchiveChmodFailed()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+        @Mock
+        int errno()
+        {
+          return 5;
+        }
+
+        @Mock
+        int chown(
+          final String name,
+          final int uid,
+          final int gid)
+        {
+          LOG.debug(
+            "chown: {} {} {}",
+            name,
+            Integer.valueOf(uid),
+            Integer.valueOf(gid));
+          return 0;
+        }
+
+        @Mock
+        int chmod(
+          final String name,
+          final int mode)
+        {
+          return -1;
+        }
+
+      }.getMockInstance();
+
+    final MockUp<Files> mock_files =
+      new MockUp<Files>()
+      {
+        @Mock
+        public InputStream newInputStream(
+          final Path path,
+          final OpenOption... options)
+          throws IOException
+        {
+          LOG.debug("newInputStream: {}", path);
+          return new MockUp<InputStream>()
+          {
+
+          }.getMockInstance();
+        }
+      };
+
+    final MockUp<XZCompressorInputStream> mock_xz =
+      new MockUp<XZCompressorInputStream>()
+      {
+        public InputStream inner;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("XZCompressorInputStream: {}", stream);
+          this.inner = stream;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "XZCompressorInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+          return this.inner.read(buf, offset, r);
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("XZCompressorInputStream: close");
+        }
+      };
+
+    final MockUp<TarArchiveInputStream> mock_tar =
+      new MockUp<TarArchiveInputStream>()
+      {
+        private int entry_index;
+        private int read_count;
+        private List<TarArchiveEntry> entries;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("TarArchiveInputStream: {}", stream);
+
+          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
+          entry_file.setGroupId(100);
+          entry_file.setUserId(100);
+          entry_file.setMode(0644);
+          entry_file.setSize(4);
+
+          this.entries = List.of(entry_file);
+        }
+
+        @Mock
+        public TarArchiveEntry getNextTarEntry()
+          throws IOException
+        {
+          if (this.entry_index < this.entries.size()) {
+            final TarArchiveEntry entry = this.entries.get(this.entry_index);
+            ++this.entry_index;
+            return entry;
+          }
+          return null;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "TarArchiveInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+
+          try {
+            if (this.read_count == 0) {
+              Assert.assertTrue(buf.length >= 4);
+              buf[0] = (byte) 0x0;
+              buf[1] = (byte) 0x1;
+              buf[2] = (byte) 0x2;
+              buf[3] = (byte) 0x3;
+              return 4;
+            }
+
+            return 0;
+          } finally {
+            ++this.read_count;
+          }
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("TarArchiveInputStream: close");
+        }
+      };
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    this.expected.expect(IOException.class);
+    this.expected.expectMessage(new StringStartsWith("Could not set mode"));
+
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path);
+  }
+
+  @Test
+  public void testUnpackArchiveChownFailed()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+        @Mock
+        int errno()
+        {
+          return 5;
+        }
+
+        @Mock
+        int chown(
+          final String name,
+          final int uid,
+          final int gid)
+        {
+          return -1;
+        }
+
+        @Mock
+        int chmod(
+          final String name,
+          final int mode)
+        {
+          LOG.debug(
+            "chmod: {} {}",
+            name,
+            Integer.valueOf(mode));
+
+          final String ps;
+          final Path actual = path.resolve(name);
+          if (mode == 0755) {
+            ps = "rwxr-xr-x";
+          } else if (mode == 0644) {
+            ps = "rw-r--r--";
+          } else {
+            ps = "---------";
+          }
+
+          try {
+            Files.setPosixFilePermissions(
+              actual, PosixFilePermissions.fromString(ps));
+          } catch (final IOException e) {
+            return -1;
+          }
+
+          return 0;
+        }
+
+      }.getMockInstance();
+
+    final MockUp<Files> mock_files =
+      new MockUp<Files>()
+      {
+        @Mock
+        public InputStream newInputStream(
+          final Path path,
+          final OpenOption... options)
+          throws IOException
+        {
+          LOG.debug("newInputStream: {}", path);
+          return new MockUp<InputStream>()
+          {
+
+          }.getMockInstance();
+        }
+      };
+
+    final MockUp<XZCompressorInputStream> mock_xz =
+      new MockUp<XZCompressorInputStream>()
+      {
+        public InputStream inner;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("XZCompressorInputStream: {}", stream);
+          this.inner = stream;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "XZCompressorInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+          return this.inner.read(buf, offset, r);
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("XZCompressorInputStream: close");
+        }
+      };
+
+    final MockUp<TarArchiveInputStream> mock_tar =
+      new MockUp<TarArchiveInputStream>()
+      {
+        private int entry_index;
+        private int read_count;
+        private List<TarArchiveEntry> entries;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("TarArchiveInputStream: {}", stream);
+
+          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
+          entry_file.setGroupId(100);
+          entry_file.setUserId(100);
+          entry_file.setMode(0644);
+          entry_file.setSize(4);
+
+          this.entries = List.of(entry_file);
+        }
+
+        @Mock
+        public TarArchiveEntry getNextTarEntry()
+          throws IOException
+        {
+          if (this.entry_index < this.entries.size()) {
+            final TarArchiveEntry entry = this.entries.get(this.entry_index);
+            ++this.entry_index;
+            return entry;
+          }
+          return null;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "TarArchiveInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+
+          try {
+            if (this.read_count == 0) {
+              Assert.assertTrue(buf.length >= 4);
+              buf[0] = (byte) 0x0;
+              buf[1] = (byte) 0x1;
+              buf[2] = (byte) 0x2;
+              buf[3] = (byte) 0x3;
+              return 4;
+            }
+
+            return 0;
+          } finally {
+            ++this.read_count;
+          }
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("TarArchiveInputStream: close");
+        }
+      };
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    this.expected.expect(IOException.class);
+    this.expected.expectMessage(new StringStartsWith("Could not set owner"));
+
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path);
+  }
+
+  @Test
+  public void testCreateBaseOK()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
+
+    final MockUp<Files> mock_files =
+      new MockUp<Files>()
+      {
+        @Mock
+        public InputStream newInputStream(
+          final Path path,
+          final OpenOption... options)
+          throws IOException
+        {
+          LOG.debug("newInputStream: {}", path);
+          return new MockUp<InputStream>()
+          {
+
+          }.getMockInstance();
+        }
+      };
+
+    final MockUp<XZCompressorInputStream> mock_xz =
+      new MockUp<XZCompressorInputStream>()
+      {
+        public InputStream inner;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("XZCompressorInputStream: {}", stream);
+          this.inner = stream;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "XZCompressorInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+          return this.inner.read(buf, offset, r);
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("XZCompressorInputStream: close");
+        }
+      };
+
+    final MockUp<TarArchiveInputStream> mock_tar =
+      new MockUp<TarArchiveInputStream>()
+      {
+        private int entry_index;
+        private int read_count;
+        private List<TarArchiveEntry> entries;
+
+        @Mock
+        void $init(
+          final InputStream stream)
+        {
+          LOG.debug("TarArchiveInputStream: {}", stream);
+
+          final TarArchiveEntry entry_etc = new TarArchiveEntry("etc/");
+          entry_etc.setGroupId(0);
+          entry_etc.setUserId(0);
+          entry_etc.setMode(0755);
+
+          final TarArchiveEntry entry_var = new TarArchiveEntry("var/");
+          entry_var.setGroupId(0);
+          entry_var.setUserId(0);
+          entry_var.setMode(0755);
+
+          this.entries = List.of(entry_etc, entry_var);
+        }
+
+        @Mock
+        public TarArchiveEntry getNextTarEntry()
+          throws IOException
+        {
+          if (this.entry_index < this.entries.size()) {
+            final TarArchiveEntry entry = this.entries.get(this.entry_index);
+            ++this.entry_index;
+            return entry;
+          }
+          return null;
+        }
+
+        @Mock
+        public int read(
+          final byte[] buf,
+          final int offset,
+          final int r)
+          throws IOException
+        {
+          LOG.debug(
+            "TarArchiveInputStream: read {} {} {}",
+            buf,
+            Integer.valueOf(offset),
+            Integer.valueOf(r));
+
+          try {
+            if (this.read_count == 0) {
+              Assert.assertTrue(buf.length >= 4);
+              buf[0] = (byte) 0x0;
+              buf[1] = (byte) 0x1;
+              buf[2] = (byte) 0x2;
+              buf[3] = (byte) 0x3;
+              return 4;
+            }
+
+            return 0;
+          } finally {
+            ++this.read_count;
+          }
+        }
+
+        @Mock
+        void close()
+        {
+          LOG.debug("TarArchiveInputStream: close");
+        }
+      };
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    build.jailCreateBase(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      path_template);
+
+    Assert.assertTrue(Files.isDirectory(path));
+    Assert.assertTrue(Files.isDirectory(path_template));
+    Assert.assertTrue(Files.isDirectory(path_template.resolve("etc")));
+    Assert.assertTrue(Files.isDirectory(path_template.resolve("var")));
+
+    Files.walk(path_template).forEach(
+      p -> {
+        try {
+          LOG.debug("path: {}", p);
+          if (Files.isSymbolicLink(p)) {
+            LOG.debug("path: is symlink {} → {}", p, Files.readSymbolicLink(p));
+          }
+        } catch (final IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+
+    for (final String link : JailBuild.JAIL_TEMPLATE_LINKS) {
+      final Path link_path = path_template.resolve(link);
+      final Path link_target = path.resolve(link);
+      LOG.debug("check: {} -> {}", link_path, link_target);
+
+      Assert.assertTrue(Files.isSymbolicLink(link_path));
+      Assert.assertEquals(link_target, Files.readSymbolicLink(link_path));
+    }
+  }
+
+  @Test
+  public void testCreateBaseExists()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+
+    this.expected.expect(FileAlreadyExistsException.class);
+    build.jailCreateBase(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      path_template);
+  }
+
+  @Test
+  public void testCreateBaseTemplateExists()
+    throws Exception
+  {
+    final Path archive_file =
+      this.filesystem.getPath("/base.txz");
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path_template);
+
+    this.expected.expect(FileAlreadyExistsException.class);
+    build.jailCreateBase(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      path_template);
+  }
+
+  @Test
+  public void testCreateJailNonexistentBase()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path_template);
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    this.expected.expect(NotDirectoryException.class);
+    build.jailCreate(path, path_template, config);
+  }
+
+  @Test
+  public void testCreateJailNonexistentBaseTemplate()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    this.expected.expect(NotDirectoryException.class);
+    build.jailCreate(path, path_template, config);
+  }
+
+  @Test
+  public void testCreateJailConfigAlreadyExists()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.write(this.filesystem.getPath("/jail0.conf"), new byte[] { });
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    this.expected.expect(FileAlreadyExistsException.class);
+    build.jailCreate(path, path_template, config);
+  }
+
+  @Test
+  public void testCreateJailFSTabAlreadyExists()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockUp<POSIX>()
+      {
+
+      }.getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.write(this.filesystem.getPath("/jail0.fstab"), new byte[] { });
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    this.expected.expect(FileAlreadyExistsException.class);
+    build.jailCreate(path, path_template, config);
+  }
+
+  @Test
+  public void testCreateJailOK()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final MockUp<FileStat> mock_stats =
+      new MockUp<FileStat>()
+    {
+      @Mock
+      public int mode()
+      {
+        return 0755;
+      }
+    };
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.of(
+        "/base-template", mock_stats.getMockInstance(),
+        "/base-template/file", mock_stats.getMockInstance(),
+        "/base-template/link", mock_stats.getMockInstance(),
+        "/base-template/dir", mock_stats.getMockInstance(),
+        "/base-template/base", mock_stats.getMockInstance()
+      )).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.createFile(path_template.resolve("file"));
+    Files.createDirectories(path_template.resolve("dir"));
+    Files.createDirectories(path_template.resolve("base"));
+    Files.createSymbolicLink(
+      path_template.resolve("link"),
+      this.filesystem.getPath("/file"));
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    build.jailCreate(path, path_template, config);
+
+    Assert.assertTrue(
+      Files.isDirectory(this.filesystem.getPath("/jail0")));
+    Assert.assertTrue(
+      Files.isDirectory(this.filesystem.getPath("/jail0/dir")));
+    Assert.assertTrue(
+      Files.isDirectory(this.filesystem.getPath("/jail0/base")));
+    Assert.assertTrue(
+      Files.isRegularFile(this.filesystem.getPath("/jail0/file")));
+    Assert.assertTrue(
+      Files.isSymbolicLink(this.filesystem.getPath("/jail0/link")));
+    Assert.assertEquals(
+      this.filesystem.getPath("/file"),
+      Files.readSymbolicLink(this.filesystem.getPath("/jail0/link")));
+    Assert.assertTrue(
+      Files.isRegularFile(this.filesystem.getPath("/jail0.conf")));
+    Assert.assertTrue(
+      Files.isRegularFile(this.filesystem.getPath("/jail0.fstab")));
+  }
+
+  @Test
+  public void testCreateJailKernelCopyOK()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final MockUp<FileStat> mock_stats =
+      new MockUp<FileStat>()
+    {
+      @Mock
+      public int mode()
+      {
+        return 0755;
+      }
+    };
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.of(
+        "/base-template", mock_stats.getMockInstance(),
+        "/base-template/dir", mock_stats.getMockInstance(),
+        "/base-template/dir/file", mock_stats.getMockInstance()
+      )).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final byte[] data = new byte[100_000];
+    new Random(0L).nextBytes(data);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template.resolve("dir"));
+    Files.write(path_template.resolve("dir/file"), data);
+
+    final JailConfiguration config = JailConfiguration.of(
+      this.filesystem.getPath("/jail0"),
+      JailName.of("jail0"),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail0.example.com",
+      List.of("/bin/sh"));
+
+    build.jailCreate(
+      path,
+      path_template,
+      config,
+      JailCreateOptions.builder()
+        .setCopyMode(JailCopyMode.JAIL_COPY_MODE_KERNEL)
+        .build());
+
+    Assert.assertArrayEquals(
+      data, Files.readAllBytes(this.filesystem.getPath("/jail0/dir/file")));
+    Assert.assertEquals(
+      PosixFilePermissions.fromString("rwxr-xr-x"),
+      Files.getPosixFilePermissions(
+        this.filesystem.getPath("/jail0/dir/file")));
+  }
+
+  @Test
+  public void testCreateJailManyOK()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final MockUp<FileStat> mock_stats =
+      new MockUp<FileStat>()
+    {
+      @Mock
+      public int mode()
+      {
+        return 0755;
+      }
+    };
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.of(
+        "/base-template", mock_stats.getMockInstance(),
+        "/base-template/file", mock_stats.getMockInstance()
+      )).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.write(path_template.resolve("file"), new byte[]{'x'});
+    Files.createFile(this.filesystem.getPath("/jail3.conf"));
+
+    final java.util.List<JailConfiguration> configs = new ArrayList<>(8);
+    for (int index = 0; index < 6; ++index) {
+      configs.add(JailConfiguration.of(
+        this.filesystem.getPath("/jail" + index),
+        JailName.of("jail" + index),
+        List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+        List.empty(),
+        "jail" + index + ".example.com",
+        List.of("/bin/sh")));
+    }
+    configs.add(configs.get(1));
+
+    final java.util.List<JailCreateResult> results =
+      build.jailCreateMany(
+        path,
+        path_template,
+        configs,
+        JailCreateOptions.builder().setJailThreads(3).build());
+
+    Assert.assertEquals((long) configs.size(), (long) results.size());
+    for (int index = 0; index < configs.size(); ++index) {
+      final JailCreateResult result = results.get(index);
+      Assert.assertEquals(configs.get(index), result.configuration());
+      if (index == 3 || index == 6) {
+        Assert.assertFalse(result.succeeded());
+        Assert.assertThat(
+          result.error().get(),
+          IsInstanceOf.instanceOf(FileAlreadyExistsException.class));
+      } else {
+        Assert.assertTrue(result.succeeded());
+        Assert.assertArrayEquals(
+          new byte[]{'x'},
+          Files.readAllBytes(
+            this.filesystem.getPath("/jail" + index + "/file")));
+        Assert.assertTrue(Files.isRegularFile(
+          this.filesystem.getPath("/jail" + index + ".conf")));
+      }
+    }
+  }
+
+  @Test(timeout = 10000L)
+  public void testCreateJailPoolOK()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+    final Path path_staging =
+      this.filesystem.getPath("/staging");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final MockUp<FileStat> mock_stats =
+      new MockUp<FileStat>()
+    {
+      @Mock
+      public int mode()
+      {
+        return 0755;
+      }
+    };
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.of(
+        "/base-template", mock_stats.getMockInstance(),
+        "/base-template/file", mock_stats.getMockInstance()
+      )).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.createDirectories(path_staging);
+    Files.write(path_template.resolve("file"), new byte[]{'x'});
+
+    try (final JailPoolType pool = build.jailPool(
+      path,
+      path_template,
+      path_staging,
+      JailPoolOptions.builder().setSize(2).build())) {
+
+      while (pool.statistics().available() < 2) {
+        Thread.sleep(10L);
+      }
+
+      for (int index = 0; index < 3; ++index) {
+        pool.claim(JailConfiguration.of(
+          this.filesystem.getPath("/jail" + index),
+          JailName.of("jail" + index),
+          List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+          List.empty(),
+          "jail" + index + ".example.com",
+          List.of("/bin/sh")));
+
+        Assert.assertArrayEquals(
+          new byte[]{'x'},
+          Files.readAllBytes(
+            this.filesystem.getPath("/jail" + index + "/file")));
+        Assert.assertTrue(Files.isRegularFile(
+          this.filesystem.getPath("/jail" + index + ".conf")));
+        Assert.assertTrue(Files.isRegularFile(
+          this.filesystem.getPath("/jail" + index + ".fstab")));
+      }
+
+      final JailPoolStatistics statistics = pool.statistics();
+      Assert.assertTrue(statistics.hits() >= 2L);
+      Assert.assertEquals(3L, statistics.hits() + statistics.misses());
+      Assert.assertEquals(0L, statistics.refillFailures());
+
+      this.expected.expect(FileAlreadyExistsException.class);
+      pool.claim(JailConfiguration.of(
+        this.filesystem.getPath("/jail0"),
+        JailName.of("jail0"),
+        List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+        List.empty(),
+        "jail0.example.com",
+        List.of("/bin/sh")));
+    }
+  }
+
+  @Test(timeout = 10000L)
+  public void testCreateJailPoolCloseDeletesStaged()
+    throws Exception
+  {
+    final Path path =
+      this.filesystem.getPath("/base");
+    final Path path_template =
+      this.filesystem.getPath("/base-template");
+    final Path path_staging =
+      this.filesystem.getPath("/staging");
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final MockUp<FileStat> mock_stats =
+      new MockUp<FileStat>()
+    {
+      @Mock
+      public int mode()
+      {
+        return 0755;
+      }
+    };
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.of(
+        "/base-template", mock_stats.getMockInstance(),
+        "/base-template/file", mock_stats.getMockInstance()
+      )).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    Files.createDirectories(path);
+    Files.createDirectories(path_template);
+    Files.createDirectories(path_staging.resolve("staged-7"));
+    Files.write(path_template.resolve("file"), new byte[]{'x'});
+    Files.write(path_staging.resolve("staged-7/file"), new byte[]{'y'});
+
+    try (final JailPoolType pool = build.jailPool(
+      path,
+      path_template,
+      path_staging,
+      JailPoolOptions.builder().setSize(2).build())) {
+
+      while (pool.statistics().available() < 2) {
+        Thread.sleep(10L);
+      }
+
+      Assert.assertFalse(
+        Files.exists(path_staging.resolve("staged-7/file")));
+    }
+
+    try (final Stream<Path> files = Files.list(path_staging)) {
+      Assert.assertEquals(0L, files.count());
+    }
+  }
+
+  @Test
+  public void testDownloadAndUnpackOK()
+    throws Exception
+  {
+    final byte[] data = makeTarXZ();
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          return serveWhole(request, data);
+        }
+      }.getMockInstance();
+
+    final Path path = this.filesystem.getPath("/base");
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path copy = this.filesystem.getPath("/base.txz");
+    build.jailDownloadAndUnpackBinaryArchive(
+      BASE_URI,
+      "amd64",
+      "10.3-RELEASE",
+      "base.txz",
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      Optional.of(copy),
+      Optional.of(PROGRESS));
+
+    assertUnpackedTarXZ(path);
+    Assert.assertArrayEquals(data, Files.readAllBytes(copy));
+    Assert.assertFalse(
+      Files.exists(this.filesystem.getPath("/base.txz.tmp")));
+  }
+
+  @Test
+  public void testDownloadAndUnpackTruncated()
+    throws Exception
+  {
+    final byte[] data = makeTarXZ();
+    final byte[] truncated = new byte[data.length / 2];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+        @Mock
+        public CloseableHttpResponse execute(
+          final HttpUriRequest request)
+          throws IOException, ClientProtocolException
+        {
+          final CloseableHttpResponse response =
+            serveWhole(request, truncated);
+          response.setHeader(
+            "Content-Length", Integer.toString(data.length));
+          return response;
+        }
+      }.getMockInstance();
+
+    final Path path = this.filesystem.getPath("/base");
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final Path copy = this.filesystem.getPath("/base.txz");
+
+    try {
+      this.expected.expect(IOException.class);
+      build.jailDownloadAndUnpackBinaryArchive(
+        BASE_URI,
+        "amd64",
+        "10.3-RELEASE",
+        "base.txz",
+        JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+        path,
+        Optional.of(copy),
+        Optional.of(PROGRESS));
+    } finally {
+      Assert.assertFalse(Files.exists(copy));
+    }
+  }
+
+  private static CloseableHttpResponse serveWhole(
+    final HttpUriRequest request,
+    final byte[] data)
+  {
+    final TestResponse response = new TestResponse(200, "OK");
+    response.addHeader(
+      "Content-Length", Integer.toString(data.length));
+    if ("HEAD".equals(request.getMethod())) {
+      return response;
+    }
+
+    final BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContentLength((long) data.length);
+    entity.setContent(new ByteArrayInputStream(data));
+    response.setEntity(entity);
+    return response;
+  }
+
+  @Test
+  public void testUnpackArchiveParallelOK()
+    throws Exception
+  {
+    final Path archive_file = this.filesystem.getPath("/base.txz");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, makeTarXZBlocks(16384));
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
+
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
+
+    final JailUnpackStatistics statistics =
+      build.jailUnpackArchive(
+        archive_file,
+        JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+        path,
+        JailUnpackOptions.builder().setDecoderThreads(4).build());
+
+    assertUnpackedTarXZ(path);
+    Assert.assertEquals(3L, statistics.directoriesCreated());
+    Assert.assertEquals(3L, statistics.directoriesSkipped());
+    Assert.assertEquals(1L, statistics.hardLinksImmediate());
+    Assert.assertEquals(1L, statistics.hardLinksDeferred());
+  }
+
+  @Test
+  public void testUnpackArchiveParallelSingleBlock()
+    throws Exception
+  {
+    final Path archive_file = this.filesystem.getPath("/base.txz");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, makeTarXZ());
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
+
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
-          final TarArchiveEntry entry_file = new TarArchiveEntry("file");
-          entry_file.setGroupId(100);
-          entry_file.setUserId(100);
-          entry_file.setMode(0644);
-          entry_file.setSize(4);
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-          this.entries = List.of(entry_file);
-        }
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      JailUnpackOptions.builder().setDecoderThreads(4).build());
 
-        @Mock
-        public TarArchiveEntry getNextTarEntry()
-          throws IOException
-        {
-          if (this.entry_index < this.entries.size()) {
-            final TarArchiveEntry entry = this.entries.get(this.entry_index);
-            ++this.entry_index;
-            return entry;
-          }
-          return null;
-        }
+    assertUnpackedTarXZ(path);
+  }
 
-        @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
-        {
-          LOG.debug(
-            "TarArchiveInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
+  @Test
+  public void testUnpackArchiveParallelCorrupt()
+    throws Exception
+  {
+    final Path archive_file = this.filesystem.getPath("/base.txz");
+    final Path path = this.filesystem.getPath("/base");
 
-          try {
-            if (this.read_count == 0) {
-              Assert.assertTrue(buf.length >= 4);
-              buf[0] = (byte) 0x0;
-              buf[1] = (byte) 0x1;
-              buf[2] = (byte) 0x2;
-              buf[3] = (byte) 0x3;
-              return 4;
-            }
+    final byte[] data = makeTarXZBlocks(16384);
+    data[data.length / 2] = (byte) (data[data.length / 2] ^ 0xff);
+    Files.write(archive_file, data);
 
-            return 0;
-          } finally {
-            ++this.read_count;
-          }
-        }
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
+      {
+      }.getMockInstance();
 
-        @Mock
-        void close()
-        {
-          LOG.debug("TarArchiveInputStream: close");
-        }
-      };
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
     this.expected.expect(IOException.class);
-    this.expected.expectMessage(new StringStartsWith("Could not set owner"));
-
     build.jailUnpackArchive(
       archive_file,
       JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
-      path);
+      path,
+      JailUnpackOptions.builder().setDecoderThreads(4).build());
   }
 
   @Test
-  public void testCreateBaseOK()
+  public void testUnpackArchivePipelinedOK()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.txz");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, makeTarXZBlocks(16384));
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1638,178 +4175,433 @@ public final class JailBuildTest
     final POSIX mock_posix =
       new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
-    final MockUp<Files> mock_files =
-      new MockUp<Files>()
-      {
-        @Mock
-        public InputStream newInputStream(
-          final Path path,
-          final OpenOption... options)
-          throws IOException
-        {
-          LOG.debug("newInputStream: {}", path);
-          return new MockUp<InputStream>()
-          {
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-          }.getMockInstance();
-        }
-      };
+    final JailUnpackStatistics statistics =
+      build.jailUnpackArchive(
+        archive_file,
+        JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+        path,
+        JailUnpackOptions.builder()
+          .setDecoderThreads(4)
+          .setWriterThreads(4)
+          .build());
+
+    assertUnpackedTarXZ(path);
+    Assert.assertEquals(3L, statistics.directoriesCreated());
+    Assert.assertEquals(3L, statistics.directoriesSkipped());
+  }
 
-    final MockUp<XZCompressorInputStream> mock_xz =
-      new MockUp<XZCompressorInputStream>()
+  @Test
+  public void testUnpackArchivePipelinedChmodFailed()
+    throws Exception
+  {
+    final Path archive_file = this.filesystem.getPath("/base.txz");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, makeTarXZ());
+
+    final CloseableHttpClient mock_http_client =
+      new MockUp<CloseableHttpClient>()
       {
-        public InputStream inner;
+      }.getMockInstance();
 
+    final POSIX mock_posix =
+      new MockPOSIXOps(path, HashMap.empty())
+      {
         @Mock
-        void $init(
-          final InputStream stream)
+        int errno()
         {
-          LOG.debug("XZCompressorInputStream: {}", stream);
-          this.inner = stream;
+          return 1;
         }
 
         @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
+        int chmod(
+          final String name,
+          final int mode)
         {
-          LOG.debug(
-            "XZCompressorInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-          return this.inner.read(buf, offset, r);
+          return name.endsWith("motd") ? -1 : 0;
         }
+      }.getMockInstance();
 
-        @Mock
-        void close()
-        {
-          LOG.debug("XZCompressorInputStream: close");
-        }
-      };
+    final JailBuildType build =
+      JailBuild.get(() -> mock_http_client, mock_posix);
 
-    final MockUp<TarArchiveInputStream> mock_tar =
-      new MockUp<TarArchiveInputStream>()
-      {
-        private int entry_index;
-        private int read_count;
-        private List<TarArchiveEntry> entries;
+    this.expected.expect(IOException.class);
+    this.expected.expectMessage("Could not set mode");
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      path,
+      JailUnpackOptions.builder()
+        .setWriterThreads(4)
+        .build());
+  }
 
-        @Mock
-        void $init(
-          final InputStream stream)
-        {
-          LOG.debug("TarArchiveInputStream: {}", stream);
+  @Test
+  public void testUnpackArchiveDescriptors()
+    throws Exception
+  {
+    final POSIX posix = POSIXFactory.getNativePOSIX();
+    Assume.assumeTrue(posix.isNative());
+    Assume.assumeTrue(posix.getuid() == 0);
 
-          final TarArchiveEntry entry_etc = new TarArchiveEntry("etc/");
-          entry_etc.setGroupId(0);
-          entry_etc.setUserId(0);
-          entry_etc.setMode(0755);
+    final Path directory = Files.createTempDirectory("jguard-");
+    try {
+      final Path archive_file = directory.resolve("base.txz");
+      Files.write(archive_file, makeTarXZ());
 
-          final TarArchiveEntry entry_var = new TarArchiveEntry("var/");
-          entry_var.setGroupId(0);
-          entry_var.setUserId(0);
-          entry_var.setMode(0755);
+      final CloseableHttpClient mock_http_client =
+        new MockUp<CloseableHttpClient>()
+        {
+        }.getMockInstance();
+
+      final JailBuildType build =
+        JailBuild.get(() -> mock_http_client, posix);
+
+      for (final int threads : new int[]{1, 4}) {
+        final Path path = directory.resolve("base" + threads);
+        build.jailUnpackArchive(
+          archive_file,
+          JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+          path,
+          JailUnpackOptions.builder().setWriterThreads(threads).build());
+
+        assertUnpackedTarXZ(path);
+        Assert.assertEquals(
+          FileTime.fromMillis(1_000_000_000_000L),
+          Files.getLastModifiedTime(path.resolve("bin/sh")));
+      }
+    } finally {
+      try (final Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          try {
+            Files.delete(file);
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    }
+  }
 
-          this.entries = List.of(entry_etc, entry_var);
+  @Test
+  public void testCreateJailParallelCopy()
+    throws Exception
+  {
+    final POSIX posix = POSIXFactory.getNativePOSIX();
+    Assume.assumeTrue(posix.isNative());
+    Assume.assumeTrue(posix.getuid() == 0);
+
+    final Path directory = Files.createTempDirectory("jguard-");
+    try {
+      final Path path = directory.resolve("base");
+      final Path path_template = directory.resolve("base-template");
+      Files.createDirectories(path);
+
+      final Random random = new Random(0L);
+      for (int dir = 0; dir < 10; ++dir) {
+        final Path sub = path_template.resolve("dir" + dir);
+        Files.createDirectories(sub);
+        Assert.assertEquals(0L, (long) posix.chmod(sub.toString(), 0750));
+        for (int file = 0; file < 30; ++file) {
+          final Path file_path = sub.resolve("file" + file);
+          final byte[] data = new byte[random.nextInt(70000)];
+          random.nextBytes(data);
+          Files.write(file_path, data);
+          final String file_s = file_path.toString();
+          Assert.assertEquals(0L, (long) posix.chown(file_s, file, dir));
+          Assert.assertEquals(0L, (long) posix.chmod(file_s, 0600 + file));
         }
+        Files.createSymbolicLink(
+          sub.resolve("link"), directory.getFileSystem().getPath("file0"));
+      }
 
-        @Mock
-        public TarArchiveEntry getNextTarEntry()
-          throws IOException
+      final CloseableHttpClient mock_http_client =
+        new MockUp<CloseableHttpClient>()
         {
-          if (this.entry_index < this.entries.size()) {
-            final TarArchiveEntry entry = this.entries.get(this.entry_index);
-            ++this.entry_index;
-            return entry;
-          }
-          return null;
+        }.getMockInstance();
+
+      final JailBuildType build =
+        JailBuild.get(() -> mock_http_client, posix);
+
+      final java.util.List<String> expected =
+        describeTree(posix, path_template);
+      int jail = 0;
+      for (final JailCopyMode mode : JailCopyMode.values()) {
+        for (final int threads : new int[]{1, 4}) {
+          final JailConfiguration config = JailConfiguration.of(
+            directory.resolve("jail" + jail),
+            JailName.of("jail" + jail),
+            List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+            List.empty(),
+            "jail0.example.com",
+            List.of("/bin/sh"));
+
+          build.jailCreate(
+            path,
+            path_template,
+            config,
+            JailCreateOptions.builder()
+              .setCopyThreads(threads)
+              .setCopyMode(mode)
+              .build());
+
+          Assert.assertEquals(
+            expected, describeTree(posix, directory.resolve("jail" + jail)));
+          ++jail;
         }
+      }
+    } finally {
+      try (final Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          try {
+            Files.delete(file);
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    }
+  }
 
-        @Mock
-        public int read(
-          final byte[] buf,
-          final int offset,
-          final int r)
-          throws IOException
+  @Test
+  public void testCreateJailHardLinks()
+    throws Exception
+  {
+    final POSIX posix = POSIXFactory.getNativePOSIX();
+    Assume.assumeTrue(posix.isNative());
+    Assume.assumeTrue(posix.getuid() == 0);
+
+    final Path directory = Files.createTempDirectory("jguard-");
+    try {
+      final Path path = directory.resolve("base");
+      final Path path_template = directory.resolve("base-template");
+      Files.createDirectories(path);
+      Files.createDirectories(path_template.resolve("etc"));
+      Files.write(path_template.resolve("etc/rc.conf"), new byte[]{'a'});
+      Files.write(path_template.resolve("etc/motd"), new byte[]{'b'});
+
+      final CloseableHttpClient mock_http_client =
+        new MockUp<CloseableHttpClient>()
         {
-          LOG.debug(
-            "TarArchiveInputStream: read {} {} {}",
-            buf,
-            Integer.valueOf(offset),
-            Integer.valueOf(r));
-
+        }.getMockInstance();
+
+      final JailBuildType build =
+        JailBuild.get(() -> mock_http_client, posix);
+
+      final Path root = directory.resolve("jail0");
+      final JailConfiguration config = JailConfiguration.of(
+        root,
+        JailName.of("jail0"),
+        List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+        List.empty(),
+        "jail0.example.com",
+        List.of("/bin/sh"));
+
+      build.jailCreate(
+        path,
+        path_template,
+        config,
+        JailCreateOptions.builder()
+          .setCopyMode(JailCopyMode.JAIL_COPY_MODE_HARD_LINK)
+          .build());
+
+      final Path links = directory.resolve("jail0.links");
+      Assert.assertEquals(
+        Arrays.asList("etc/motd", "etc/rc.conf"),
+        Files.readAllLines(links, StandardCharsets.UTF_8));
+      Assert.assertTrue(Files.isSameFile(
+        path_template.resolve("etc/rc.conf"), root.resolve("etc/rc.conf")));
+
+      Assert.assertEquals(
+        1L,
+        (long) build.jailBreakLinks(
+          root,
+          JailName.of("jail0"),
+          Optional.of(Collections.singleton("etc/rc.conf"))));
+
+      Assert.assertFalse(Files.isSameFile(
+        path_template.resolve("etc/rc.conf"), root.resolve("etc/rc.conf")));
+      Files.write(root.resolve("etc/rc.conf"), new byte[]{'c'});
+      Assert.assertArrayEquals(
+        new byte[]{'a'},
+        Files.readAllBytes(path_template.resolve("etc/rc.conf")));
+      Assert.assertEquals(
+        Arrays.asList("etc/motd"),
+        Files.readAllLines(links, StandardCharsets.UTF_8));
+
+      Assert.assertEquals(
+        1L,
+        (long) build.jailBreakLinks(
+          root, JailName.of("jail0"), Optional.empty()));
+      Assert.assertFalse(Files.isSameFile(
+        path_template.resolve("etc/motd"), root.resolve("etc/motd")));
+      Assert.assertFalse(Files.exists(links));
+    } finally {
+      try (final Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
           try {
-            if (this.read_count == 0) {
-              Assert.assertTrue(buf.length >= 4);
-              buf[0] = (byte) 0x0;
-              buf[1] = (byte) 0x1;
-              buf[2] = (byte) 0x2;
-              buf[3] = (byte) 0x3;
-              return 4;
-            }
-
-            return 0;
-          } finally {
-            ++this.read_count;
+            Files.delete(file);
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
           }
-        }
+        });
+      }
+    }
+  }
 
-        @Mock
-        void close()
-        {
-          LOG.debug("TarArchiveInputStream: close");
+  @Test
+  public void testCreateJailManifest()
+    throws Exception
+  {
+    final POSIX posix = POSIXFactory.getNativePOSIX();
+    Assume.assumeTrue(posix.isNative());
+    Assume.assumeTrue(posix.getuid() == 0);
+
+    final Path directory = Files.createTempDirectory("jguard-");
+    try {
+      final Path archive_file = directory.resolve("base.tar");
+      final Path path = directory.resolve("base");
+      final Path path_template = directory.resolve("base-template");
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (final TarArchiveOutputStream tar =
+             new TarArchiveOutputStream(bytes)) {
+        for (final String name : new String[]{"etc/", "var/"}) {
+          final TarArchiveEntry entry = new TarArchiveEntry(name);
+          entry.setMode(0755);
+          tar.putArchiveEntry(entry);
+          tar.closeArchiveEntry();
         }
-      };
 
-    final JailBuildType build =
-      JailBuild.get(() -> mock_http_client, mock_posix);
+        final byte[] motd = "Welcome!\n".getBytes(StandardCharsets.UTF_8);
+        final TarArchiveEntry entry = new TarArchiveEntry("etc/motd");
+        entry.setMode(0644);
+        entry.setSize((long) motd.length);
+        tar.putArchiveEntry(entry);
+        tar.write(motd);
+        tar.closeArchiveEntry();
+      }
+      Files.write(archive_file, bytes.toByteArray());
 
-    build.jailCreateBase(
-      archive_file,
-      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
-      path,
-      path_template);
+      final CloseableHttpClient mock_http_client =
+        new MockUp<CloseableHttpClient>()
+        {
+        }.getMockInstance();
+
+      final JailBuildType build =
+        JailBuild.get(() -> mock_http_client, posix);
+
+      build.jailCreateBase(
+        archive_file,
+        JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR,
+        path,
+        path_template);
+
+      Assert.assertTrue(
+        Files.isRegularFile(directory.resolve("base-template.manifest")));
+
+      /*
+       * Changes below the root of the template are not detected, and so
+       * the new file is not copied.
+       */
+
+      Files.write(path_template.resolve("etc/extra"), new byte[]{'x'});
+      build.jailCreate(path, path_template, jailConfig(directory, 0));
+
+      final Path root0 = directory.resolve("jail0");
+      Assert.assertEquals(
+        "Welcome!\n",
+        new String(
+          Files.readAllBytes(root0.resolve("etc/motd")),
+          StandardCharsets.UTF_8));
+      Assert.assertTrue(Files.isSymbolicLink(root0.resolve("usr/bin")));
+      Assert.assertFalse(Files.exists(root0.resolve("etc/extra")));
+
+      /*
+       * Changing the root of the template invalidates the manifest.
+       */
+
+      Files.createDirectory(path_template.resolve("extra"));
+      build.jailCreate(path, path_template, jailConfig(directory, 1));
+
+      final Path root1 = directory.resolve("jail1");
+      Assert.assertTrue(Files.isRegularFile(root1.resolve("etc/extra")));
+      Assert.assertTrue(Files.isDirectory(root1.resolve("extra")));
+    } finally {
+      try (final Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          try {
+            Files.delete(file);
+          } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      }
+    }
+  }
 
-    Assert.assertTrue(Files.isDirectory(path));
-    Assert.assertTrue(Files.isDirectory(path_template));
-    Assert.assertTrue(Files.isDirectory(path_template.resolve("etc")));
-    Assert.assertTrue(Files.isDirectory(path_template.resolve("var")));
+  private static JailConfiguration jailConfig(
+    final Path directory,
+    final int index)
+    throws Exception
+  {
+    return JailConfiguration.of(
+      directory.resolve("jail" + index),
+      JailName.of("jail" + index),
+      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
+      List.empty(),
+      "jail" + index + ".example.com",
+      List.of("/bin/sh"));
+  }
 
-    Files.walk(path_template).forEach(
-      p -> {
+  private static java.util.List<String> describeTree(
+    final POSIX posix,
+    final Path root)
+    throws IOException
+  {
+    try (final Stream<Path> files = Files.walk(root)) {
+      return files.filter(file -> !Objects.equals(file, root)).map(file -> {
         try {
-          LOG.debug("path: {}", p);
-          if (Files.isSymbolicLink(p)) {
-            LOG.debug("path: is symlink {} → {}", p, Files.readSymbolicLink(p));
+          final FileStat stat = posix.lstat(file.toString());
+          final StringBuilder sb = new StringBuilder(128);
+          sb.append(root.relativize(file));
+          if (Files.isSymbolicLink(file)) {
+            sb.append(" -> ");
+            sb.append(Files.readSymbolicLink(file));
+          } else {
+            sb.append(String.format(
+              " %d %d %o", stat.uid(), stat.gid(), stat.mode()));
+            if (Files.isRegularFile(file)) {
+              sb.append(' ');
+              sb.append(Arrays.hashCode(Files.readAllBytes(file)));
+            }
           }
+          return sb.toString();
         } catch (final IOException e) {
           throw new UncheckedIOException(e);
         }
-      });
-
-    for (final String link : JailBuild.JAIL_TEMPLATE_LINKS) {
-      final Path link_path = path_template.resolve(link);
-      final Path link_target = path.resolve(link);
-      LOG.debug("check: {} -> {}", link_path, link_target);
-
-      Assert.assertTrue(Files.isSymbolicLink(link_path));
-      Assert.assertEquals(link_target, Files.readSymbolicLink(link_path));
+      }).sorted().collect(Collectors.toList());
     }
   }
 
   @Test
-  public void testCreateBaseExists()
+  public void testUnpackArchiveGzipOK()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.tgz");
+    final Path path = this.filesystem.getPath("/base");
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final OutputStream output = new GzipCompressorOutputStream(bytes)) {
+      output.write(makeTar());
+    }
+    Files.write(archive_file, bytes.toByteArray());
+
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP),
+      JailArchiveFormat.inferFrom(archive_file));
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1817,34 +4609,29 @@ public final class JailBuildTest
       }.getMockInstance();
 
     final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    Files.createDirectories(path);
+    build.jailUnpackArchive(
+      archive_file, JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP, path);
 
-    this.expected.expect(FileAlreadyExistsException.class);
-    build.jailCreateBase(
-      archive_file,
-      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
-      path,
-      path_template);
+    assertUnpackedTarXZ(path);
   }
 
   @Test
-  public void testCreateBaseTemplateExists()
+  public void testUnpackArchiveVerifyDigest()
     throws Exception
   {
-    final Path archive_file =
-      this.filesystem.getPath("/base.txz");
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.tgz");
+    final Path path = this.filesystem.getPath("/base");
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final OutputStream output = new GzipCompressorOutputStream(bytes)) {
+      output.write(makeTar());
+    }
+    Files.write(archive_file, bytes.toByteArray());
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1852,32 +4639,34 @@ public final class JailBuildTest
       }.getMockInstance();
 
     final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    Files.createDirectories(path_template);
-
-    this.expected.expect(FileAlreadyExistsException.class);
-    build.jailCreateBase(
+    build.jailUnpackArchive(
       archive_file,
-      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_XZ,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP,
       path,
-      path_template);
+      JailUnpackOptions.builder()
+        .setExpectedDigest(sha256(bytes.toByteArray()))
+        .build());
+
+    assertUnpackedTarXZ(path);
   }
 
   @Test
-  public void testCreateJailNonexistentBase()
+  public void testUnpackArchiveVerifyDigestMismatch()
     throws Exception
   {
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.tgz");
+    final Path path = this.filesystem.getPath("/base");
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final OutputStream output = new GzipCompressorOutputStream(bytes)) {
+      output.write(makeTar());
+    }
+    Files.write(archive_file, bytes.toByteArray());
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1885,36 +4674,34 @@ public final class JailBuildTest
       }.getMockInstance();
 
     final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    Files.createDirectories(path_template);
-
-    final JailConfiguration config = JailConfiguration.of(
-      this.filesystem.getPath("/jail0"),
-      JailName.of("jail0"),
-      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
-      List.empty(),
-      "jail0.example.com",
-      List.of("/bin/sh"));
-
-    this.expected.expect(NotDirectoryException.class);
-    build.jailCreate(path, path_template, config);
+    this.expected.expect(IOException.class);
+    this.expected.expectMessage(StringStartsWith.startsWith(
+      "Archive failed verification."));
+    build.jailUnpackArchive(
+      archive_file,
+      JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_GZIP,
+      path,
+      JailUnpackOptions.builder()
+        .setExpectedDigest(sha256(new byte[0]))
+        .build());
   }
 
   @Test
-  public void testCreateJailNonexistentBaseTemplate()
+  public void testUnpackArchiveTarOK()
     throws Exception
   {
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.tar");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, makeTar());
+
+    Assert.assertEquals(
+      Optional.of(JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR),
+      JailArchiveFormat.inferFrom(archive_file));
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1922,36 +4709,24 @@ public final class JailBuildTest
       }.getMockInstance();
 
     final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    Files.createDirectories(path);
-
-    final JailConfiguration config = JailConfiguration.of(
-      this.filesystem.getPath("/jail0"),
-      JailName.of("jail0"),
-      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
-      List.empty(),
-      "jail0.example.com",
-      List.of("/bin/sh"));
+    build.jailUnpackArchive(
+      archive_file, JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR, path);
 
-    this.expected.expect(NotDirectoryException.class);
-    build.jailCreate(path, path_template, config);
+    assertUnpackedTarXZ(path);
   }
 
   @Test
-  public void testCreateJailConfigAlreadyExists()
+  public void testUnpackArchiveZstdNoDecoder()
     throws Exception
   {
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
+    final Path archive_file = this.filesystem.getPath("/base.tzst");
+    final Path path = this.filesystem.getPath("/base");
+    Files.write(archive_file, new byte[]{0x28, (byte) 0xB5, 0x2F, (byte) 0xFD});
 
     final CloseableHttpClient mock_http_client =
       new MockUp<CloseableHttpClient>()
@@ -1959,137 +4734,130 @@ public final class JailBuildTest
       }.getMockInstance();
 
     final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
+      new MockPOSIXOps(path, HashMap.empty()).getMockInstance();
 
     final JailBuildType build =
       JailBuild.get(() -> mock_http_client, mock_posix);
 
-    Files.createDirectories(path);
-    Files.createDirectories(path_template);
-    Files.write(this.filesystem.getPath("/jail0.conf"), new byte[] { });
-
-    final JailConfiguration config = JailConfiguration.of(
-      this.filesystem.getPath("/jail0"),
-      JailName.of("jail0"),
-      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
-      List.empty(),
-      "jail0.example.com",
-      List.of("/bin/sh"));
-
-    this.expected.expect(FileAlreadyExistsException.class);
-    build.jailCreate(path, path_template, config);
+    this.expected.expect(IOException.class);
+    this.expected.expectMessage("No decoder is available");
+    build.jailUnpackArchive(
+      archive_file, JailArchiveFormat.JAIL_ARCHIVE_FORMAT_TAR_ZSTD, path);
   }
 
-  @Test
-  public void testCreateJailFSTabAlreadyExists()
-    throws Exception
+  private static byte[] makeTar()
+    throws IOException
   {
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
-
-    final CloseableHttpClient mock_http_client =
-      new MockUp<CloseableHttpClient>()
-      {
-      }.getMockInstance();
-
-    final POSIX mock_posix =
-      new MockUp<POSIX>()
-      {
-
-      }.getMockInstance();
-
-    final JailBuildType build =
-      JailBuild.get(() -> mock_http_client, mock_posix);
-
-    Files.createDirectories(path);
-    Files.createDirectories(path_template);
-    Files.write(this.filesystem.getPath("/jail0.fstab"), new byte[] { });
-
-    final JailConfiguration config = JailConfiguration.of(
-      this.filesystem.getPath("/jail0"),
-      JailName.of("jail0"),
-      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
-      List.empty(),
-      "jail0.example.com",
-      List.of("/bin/sh"));
-
-    this.expected.expect(FileAlreadyExistsException.class);
-    build.jailCreate(path, path_template, config);
+    try (final InputStream input = new XZCompressorInputStream(
+      new ByteArrayInputStream(makeTarXZ()))) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      while (true) {
+        final int r = input.read(buffer);
+        if (r == -1) {
+          break;
+        }
+        bytes.write(buffer, 0, r);
+      }
+      return bytes.toByteArray();
+    }
   }
 
-  @Test
-  public void testCreateJailOK()
-    throws Exception
+  private static byte[] makeTarXZBlocks(
+    final int block_size)
+    throws IOException
   {
-    final Path path =
-      this.filesystem.getPath("/base");
-    final Path path_template =
-      this.filesystem.getPath("/base-template");
-
-    final CloseableHttpClient mock_http_client =
-      new MockUp<CloseableHttpClient>()
-      {
-      }.getMockInstance();
-
-    final MockUp<FileStat> mock_stats =
-      new MockUp<FileStat>()
-    {
-
-    };
-
-    final POSIX mock_posix =
-      new MockPOSIXOps(path, HashMap.of(
-        "/base-template", mock_stats.getMockInstance(),
-        "/base-template/file", mock_stats.getMockInstance(),
-        "/base-template/link", mock_stats.getMockInstance(),
-        "/base-template/dir", mock_stats.getMockInstance(),
-        "/base-template/base", mock_stats.getMockInstance()
-      )).getMockInstance();
-
-    final JailBuildType build =
-      JailBuild.get(() -> mock_http_client, mock_posix);
-
-    Files.createDirectories(path);
-    Files.createDirectories(path_template);
-    Files.createFile(path_template.resolve("file"));
-    Files.createDirectories(path_template.resolve("dir"));
-    Files.createDirectories(path_template.resolve("base"));
-    Files.createSymbolicLink(
-      path_template.resolve("link"),
-      this.filesystem.getPath("/file"));
-
-    final JailConfiguration config = JailConfiguration.of(
-      this.filesystem.getPath("/jail0"),
-      JailName.of("jail0"),
-      List.of((Inet4Address) Inet4Address.getByName("10.8.0.23")),
-      List.empty(),
-      "jail0.example.com",
-      List.of("/bin/sh"));
+    final byte[] tar = makeTar();
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final XZOutputStream output =
+           new XZOutputStream(bytes, new LZMA2Options())) {
+      for (int offset = 0; offset < tar.length; offset += block_size) {
+        output.write(tar, offset, Math.min(block_size, tar.length - offset));
+        output.endBlock();
+      }
+    }
+    return bytes.toByteArray();
+  }
 
-    build.jailCreate(path, path_template, config);
+  private static byte[] makeTarXZ()
+    throws IOException
+  {
+    final Random random = new Random();
+    final byte[] sh = new byte[200_000];
+    random.nextBytes(sh);
+    final byte[] motd = "Welcome!\n".getBytes(StandardCharsets.UTF_8);
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final TarArchiveOutputStream tar =
+           new TarArchiveOutputStream(new XZCompressorOutputStream(bytes))) {
+      final TarArchiveEntry link_rescue =
+        new TarArchiveEntry("rescue/sh", TarConstants.LF_LINK);
+      link_rescue.setLinkName("bin/sh");
+      link_rescue.setMode(0755);
+      tar.putArchiveEntry(link_rescue);
+      tar.closeArchiveEntry();
+
+      final TarArchiveEntry dir = new TarArchiveEntry("bin/");
+      dir.setMode(0755);
+      tar.putArchiveEntry(dir);
+      tar.closeArchiveEntry();
+
+      final TarArchiveEntry file_sh = new TarArchiveEntry("bin/sh");
+      file_sh.setMode(0755);
+      file_sh.setSize((long) sh.length);
+      file_sh.setModTime(1_000_000_000_000L);
+      tar.putArchiveEntry(file_sh);
+      tar.write(sh);
+      tar.closeArchiveEntry();
+
+      final TarArchiveEntry link_csh =
+        new TarArchiveEntry("bin/csh", TarConstants.LF_LINK);
+      link_csh.setLinkName("bin/sh");
+      link_csh.setMode(0755);
+      tar.putArchiveEntry(link_csh);
+      tar.closeArchiveEntry();
+
+      final TarArchiveEntry file_motd = new TarArchiveEntry("etc/motd");
+      file_motd.setMode(0644);
+      file_motd.setSize((long) motd.length);
+      tar.putArchiveEntry(file_motd);
+      tar.write(motd);
+      tar.closeArchiveEntry();
+
+      final TarArchiveEntry link_rc =
+        new TarArchiveEntry("etc/rc", TarConstants.LF_SYMLINK);
+      link_rc.setLinkName("../bin/sh");
+      tar.putArchiveEntry(link_rc);
+      tar.closeArchiveEntry();
+    }
+    return bytes.toByteArray();
+  }
 
-    Assert.assertTrue(
-      Files.isDirectory(this.filesystem.getPath("/jail0")));
-    Assert.assertTrue(
-      Files.isDirectory(this.filesystem.getPath("/jail0/dir")));
-    Assert.assertTrue(
-      Files.isDirectory(this.filesystem.getPath("/jail0/base")));
-    Assert.assertTrue(
-      Files.isRegularFile(this.filesystem.getPath("/jail0/file")));
-    Assert.assertTrue(
-      Files.isSymbolicLink(this.filesystem.getPath("/jail0/link")));
+  private static void assertUnpackedTarXZ(
+    final Path path)
+    throws IOException
+  {
+    Assert.assertTrue(Files.isDirectory(path.resolve("bin")));
+    Assert.assertEquals(200_000L, Files.size(path.resolve("bin/sh")));
+    Assert.assertArrayEquals(
+      Files.readAllBytes(path.resolve("bin/sh")),
+      Files.readAllBytes(path.resolve("bin/csh")));
+    Assert.assertArrayEquals(
+      Files.readAllBytes(path.resolve("bin/sh")),
+      Files.readAllBytes(path.resolve("rescue/sh")));
     Assert.assertEquals(
-      this.filesystem.getPath("/file"),
-      Files.readSymbolicLink(this.filesystem.getPath("/jail0/link")));
-    Assert.assertTrue(
-      Files.isRegularFile(this.filesystem.getPath("/jail0.conf")));
-    Assert.assertTrue(
-      Files.isRegularFile(this.filesystem.getPath("/jail0.fstab")));
+      "Welcome!\n",
+      new String(
+        Files.readAllBytes(path.resolve("etc/motd")),
+        StandardCharsets.UTF_8));
+    Assert.assertTrue(Files.isSymbolicLink(path.resolve("etc/rc")));
+    Assert.assertEquals(
+      PosixFilePermissions.fromString("rwxr-xr-x"),
+      Files.getPosixFilePermissions(path.resolve("bin/sh")));
+    Assert.assertEquals(
+      PosixFilePermissions.fromString("rw-r--r--"),
+      Files.getPosixFilePermissions(path.resolve("etc/motd")));
   }
 
   private static class MockPOSIXOps extends MockUp<POSIX>